@@ -19,6 +19,7 @@ package com.android.contacts;
 import com.android.contacts.model.AccountTypeManager;
 import com.android.contacts.util.BitmapUtil;
 import com.android.contacts.util.MemoryUtils;
+import com.android.contacts.util.PhotoDiskCache;
 import com.android.contacts.util.UriUtils;
 import com.google.android.collect.Lists;
 import com.google.android.collect.Sets;
@@ -44,11 +45,15 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.provider.ContactsContract.DisplayPhoto;
+import android.provider.ContactsContract.ProviderStatus;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LruCache;
@@ -56,14 +61,21 @@ import android.util.TypedValue;
 import android.widget.ImageView;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asynchronously loads contact photos and maintains a cache of photos.
@@ -260,6 +272,18 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+    private static final String WORKER_THREAD_NAME = "ContactPhotoWorker";
+
+    /**
+     * Number of threads that fetch URI based photos and decode photos.  Those are the slow
+     * parts of loading; the batched thumbnail queries stay on the loader thread.
+     */
+    private static final int WORKER_THREADS = 3;
+
+    /** How long an idle worker thread is kept around. */
+    private static final int WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    private static final int BUFFER_SIZE = 1024*16;
 
     private static final int FADE_TRANSITION_DURATION = 200;
 
@@ -277,7 +301,28 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    private static final String[] COLUMNS =
+            new String[] { Photo._ID, Photo.PHOTO, Data.DATA_VERSION };
+
+    private static final String[] VERSION_COLUMNS = new String[] { Photo._ID, Data.DATA_VERSION };
+
+    /**
+     * Name of the directory, under the cache directory, of the disk caches. Each contacts
+     * database has its own subdirectory, see {@link #createDiskCache}.
+     */
+    private static final String DISK_CACHE_DIRECTORY = "contact_photos";
+
+    /**
+     * Column of {@link ProviderStatus#CONTENT_URI} with the time the contacts database was
+     * created. It is not in the public API, so it may be missing.
+     */
+    private static final String DATABASE_CREATION_TIMESTAMP = "database_creation_timestamp";
+
+    /** Size of {@link #mDiskCache}: about 2500 thumbnails, or 300 display photos. */
+    private static final long DISK_CACHE_SIZE = 10 * 1024 * 1024;
+
+    /** Quality of the JPEGs that scaled down photos are stored as in {@link #mDiskCache}. */
+    private static final int DISK_CACHE_JPEG_QUALITY = 90;
 
     /**
      * Maintains the state of a particular photo.
@@ -342,6 +387,26 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private LoaderThread mLoaderThread;
 
+    /**
+     * Runs {@link PhotoTask}s: fetches of URI based photos, and decoding.  Created along
+     * with {@link #mLoaderThread}.
+     */
+    private ThreadPoolExecutor mWorkerExecutor;
+
+    /**
+     * Keys of the photos a {@link PhotoTask} is working on.  The loader thread doesn't
+     * load those again until the task is done.
+     */
+    private final Set<Object> mKeysInFlight =
+            Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    /**
+     * Persistent cache of thumbnails, keyed by photo id and data version, and of URI based
+     * photos scaled to the requested extent, keyed by URI and extent.  Created on first use,
+     * which is always off the UI thread.
+     */
+    private volatile PhotoDiskCache mDiskCache;
+
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
      */
@@ -366,6 +431,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /** For debug: How many times we had to reload cached photo for a fresh entry.  Should be 0. */
     private final AtomicInteger mFreshCacheOverwrite = new AtomicInteger();
 
+    /** For stats: How many requests could, or could not, be served from memory right away */
+    private final AtomicInteger mMemoryCacheHits = new AtomicInteger();
+    private final AtomicInteger mMemoryCacheMisses = new AtomicInteger();
+
+    /** For stats: How many photos were, or were not, found in {@link #mDiskCache} */
+    private final AtomicInteger mDiskCacheHits = new AtomicInteger();
+    private final AtomicInteger mDiskCacheMisses = new AtomicInteger();
+
+    /** For stats: How many thumbnail batches were queried, and how long that took in total */
+    private final AtomicInteger mThumbnailBatches = new AtomicInteger();
+    private final AtomicLong mThumbnailBatchMillis = new AtomicLong();
+
+    /** For stats: How many URI based photos were loaded, and how long that took in total */
+    private final AtomicInteger mUriLoads = new AtomicInteger();
+    private final AtomicLong mUriLoadMillis = new AtomicLong();
+
     public ContactPhotoManagerImpl(Context context) {
         mContext = context;
 
@@ -452,6 +533,25 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
             // We don't get from L2 cache, so L2 stats is meaningless.
         }
+
+        {
+            final int memoryHits = mMemoryCacheHits.get();
+            final int memoryMisses = mMemoryCacheMisses.get();
+            final int diskHits = mDiskCacheHits.get();
+            final int diskMisses = mDiskCacheMisses.get();
+            final PhotoDiskCache diskCache = mDiskCache;
+            Log.d(TAG, "Memory: hits=" + memoryHits + " misses=" + memoryMisses
+                    + ", hit rate: " + safeDiv(100 * memoryHits, memoryHits + memoryMisses) + "%");
+            Log.d(TAG, "Disk: " + (diskCache == null ? 0 : btk((int) diskCache.size()))
+                    + ", hits=" + diskHits + " misses=" + diskMisses
+                    + ", hit rate: " + safeDiv(100 * diskHits, diskHits + diskMisses) + "%");
+            final int thumbnailBatches = mThumbnailBatches.get();
+            final int uriLoads = mUriLoads.get();
+            Log.d(TAG, "Latency: " + thumbnailBatches + " thumbnail batches, avg: "
+                    + safeDiv((int) mThumbnailBatchMillis.get(), thumbnailBatches) + "ms, "
+                    + uriLoads + " uri photos, avg: "
+                    + safeDiv((int) mUriLoadMillis.get(), uriLoads) + "ms");
+        }
     }
 
     @Override
@@ -500,8 +600,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private void loadPhotoByIdOrUri(ImageView view, Request request) {
         boolean loaded = loadCachedPhoto(view, request, false);
         if (loaded) {
+            mMemoryCacheHits.incrementAndGet();
             mPendingRequests.remove(view);
         } else {
+            mMemoryCacheMisses.incrementAndGet();
             mPendingRequests.put(view, request);
             if (!mPaused) {
                 // Send a request to start loading photos
@@ -714,9 +816,143 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (mLoaderThread == null) {
             mLoaderThread = new LoaderThread(mContext.getContentResolver());
             mLoaderThread.start();
+            mWorkerExecutor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS,
+                    WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+            mWorkerExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Returns the disk cache, creating it if needed.  Must not be called on the UI thread.
+     */
+    private PhotoDiskCache getDiskCache() {
+        PhotoDiskCache diskCache = mDiskCache;
+        if (diskCache == null) {
+            synchronized (this) {
+                diskCache = mDiskCache;
+                if (diskCache == null) {
+                    diskCache = createDiskCache();
+                    mDiskCache = diskCache;
+                }
+            }
+        }
+        return diskCache;
+    }
+
+    /**
+     * Creates the disk cache for the current contacts database.  A new database, after the
+     * contacts storage is cleared, may give the same photo ids and display photo URIs to
+     * other photos.  So each database gets its own directory, named after its creation time,
+     * and the directories of the other databases are deleted.
+     */
+    private PhotoDiskCache createDiskCache() {
+        final File root = new File(mContext.getCacheDir(), DISK_CACHE_DIRECTORY);
+        final long created = getDatabaseCreationTime();
+        final String name = String.valueOf(created);
+        final File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(name)) {
+                    delete(file);
+                }
+            }
+        }
+        final PhotoDiskCache diskCache = new PhotoDiskCache(new File(root, name), DISK_CACHE_SIZE);
+        if (created == 0) {
+            // We can't tell whether the entries of a previous process are still valid.
+            diskCache.clear();
+        }
+        return diskCache;
+    }
+
+    /**
+     * Returns when the contacts database was created, or 0 if the provider doesn't tell.
+     */
+    private long getDatabaseCreationTime() {
+        Cursor cursor = null;
+        try {
+            // Ask for all the columns, since the provider rejects unknown ones.
+            cursor = mContext.getContentResolver().query(
+                    ProviderStatus.CONTENT_URI, null, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                final int index = cursor.getColumnIndex(DATABASE_CREATION_TIMESTAMP);
+                if (index >= 0 && !cursor.isNull(index)) {
+                    return cursor.getLong(index);
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    private static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String getThumbnailDiskCacheKey(long photoId, int dataVersion) {
+        return "id:" + photoId + ":" + dataVersion;
+    }
+
+    private static String getUriDiskCacheKey(Uri uri, int requestedExtent) {
+        return "uri:" + requestedExtent + ":" + uri;
+    }
+
+    /**
+     * Returns true if the photo at the URI can be kept in the disk cache.  Display photos
+     * get a new URI whenever they change; other URIs, like the ones of directory photos,
+     * may show a different photo next time.
+     */
+    private static boolean isDiskCacheable(Uri uri) {
+        return uri.toString().startsWith(DisplayPhoto.CONTENT_URI.toString());
+    }
+
+    /**
+     * Returns the bytes to keep on disk for a photo that has just been decoded: the photo
+     * as it was decoded, if it was scaled down, or else the original bytes.
+     */
+    private static byte[] getBytesForDiskCache(BitmapHolder holder) {
+        final Bitmap bitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+        if (bitmap == null || holder.decodedSampleSize <= 1) {
+            return holder.bytes;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG
+                : Bitmap.CompressFormat.JPEG, DISK_CACHE_JPEG_QUALITY, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Hands the task to a worker thread, unless its photo is already being worked on.
+     */
+    private void executeTask(PhotoTask task) {
+        if (mKeysInFlight.add(task.mKey)) {
+            mWorkerExecutor.execute(task);
         }
     }
 
+    /**
+     * Returns true if a view is still waiting for the photo with the key.  Requests for
+     * views that have been recycled, for instance while flinging a list, are dropped.
+     */
+    private boolean isPending(Object key) {
+        for (Request request : mPendingRequests.values()) {
+            if (request.getKey().equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Goes over pending loading requests and displays loaded photos.  If some of the
      * photos still haven't been loaded, sends another request for image loading.
@@ -752,7 +988,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /**
      * Stores the supplied bitmap in cache.
      */
-    private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+    private BitmapHolder cacheBitmap(Object key, byte[] bytes, boolean preloading,
+            int requestedExtent) {
         if (DEBUG) {
             BitmapHolder prev = mBitmapHolderCache.get(key);
             if (prev != null && prev.bytes != null) {
@@ -777,6 +1014,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         mBitmapHolderCache.put(key, holder);
         mBitmapHolderCacheAllUnfresh = false;
+        return holder;
     }
 
     @Override
@@ -802,8 +1040,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         photoIdsAsStrings.clear();
         uris.clear();
 
-        boolean jpegsDecoded = false;
-
         /*
          * Since the call is made from the loader thread, the map could be
          * changing during the iteration. That's not really a problem:
@@ -815,12 +1051,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         Iterator<Request> iterator = mPendingRequests.values().iterator();
         while (iterator.hasNext()) {
             Request request = iterator.next();
+            if (mKeysInFlight.contains(request.getKey())) {
+                // A worker is loading or decoding this one already
+                continue;
+            }
             final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
             if (holder != null && holder.bytes != null && holder.fresh &&
                     (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
                 // This was previously loaded but we don't currently have the inflated Bitmap
-                inflateBitmap(holder, request.getRequestedExtent());
-                jpegsDecoded = true;
+                executeTask(new InflateTask(request.getKey(), holder,
+                        request.getRequestedExtent()));
             } else {
                 if (holder == null || !holder.fresh) {
                     if (request.isUriRequest()) {
@@ -832,15 +1072,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
         }
-
-        if (jpegsDecoded) mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
     }
 
     /**
      * The thread that performs loading of photos from the database.
      */
     private class LoaderThread extends HandlerThread implements Callback {
-        private static final int BUFFER_SIZE = 1024*16;
         private static final int MESSAGE_PRELOAD_PHOTOS = 0;
         private static final int MESSAGE_LOAD_PHOTOS = 1;
 
@@ -868,7 +1105,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
 
         private Handler mLoaderThreadHandler;
-        private byte mBuffer[];
 
         private static final int PRELOAD_STATUS_NOT_STARTED = 0;
         private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
@@ -1023,7 +1259,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             requestPreloading();
         }
 
-        /** Loads thumbnail photos with ids */
+        /**
+         * Loads thumbnail photos with ids.  The photos are looked up in the disk cache first,
+         * and only the ones that are missing there are queried with their bytes.
+         */
         private void loadThumbnails(boolean preloading) {
             if (mPhotoIds.isEmpty()) {
                 return;
@@ -1040,36 +1279,32 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
-            mStringBuilder.setLength(0);
-            mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < mPhotoIds.size(); i++) {
-                if (i != 0) {
-                    mStringBuilder.append(',');
-                }
-                mStringBuilder.append('?');
-            }
-            mStringBuilder.append(')');
+            final long start = SystemClock.elapsedRealtime();
 
-            Cursor cursor = null;
-            try {
-                if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
-                cursor = mResolver.query(Data.CONTENT_URI,
-                        COLUMNS,
-                        mStringBuilder.toString(),
-                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
-                        null);
+            loadThumbnailsFromDiskCache(preloading);
 
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        Long id = cursor.getLong(0);
-                        byte[] bytes = cursor.getBlob(1);
-                        cacheBitmap(id, bytes, preloading, -1);
-                        mPhotoIds.remove(id);
+            if (!mPhotoIds.isEmpty()) {
+                Cursor cursor = null;
+                try {
+                    if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
+                    cursor = mResolver.query(Data.CONTENT_URI,
+                            COLUMNS,
+                            buildPhotoIdSelection(),
+                            mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
+                            null);
+
+                    if (cursor != null) {
+                        while (cursor.moveToNext()) {
+                            Long id = cursor.getLong(0);
+                            byte[] bytes = cursor.getBlob(1);
+                            cacheThumbnail(id, bytes, cursor.getInt(2), preloading);
+                            mPhotoIds.remove(id);
+                        }
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
                     }
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
                 }
             }
 
@@ -1082,8 +1317,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                                 ContentUris.withAppendedId(Data.CONTENT_URI, id),
                                 COLUMNS, null, null, null);
                         if (profileCursor != null && profileCursor.moveToFirst()) {
-                            cacheBitmap(profileCursor.getLong(0), profileCursor.getBlob(1),
-                                    preloading, -1);
+                            cacheThumbnail(profileCursor.getLong(0), profileCursor.getBlob(1),
+                                    profileCursor.getInt(2), preloading);
                         } else {
                             // Couldn't load a photo this way either.
                             cacheBitmap(id, null, preloading, -1);
@@ -1099,44 +1334,251 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
+            if (!preloading) {
+                mThumbnailBatches.incrementAndGet();
+                mThumbnailBatchMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+            }
+
             mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
         }
 
         /**
-         * Loads photos referenced with Uris. Those can be remote thumbnails
-         * (from directory searches), display photos etc
+         * Finds the current data versions of the requested thumbnails, and takes the ones
+         * whose version is in the disk cache from there.  Those are removed from
+         * {@link #mPhotoIds}.  Keying on the version means an edited photo is never served
+         * stale from disk.
+         */
+        private void loadThumbnailsFromDiskCache(boolean preloading) {
+            final PhotoDiskCache diskCache = getDiskCache();
+            Cursor cursor = null;
+            try {
+                cursor = mResolver.query(Data.CONTENT_URI,
+                        VERSION_COLUMNS,
+                        buildPhotoIdSelection(),
+                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
+                        null);
+                if (cursor == null) {
+                    return;
+                }
+                while (cursor.moveToNext()) {
+                    Long id = cursor.getLong(0);
+                    byte[] bytes = diskCache.get(getThumbnailDiskCacheKey(id, cursor.getInt(1)));
+                    if (bytes == null) {
+                        mDiskCacheMisses.incrementAndGet();
+                        continue;
+                    }
+                    mDiskCacheHits.incrementAndGet();
+                    if (preloading) {
+                        cacheBitmap(id, bytes, true, -1);
+                    } else {
+                        executeTask(new DecodeTask(id, bytes, -1, null));
+                    }
+                    mPhotoIds.remove(id);
+                    mPhotoIdsAsStrings.remove(String.valueOf(id));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * Caches a thumbnail that was just queried and stores it in the disk cache.  Unless
+         * it is being preloaded, it is decoded by a worker.
+         */
+        private void cacheThumbnail(Long id, byte[] bytes, int dataVersion, boolean preloading) {
+            final String diskCacheKey =
+                    bytes == null ? null : getThumbnailDiskCacheKey(id, dataVersion);
+            if (preloading) {
+                cacheBitmap(id, bytes, true, -1);
+                if (diskCacheKey != null) {
+                    getDiskCache().put(diskCacheKey, bytes);
+                }
+            } else {
+                executeTask(new DecodeTask(id, bytes, -1, diskCacheKey));
+            }
+        }
+
+        private String buildPhotoIdSelection() {
+            mStringBuilder.setLength(0);
+            mStringBuilder.append(Photo._ID + " IN(");
+            for (int i = 0; i < mPhotoIds.size(); i++) {
+                if (i != 0) {
+                    mStringBuilder.append(',');
+                }
+                mStringBuilder.append('?');
+            }
+            mStringBuilder.append(')');
+            return mStringBuilder.toString();
+        }
+
+        /**
+         * Hands photos referenced with Uris over to the workers. Those can be remote
+         * thumbnails (from directory searches), display photos etc
          */
         private void loadUriBasedPhotos() {
             for (Request uriRequest : mPhotoUris) {
-                Uri uri = uriRequest.getUri();
-                if (mBuffer == null) {
-                    mBuffer = new byte[BUFFER_SIZE];
+                executeTask(new UriLoadTask(uriRequest));
+            }
+        }
+    }
+
+    /**
+     * Names the worker threads and runs them at background priority.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(WORKER_THREAD_NAME + " #" + mCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
                 }
-                try {
+            };
+        }
+    }
+
+    /**
+     * Work on one photo that is done by a worker thread.  While it runs, the photo's key is
+     * in {@link #mKeysInFlight}.  Once it is done, the UI thread is told to show the photo.
+     */
+    private abstract class PhotoTask implements Runnable {
+        final Object mKey;
+
+        PhotoTask(Object key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            final boolean loaded;
+            try {
+                loaded = load();
+            } finally {
+                mKeysInFlight.remove(mKey);
+            }
+            if (loaded) {
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            }
+        }
+
+        /**
+         * Does the work, and returns false if there is nothing new to show.
+         */
+        protected abstract boolean load();
+    }
+
+    /**
+     * Decodes and caches photo bytes that have already been loaded, and stores them in the
+     * disk cache if they came from the provider.
+     */
+    private class DecodeTask extends PhotoTask {
+        private final byte[] mBytes;
+        private final int mRequestedExtent;
+        private final String mDiskCacheKey;
+
+        DecodeTask(Object key, byte[] bytes, int requestedExtent, String diskCacheKey) {
+            super(key);
+            mBytes = bytes;
+            mRequestedExtent = requestedExtent;
+            mDiskCacheKey = diskCacheKey;
+        }
+
+        @Override
+        protected boolean load() {
+            cacheBitmap(mKey, mBytes, false, mRequestedExtent);
+            if (mDiskCacheKey != null) {
+                getDiskCache().put(mDiskCacheKey, mBytes);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Decodes a cached photo again after its bitmap was garbage collected.
+     */
+    private class InflateTask extends PhotoTask {
+        private final BitmapHolder mHolder;
+        private final int mRequestedExtent;
+
+        InflateTask(Object key, BitmapHolder holder, int requestedExtent) {
+            super(key);
+            mHolder = holder;
+            mRequestedExtent = requestedExtent;
+        }
+
+        @Override
+        protected boolean load() {
+            inflateBitmap(mHolder, mRequestedExtent);
+            return true;
+        }
+    }
+
+    /**
+     * Loads a photo referenced with a Uri, from the disk cache if it is there and from
+     * the provider otherwise, and decodes it.
+     */
+    private class UriLoadTask extends PhotoTask {
+        private final Request mRequest;
+
+        UriLoadTask(Request request) {
+            super(request.getKey());
+            mRequest = request;
+        }
+
+        @Override
+        protected boolean load() {
+            if (!isPending(mKey)) {
+                // The view has moved on to another photo while this one was queued
+                return false;
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+            final Uri uri = mRequest.getUri();
+            final int requestedExtent = mRequest.getRequestedExtent();
+            try {
+                final PhotoDiskCache diskCache = isDiskCacheable(uri) ? getDiskCache() : null;
+                final String diskCacheKey = getUriDiskCacheKey(uri, requestedExtent);
+                byte[] bytes = diskCache == null ? null : diskCache.get(diskCacheKey);
+                if (bytes != null) {
+                    mDiskCacheHits.incrementAndGet();
+                    cacheBitmap(uri, bytes, false, requestedExtent);
+                } else {
+                    if (diskCache != null) mDiskCacheMisses.incrementAndGet();
                     if (DEBUG) Log.d(TAG, "Loading " + uri);
-                    InputStream is = mResolver.openInputStream(uri);
+                    InputStream is = mContext.getContentResolver().openInputStream(uri);
                     if (is != null) {
+                        final byte[] buffer = new byte[BUFFER_SIZE];
                         ByteArrayOutputStream baos = new ByteArrayOutputStream();
                         try {
                             int size;
-                            while ((size = is.read(mBuffer)) != -1) {
-                                baos.write(mBuffer, 0, size);
+                            while ((size = is.read(buffer)) != -1) {
+                                baos.write(buffer, 0, size);
                             }
                         } finally {
                             is.close();
                         }
-                        cacheBitmap(uri, baos.toByteArray(), false,
-                                uriRequest.getRequestedExtent());
-                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                        BitmapHolder holder = cacheBitmap(uri, baos.toByteArray(), false,
+                                requestedExtent);
+                        if (diskCache != null) {
+                            diskCache.put(diskCacheKey, getBytesForDiskCache(holder));
+                        }
                     } else {
                         Log.v(TAG, "Cannot load photo " + uri);
-                        cacheBitmap(uri, null, false, uriRequest.getRequestedExtent());
+                        cacheBitmap(uri, null, false, requestedExtent);
                     }
-                } catch (Exception ex) {
-                    Log.v(TAG, "Cannot load photo " + uri, ex);
-                    cacheBitmap(uri, null, false, uriRequest.getRequestedExtent());
                 }
+            } catch (Exception ex) {
+                Log.v(TAG, "Cannot load photo " + uri, ex);
+                cacheBitmap(uri, null, false, requestedExtent);
             }
+            mUriLoads.incrementAndGet();
+            mUriLoadMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+            return true;
         }
     }
 
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A size-bounded cache of photo bytes in a directory, which survives process restarts.
+ * <p>
+ * Each entry is stored in its own file, named after a hash of its key. The key itself is
+ * written at the start of the file, so a hash collision reads as a miss rather than as the
+ * wrong photo. Entries are written to a temporary file first and then renamed, so readers
+ * never see a partially written entry. When the cache grows over its maximum size, the least
+ * recently used entries are deleted.
+ * <p>
+ * All methods do disk I/O and must not be called on the UI thread. They may be called from
+ * several threads at once.
+ */
+public class PhotoDiskCache {
+    private static final String TAG = "PhotoDiskCache";
+
+    private static final int MAGIC = 0x50444331; // "PDC1"
+    private static final String ENTRY_SUFFIX = ".photo";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /** Total size of the entries, or -1 until the directory has been scanned. */
+    private long mSize = -1;
+
+    public PhotoDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the bytes stored for the key, or null if there are none.
+     */
+    public byte[] get(String key) {
+        final File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || !key.equals(in.readUTF())) {
+                return null;
+            }
+            final int length = in.readInt();
+            if (length < 0 || length > file.length()) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            // Reading counts as a use for the purpose of trimming.
+            file.setLastModified(System.currentTimeMillis());
+            return bytes;
+        } catch (IOException e) {
+            // The entry is either corrupt or was just trimmed.
+            Log.w(TAG, "Cannot read " + file, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores the bytes for the key, replacing any previous entry, and trims the cache if
+     * it has grown too large.
+     */
+    public void put(String key, byte[] bytes) {
+        final File file = getFile(key);
+        final File temp = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+        synchronized (this) {
+            ensureSizeLocked();
+            if (!mDirectory.isDirectory()) {
+                // The system may clear the cache directory at any time.
+                mDirectory.mkdirs();
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                out.writeInt(MAGIC);
+                out.writeUTF(key);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.close();
+                out = null;
+
+                final long previousLength = file.length();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Cannot rename " + temp + " to " + file);
+                }
+                mSize += file.length() - previousLength;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot write " + file, e);
+                temp.delete();
+                return;
+            } finally {
+                closeQuietly(out);
+            }
+
+            if (mSize > mMaxBytes) {
+                trimLocked();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by the entries. Only writes scan the directory, so
+     * this is 0 until the first {@link #put}, even if entries were left by an earlier process.
+     */
+    public synchronized long size() {
+        return Math.max(mSize, 0);
+    }
+
+    /**
+     * Deletes all entries.
+     */
+    public synchronized void clear() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mSize = 0;
+    }
+
+    private File getFile(String key) {
+        // 64-bit FNV-1a, which keeps collisions rare without the cost of a real digest.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return new File(mDirectory, Long.toHexString(hash) + ENTRY_SUFFIX);
+    }
+
+    private void ensureSizeLocked() {
+        if (mSize >= 0) {
+            return;
+        }
+        mDirectory.mkdirs();
+        long size = 0;
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                    size += file.length();
+                } else {
+                    // Left behind by a write that did not complete.
+                    file.delete();
+                }
+            }
+        }
+        mSize = size;
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is down to three quarters
+     * of its maximum size, so that trimming doesn't happen on every write.
+     */
+    private void trimLocked() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        // Count the size again, in case files were deleted behind our back.
+        mSize = 0;
+        for (int i = 0; i < files.length; i++) {
+            // Read the times once: they may change under the sort as entries are read.
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+            mSize += files[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final long l = lastModified[lhs];
+                final long r = lastModified[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        final long target = mMaxBytes / 4 * 3;
+        for (int i = 0; i < order.length && mSize > target; i++) {
+            final File file = files[order[i]];
+            final long length = file.length();
+            if (file.delete()) {
+                mSize -= length;
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+}
@@ -29,15 +29,32 @@ import com.android.vcard.exception.VCardNotSupportedException;
 import com.android.vcard.exception.VCardVersionException;
 
 import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.OperationApplicationException;
 import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Class for processing one import request from a user. Dropped after importing requested Uri(s).
@@ -47,6 +64,41 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     private static final String LOG_TAG = "VCardImport";
     private static final boolean DEBUG = VCardService.DEBUG;
 
+    /**
+     * Files with at least this many entries are imported through the pipeline in
+     * {@link #readVCardPipelined}. Smaller ones aren't worth the threads.
+     */
+    private static final int PIPELINE_MIN_ENTRY_COUNT = 100;
+
+    private static final int MAX_PARSER_THREADS = 4;
+
+    /** How many records may be split off the file ahead of the writer. */
+    private static final int MAX_PENDING_RECORDS = 256;
+
+    /**
+     * Size limits of one batch of the pipeline's writer. The size of the vCard text stands
+     * in for the size of the operations, which must fit into one binder transaction.
+     */
+    private static final int MAX_OPERATIONS_PER_BATCH = 800;
+    private static final int MAX_RECORD_BYTES_PER_BATCH = 128 * 1024;
+
+    /**
+     * The provider refuses more than 500 operations between two yield points, and yields
+     * only between entries keep their back references intact.
+     */
+    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 400;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Queued by the {@link RecordSplitter} after the last record of the file. */
+    private static final Future<ParsedRecord> END_OF_RECORDS = new FutureTask<ParsedRecord>(
+            new Callable<ParsedRecord>() {
+                @Override
+                public ParsedRecord call() {
+                    return null;
+                }
+            });
+
     private final VCardService mService;
     private final ContentResolver mResolver;
     private final ImportRequest mImportRequest;
@@ -56,6 +108,9 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     // TODO: remove and show appropriate message instead.
     private final List<Uri> mFailedUris = new ArrayList<Uri>();
 
+    /** Uris of the first contact of each batch the pipeline has written. */
+    private final List<Uri> mCreatedUris = new ArrayList<Uri>();
+
     private VCardParser mVCardParser;
 
     private volatile boolean mCanceled;
@@ -155,6 +210,8 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         constructor.addEntryHandler(committer);
         constructor.addEntryHandler(this);
 
+        final boolean pipelined = entryCount >= PIPELINE_MIN_ENTRY_COUNT;
+        final long start = SystemClock.elapsedRealtime();
         InputStream is = null;
         boolean successful = false;
         try {
@@ -167,8 +224,12 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             }
 
             if (is != null) {
-                successful = readOneVCard(is, estimatedVCardType, estimatedCharset, constructor,
-                        possibleVCardVersions);
+                if (pipelined) {
+                    successful = readVCardPipelined(is, possibleVCardVersions);
+                } else {
+                    successful = readOneVCard(is, estimatedVCardType, estimatedCharset,
+                            constructor, possibleVCardVersions);
+                }
             }
         } catch (IOException e) {
             successful = false;
@@ -182,6 +243,11 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             }
         }
 
+        final long elapsed = Math.max(SystemClock.elapsedRealtime() - start, 1);
+        Log.i(LOG_TAG, String.format("vCard import (id: %d) read %d entries in %d ms"
+                + " (%d entries/s, %s)", mJobId, mCurrentCount, elapsed,
+                mCurrentCount * 1000L / elapsed, pipelined ? "pipelined" : "serial"));
+
         mService.handleFinishImportNotification(mJobId, successful);
 
         if (successful) {
@@ -192,7 +258,7 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
                 // Cancel notification will be done outside this method.
             } else {
                 Log.i(LOG_TAG, "Successfully finished importing one vCard file: " + uri);
-                List<Uri> uris = committer.getCreatedUris();
+                List<Uri> uris = pipelined ? mCreatedUris : committer.getCreatedUris();
                 if (mListener != null) {
                     if (uris != null && uris.size() > 0) {
                         // TODO: construct intent showing a list of imported contact list.
@@ -277,6 +343,424 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         return successful;
     }
 
+    /**
+     * Imports a large file in three stages that run at the same time: a {@link RecordSplitter}
+     * cuts the stream into vCard records, a pool of threads parses them, and this thread
+     * writes the parsed entries, in file order, in large batches.
+     * <p>
+     * The provider aggregates new contacts when a batch's transaction commits, so writing
+     * few large batches instead of many small ones also defers aggregation and does it in
+     * bulk.
+     *
+     * @return false if the file couldn't be read. Records that can't be parsed are skipped.
+     */
+    private boolean readVCardPipelined(InputStream is, int[] possibleVCardVersions) {
+        final int threads = Math.max(1,
+                Math.min(MAX_PARSER_THREADS, Runtime.getRuntime().availableProcessors()));
+        final ExecutorService parsers = Executors.newFixedThreadPool(threads);
+        final BlockingQueue<Future<ParsedRecord>> records =
+                new ArrayBlockingQueue<Future<ParsedRecord>>(MAX_PENDING_RECORDS);
+        final RecordSplitter splitter =
+                new RecordSplitter(is, parsers, records, possibleVCardVersions);
+        final BatchWriter writer = new BatchWriter(mResolver, mCreatedUris);
+        int recordCount = 0;
+        int failedRecordCount = 0;
+        splitter.start();
+        try {
+            while (!isCancelled()) {
+                final Future<ParsedRecord> future = records.take();
+                if (future == END_OF_RECORDS) {
+                    break;
+                }
+                final ParsedRecord record = future.get();
+                recordCount++;
+                if (record.entries == null) {
+                    failedRecordCount++;
+                    continue;
+                }
+                for (VCardEntry entry : record.entries) {
+                    writer.add(entry);
+                    onEntryCreated(entry);
+                }
+                writer.addRecordBytes(record.length);
+            }
+            // Like the serial import, keep what has been parsed when canceled.
+            writer.flush();
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Interrupted while importing");
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // Parsers catch the exceptions of a bad record, so this is an error like OOM.
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            // Stops the splitter if it is still running, once the caller closes the stream.
+            splitter.interrupt();
+            parsers.shutdownNow();
+        }
+
+        if (failedRecordCount > 0) {
+            Log.w(LOG_TAG, String.format("Skipped %d of %d vCard records that could not be"
+                    + " parsed", failedRecordCount, recordCount));
+        }
+        return !splitter.hasFailed()
+                && (failedRecordCount < recordCount || recordCount == 0);
+    }
+
+    /**
+     * The entries parsed from one vCard record.
+     */
+    static class ParsedRecord {
+        /** Length of the record's text, in bytes. */
+        final int length;
+        /** The entries, or null if the record couldn't be parsed. */
+        final List<VCardEntry> entries;
+
+        ParsedRecord(int length, List<VCardEntry> entries) {
+            this.length = length;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Hands the records of the input stream to the parsers. The records' futures are queued
+     * in file order, followed by {@link #END_OF_RECORDS}.
+     */
+    private class RecordSplitter extends Thread {
+        private final RecordReader mReader;
+        private final ExecutorService mParsers;
+        private final BlockingQueue<Future<ParsedRecord>> mRecords;
+        private final int[] mPossibleVCardVersions;
+
+        private volatile boolean mFailed;
+
+        public RecordSplitter(InputStream inputStream, ExecutorService parsers,
+                BlockingQueue<Future<ParsedRecord>> records, int[] possibleVCardVersions) {
+            super("VCardRecordSplitter");
+            mReader = new RecordReader(inputStream);
+            mParsers = parsers;
+            mRecords = records;
+            mPossibleVCardVersions = possibleVCardVersions;
+        }
+
+        /**
+         * @return true if the stream couldn't be read to the end.
+         */
+        public boolean hasFailed() {
+            return mFailed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    split();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "IOException was emitted: " + e.getMessage());
+                    mFailed = true;
+                } catch (RejectedExecutionException e) {
+                    // The writer has stopped and shut the parsers down.
+                    return;
+                }
+                mRecords.put(END_OF_RECORDS);
+            } catch (InterruptedException e) {
+                // The writer has stopped.
+            }
+        }
+
+        private void split() throws IOException, InterruptedException {
+            byte[] record;
+            while (!isCancelled() && (record = mReader.nextRecord()) != null) {
+                mRecords.put(mParsers.submit(
+                        new ParseTask(record, mPossibleVCardVersions, mImportRequest)));
+            }
+        }
+    }
+
+    /**
+     * Cuts a vCard stream into records, from a BEGIN:VCARD line to the matching END:VCARD
+     * line. vCards may contain vCards (AGENT), which stay in their record. Text outside of
+     * records is dropped.
+     * <p>
+     * Only the lines are looked at, not their encoding: the parser reads the text as
+     * ISO-8859-1 and converts it later anyway.
+     */
+    static class RecordReader {
+        private final InputStream mInputStream;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mBufferStart;
+        private int mBufferEnd;
+        private boolean mEndOfStream;
+
+        private final LineBuffer mLine = new LineBuffer();
+        private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+        /** Nesting level of the line being read. */
+        private int mDepth;
+
+        public RecordReader(InputStream inputStream) {
+            mInputStream = inputStream;
+        }
+
+        /**
+         * @return the next record, or null at the end of the stream. If the stream ends in the
+         * middle of a record, that record is returned as it is, for the parser to complain
+         * about.
+         */
+        public byte[] nextRecord() throws IOException {
+            while (!mEndOfStream) {
+                if (mBufferStart == mBufferEnd) {
+                    final int length = mInputStream.read(mBuffer);
+                    if (length == -1) {
+                        mEndOfStream = true;
+                        // The last line may have no line break.
+                        if (onLine()) {
+                            return takeRecord();
+                        }
+                        break;
+                    }
+                    mBufferStart = 0;
+                    mBufferEnd = length;
+                }
+                int lineEnd = mBufferStart;
+                while (lineEnd < mBufferEnd && mBuffer[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd == mBufferEnd) {
+                    mLine.write(mBuffer, mBufferStart, mBufferEnd - mBufferStart);
+                    mBufferStart = mBufferEnd;
+                } else {
+                    mLine.write(mBuffer, mBufferStart, lineEnd + 1 - mBufferStart);
+                    mBufferStart = lineEnd + 1;
+                    if (onLine()) {
+                        return takeRecord();
+                    }
+                }
+            }
+            return mRecord.size() > 0 ? takeRecord() : null;
+        }
+
+        /**
+         * @return true if the line ends a record.
+         */
+        private boolean onLine() {
+            if (mLine.size() == 0) {
+                return false;
+            }
+            // Inside a record, a line that starts with white space continues the previous
+            // line, so it can't begin or end a vCard.
+            if (mLine.isLine("BEGIN:VCARD", mDepth == 0)) {
+                mDepth++;
+            } else if (mDepth == 0) {
+                // Outside of any vCard.
+                mLine.reset();
+                return false;
+            }
+            mLine.appendTo(mRecord);
+            boolean endOfRecord = false;
+            if (mLine.isLine("END:VCARD", false)) {
+                mDepth--;
+                endOfRecord = mDepth == 0;
+            }
+            mLine.reset();
+            return endOfRecord;
+        }
+
+        private byte[] takeRecord() {
+            final byte[] record = mRecord.toByteArray();
+            mRecord.reset();
+            mDepth = 0;
+            return record;
+        }
+    }
+
+    /**
+     * A line of a vCard file, which can be compared without copying it.
+     */
+    private static class LineBuffer extends ByteArrayOutputStream {
+        /**
+         * @return true if the line is the given ASCII text, ignoring case and trailing white
+         * space, and leading white space if it is allowed.
+         */
+        public boolean isLine(String text, boolean allowLeadingWhitespace) {
+            int start = 0;
+            int end = count;
+            while (allowLeadingWhitespace && start < end && isWhitespace(buf[start])) {
+                start++;
+            }
+            while (end > start && isWhitespace(buf[end - 1])) {
+                end--;
+            }
+            if (end - start != text.length()) {
+                return false;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                if (Character.toUpperCase((char) buf[start + i]) != text.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void appendTo(ByteArrayOutputStream out) {
+            out.write(buf, 0, count);
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+        }
+    }
+
+    /**
+     * Parses one vCard record, trying each of the possible versions in turn.
+     */
+    static class ParseTask implements Callable<ParsedRecord> {
+        private final byte[] mRecord;
+        private final int[] mPossibleVCardVersions;
+        private final ImportRequest mRequest;
+
+        public ParseTask(byte[] record, int[] possibleVCardVersions, ImportRequest request) {
+            mRecord = record;
+            mPossibleVCardVersions = possibleVCardVersions;
+            mRequest = request;
+        }
+
+        @Override
+        public ParsedRecord call() {
+            final ImportRequest request = mRequest;
+            final int length = mPossibleVCardVersions.length;
+            for (int i = 0; i < length; i++) {
+                final int vcardVersion = mPossibleVCardVersions[i];
+                final VCardEntryConstructor constructor = new VCardEntryConstructor(
+                        request.estimatedVCardType, request.account, request.estimatedCharset);
+                final EntryCollector collector = new EntryCollector();
+                constructor.addEntryHandler(collector);
+                final VCardParser parser = (vcardVersion == ImportVCardActivity.VCARD_VERSION_V30
+                        ? new VCardParser_V30(request.estimatedVCardType)
+                        : new VCardParser_V21(request.estimatedVCardType));
+                try {
+                    parser.parse(new ByteArrayInputStream(mRecord), constructor);
+                    return new ParsedRecord(mRecord.length, collector.entries);
+                } catch (VCardVersionException e) {
+                    if (i == length - 1) {
+                        Log.e(LOG_TAG, "Appropriate version for this vCard is not found.");
+                    } else {
+                        // We'll try the other (v30) version.
+                    }
+                } catch (VCardException e) {
+                    Log.e(LOG_TAG, e.toString());
+                    break;
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "IOException was emitted: " + e.getMessage());
+                    break;
+                }
+            }
+            return new ParsedRecord(mRecord.length, null);
+        }
+    }
+
+    /**
+     * Collects the entries of one record as they are parsed.
+     */
+    private static class EntryCollector implements VCardEntryHandler {
+        final List<VCardEntry> entries = new ArrayList<VCardEntry>(1);
+
+        @Override
+        public void onStart() {
+        }
+
+        @Override
+        public void onEntryCreated(VCardEntry entry) {
+            entries.add(entry);
+        }
+
+        @Override
+        public void onEnd() {
+        }
+    }
+
+    /**
+     * Turns entries into insert operations, and applies them in batches that are much larger
+     * than those of {@link VCardEntryCommitter}. A yield point between entries keeps each
+     * batch within the provider's limit of operations between yield points, and lets other
+     * clients in while a batch is applied.
+     */
+    static class BatchWriter {
+        private final ContentResolver mResolver;
+        /** Gets the Uri of the first contact of each batch. */
+        private final List<Uri> mCreatedUris;
+        private ArrayList<ContentProviderOperation> mOperations =
+                new ArrayList<ContentProviderOperation>();
+        private int mOperationsSinceYieldPoint;
+        private int mRecordBytes;
+
+        public BatchWriter(ContentResolver resolver, List<Uri> createdUris) {
+            mResolver = resolver;
+            mCreatedUris = createdUris;
+        }
+
+        public void add(VCardEntry entry) {
+            final int start = mOperations.size();
+            mOperations = entry.constructInsertOperations(mResolver, mOperations);
+            final int added = mOperations.size() - start;
+            if (mOperationsSinceYieldPoint > 0
+                    && mOperationsSinceYieldPoint + added > MAX_OPERATIONS_PER_YIELD_POINT) {
+                // Back references depend on where the entry starts, so construct it again
+                // after the yield point.
+                mOperations.subList(start, mOperations.size()).clear();
+                mOperations.add(newYieldPoint());
+                mOperations = entry.constructInsertOperations(mResolver, mOperations);
+                mOperationsSinceYieldPoint = 0;
+            }
+            mOperationsSinceYieldPoint += added;
+        }
+
+        /**
+         * Accounts for the text of a record whose entries have been added, and applies the
+         * batch if it is full.
+         */
+        public void addRecordBytes(int length) {
+            mRecordBytes += length;
+            if (mOperations.size() >= MAX_OPERATIONS_PER_BATCH
+                    || mRecordBytes >= MAX_RECORD_BYTES_PER_BATCH) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            if (!mOperations.isEmpty()) {
+                try {
+                    final ContentProviderResult[] results =
+                            mResolver.applyBatch(ContactsContract.AUTHORITY, mOperations);
+                    // The first operation always inserts the raw contact of the first entry.
+                    mCreatedUris.add((results == null || results.length == 0
+                            || results[0] == null) ? null : results[0].uri);
+                } catch (RemoteException e) {
+                    Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                } catch (OperationApplicationException e) {
+                    Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                }
+            }
+            mOperations = new ArrayList<ContentProviderOperation>();
+            mOperationsSinceYieldPoint = 0;
+            mRecordBytes = 0;
+        }
+
+        /**
+         * Returns an operation that does nothing but allow the provider to yield before it.
+         */
+        private ContentProviderOperation newYieldPoint() {
+            return ContentProviderOperation.newAssertQuery(RawContacts.CONTENT_URI)
+                    .withSelection(RawContacts._ID + "=-1", null)
+                    .withExpectedCount(0)
+                    .withYieldAllowed(true)
+                    .build();
+        }
+    }
+
     @Override
     public synchronized boolean cancel(boolean mayInterruptIfRunning) {
         if (DEBUG) Log.d(LOG_TAG, "ImportProcessor received cancel request");
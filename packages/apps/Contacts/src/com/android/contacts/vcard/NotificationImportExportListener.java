@@ -29,6 +29,7 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.ContactsContract.RawContacts;
 import android.widget.RemoteViews;
 import android.widget.Toast;
@@ -45,10 +46,19 @@ public class NotificationImportExportListener implements VCardImportExportListen
      */
     /* package */ static final String FAILURE_NOTIFICATION_TAG = "VCardServiceFailure";
 
+    /**
+     * Minimum time between two progress notifications for one import. Posting one for every
+     * entry slows down large imports considerably.
+     */
+    private static final long PROGRESS_UPDATE_INTERVAL_MILLIS = 200;
+
     private final NotificationManager mNotificationManager;
     private final Activity mContext;
     private final Handler mHandler;
 
+    /** When the last progress notification was posted. */
+    private long mLastProgressUpdateTime;
+
     public NotificationImportExportListener(Activity activity) {
         mContext = activity;
         mNotificationManager = (NotificationManager) activity.getSystemService(
@@ -97,6 +107,13 @@ public class NotificationImportExportListener implements VCardImportExportListen
             return;
         }
 
+        final long now = SystemClock.elapsedRealtime();
+        if (currentCount < totalCount
+                && now - mLastProgressUpdateTime < PROGRESS_UPDATE_INTERVAL_MILLIS) {
+            return;
+        }
+        mLastProgressUpdateTime = now;
+
         final String totalCountString = String.valueOf(totalCount);
         final String tickerText =
                 mContext.getString(R.string.progress_notifier_message,
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link PhotoDiskCache}.
+ */
+@SmallTest
+public class PhotoDiskCacheTest extends AndroidTestCase {
+    private static final long MAX_BYTES = 10000;
+
+    private File mDirectory;
+    /** The object under test. */
+    private PhotoDiskCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "PhotoDiskCacheTest");
+        mCache = new PhotoDiskCache(mDirectory, MAX_BYTES);
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.clear();
+        mDirectory.delete();
+        mCache = null;
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        mCache.put("a", bytes(10, 1));
+        mCache.put("b", bytes(20, 2));
+        assertTrue(Arrays.equals(bytes(10, 1), mCache.get("a")));
+        assertTrue(Arrays.equals(bytes(20, 2), mCache.get("b")));
+        assertNull(mCache.get("c"));
+    }
+
+    public void testPut_Replaces() {
+        mCache.put("a", bytes(10, 1));
+        mCache.put("a", bytes(30, 3));
+        assertTrue(Arrays.equals(bytes(30, 3), mCache.get("a")));
+    }
+
+    public void testPersists() {
+        mCache.put("a", bytes(10, 1));
+        PhotoDiskCache other = new PhotoDiskCache(mDirectory, MAX_BYTES);
+        assertTrue(Arrays.equals(bytes(10, 1), other.get("a")));
+    }
+
+    public void testGet_Corrupt() throws Exception {
+        mCache.put("a", bytes(10, 1));
+        File[] files = mDirectory.listFiles();
+        assertEquals(1, files.length);
+        FileOutputStream out = new FileOutputStream(files[0]);
+        out.write(bytes(5, 9));
+        out.close();
+        assertNull(mCache.get("a"));
+    }
+
+    public void testTrim() {
+        // Date the entries a second apart in the past, so that their order doesn't depend on
+        // the resolution of file times.
+        final long past = System.currentTimeMillis() - 100000;
+        for (int i = 0; i < 10; i++) {
+            mCache.put("k" + i, bytes(900, i));
+            for (File file : mDirectory.listFiles()) {
+                if (file.lastModified() > past + i * 1000) {
+                    file.setLastModified(past + i * 1000);
+                }
+            }
+        }
+        // Touch the first entry, so that it is kept.
+        assertNotNull(mCache.get("k0"));
+        mCache.put("k10", bytes(900, 10));
+
+        assertTrue(mCache.size() <= MAX_BYTES * 3 / 4);
+        assertNotNull(mCache.get("k0"));
+        assertNotNull(mCache.get("k10"));
+        assertNull(mCache.get("k1"));
+    }
+
+    private static byte[] bytes(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
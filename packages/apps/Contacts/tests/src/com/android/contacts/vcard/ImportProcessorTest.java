@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.vcard;
+
+import com.android.contacts.vcard.ImportProcessor.BatchWriter;
+import com.android.contacts.vcard.ImportProcessor.ParseTask;
+import com.android.contacts.vcard.ImportProcessor.ParsedRecord;
+import com.android.contacts.vcard.ImportProcessor.RecordReader;
+import com.android.vcard.VCardConfig;
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryCommitter;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardParser_V21;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the stages of {@link ImportProcessor}'s pipelined import.
+ */
+@SmallTest
+public class ImportProcessorTest extends AndroidTestCase {
+    /** The most operations ContactsProvider accepts between two yield points. */
+    private static final int PROVIDER_MAX_OPERATIONS_PER_YIELD_POINT = 500;
+
+    private static final int VCARD_TYPE = VCardConfig.VCARD_TYPE_DEFAULT;
+    private static final int[] VCARD_VERSIONS = new int[] {
+            ImportVCardActivity.VCARD_VERSION_V21
+    };
+
+    /**
+     * Records the batches applied to the contacts provider.
+     */
+    private static class RecordingContactsProvider extends MockContentProvider {
+        final List<List<ContentProviderOperation>> mBatches =
+                new ArrayList<List<ContentProviderOperation>>();
+        private long mNextId = 1;
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations) {
+            mBatches.add(new ArrayList<ContentProviderOperation>(operations));
+            final ContentProviderResult[] results =
+                    new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                results[i] = new ContentProviderResult(
+                        ContentUris.withAppendedId(operations.get(i).getUri(), mNextId++));
+            }
+            return results;
+        }
+
+        List<String> describeBatches() {
+            final List<String> descriptions = new ArrayList<String>();
+            for (List<ContentProviderOperation> batch : mBatches) {
+                descriptions.add(batch.toString());
+            }
+            return descriptions;
+        }
+    }
+
+    /**
+     * Returns one byte per read, so that every line crosses a buffer boundary.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        public TrickleInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, 1));
+        }
+    }
+
+    private MockContentResolver mResolver;
+    private RecordingContactsProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new RecordingContactsProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver = null;
+        mProvider = null;
+        super.tearDown();
+    }
+
+    private static byte[] bytes(String text) throws IOException {
+        return text.getBytes("ISO-8859-1");
+    }
+
+    private static List<String> readRecords(InputStream in) throws IOException {
+        final RecordReader reader = new RecordReader(in);
+        final List<String> records = new ArrayList<String>();
+        byte[] record;
+        while ((record = reader.nextRecord()) != null) {
+            records.add(new String(record, "ISO-8859-1"));
+        }
+        return records;
+    }
+
+    private static void assertRecords(String text, String... expected) throws IOException {
+        final List<String> expectedList = new ArrayList<String>();
+        for (String record : expected) {
+            expectedList.add(record);
+        }
+        assertEquals(expectedList, readRecords(new ByteArrayInputStream(bytes(text))));
+        assertEquals(expectedList, readRecords(new TrickleInputStream(bytes(text))));
+    }
+
+    private static String card(String name, int phoneCount, String lineBreak) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("BEGIN:VCARD").append(lineBreak);
+        builder.append("VERSION:2.1").append(lineBreak);
+        builder.append("N:").append(name).append(";;;;").append(lineBreak);
+        builder.append("FN:").append(name).append(lineBreak);
+        for (int i = 0; i < phoneCount; i++) {
+            builder.append("TEL;HOME:555-01").append(i / 10).append(i % 10).append(lineBreak);
+        }
+        builder.append("END:VCARD").append(lineBreak);
+        return builder.toString();
+    }
+
+    private static ImportRequest newRequest(byte[] data) {
+        return new ImportRequest(null, data, null, "test", VCARD_TYPE, null,
+                ImportVCardActivity.VCARD_VERSION_V21, 1);
+    }
+
+    /**
+     * Runs the splitting, parsing and writing stages of the pipelined import, one after the
+     * other on this thread.
+     */
+    private void importPipelined(byte[] data) throws IOException {
+        final RecordReader reader = new RecordReader(new ByteArrayInputStream(data));
+        final BatchWriter writer = new BatchWriter(mResolver, new ArrayList<Uri>());
+        byte[] record;
+        while ((record = reader.nextRecord()) != null) {
+            final ParsedRecord parsed =
+                    new ParseTask(record, VCARD_VERSIONS, newRequest(data)).call();
+            assertNotNull(parsed.entries);
+            for (VCardEntry entry : parsed.entries) {
+                writer.add(entry);
+            }
+            writer.addRecordBytes(parsed.length);
+        }
+        writer.flush();
+    }
+
+    public void testRecordReader_LfAndCrLf() throws IOException {
+        final String first = card("First", 1, "\r\n");
+        final String second = card("Second", 2, "\n");
+        assertRecords(first + second, first, second);
+    }
+
+    public void testRecordReader_NestedAgent() throws IOException {
+        final String agent = "BEGIN:VCARD\r\n"
+                + "VERSION:2.1\r\n"
+                + "N:Boss;;;;\r\n"
+                + "AGENT:\r\n"
+                + "BEGIN:VCARD\r\n"
+                + "VERSION:2.1\r\n"
+                + "N:Agent;;;;\r\n"
+                + "END:VCARD\r\n"
+                + "TEL:555-0100\r\n"
+                + "END:VCARD\r\n";
+        final String next = card("Next", 1, "\r\n");
+        assertRecords(agent + next, agent, next);
+    }
+
+    public void testRecordReader_FoldedLines() throws IOException {
+        // A continuation line starts with white space, so it never ends a vCard even if the
+        // rest of it looks like it does.
+        final String folded = "BEGIN:VCARD\r\n"
+                + "VERSION:3.0\r\n"
+                + "N:Folded;;;;\r\n"
+                + "NOTE:the next line is\r\n"
+                + " END:VCARD\r\n"
+                + "\tBEGIN:VCARD\r\n"
+                + "END:VCARD\r\n";
+        final String next = card("Next", 1, "\r\n");
+        assertRecords(folded + next, folded, next);
+    }
+
+    public void testRecordReader_TextOutsideOfRecords() throws IOException {
+        final String first = card("First", 1, "\r\n");
+        final String second = "  begin:vcard\r\nVERSION:2.1\r\nN:Second;;;;\r\nend:vcard  \r\n";
+        assertRecords("garbage\r\n\r\n" + first + "\r\nmore garbage\r\n" + second
+                + "trailing garbage", first, second);
+    }
+
+    public void testRecordReader_UnterminatedRecords() throws IOException {
+        // The last line of the file has no line break.
+        final String first = "BEGIN:VCARD\nVERSION:2.1\nN:First;;;;\nEND:VCARD";
+        assertRecords(first, first);
+
+        // The file ends in the middle of a record, which is still returned for the parser
+        // to reject.
+        final String second = card("Second", 1, "\r\n");
+        final String truncated = "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Trunc";
+        assertRecords(second + truncated, second, truncated);
+    }
+
+    public void testBatchWriter_YieldPoints() throws IOException {
+        // Large entries, which together are far over the provider's limit of operations
+        // between yield points.
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            text.append(card("Name" + i, 40, "\r\n"));
+        }
+        importPipelined(bytes(text.toString()));
+
+        int yieldPoints = 0;
+        int writeCount = 0;
+        for (List<ContentProviderOperation> batch : mProvider.mBatches) {
+            // Each batch starts with an entry, so that its back references stay in the batch.
+            assertEquals(RawContacts.CONTENT_URI, batch.get(0).getUri());
+            int operationsSinceYieldPoint = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                final ContentProviderOperation operation = batch.get(i);
+                if (operation.isYieldAllowed()) {
+                    assertTrue(operation.isReadOperation());
+                    // Yield points are only put between entries.
+                    assertTrue(i > 0);
+                    assertEquals(RawContacts.CONTENT_URI, batch.get(i + 1).getUri());
+                    operationsSinceYieldPoint = 0;
+                    yieldPoints++;
+                } else {
+                    operationsSinceYieldPoint++;
+                    assertTrue(operationsSinceYieldPoint
+                            <= PROVIDER_MAX_OPERATIONS_PER_YIELD_POINT);
+                    writeCount++;
+                }
+            }
+        }
+        assertTrue(yieldPoints > 0);
+        assertTrue(mProvider.mBatches.size() > 1);
+
+        // Nothing but the yield points was added.
+        int expectedWriteCount = 0;
+        final byte[] data = bytes(text.toString());
+        for (VCardEntry entry : new ParseTask(data, VCARD_VERSIONS, newRequest(data))
+                .call().entries) {
+            expectedWriteCount += entry.constructInsertOperations(mResolver,
+                    new ArrayList<ContentProviderOperation>()).size();
+        }
+        assertEquals(expectedWriteCount, writeCount);
+    }
+
+    public void testPipelinedImportMatchesSerialImport() throws Exception {
+        final String text = card("First", 2, "\r\n")
+                + "BEGIN:VCARD\r\n"
+                + "VERSION:2.1\r\n"
+                + "N:Second;;;;\r\n"
+                + "EMAIL;INTERNET:second@example.com\r\n"
+                + "NOTE:folded\r\n"
+                + " note\r\n"
+                + "END:VCARD\r\n"
+                + card("Third", 1, "\n");
+        final byte[] data = bytes(text);
+
+        // Like ImportProcessor#readOneVCard: one parser for the whole file, and the entries
+        // written by VCardEntryCommitter.
+        final VCardEntryConstructor constructor =
+                new VCardEntryConstructor(VCARD_TYPE, null, null);
+        constructor.addEntryHandler(new VCardEntryCommitter(mResolver));
+        new VCardParser_V21(VCARD_TYPE).parse(new ByteArrayInputStream(data), constructor);
+        final List<String> serial = mProvider.describeBatches();
+        mProvider.mBatches.clear();
+
+        importPipelined(data);
+        final List<String> pipelined = mProvider.describeBatches();
+
+        // The file is small enough for both to write it in one batch.
+        assertEquals(1, serial.size());
+        assertEquals(serial, pipelined);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Base64;
+import android.util.Base64DataException;
+import android.util.Base64OutputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A Body that is a range of a message parsed by {@link LazyMimeParser}, still in its transfer
+ * encoding.  The body is decoded each time it is read, so a part that is never read is never
+ * decoded.  Unlike {@link BinaryTempFileBody}, it can be read any number of times.
+ */
+public class LazyBody implements Body {
+    private final ByteBuffer mBuffer;
+    private final String mTransferEncoding;
+
+    /*package*/ LazyBody(ByteBuffer buffer, String transferEncoding) {
+        mBuffer = buffer;
+        mTransferEncoding = transferEncoding;
+    }
+
+    /**
+     * @return the size of the body before decoding
+     */
+    public int getEncodedSize() {
+        return mBuffer.remaining();
+    }
+
+    public InputStream getInputStream() throws MessagingException {
+        InputStream in = new ByteBufferInputStream(mBuffer.duplicate());
+        in = MimeUtility.getInputStreamForContentTransferEncoding(in, mTransferEncoding);
+        return new DecodingInputStream(in);
+    }
+
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        InputStream in = getInputStream();
+        Base64OutputStream base64Out = new Base64OutputStream(
+            out, Base64.CRLF | Base64.NO_CLOSE);
+        IOUtils.copy(in, base64Out);
+        base64Out.close();
+    }
+
+    /**
+     * Ends the body at the first bad base64 data, as MimeUtility.decodeBody does
+     */
+    private static class DecodingInputStream extends FilterInputStream {
+        DecodingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (Base64DataException bde) {
+                return -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (Base64DataException bde) {
+                return -1;
+            }
+        }
+    }
+
+    /*package*/ static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        /*package*/ ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int)Math.min(Math.max(n, 0), mBuffer.remaining());
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
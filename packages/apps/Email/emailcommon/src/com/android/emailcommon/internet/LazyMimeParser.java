@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Part;
+
+import org.apache.james.mime4j.BodyDescriptor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Builds a MimeMessage without decoding any of its bodies.
+ *
+ * The message is first spooled, with its line endings converted to CRLF: in memory if it's
+ * small, and otherwise into a temp file which is then mapped into memory.  Headers are parsed as
+ * they're found, and part boundaries are recorded as offsets into the spool; each leaf part gets
+ * a {@link LazyBody} for its range, which is only decoded when it's read.
+ *
+ * The resulting tree is the same as the one built by MimeMessage's MimeStreamParser-based
+ * parser: the header, boundary and nested message handling below follow MimeStreamParser and
+ * MimeBoundaryInputStream, including their handling of broken messages.
+ */
+/*package*/ class LazyMimeParser {
+    // Messages up to this size are spooled in memory
+    private static final int MAX_IN_MEMORY = 256 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private static final BitSet FIELD_CHARS = new BitSet();
+    static {
+        for (int i = 0x21; i <= 0x39; i++) {
+            FIELD_CHARS.set(i);
+        }
+        for (int i = 0x3b; i <= 0x7e; i++) {
+            FIELD_CHARS.set(i);
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Where a part ends, as found by findBoundary()
+     */
+    private static class Boundary {
+        // The end of the part's content, and the start of whatever follows the boundary line
+        int mContentEnd;
+        int mNext;
+        // Whether the boundary was the closing one (or the end of the data was reached)
+        boolean mMoreParts;
+        // Whether the end of the data was reached
+        boolean mParentEof;
+    }
+
+    private LazyMimeParser(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Parse a message from the stream into the (cleared) MimeMessage
+     */
+    /*package*/ static void parse(MimeMessage message, InputStream in)
+            throws IOException, MessagingException {
+        LazyMimeParser parser = new LazyMimeParser(spool(in));
+        parser.parseEntity(message, 0, parser.mBuffer.limit(), null);
+    }
+
+    /**
+     * Read the stream to its end, converting line endings like EOLConvertingInputStream does
+     * @return a buffer with the converted data
+     */
+    private static ByteBuffer spool(InputStream in) throws IOException {
+        byte[] memory = new byte[CHUNK_SIZE * 2];
+        int memoryCount = 0;
+        File file = null;
+        OutputStream fileOut = null;
+        byte[] chunk = new byte[CHUNK_SIZE];
+        // Twice the chunk, plus the LF of a CR at the end of the last one
+        byte[] converted = new byte[CHUNK_SIZE * 2 + 1];
+        boolean lastWasCr = false;
+        try {
+            while (true) {
+                int count = in.read(chunk);
+                int convertedCount = 0;
+                if (count == -1) {
+                    if (!lastWasCr) break;
+                    // A CR at the very end gets its LF too
+                    converted[convertedCount++] = '\n';
+                    lastWasCr = false;
+                }
+                for (int i = 0; i < count; i++) {
+                    byte b = chunk[i];
+                    if (b == '\n') {
+                        if (!lastWasCr) {
+                            converted[convertedCount++] = '\r';
+                        }
+                        lastWasCr = false;
+                    } else {
+                        if (lastWasCr) {
+                            converted[convertedCount++] = '\n';
+                        }
+                        lastWasCr = (b == '\r');
+                    }
+                    converted[convertedCount++] = b;
+                }
+
+                if (fileOut == null && memoryCount + convertedCount > MAX_IN_MEMORY) {
+                    // Too big to keep in memory; move it all to a file
+                    file = File.createTempFile("mime", null, TempDirectory.getTempDirectory());
+                    fileOut = new FileOutputStream(file);
+                    fileOut.write(memory, 0, memoryCount);
+                    memory = null;
+                }
+                if (fileOut != null) {
+                    fileOut.write(converted, 0, convertedCount);
+                } else {
+                    if (memoryCount + convertedCount > memory.length) {
+                        byte[] bigger = new byte[Math.max(memory.length * 2,
+                                memoryCount + convertedCount)];
+                        System.arraycopy(memory, 0, bigger, 0, memoryCount);
+                        memory = bigger;
+                    }
+                    System.arraycopy(converted, 0, memory, memoryCount, convertedCount);
+                    memoryCount += convertedCount;
+                }
+                if (count == -1) break;
+            }
+            if (fileOut == null) {
+                return ByteBuffer.wrap(memory, 0, memoryCount).slice();
+            }
+            fileOut.close();
+            fileOut = null;
+            // The mapping stays valid after the channel is closed and the file deleted
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        } finally {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private int get(int pos) {
+        return mBuffer.get(pos) & 0xff;
+    }
+
+    private ByteBuffer slice(int start, int end) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.limit(end);
+        buffer.position(start);
+        return buffer.slice();
+    }
+
+    private String getString(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int pos = start; pos < end; pos++) {
+            sb.append((char)get(pos));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a header followed by a body containing data, body parts or a message
+     */
+    private void parseEntity(Part part, int start, int end, BodyDescriptor parent)
+            throws IOException, MessagingException {
+        BodyDescriptor bd = new BodyDescriptor(parent);
+        int pos = parseHeader(part, bd, start, end);
+
+        if (bd.isMultipart()) {
+            MimeMultipart multipart = new MimeMultipart(part.getContentType());
+            part.setBody(multipart);
+            parseMultipart(multipart, bd, pos, end);
+        } else if (bd.isMessage()) {
+            MimeMessage message = new MimeMessage();
+            part.setBody(message);
+            if (bd.isBase64Encoded() || bd.isQuotedPrintableEncoded()) {
+                // The offsets must be into the decoded message, so spool that
+                InputStream in = MimeUtility.getInputStreamForContentTransferEncoding(
+                        new LazyBody.ByteBufferInputStream(slice(pos, end)),
+                        bd.getTransferEncoding());
+                LazyMimeParser parser = new LazyMimeParser(spool(in));
+                parser.parseEntity(message, 0, parser.mBuffer.limit(), bd);
+            } else {
+                parseEntity(message, pos, end, bd);
+            }
+        } else {
+            part.setBody(new LazyBody(slice(pos, end), bd.getTransferEncoding()));
+        }
+    }
+
+    /**
+     * Parse a header into the part's headers and the body descriptor, as MimeStreamParser does
+     * @return the start of the body
+     */
+    private int parseHeader(Part part, BodyDescriptor bd, int pos, int end)
+            throws MessagingException {
+        StringBuilder sb = new StringBuilder();
+        int prev = 0;
+        while (pos < end) {
+            int curr = get(pos++);
+            if (curr == '\n' && (prev == '\n' || prev == 0)) {
+                // [\r]\n[\r]\n or an immediate \r\n have been seen
+                if (sb.length() > 0) {
+                    sb.deleteCharAt(sb.length() - 1);
+                }
+                break;
+            }
+            sb.append((char)curr);
+            prev = curr == '\r' ? prev : curr;
+        }
+
+        int start = 0;
+        int index = 0;
+        int length = sb.length();
+        while (index < length) {
+            while (index < length && sb.charAt(index) != '\r') {
+                index++;
+            }
+            if (index < length - 1 && sb.charAt(index + 1) != '\n') {
+                index++;
+                continue;
+            }
+            if (index >= length - 2 || FIELD_CHARS.get(sb.charAt(index + 2))) {
+                // The complete field, excluding the trailing CRLF
+                String field = sb.substring(start, index);
+                start = index + 2;
+                int colon = field.indexOf(':');
+                if (colon != -1 && FIELD_CHARS.get(field.charAt(0))) {
+                    String fieldName = field.substring(0, colon).trim();
+                    boolean valid = true;
+                    for (int i = 0; i < fieldName.length(); i++) {
+                        if (!FIELD_CHARS.get(fieldName.charAt(i))) {
+                            valid = false;
+                            break;
+                        }
+                    }
+                    if (valid) {
+                        String[] tokens = field.split(":", 2);
+                        part.addHeader(tokens[0], tokens[1].trim());
+                        bd.addField(fieldName, field.substring(colon + 1));
+                    }
+                }
+            }
+            index += 2;
+        }
+        return pos;
+    }
+
+    private void parseMultipart(MimeMultipart multipart, BodyDescriptor bd, int pos, int end)
+            throws IOException, MessagingException {
+        byte[] boundary = ("--" + bd.getBoundary()).getBytes("ISO-8859-1");
+        Boundary found = new Boundary();
+        findBoundary(boundary, pos, end, found);
+        multipart.setPreamble(getString(pos, found.mContentEnd));
+        while (found.mMoreParts) {
+            int partStart = found.mNext;
+            findBoundary(boundary, partStart, end, found);
+            MimeBodyPart bodyPart = new MimeBodyPart();
+            multipart.addBodyPart(bodyPart);
+            parseEntity(bodyPart, partStart, found.mContentEnd, bd);
+            if (found.mParentEof) {
+                // Body part ended prematurely
+                break;
+            }
+        }
+        // The epilogue is ignored
+    }
+
+    private boolean matches(byte[] boundary, int pos, int end) {
+        if (pos + boundary.length > end) return false;
+        for (int i = 0; i < boundary.length; i++) {
+            if (mBuffer.get(pos + i) != boundary[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the next boundary line, which is either at the start or follows a CRLF, as
+     * MimeBoundaryInputStream does
+     */
+    private void findBoundary(byte[] boundary, int pos, int end, Boundary found) {
+        found.mMoreParts = true;
+        found.mParentEof = false;
+        int boundaryStart = -1;
+        if (matches(boundary, pos, end)) {
+            found.mContentEnd = pos;
+            boundaryStart = pos;
+        } else {
+            for (int crlf = pos; crlf + 1 < end; crlf++) {
+                if (mBuffer.get(crlf) == '\r' && mBuffer.get(crlf + 1) == '\n' &&
+                        matches(boundary, crlf + 2, end)) {
+                    found.mContentEnd = crlf;
+                    boundaryStart = crlf + 2;
+                    break;
+                }
+            }
+        }
+        if (boundaryStart == -1) {
+            found.mContentEnd = end;
+            found.mNext = end;
+            found.mParentEof = true;
+            return;
+        }
+
+        // Is it a closing boundary?  Either way, skip the rest of its line
+        int next = boundaryStart + boundary.length;
+        int prev = (next < end) ? get(next++) : -1;
+        int curr = (next < end) ? get(next++) : -1;
+        found.mMoreParts = !(prev == '-' && curr == '-');
+        while (!(curr == '\n' && prev == '\r')) {
+            prev = curr;
+            if (next >= end) {
+                curr = -1;
+                break;
+            }
+            curr = get(next++);
+        }
+        if (curr == -1) {
+            found.mMoreParts = false;
+            found.mParentEof = true;
+        }
+        found.mNext = next;
+    }
+}
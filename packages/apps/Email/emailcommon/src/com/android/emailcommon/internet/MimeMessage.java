@@ -119,7 +119,24 @@ public class MimeMessage extends Message {
         parse(in);
     }
 
+    /**
+     * Parse the given InputStream to build a MimeMessage.
+     *
+     * @param in
+     * @param lazy if true, the bodies are left undecoded until they're read; see
+     * {@link LazyMimeParser}
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public MimeMessage(InputStream in, boolean lazy) throws IOException, MessagingException {
+        parse(in, lazy);
+    }
+
     protected void parse(InputStream in) throws IOException, MessagingException {
+        parse(in, false);
+    }
+
+    protected void parse(InputStream in, boolean lazy) throws IOException, MessagingException {
         // Before parsing the input stream, clear all local fields that may be superceded by
         // the new incoming message.
         getMimeHeaders().clear();
@@ -132,6 +149,10 @@ public class MimeMessage extends Message {
         mSentDate = null;
         mBody = null;
 
+        if (lazy) {
+            LazyMimeParser.parse(this, in);
+            return;
+        }
         MimeStreamParser parser = new MimeStreamParser();
         parser.setContentHandler(new MimeMessageBuilder());
         parser.parse(new EOLConvertingInputStream(in));
@@ -157,6 +157,22 @@ public abstract class Folder {
     public abstract void fetch(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException;
 
+    /**
+     * Fetches a number of message parts, {@code parts[i]} being a part of {@code messages[i]}.
+     * The listener is notified as each part is fetched.  Stores that can have several requests
+     * in flight at once override this to save round trips; by default, the parts are fetched
+     * one at a time.
+     */
+    public void fetchParts(Message[] messages, Part[] parts, MessageRetrievalListener listener)
+            throws MessagingException {
+        FetchProfile fp = new FetchProfile();
+        for (int i = 0; i < parts.length; i++) {
+            fp.clear();
+            fp.add(parts[i]);
+            fetch(new Message[] { messages[i] }, fp, listener);
+        }
+    }
+
     public abstract void delete(boolean recurse) throws MessagingException;
 
     public abstract String getName();
@@ -545,6 +545,17 @@ public abstract class EmailContent {
         public static final Uri NOTIFIER_URI =
             Uri.parse(EmailContent.CONTENT_NOTIFIER_URI + "/message");
 
+        // Ranked search of the messages stored locally (query only); use
+        // ContentUris.withAppendedId(SEARCH_URI, accountId), with the words to look for as the
+        // only selection argument.  The mailboxId parameter limits the search to one mailbox.
+        // The cursor has SEARCH_PROJECTION, best match first.
+        public static final Uri SEARCH_URI =
+            Uri.parse(EmailContent.CONTENT_URI + "/messageSearch");
+        public static final String[] SEARCH_PROJECTION =
+            new String[] {RECORD_ID, SyncColumns.SERVER_ID};
+        public static final int SEARCH_ID_COLUMN = 0;
+        public static final int SEARCH_SERVER_ID_COLUMN = 1;
+
         public static final String KEY_TIMESTAMP_DESC = MessageColumns.TIMESTAMP + " desc";
 
         public static final int CONTENT_ID_COLUMN = 0;
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Runs {@link MessagingController}'s commands on a small pool of worker threads, with a "lane"
+ * for each account.
+ *
+ * A lane runs one command at a time, so the commands of an account never run concurrently, and
+ * commands of the same priority class run in the order in which they were submitted. Foreground
+ * commands (those the user is waiting for, like loading a message) run ahead of the account's
+ * queued background commands, but never interrupt a command that is already running.
+ *
+ * Different accounts' lanes run in parallel, so a slow server only holds up its own account.
+ * Lanes take turns: after each command, a lane goes to the back of the line, behind every other
+ * lane that has work of the same priority class.
+ */
+public class CommandLanes {
+    public static final int PRIORITY_FOREGROUND = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    /**
+     * Timings of the commands run by one lane.
+     */
+    public static class LaneStats {
+        /** The account whose commands the lane runs */
+        public final long mAccountId;
+        /** The description of the command that was just run */
+        public final String mLastCommand;
+        /** The number of commands run so far */
+        public final int mCommandCount;
+        /** The number of commands waiting to run */
+        public final int mQueuedCount;
+        /** Time between the last command being submitted and it starting to run */
+        public final long mLastWaitMs;
+        /** Time the last command took to run */
+        public final long mLastRunMs;
+        public final long mMaxWaitMs;
+        public final long mTotalWaitMs;
+        public final long mTotalRunMs;
+
+        private LaneStats(Lane lane, String lastCommand, long lastWaitMs, long lastRunMs) {
+            mAccountId = lane.mAccountId;
+            mLastCommand = lastCommand;
+            mCommandCount = lane.mCommandCount;
+            mQueuedCount = lane.getQueuedCount();
+            mLastWaitMs = lastWaitMs;
+            mLastRunMs = lastRunMs;
+            mMaxWaitMs = lane.mMaxWaitMs;
+            mTotalWaitMs = lane.mTotalWaitMs;
+            mTotalRunMs = lane.mTotalRunMs;
+        }
+
+        public long getAverageWaitMs() {
+            return (mCommandCount == 0) ? 0 : mTotalWaitMs / mCommandCount;
+        }
+
+        public long getAverageRunMs() {
+            return (mCommandCount == 0) ? 0 : mTotalRunMs / mCommandCount;
+        }
+
+        @Override
+        public String toString() {
+            return "[Lane " + mAccountId + ": " + mCommandCount + " commands, " + mQueuedCount
+                    + " queued, wait avg " + getAverageWaitMs() + "ms max " + mMaxWaitMs
+                    + "ms, run avg " + getAverageRunMs() + "ms]";
+        }
+    }
+
+    /**
+     * Told about the timings of each command after it has run.
+     */
+    public interface Callback {
+        public void onCommandCompleted(LaneStats stats);
+    }
+
+    private static class Command {
+        final String mDescription;
+        final Runnable mRunnable;
+        final long mSubmitTime;
+
+        Command(String description, Runnable runnable) {
+            mDescription = description;
+            mRunnable = runnable;
+            mSubmitTime = System.currentTimeMillis();
+        }
+    }
+
+    private static class Lane {
+        final long mAccountId;
+        final LinkedList<Command> mForeground = new LinkedList<Command>();
+        final LinkedList<Command> mBackground = new LinkedList<Command>();
+        // Whether a worker is running one of the lane's commands
+        boolean mRunning;
+        // Whether the lane is waiting for a worker, and in which list
+        LinkedList<Lane> mReadyList;
+
+        int mCommandCount;
+        long mMaxWaitMs;
+        long mTotalWaitMs;
+        long mTotalRunMs;
+
+        Lane(long accountId) {
+            mAccountId = accountId;
+        }
+
+        int getQueuedCount() {
+            return mForeground.size() + mBackground.size();
+        }
+    }
+
+    private final Callback mCallback;
+    private final HashMap<Long, Lane> mLanes = new HashMap<Long, Lane>();
+    // Lanes waiting for a worker, by the priority of their next command
+    private final LinkedList<Lane> mReadyForeground = new LinkedList<Lane>();
+    private final LinkedList<Lane> mReadyBackground = new LinkedList<Lane>();
+    private int mQueuedCount;
+    private int mRunningCount;
+
+    /**
+     * Create the lanes and start the worker threads, which run for the life of the process.
+     *
+     * @param workerCount the number of lanes that can run at the same time
+     * @param callback told about each command after it has run
+     */
+    public CommandLanes(int workerCount, Callback callback) {
+        mCallback = callback;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "MessagingController #" + (i + 1));
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue a command to run in an account's lane.
+     *
+     * @param accountId the account
+     * @param priority PRIORITY_FOREGROUND or PRIORITY_BACKGROUND
+     * @param description a description of the command, for logging
+     * @param runnable the command
+     */
+    public synchronized void submit(long accountId, int priority, String description,
+            Runnable runnable) {
+        Lane lane = mLanes.get(accountId);
+        if (lane == null) {
+            lane = new Lane(accountId);
+            mLanes.put(accountId, lane);
+        }
+        Command command = new Command(description, runnable);
+        if (priority == PRIORITY_FOREGROUND) {
+            lane.mForeground.add(command);
+        } else {
+            lane.mBackground.add(command);
+        }
+        mQueuedCount++;
+        if (!lane.mRunning) {
+            if (priority == PRIORITY_FOREGROUND && lane.mReadyList == mReadyBackground) {
+                // Move up
+                mReadyBackground.remove(lane);
+                lane.mReadyList = null;
+            }
+            if (lane.mReadyList == null) {
+                makeReady(lane);
+                notify();
+            }
+        }
+    }
+
+    /**
+     * @return whether any command is running
+     */
+    public synchronized boolean isBusy() {
+        return mRunningCount > 0;
+    }
+
+    /**
+     * @return the number of commands waiting to run, in all lanes
+     */
+    public synchronized int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    // Must be called with the lock held, for a lane which isn't running and isn't ready
+    private void makeReady(Lane lane) {
+        if (!lane.mForeground.isEmpty()) {
+            lane.mReadyList = mReadyForeground;
+        } else if (!lane.mBackground.isEmpty()) {
+            lane.mReadyList = mReadyBackground;
+        } else {
+            return;
+        }
+        lane.mReadyList.add(lane);
+    }
+
+    private void runWorker() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Lane lane;
+            Command command;
+            synchronized (this) {
+                while (mReadyForeground.isEmpty() && mReadyBackground.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Keep going
+                    }
+                }
+                lane = mReadyForeground.isEmpty() ? mReadyBackground.poll()
+                        : mReadyForeground.poll();
+                lane.mReadyList = null;
+                lane.mRunning = true;
+                command = lane.mForeground.isEmpty() ? lane.mBackground.poll()
+                        : lane.mForeground.poll();
+                mQueuedCount--;
+                mRunningCount++;
+            }
+
+            long startTime = System.currentTimeMillis();
+            try {
+                command.mRunnable.run();
+            } catch (RuntimeException e) {
+                // Don't let one command take down the worker
+                Log.e(Logging.LOG_TAG, "Exception running command " + command.mDescription, e);
+            }
+            long endTime = System.currentTimeMillis();
+
+            LaneStats stats;
+            synchronized (this) {
+                long waitMs = startTime - command.mSubmitTime;
+                long runMs = endTime - startTime;
+                lane.mCommandCount++;
+                lane.mTotalWaitMs += waitMs;
+                lane.mTotalRunMs += runMs;
+                if (waitMs > lane.mMaxWaitMs) {
+                    lane.mMaxWaitMs = waitMs;
+                }
+                stats = new LaneStats(lane, command.mDescription, waitMs, runMs);
+                lane.mRunning = false;
+                mRunningCount--;
+                makeReady(lane);
+                if (lane.mReadyList != null) {
+                    notify();
+                }
+            }
+            if (mCallback != null) {
+                mCallback.onCommandCompleted(stats);
+            }
+        }
+    }
+}
@@ -398,7 +398,8 @@ public class Controller {
      * a simple message list.  We should also at this point queue up a background task of
      * downloading some/all of the messages in this mailbox, but that should be interruptable.
      */
-    public void updateMailbox(final long accountId, final long mailboxId, boolean userRequest) {
+    public void updateMailbox(final long accountId, final long mailboxId,
+            final boolean userRequest) {
 
         IEmailService service = getServiceForAccount(accountId);
         if (service != null) {
@@ -422,7 +423,8 @@ public class Controller {
                             mailbox.mType == Mailbox.TYPE_SEARCH) {
                         return;
                     }
-                    mLegacyController.synchronizeMailbox(account, mailbox, mLegacyListener);
+                    mLegacyController.synchronizeMailbox(account, mailbox, mLegacyListener,
+                            userRequest);
                 }
             });
         }
@@ -708,7 +710,7 @@ public class Controller {
                 mProviderContext.getContentResolver().update(uri, cv, null, null);
                 // Trigger a refresh using the new, longer limit
                 mailbox.mVisibleLimit += Email.VISIBLE_LIMIT_INCREMENT;
-                mLegacyController.synchronizeMailbox(account, mailbox, mLegacyListener);
+                mLegacyController.synchronizeMailbox(account, mailbox, mLegacyListener, true);
             }
         });
     }
@@ -1452,6 +1454,14 @@ public class Controller {
             }
         }
 
+        @Override
+        public void commandLaneStats(CommandLanes.LaneStats stats) {
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, stats.mLastCommand + " waited " + stats.mLastWaitMs
+                        + "ms, ran " + stats.mLastRunMs + "ms " + stats);
+            }
+        }
+
         @Override
         public void loadMessageForViewStarted(long messageId) {
             final long accountId = Account.getAccountIdForMessageId(mProviderContext, messageId);
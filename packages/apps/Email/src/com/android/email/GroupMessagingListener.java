@@ -200,4 +200,11 @@ public class GroupMessagingListener extends MessagingListener {
             l.controllerCommandCompleted(moreCommandsToRun);
         }
     }
+
+    @Override
+    synchronized public void commandLaneStats(CommandLanes.LaneStats stats) {
+        for (MessagingListener l : mListeners) {
+            l.commandLaneStats(stats);
+        }
+    }
 }
@@ -23,12 +23,12 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.TrafficStats;
 import android.net.Uri;
-import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
+import com.android.email.provider.EmailProvider;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
 import com.android.emailcommon.internet.MimeBodyPart;
@@ -66,13 +66,15 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * Starts a long running (application) Thread that will run through commands
+ * Starts long running (application) Threads that will run through commands
  * that require remote mailbox access. This class is used to serialize and
- * prioritize these commands. Each method that will submit a command requires a
+ * prioritize these commands: each account's commands run one at a time, in
+ * order, in a lane of their own (see {@link CommandLanes}), while the lanes of
+ * different accounts run in parallel. Each method that will submit a command requires a
  * MessagingListener instance to be provided. It is expected that that listener
  * has also been added as a registered listener using addListener(). When a
  * command is to be executed, if the listener that was provided with the command
@@ -81,7 +83,7 @@ import java.util.concurrent.LinkedBlockingQueue;
  * it removes itself. Thus, any commands that that activity submitted are
  * removed from the queue once the activity is no longer active.
  */
-public class MessagingController implements Runnable {
+public class MessagingController {
 
     /**
      * The maximum message size that we'll consider to be "small". A small message is downloaded
@@ -112,6 +114,11 @@ public class MessagingController implements Runnable {
      */
     private static final String LOCAL_SERVERID_PREFIX = "Local-";
 
+    /**
+     * The number of accounts whose commands can run at the same time.
+     */
+    private static final int MAX_PARALLEL_ACCOUNTS = 3;
+
     /**
      * Cache search results by account; this allows for "load more" support without having to
      * redo the search (which can be quite slow).  SortableMessage is a smallish class, so memory
@@ -126,20 +133,19 @@ public class MessagingController implements Runnable {
     }
 
     private static MessagingController sInstance = null;
-    private final BlockingQueue<Command> mCommands = new LinkedBlockingQueue<Command>();
-    private final Thread mThread;
+    private final CommandLanes mLanes;
 
     /**
      * All access to mListeners *must* be synchronized
      */
     private final GroupMessagingListener mListeners = new GroupMessagingListener();
-    private boolean mBusy;
     private final Context mContext;
     private final Controller mController;
 
     /**
      * Simple cache for last search result mailbox by account and serverId, since the most common
-     * case will be repeated use of the same mailbox
+     * case will be repeated use of the same mailbox.  Synchronized on the controller, as the
+     * lanes of several accounts may use it at once.
      */
     private long mLastSearchAccountKey = Account.NO_ACCOUNT;
     private String mLastSearchServerId = null;
@@ -148,8 +154,12 @@ public class MessagingController implements Runnable {
     protected MessagingController(Context _context, Controller _controller) {
         mContext = _context.getApplicationContext();
         mController = _controller;
-        mThread = new Thread(this);
-        mThread.start();
+        mLanes = new CommandLanes(MAX_PARALLEL_ACCOUNTS, new CommandLanes.Callback() {
+            @Override
+            public void onCommandCompleted(CommandLanes.LaneStats stats) {
+                mListeners.commandLaneStats(stats);
+            }
+        });
     }
 
     /**
@@ -171,41 +181,32 @@ public class MessagingController implements Runnable {
         sInstance = mockController;
     }
 
-    // TODO: seems that this reading of mBusy isn't thread-safe
     public boolean isBusy() {
-        return mBusy;
+        return mLanes.isBusy();
     }
 
-    public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        // TODO: add an end test to this infinite loop
-        while (true) {
-            Command command;
-            try {
-                command = mCommands.take();
-            } catch (InterruptedException e) {
-                continue; //re-test the condition on the eclosing while
-            }
-            if (command.listener == null || isActiveListener(command.listener)) {
-                mBusy = true;
-                command.runnable.run();
-                mListeners.controllerCommandCompleted(mCommands.size() > 0);
-            }
-            mBusy = false;
-        }
+    /**
+     * Queue a background command in an account's lane
+     */
+    private void put(String description, long accountId, MessagingListener listener,
+            Runnable runnable) {
+        put(description, accountId, false, listener, runnable);
     }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        try {
-            Command command = new Command();
-            command.listener = listener;
-            command.runnable = runnable;
-            command.description = description;
-            mCommands.add(command);
-        }
-        catch (IllegalStateException ie) {
-            throw new Error(ie);
-        }
+    /**
+     * Queue a command in an account's lane
+     *
+     * @param foreground whether the user is waiting for the command; if so, it will run before
+     * the account's queued background commands
+     */
+    private void put(String description, long accountId, boolean foreground,
+            MessagingListener listener, Runnable runnable) {
+        Command command = new Command();
+        command.listener = listener;
+        command.runnable = runnable;
+        command.description = description;
+        mLanes.submit(accountId, foreground ? CommandLanes.PRIORITY_FOREGROUND
+                : CommandLanes.PRIORITY_BACKGROUND, description, command);
     }
 
     public void addListener(MessagingListener listener) {
@@ -252,7 +253,7 @@ public class MessagingController implements Runnable {
             return;
         }
         mListeners.listFoldersStarted(accountId);
-        put("listFolders", listener, new Runnable() {
+        put("listFolders", accountId, listener, new Runnable() {
             // TODO For now, mailbox addition occurs in the server-dependent store implementation,
             // but, mailbox removal occurs here. Instead, each store should be responsible for
             // content synchronization (addition AND removal) since each store will likely need
@@ -328,6 +329,19 @@ public class MessagingController implements Runnable {
      */
     public void synchronizeMailbox(final Account account,
             final Mailbox folder, MessagingListener listener) {
+        synchronizeMailbox(account, folder, listener, false);
+    }
+
+    /**
+     * Start synchronization of the specified folder.
+     * @param account
+     * @param folder
+     * @param listener
+     * @param userRequest whether the user asked for the sync, in which case it runs ahead of
+     * the account's queued background commands
+     */
+    public void synchronizeMailbox(final Account account,
+            final Mailbox folder, MessagingListener listener, boolean userRequest) {
         /*
          * We don't ever sync the Outbox.
          */
@@ -335,7 +349,7 @@ public class MessagingController implements Runnable {
             return;
         }
         mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
-        put("synchronizeMailbox", listener, new Runnable() {
+        put("synchronizeMailbox", account.mId, userRequest, listener, new Runnable() {
             public void run() {
                 synchronizeMailboxSynchronous(account, folder);
             }
@@ -486,6 +500,9 @@ public class MessagingController implements Runnable {
         fp.clear();
         fp.add(FetchProfile.Item.STRUCTURE);
         remoteFolder.fetch(largeMessages.toArray(new Message[largeMessages.size()]), fp, null);
+        ArrayList<Message> structuredMessages = new ArrayList<Message>();
+        ArrayList<Message> viewableMessages = new ArrayList<Message>();
+        ArrayList<Part> viewableParts = new ArrayList<Part>();
         for (Message message : largeMessages) {
             if (message.getBody() == null) {
                 // POP doesn't support STRUCTURE mode, so we'll just do a partial download
@@ -509,20 +526,24 @@ public class MessagingController implements Runnable {
                 ArrayList<Part> viewables = new ArrayList<Part>();
                 ArrayList<Part> attachments = new ArrayList<Part>();
                 MimeUtility.collectParts(message, viewables, attachments);
-                // Download the viewables immediately
                 for (Part part : viewables) {
-                    fp.clear();
-                    fp.add(part);
-                    // TODO what happens if the network connection dies? We've got partial
-                    // messages with incorrect status stored.
-                    remoteFolder.fetch(new Message[] { message }, fp, null);
+                    viewableMessages.add(message);
+                    viewableParts.add(part);
                 }
-                // Store the updated message locally and mark it fully loaded
-                copyOneMessageToProvider(message, account, toMailbox,
-                        EmailContent.Message.FLAG_LOADED_COMPLETE);
+                structuredMessages.add(message);
             }
         }
-
+        // Download the viewables of all the messages together, so that stores that can have
+        // several requests in flight don't need a round trip for each one
+        // TODO what happens if the network connection dies? We've got partial
+        // messages with incorrect status stored.
+        remoteFolder.fetchParts(viewableMessages.toArray(new Message[viewableMessages.size()]),
+                viewableParts.toArray(new Part[viewableParts.size()]), null);
+        for (Message message : structuredMessages) {
+            // Store the updated message locally and mark it fully loaded
+            copyOneMessageToProvider(message, account, toMailbox,
+                    EmailContent.Message.FLAG_LOADED_COMPLETE);
+        }
     }
 
     public void downloadFlagAndEnvelope(final Account account, final Mailbox mailbox,
@@ -589,15 +610,19 @@ public class MessagingController implements Runnable {
     }
 
     /**
-     * A message and numeric uid that's easily sortable
+     * A message and numeric uid that's easily sortable.  A message found only in the local search
+     * index has no remote message.
      */
     private static class SortableMessage {
         private final Message mMessage;
         private final long mUid;
+        // The id of a local copy of the message that matched the search, or -1
+        private final long mLocalId;
 
-        SortableMessage(Message message, long uid) {
+        SortableMessage(Message message, long uid, long localId) {
             mMessage = message;
             mUid = uid;
+            mLocalId = localId;
         }
     }
 
@@ -612,6 +637,73 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Search the local copies of the mailbox's messages
+     * @return the server ids and ids of the matching messages, best match first
+     */
+    private LinkedHashMap<String, Long> searchLocalMessages(long accountId,
+            SearchParams searchParams) {
+        LinkedHashMap<String, Long> hits = new LinkedHashMap<String, Long>();
+        Uri uri = ContentUris.withAppendedId(EmailContent.Message.SEARCH_URI, accountId)
+                .buildUpon()
+                .appendQueryParameter(EmailProvider.MESSAGE_URI_PARAMETER_MAILBOX_ID,
+                        Long.toString(searchParams.mMailboxId))
+                .build();
+        Cursor c = mContext.getContentResolver().query(uri,
+                EmailContent.Message.SEARCH_PROJECTION, null, new String[] {searchParams.mFilter},
+                null);
+        if (c == null) return hits;
+        try {
+            while (c.moveToNext()) {
+                String serverId = c.getString(EmailContent.Message.SEARCH_SERVER_ID_COLUMN);
+                // Messages which were never synced can't be matched up with the server's results
+                if (serverId == null) continue;
+                hits.put(serverId, c.getLong(EmailContent.Message.SEARCH_ID_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+        return hits;
+    }
+
+    /**
+     * Copy a local message into the search results mailbox, with its body and attachments (which
+     * are downloaded again on demand)
+     * @param onlyIfComplete if true, partially loaded messages aren't copied
+     * @return whether the message was copied
+     */
+    private boolean copyLocalSearchResult(long localId, long destMailboxId, String serverMailboxId,
+            boolean onlyIfComplete) {
+        EmailContent.Message message = EmailContent.Message.restoreMessageWithId(mContext,
+                localId);
+        if (message == null) return false;
+        if (onlyIfComplete && message.mFlagLoaded != EmailContent.Message.FLAG_LOADED_COMPLETE) {
+            return false;
+        }
+        EmailContent.Body body = EmailContent.Body.restoreBodyWithMessageId(mContext, localId);
+        if (body != null) {
+            message.mText = body.mTextContent;
+            message.mHtml = body.mHtmlContent;
+        }
+        Attachment[] attachments = Attachment.restoreAttachmentsWithMessageId(mContext, localId);
+        if (attachments.length > 0) {
+            message.mAttachments = new ArrayList<Attachment>();
+            for (Attachment att : attachments) {
+                att.mId = EmailContent.NOT_SAVED;
+                att.mContentUri = null;
+                att.mUiState = 0;
+                att.mUiDownloadedSize = 0;
+                message.mAttachments.add(att);
+            }
+        }
+        message.mId = EmailContent.NOT_SAVED;
+        message.mMailboxKey = destMailboxId;
+        // See messageRetrieved() in searchMailboxImpl()
+        message.mProtocolSearchInfo = serverMailboxId;
+        message.save(mContext);
+        return true;
+    }
+
     private int searchMailboxImpl(long accountId, SearchParams searchParams,
             final long destMailboxId) throws MessagingException {
         final Account account = Account.restoreAccountWithId(mContext, accountId);
@@ -626,30 +718,67 @@ public class MessagingController implements Runnable {
         // Tell UI that we're loading messages
         mListeners.synchronizeMailboxStarted(accountId, destMailbox.mId);
 
-        Store remoteStore = Store.getInstance(account, mContext);
-        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
-        remoteFolder.open(OpenMode.READ_WRITE);
+        // The local index answers at once, and covers the recipients and snippets too; the
+        // server's search covers the messages we don't have.  If the server can't be reached,
+        // the local results are all we have.
+        Folder remoteFolder = null;
+        MessagingException remoteError = null;
+        try {
+            Store remoteStore = Store.getInstance(account, mContext);
+            remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+            remoteFolder.open(OpenMode.READ_WRITE);
+        } catch (MessagingException me) {
+            if (searchParams.mOffset != 0) throw me;
+            remoteFolder = null;
+            remoteError = me;
+        }
 
         SortableMessage[] sortableMessages = new SortableMessage[0];
         if (searchParams.mOffset == 0) {
+            LinkedHashMap<String, Long> localHits = searchLocalMessages(accountId, searchParams);
+            if (remoteError != null) {
+                if (localHits.isEmpty()) throw remoteError;
+                Log.d(Logging.LOG_TAG, "Searching local messages only: " + remoteError);
+            }
             // Get the "bare" messages (basically uid)
-            Message[] remoteMessages = remoteFolder.getMessages(searchParams, null);
-            int remoteCount = remoteMessages.length;
-            if (remoteCount > 0) {
-                sortableMessages = new SortableMessage[remoteCount];
-                int i = 0;
-                for (Message msg : remoteMessages) {
-                    sortableMessages[i++] = new SortableMessage(msg, Long.parseLong(msg.getUid()));
+            HashMap<String, Message> remoteHits = new HashMap<String, Message>();
+            if (remoteFolder != null) {
+                for (Message msg : remoteFolder.getMessages(searchParams, null)) {
+                    remoteHits.put(msg.getUid(), msg);
                 }
-                // Sort the uid's, most recent first
-                // Note: Not all servers will be nice and return results in the order of request;
-                // those that do will see messages arrive from newest to oldest
-                Arrays.sort(sortableMessages, new Comparator<SortableMessage>() {
-                    @Override
-                    public int compare(SortableMessage lhs, SortableMessage rhs) {
-                        return lhs.mUid > rhs.mUid ? -1 : lhs.mUid < rhs.mUid ? 1 : 0;
-                    }
-                });
+            }
+            // First the messages found both here and by the server, best match first, as those
+            // can be shown without another trip to the server; then those only the server found,
+            // and last those only found here
+            ArrayList<SortableMessage> merged = new ArrayList<SortableMessage>();
+            ArrayList<SortableMessage> localOnly = new ArrayList<SortableMessage>();
+            for (Map.Entry<String, Long> hit : localHits.entrySet()) {
+                Message msg = remoteHits.remove(hit.getKey());
+                if (msg != null) {
+                    merged.add(new SortableMessage(msg, Long.parseLong(msg.getUid()),
+                            hit.getValue()));
+                } else {
+                    localOnly.add(new SortableMessage(null, 0, hit.getValue()));
+                }
+            }
+            SortableMessage[] remoteOnly = new SortableMessage[remoteHits.size()];
+            int i = 0;
+            for (Message msg : remoteHits.values()) {
+                remoteOnly[i++] = new SortableMessage(msg, Long.parseLong(msg.getUid()), -1);
+            }
+            // Sort the uid's, most recent first
+            // Note: Not all servers will be nice and return results in the order of request;
+            // those that do will see messages arrive from newest to oldest
+            Arrays.sort(remoteOnly, new Comparator<SortableMessage>() {
+                @Override
+                public int compare(SortableMessage lhs, SortableMessage rhs) {
+                    return lhs.mUid > rhs.mUid ? -1 : lhs.mUid < rhs.mUid ? 1 : 0;
+                }
+            });
+            merged.addAll(Arrays.asList(remoteOnly));
+            merged.addAll(localOnly);
+            sortableMessages = merged.toArray(new SortableMessage[merged.size()]);
+            if (sortableMessages.length > 0) {
                 sSearchResults.put(accountId, sortableMessages);
             }
         } else {
@@ -665,7 +794,18 @@ public class MessagingController implements Runnable {
 
         final ArrayList<Message> messageList = new ArrayList<Message>();
         for (int i = searchParams.mOffset; i < numToLoad + searchParams.mOffset; i++) {
-            messageList.add(sortableMessages[i].mMessage);
+            SortableMessage sortable = sortableMessages[i];
+            // Use the local copy if there's one; while the server can be reached, only if it's
+            // complete
+            boolean copied = (sortable.mLocalId != -1) &&
+                    copyLocalSearchResult(sortable.mLocalId, destMailboxId, mailbox.mServerId,
+                            remoteFolder != null);
+            if (!copied && sortable.mMessage != null && remoteFolder != null) {
+                messageList.add(sortable.mMessage);
+            }
+        }
+        if (messageList.isEmpty()) {
+            return numSearchResults;
         }
         // Get everything in one pass, rather than two (as in sync); this starts getting us
         // usable results quickly.
@@ -1047,7 +1187,7 @@ public class MessagingController implements Runnable {
     }
 
     public void processPendingActions(final long accountId) {
-        put("processPendingActions", null, new Runnable() {
+        put("processPendingActions", accountId, null, new Runnable() {
             public void run() {
                 try {
                     Account account = Account.restoreAccountWithId(mContext, accountId);
@@ -1112,9 +1252,11 @@ public class MessagingController implements Runnable {
         if (!TextUtils.isEmpty(message.mProtocolSearchInfo)) {
             long accountKey = message.mAccountKey;
             String protocolSearchInfo = message.mProtocolSearchInfo;
-            if (accountKey == mLastSearchAccountKey &&
-                    protocolSearchInfo.equals(mLastSearchServerId)) {
-                return mLastSearchRemoteMailbox;
+            synchronized (this) {
+                if (accountKey == mLastSearchAccountKey &&
+                        protocolSearchInfo.equals(mLastSearchServerId)) {
+                    return mLastSearchRemoteMailbox;
+                }
             }
             Cursor c =  mContext.getContentResolver().query(Mailbox.CONTENT_URI,
                     Mailbox.CONTENT_PROJECTION, Mailbox.PATH_AND_ACCOUNT_SELECTION,
@@ -1124,9 +1266,11 @@ public class MessagingController implements Runnable {
                 if (c.moveToNext()) {
                     Mailbox mailbox = new Mailbox();
                     mailbox.restore(c);
-                    mLastSearchAccountKey = accountKey;
-                    mLastSearchServerId = protocolSearchInfo;
-                    mLastSearchRemoteMailbox = mailbox;
+                    synchronized (this) {
+                        mLastSearchAccountKey = accountKey;
+                        mLastSearchServerId = protocolSearchInfo;
+                        mLastSearchRemoteMailbox = mailbox;
+                    }
                     return mailbox;
                 } else {
                     return null;
@@ -1844,7 +1988,8 @@ public class MessagingController implements Runnable {
      */
     public void loadMessageForView(final long messageId, MessagingListener listener) {
         mListeners.loadMessageForViewStarted(messageId);
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        long accountId = Account.getAccountIdForMessageId(mContext, messageId);
+        put("loadMessageForViewRemote", accountId, true, listener, new Runnable() {
             public void run() {
                 try {
                     // 1. Resample the message, in case it disappeared or synced while
@@ -1910,7 +2055,7 @@ public class MessagingController implements Runnable {
             final long attachmentId, MessagingListener listener, final boolean background) {
         mListeners.loadAttachmentStarted(accountId, messageId, attachmentId, true);
 
-        put("loadAttachment", listener, new Runnable() {
+        put("loadAttachment", accountId, !background, listener, new Runnable() {
             public void run() {
                 try {
                     //1. Check if the attachment is already here and return early in that case
@@ -2007,7 +2152,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account, final long sentFolderId,
             MessagingListener listener) {
-        put("sendPendingMessages", listener, new Runnable() {
+        put("sendPendingMessages", account.mId, listener, new Runnable() {
             public void run() {
                 sendPendingMessagesSynchronous(account, sentFolderId);
             }
@@ -2126,7 +2271,7 @@ public class MessagingController implements Runnable {
         listFolders(accountId, null);
 
         // Put this on the queue as well so it follows listFolders
-        put("checkMail", listener, new Runnable() {
+        put("checkMail", accountId, listener, new Runnable() {
             public void run() {
                 // send any pending outbound messages.  note, there is a slight race condition
                 // here if we somehow don't have a sent folder, but this should never happen
@@ -2155,13 +2300,20 @@ public class MessagingController implements Runnable {
         });
     }
 
-    private static class Command {
+    private class Command implements Runnable {
         public Runnable runnable;
 
         public MessagingListener listener;
 
         public String description;
 
+        public void run() {
+            if (listener == null || isActiveListener(listener)) {
+                runnable.run();
+                mListeners.controllerCommandCompleted(mLanes.getQueuedCount() > 0);
+            }
+        }
+
         @Override
         public String toString() {
             return description;
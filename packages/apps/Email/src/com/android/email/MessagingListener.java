@@ -121,4 +121,12 @@ public class MessagingListener {
     public void controllerCommandCompleted(boolean moreCommandsToRun) {
 
     }
+
+    /**
+     * Called after each command (whether or not it was skipped) with the timings of the lane
+     * that ran it, i.e. of the account's commands so far.
+     * @param stats the lane's timings, including those of the command that was just run
+     */
+    public void commandLaneStats(CommandLanes.LaneStats stats) {
+    }
 }
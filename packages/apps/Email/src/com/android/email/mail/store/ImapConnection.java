@@ -33,10 +33,12 @@ import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -58,6 +60,13 @@ class ImapConnection {
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
 
+    /**
+     * Most commands {@link #executePipelinedCommands} will have outstanding at a time.  Enough
+     * to hide the round trip latency, while keeping the server's (and our) buffers from
+     * filling up with responses nobody is reading yet.
+     */
+    @VisibleForTesting static int sMaxPipelinedCommands = 8;
+
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
     private static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
@@ -342,6 +351,78 @@ class ImapConnection {
         return getCommandResponses();
     }
 
+    /**
+     * Receives the untagged responses to the commands sent by
+     * {@link ImapConnection#executePipelinedCommands}.
+     */
+    interface PipelinedResponseHandler {
+        /**
+         * Called for each untagged response.  The response is destroyed when this returns.
+         */
+        void onUntaggedResponse(ImapResponse response) throws IOException, MessagingException;
+    }
+
+    /**
+     * Execute a number of independent simple commands, sending each one without waiting for
+     * the tagged responses to the previous ones, so that the commands share round trips.  At
+     * most {@link #sMaxPipelinedCommands} are outstanding at a time; the tagged responses are
+     * matched to their commands by tag.
+     *
+     * <p>Untagged responses can't be told apart by command, so the handler has to work out what
+     * each one refers to from its contents (e.g. the UID of a FETCH response).
+     *
+     * @param commands the commands to send to the server; none of them may be sensitive
+     * @param handler gets the untagged responses
+     * @param literalHandler if not null, gets the literals in the responses as they are read;
+     *     see {@link ImapResponseParser.LiteralHandler}
+     * @throws ImapException if any of the commands fails.  This is only thrown after all the
+     *     commands have completed, so that the connection can still be used.
+     */
+    void executePipelinedCommands(List<String> commands, PipelinedResponseHandler handler,
+            ImapResponseParser.LiteralHandler literalHandler)
+            throws IOException, MessagingException {
+        open();
+        final int count = commands.size();
+        final HashMap<String, Integer> outstanding = new HashMap<String, Integer>();
+        String failure = null;
+        String failureAlert = null;
+        int sent = 0;
+        int completed = 0;
+        mParser.setLiteralHandler(literalHandler);
+        try {
+            while (completed < count) {
+                while (sent < count && outstanding.size() < sMaxPipelinedCommands) {
+                    outstanding.put(sendCommand(commands.get(sent), false), sent);
+                    sent++;
+                }
+                final ImapResponse response = mParser.readResponse();
+                try {
+                    if (!response.isTagged()) {
+                        handler.onUntaggedResponse(response);
+                        continue;
+                    }
+                    if (outstanding.remove(response.getTag()) == null) {
+                        throw new MessagingException("Unexpected tagged response: " + response);
+                    }
+                    completed++;
+                    if (!response.isOk() && failure == null) {
+                        failure = response.toString();
+                        failureAlert = response.getAlertTextOrEmpty().getString();
+                    }
+                } finally {
+                    destroyResponses();
+                }
+            }
+        } finally {
+            if (mParser != null) {
+                mParser.setLiteralHandler(null);
+            }
+        }
+        if (failure != null) {
+            throw new ImapException(failure, failureAlert);
+        }
+    }
+
     /**
      * Query server for capabilities.
      */
@@ -22,12 +22,14 @@ import android.util.Base64DataException;
 import android.util.Log;
 
 import com.android.email.Email;
+import com.android.email.FixedLengthInputStream;
 import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.CountingOutputStream;
@@ -58,6 +60,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 
@@ -65,6 +68,11 @@ class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
+    /**
+     * Most UIDs to put in a single FETCH or STORE; larger sets are split into several commands,
+     * which are pipelined.  Keeps command lines well under the length servers accept.
+     */
+    private static final int MAX_UIDS_PER_COMMAND = 500;
 
     private final ImapStore mStore;
     private final String mName;
@@ -518,13 +526,13 @@ class ImapFolder extends Folder {
         }
     }
 
-    public void fetchInternal(Message[] messages, FetchProfile fp,
-            MessageRetrievalListener listener) throws MessagingException {
+    public void fetchInternal(Message[] messages, final FetchProfile fp,
+            final MessageRetrievalListener listener) throws MessagingException {
         if (messages.length == 0) {
             return;
         }
         checkOpen();
-        HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
         for (Message m : messages) {
             messageMap.put(m.getUid(), m);
         }
@@ -564,7 +572,7 @@ class ImapFolder extends Folder {
 
         final Part fetchPart = fp.getFirstPart();
         if (fetchPart != null) {
-            String[] partIds =
+            final String[] partIds =
                     fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
             if (partIds != null) {
                 fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
@@ -572,28 +580,36 @@ class ImapFolder extends Folder {
             }
         }
 
-        try {
-            mConnection.sendCommand(String.format(
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
-            ImapResponse response;
-            int messageNumber = 0;
-            do {
-                response = null;
-                try {
-                    response = mConnection.readResponse();
+        final PartLiteralHandler literalHandler = new PartLiteralHandler(listener);
+        if (fetchPart != null && fetchPart.getSize() > 0) {
+            String[] partIds =
+                    fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            if (partIds != null) {
+                for (Message m : messages) {
+                    literalHandler.addPart(m.getUid(), partIds[0], fetchPart);
+                }
+            }
+        }
 
+        try {
+            mConnection.executePipelinedCommands(makeUidCommands(
+                    ImapConstants.UID_FETCH + " %s ("
+                    + Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
+                    + ")", messages),
+                    new ImapConnection.PipelinedResponseHandler() {
+                @Override
+                public void onUntaggedResponse(ImapResponse response)
+                        throws IOException, MessagingException {
                     if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
+                        return; // Ignore
                     }
                     final ImapList fetchList = response.getListOrEmpty(2);
                     final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
                             .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
+                    if (TextUtils.isEmpty(uid)) return;
 
                     ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
+                    if (message == null) return;
 
                     if (fp.contains(FetchProfile.Item.FLAGS)) {
                         final ImapList flags =
@@ -646,33 +662,182 @@ class ImapFolder extends Folder {
                         InputStream bodyStream = body.getAsStream();
                         message.parse(bodyStream);
                     }
-                    if (fetchPart != null && fetchPart.getSize() > 0) {
+                    // Unless the part has already been decoded as it was read, decode it now
+                    if (fetchPart != null && fetchPart.getSize() > 0
+                            && !literalHandler.consumeDecoded(fetchPart)) {
                         InputStream bodyStream =
                                 fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String contentType = fetchPart.getContentType();
-                        String contentTransferEncoding = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
-
-                        // TODO Don't create 2 temp files.
-                        // decodeBody creates BinaryTempFileBody, but we could avoid this
-                        // if we implement ImapStringBody.
-                        // (We'll need to share a temp file.  Protect it with a ref-count.)
-                        fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
+                        fetchPart.setBody(decodeBody(bodyStream, getTransferEncoding(fetchPart),
                                 fetchPart.getSize(), listener));
                     }
 
                     if (listener != null) {
                         listener.messageRetrieved(message);
                     }
-                } finally {
-                    destroyResponses();
                 }
-            } while (!response.isTagged());
+            }, literalHandler);
+        } catch (ImapException ie) {
+            // As for a single FETCH, a failed command only means that we don't get its data
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, ie.toString());
+            }
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         }
     }
 
+    @Override
+    public void fetchParts(Message[] messages, Part[] parts,
+            final MessageRetrievalListener listener) throws MessagingException {
+        if (messages.length == 0) {
+            return;
+        }
+        checkOpen();
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        // The parts that are being fetched, in the same order as the commands
+        final HashMap<String, ArrayList<Part>> partMap = new HashMap<String, ArrayList<Part>>();
+        final PartLiteralHandler literalHandler = new PartLiteralHandler(listener);
+        final ArrayList<String> commands = new ArrayList<String>();
+        for (int i = 0; i < messages.length; i++) {
+            final Part part = parts[i];
+            final String[] partIds =
+                    part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            if (partIds == null) {
+                continue;
+            }
+            final String uid = messages[i].getUid();
+            messageMap.put(uid, messages[i]);
+            ArrayList<Part> messageParts = partMap.get(uid);
+            if (messageParts == null) {
+                messageParts = new ArrayList<Part>();
+                partMap.put(uid, messageParts);
+            }
+            messageParts.add(part);
+            if (part.getSize() > 0) {
+                literalHandler.addPart(uid, partIds[0], part);
+            }
+            // Same command as fetch() sends for a single part
+            commands.add(String.format(ImapConstants.UID_FETCH + " %s (%s %s)", uid,
+                    ImapConstants.UID,
+                    ImapConstants.FETCH_FIELD_BODY_PEEK_BARE + "[" + partIds[0] + "]"));
+        }
+
+        try {
+            mConnection.executePipelinedCommands(commands,
+                    new ImapConnection.PipelinedResponseHandler() {
+                @Override
+                public void onUntaggedResponse(ImapResponse response)
+                        throws IOException, MessagingException {
+                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                        return; // Ignore
+                    }
+                    final ImapList fetchList = response.getListOrEmpty(2);
+                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                            .getString();
+                    final ArrayList<Part> messageParts = partMap.get(uid);
+                    if (messageParts == null) return;
+
+                    for (Part part : messageParts) {
+                        final String key = ImapConstants.BODY + "["
+                                + part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA)[0]
+                                + "]";
+                        if (!fetchList.contains(key) || part.getSize() <= 0
+                                || literalHandler.consumeDecoded(part)) {
+                            continue;
+                        }
+                        InputStream bodyStream =
+                                fetchList.getKeyedStringOrEmpty(key, true).getAsStream();
+                        part.setBody(decodeBody(bodyStream, getTransferEncoding(part),
+                                part.getSize(), listener));
+                    }
+                    if (listener != null) {
+                        listener.messageRetrieved(messageMap.get(uid));
+                    }
+                }
+            }, literalHandler);
+        } catch (ImapException ie) {
+            // As in fetch(), a failed command only means that we don't get its data
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, ie.toString());
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    /**
+     * Split the messages into groups of at most {@link #MAX_UIDS_PER_COMMAND}, and return a
+     * command for each group.
+     *
+     * @param format the command, with a %s for the list of UIDs
+     */
+    private static List<String> makeUidCommands(String format, Message[] messages) {
+        final ArrayList<String> commands = new ArrayList<String>();
+        for (int start = 0; start < messages.length; start += MAX_UIDS_PER_COMMAND) {
+            final int end = Math.min(messages.length, start + MAX_UIDS_PER_COMMAND);
+            commands.add(String.format(format,
+                    ImapStore.joinMessageUids(Arrays.copyOfRange(messages, start, end))));
+        }
+        return commands;
+    }
+
+    private static String getTransferEncoding(Part part) throws MessagingException {
+        return part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
+    }
+
+    /**
+     * Decodes the literals holding the message parts being fetched straight into the parts'
+     * bodies while they are read from the network, so that the parser doesn't have to keep a
+     * copy of them first, in memory or in a temp file.
+     *
+     * <p>This only works if the UID comes before the part in the FETCH response, as it does
+     * with all the servers we know of; other literals are left to the parser.
+     */
+    private class PartLiteralHandler implements ImapResponseParser.LiteralHandler {
+        private final MessageRetrievalListener mListener;
+        /** Parts to decode, keyed by UID and (upper case) part ID */
+        private final HashMap<String, Part> mParts = new HashMap<String, Part>();
+        private final HashSet<Part> mDecoded = new HashSet<Part>();
+
+        PartLiteralHandler(MessageRetrievalListener listener) {
+            mListener = listener;
+        }
+
+        void addPart(String uid, String partId, Part part) {
+            mParts.put(uid + " " + partId.toUpperCase(), part);
+        }
+
+        /**
+         * @return whether the part has been decoded since the last call for it
+         */
+        boolean consumeDecoded(Part part) {
+            return mDecoded.remove(part);
+        }
+
+        @Override
+        public boolean handleLiteral(ImapList list, String key, FixedLengthInputStream in)
+                throws IOException, MessagingException {
+            final int prefixLength = ImapConstants.BODY.length() + 1;
+            if (key == null || !key.regionMatches(true, 0, ImapConstants.BODY + "[", 0,
+                    prefixLength)) {
+                return false;
+            }
+            final int end = key.indexOf(']');
+            final String uid = list.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+            if (end < 0 || TextUtils.isEmpty(uid)) {
+                return false;
+            }
+            final Part part =
+                    mParts.get(uid + " " + key.substring(prefixLength, end).toUpperCase());
+            if (part == null) {
+                return false;
+            }
+            part.setBody(decodeBody(in, getTransferEncoding(part), part.getSize(), mListener));
+            mDecoded.add(part);
+            return true;
+        }
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
@@ -1036,12 +1201,15 @@ class ImapFolder extends Folder {
             allFlags = flagList.substring(1);
         }
         try {
-            mConnection.executeSimpleCommand(String.format(
-                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
-                    value ? "+" : "-",
-                    allFlags));
-
+            mConnection.executePipelinedCommands(makeUidCommands(
+                    ImapConstants.UID_STORE + " %s " + (value ? "+" : "-")
+                    + ImapConstants.FLAGS_SILENT + " (" + allFlags + ")", messages),
+                    new ImapConnection.PipelinedResponseHandler() {
+                @Override
+                public void onUntaggedResponse(ImapResponse response) {
+                    handleUntaggedResponse(response);
+                }
+            }, null);
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         } finally {
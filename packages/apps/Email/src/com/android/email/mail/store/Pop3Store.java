@@ -801,7 +801,8 @@ public class Pop3Store extends Store {
                     if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
                         in = new LoggingInputStream(in);
                     }
-                    message.parse(new Pop3ResponseInputStream(in));
+                    // Bodies are only decoded when they're saved, straight from the spooled message
+                    message.parse(new Pop3ResponseInputStream(in), true);
                 }
                 catch (MessagingException me) {
                     /*
@@ -983,6 +984,11 @@ public class Pop3Store extends Store {
             super.parse(in);
         }
 
+        @Override
+        public void parse(InputStream in, boolean lazy) throws IOException, MessagingException {
+            super.parse(in, lazy);
+        }
+
         @Override
         public void setFlag(Flag flag, boolean set) throws MessagingException {
             super.setFlag(flag, set);
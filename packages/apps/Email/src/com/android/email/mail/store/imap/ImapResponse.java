@@ -44,6 +44,13 @@ public class ImapResponse extends ImapList {
         return mTag != null;
     }
 
+    /**
+     * @return the tag of a tagged response, or null if it's untagged.
+     */
+    public String getTag() {
+        return mTag;
+    }
+
     /**
      * @return whether it's a continuation request.
      */
@@ -54,6 +54,9 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
+    /** If set, gets the first look at every literal; see {@link #setLiteralHandler}. */
+    private LiteralHandler mLiteralHandler;
+
     /** StringBuilder used by readUntil() */
     private final StringBuilder mBufferReadUntil = new StringBuilder();
 
@@ -77,6 +80,26 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * Consumes literals straight from the network, so that large ones (e.g. message parts) can
+     * be written to their final destination without being buffered by the parser first.
+     */
+    public interface LiteralHandler {
+        /**
+         * Called when the parser reaches a literal.
+         *
+         * @param list the list the literal belongs to, as parsed so far.  (e.g. for a FETCH
+         *     response, the elements preceding the literal in the FETCH list)
+         * @param key the string preceding the literal in {@code list} (e.g. "BODY[1.2]"), or
+         *     null if there is none.
+         * @param in the contents of the literal.  Whatever isn't read will be skipped.
+         * @return true if the literal was consumed, in which case it is replaced by
+         *     {@link ImapString#EMPTY} in the response; false to have it parsed as usual.
+         */
+        public boolean handleLiteral(ImapList list, String key, FixedLengthInputStream in)
+                throws IOException, MessagingException;
+    }
+
     /**
      * Public constructor for normal use.
      */
@@ -134,6 +157,13 @@ public class ImapResponseParser {
         return next;
     }
 
+    /**
+     * Set the {@link LiteralHandler} to offer literals to, or null to stop using one.
+     */
+    public void setLiteralHandler(LiteralHandler handler) {
+        mLiteralHandler = handler;
+    }
+
     /**
      * Destroy all the {@link ImapResponse}s stored in the internal storage and clear it.
      *
@@ -327,7 +357,7 @@ public class ImapResponseParser {
         return responseToReturn;
     }
 
-    private ImapElement parseElement() throws IOException, MessagingException {
+    private ImapElement parseElement(ImapList list) throws IOException, MessagingException {
         final int next = peek();
         switch (next) {
             case '(':
@@ -338,7 +368,7 @@ public class ImapResponseParser {
                 readByte(); // Skip "
                 return new ImapSimpleString(readUntil('"'));
             case '{':
-                return parseLiteral();
+                return parseLiteral(list);
             case '\r':  // CR
                 readByte(); // Consume \r
                 expect('\n'); // Should be followed by LF.
@@ -413,7 +443,7 @@ public class ImapResponseParser {
                 // Skip space
                 readByte();
             }
-            final ImapElement el = parseElement();
+            final ImapElement el = parseElement(list);
             if (el == null) { // EOL
                 return;
             }
@@ -430,7 +460,7 @@ public class ImapResponseParser {
         return list;
     }
 
-    private ImapString parseLiteral() throws IOException, MessagingException {
+    private ImapString parseLiteral(ImapList list) throws IOException, MessagingException {
         expect('{');
         final int size;
         try {
@@ -441,6 +471,17 @@ public class ImapResponseParser {
         expect('\r');
         expect('\n');
         FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
+        if (mLiteralHandler != null) {
+            final int count = list.size();
+            final String key = (count > 0 && list.getElementOrNone(count - 1).isString())
+                    ? list.getStringOrEmpty(count - 1).getString() : null;
+            if (mLiteralHandler.handleLiteral(list, key, in)) {
+                // Skip whatever the handler didn't read
+                while (in.skip(Integer.MAX_VALUE) > 0) {
+                }
+                return ImapString.EMPTY;
+            }
+        }
         if (size > mLiteralKeepInMemoryThreshold) {
             return new ImapTempFileLiteral(in);
         } else {
@@ -24,16 +24,22 @@ import android.database.CursorWrapper;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.util.Log;
-import android.util.LruCache;
 
 import com.android.email.Email;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An LRU cache for EmailContent (Account, HostAuth, Mailbox, and Message, thus far).  The intended
@@ -68,10 +74,14 @@ import java.util.Set;
  * 2. Update the row: db.update(...);
  * 3. Unlock the row in the cache, passing in the new values: cache.unlock(id, values);
  *
- * Synchronization note: All of the public methods in ContentCache are synchronized (i.e. on the
- * cache itself) except for methods that are solely used for debugging and do not modify the cache.
- * All references to ContentCache that are external to the ContentCache class MUST synchronize on
- * the ContentCache instance (e.g. CachedCursor.close())
+ * Synchronization note: Reads (getCachedCursor(), getCacheToken()) don't take any lock.  Rows are
+ * kept in a ConcurrentHashMap, and each id hashes to one of a fixed number of stripes.  Each
+ * stripe has a lock, held while a row of the stripe is written (putCursor(), lock(), unlock()),
+ * and a version, which lock() increments.  A CacheToken records the version of its stripe and
+ * the generation of the cache (which invalidate() increments, holding all of the stripe locks)
+ * when it is taken, and is only valid as long as neither has changed.  Stripes are shared by
+ * many ids, so a write may make a token for another row stale; that only costs a cache miss.
+ * External callers don't need to synchronize on the cache.
  */
 public final class ContentCache {
     private static final boolean DEBUG_CACHE = false;  // DO NOT CHECK IN TRUE
@@ -82,23 +92,38 @@ public final class ContentCache {
     // If false, reads will not use the cache; this is intended for debugging only
     private static final boolean READ_CACHE_ENABLED = true;  // DO NOT CHECK IN FALSE
 
+    // The number of stripes (must be a power of two); more than the number of threads that are
+    // likely to write to one cache at the same time
+    /*package*/ static final int STRIPE_COUNT = 16;
+
     // Count of non-cacheable queries (debug only)
     private static int sNotCacheable = 0;
     // A map of queries that aren't cacheable (debug only)
     private static final CounterMap<String> sNotCacheableMap = new CounterMap<String>();
 
-    private final LruCache<String, Cursor> mLruCache;
+    // The cached rows, by id
+    private final ConcurrentHashMap<String, CachedRow> mRows;
+    // The maximum number of rows to cache
+    private final int mMaxSize;
+    // Ticks on every access, to find the least recently used row; increments can be lost when
+    // threads race, which only makes the LRU order approximate
+    private volatile long mClock;
 
     // All defined caches
-    private static final ArrayList<ContentCache> sContentCaches = new ArrayList<ContentCache>();
+    private static final CopyOnWriteArrayList<ContentCache> sContentCaches =
+            new CopyOnWriteArrayList<ContentCache>();
     // A set of all unclosed, cached cursors; this will typically be a very small set, as cursors
     // tend to be closed quickly after use.  The value, for each cursor, is its reference count
     /*package*/ static final CounterMap<Cursor> sActiveCursors = new CounterMap<Cursor>(24);
 
-    // A set of locked content id's
-    private final CounterMap<String> mLockMap = new CounterMap<String>(4);
-    // A set of active tokens
-    /*package*/ TokenList mTokenList;
+    // Held while writing the rows of a stripe
+    private final ReentrantLock[] mStripeLocks = new ReentrantLock[STRIPE_COUNT];
+    // Incremented by lock(); a token is stale once the version of its stripe has changed
+    private final AtomicIntegerArray mStripeVersions = new AtomicIntegerArray(STRIPE_COUNT);
+    // The number of locks held on rows of each stripe
+    private final AtomicIntegerArray mStripeLockCounts = new AtomicIntegerArray(STRIPE_COUNT);
+    // Incremented by invalidate(); a token is stale once the generation has changed
+    private final AtomicInteger mGeneration = new AtomicInteger();
 
     // The name of the cache (used for logging)
     private final String mName;
@@ -110,127 +135,93 @@ public final class ContentCache {
     // Cache statistics
     private final Statistics mStats;
     /** If {@code true}, lock the cache for all writes */
-    private static boolean sLockCache;
+    private static volatile boolean sLockCache;
 
     /**
-     * A synchronized reference counter for arbitrary objects
+     * A thread-safe reference counter for arbitrary objects.  A counter that drops to zero is
+     * removed from the map and never used again, so that add() can't revive a counter that
+     * subtract() is removing.
      */
     /*package*/ static class CounterMap<T> {
-        private HashMap<T, Integer> mMap;
+        private final ConcurrentHashMap<T, AtomicInteger> mMap;
 
         /*package*/ CounterMap(int maxSize) {
-            mMap = new HashMap<T, Integer>(maxSize);
+            mMap = new ConcurrentHashMap<T, AtomicInteger>(maxSize);
         }
 
         /*package*/ CounterMap() {
-            mMap = new HashMap<T, Integer>();
+            mMap = new ConcurrentHashMap<T, AtomicInteger>();
         }
 
-        /*package*/ synchronized int subtract(T object) {
-            Integer refCount = mMap.get(object);
-            int newCount;
-            if (refCount == null || refCount.intValue() == 0) {
+        /*package*/ int subtract(T object) {
+            AtomicInteger refCount = mMap.get(object);
+            if (refCount == null) {
                 throw new IllegalStateException();
             }
-            if (refCount > 1) {
-                newCount = refCount - 1;
-                mMap.put(object, newCount);
-            } else {
-                newCount = 0;
-                mMap.remove(object);
+            while (true) {
+                int count = refCount.get();
+                if (count == 0) {
+                    throw new IllegalStateException();
+                }
+                if (refCount.compareAndSet(count, count - 1)) {
+                    if (count == 1) {
+                        mMap.remove(object, refCount);
+                    }
+                    return count - 1;
+                }
             }
-            return newCount;
         }
 
-        /*package*/ synchronized void add(T object) {
-            Integer refCount = mMap.get(object);
-            if (refCount == null) {
-                mMap.put(object, 1);
-            } else {
-                mMap.put(object, refCount + 1);
+        /*package*/ void add(T object) {
+            while (true) {
+                AtomicInteger refCount = mMap.get(object);
+                if (refCount == null) {
+                    if (mMap.putIfAbsent(object, new AtomicInteger(1)) == null) {
+                        return;
+                    }
+                    continue;
+                }
+                int count = refCount.get();
+                if (count == 0) {
+                    // Being removed; wait for it to go and start a new counter
+                    mMap.remove(object, refCount);
+                } else if (refCount.compareAndSet(count, count + 1)) {
+                    return;
+                }
             }
         }
 
-        /*package*/ synchronized boolean contains(T object) {
-            return mMap.containsKey(object);
+        /*package*/ boolean contains(T object) {
+            return getCount(object) > 0;
         }
 
-        /*package*/ synchronized int getCount(T object) {
-            Integer refCount = mMap.get(object);
-            return (refCount == null) ? 0 : refCount.intValue();
+        /*package*/ int getCount(T object) {
+            AtomicInteger refCount = mMap.get(object);
+            return (refCount == null) ? 0 : refCount.get();
         }
 
-        synchronized int size() {
+        int size() {
             return mMap.size();
         }
 
         /**
          * For Debugging Only - not efficient
          */
-        synchronized Set<HashMap.Entry<T, Integer>> entrySet() {
+        Set<Map.Entry<T, AtomicInteger>> entrySet() {
             return mMap.entrySet();
         }
     }
 
     /**
-     * A list of tokens that are in use at any moment; there can be more than one token for an id
+     * A cached cursor and the time it was last used
      */
-    /*package*/ static class TokenList extends ArrayList<CacheToken> {
-        private static final long serialVersionUID = 1L;
-        private final String mLogTag;
-
-        /*package*/ TokenList(String name) {
-            mLogTag = "TokenList-" + name;
-        }
-
-        /*package*/ int invalidateTokens(String id) {
-            if (Email.DEBUG && DEBUG_TOKENS) {
-                Log.d(mLogTag, "============ Invalidate tokens for: " + id);
-            }
-            ArrayList<CacheToken> removeList = new ArrayList<CacheToken>();
-            int count = 0;
-            for (CacheToken token: this) {
-                if (token.getId().equals(id)) {
-                    token.invalidate();
-                    removeList.add(token);
-                    count++;
-                }
-            }
-            for (CacheToken token: removeList) {
-                remove(token);
-            }
-            return count;
-        }
-
-        /*package*/ void invalidate() {
-            if (Email.DEBUG && DEBUG_TOKENS) {
-                Log.d(mLogTag, "============ List invalidated");
-            }
-            for (CacheToken token: this) {
-                token.invalidate();
-            }
-            clear();
-        }
-
-        /*package*/ boolean remove(CacheToken token) {
-            boolean result = super.remove(token);
-            if (Email.DEBUG && DEBUG_TOKENS) {
-                if (result) {
-                    Log.d(mLogTag, "============ Removing token for: " + token.mId);
-                } else {
-                    Log.d(mLogTag, "============ No token found for: " + token.mId);
-                }
-            }
-            return result;
-        }
+    private static final class CachedRow {
+        final Cursor mCursor;
+        volatile long mLastUsed;
 
-        public CacheToken add(String id) {
-            CacheToken token = new CacheToken(id);
-            super.add(token);
-            if (Email.DEBUG && DEBUG_TOKENS) {
-                Log.d(mLogTag, "============ Taking token for: " + token.mId);
-            }
-            return token;
+        CachedRow(Cursor cursor, long now) {
+            mCursor = cursor;
+            mLastUsed = now;
         }
     }
 
@@ -240,11 +231,21 @@ public final class ContentCache {
      * record.
      */
     public static final class CacheToken {
+        private final ContentCache mCache;
         private final String mId;
-        private boolean mIsValid = READ_CACHE_ENABLED;
+        private final int mStripe;
+        private final int mVersion;
+        private final int mGeneration;
+        private final boolean mIsValid;
 
-        /*package*/ CacheToken(String id) {
+        /*package*/ CacheToken(ContentCache cache, String id, int stripe, int version,
+                int generation, boolean isValid) {
+            mCache = cache;
             mId = id;
+            mStripe = stripe;
+            mVersion = version;
+            mGeneration = generation;
+            mIsValid = isValid;
         }
 
         /*package*/ String getId() {
@@ -252,11 +253,8 @@ public final class ContentCache {
         }
 
         /*package*/ boolean isValid() {
-            return mIsValid;
-        }
-
-        /*package*/ void invalidate() {
-            mIsValid = false;
+            return mIsValid && mCache.mStripeVersions.get(mStripe) == mVersion
+                    && mCache.mGeneration.get() == mGeneration;
         }
 
         @Override
@@ -305,11 +303,9 @@ public final class ContentCache {
          */
         @Override
         public void close() {
-            synchronized(mCache) {
-                int count = sActiveCursors.subtract(mCursor);
-                if ((count == 0) && mCache.mLruCache.get(mId) != (mCursor)) {
-                    super.close();
-                }
+            int count = sActiveCursors.subtract(mCursor);
+            if ((count == 0) && !mCache.isCached(mId, mCursor)) {
+                super.close();
             }
             isClosed = true;
         }
@@ -409,20 +405,14 @@ public final class ContentCache {
      */
     public ContentCache(String name, String[] baseProjection, int maxSize) {
         mName = name;
-        mLruCache = new LruCache<String, Cursor>(maxSize) {
-            @Override
-            protected void entryRemoved(
-                    boolean evicted, String key, Cursor oldValue, Cursor newValue) {
-                // Close this cursor if it's no longer being used
-                if (evicted && !sActiveCursors.contains(oldValue)) {
-                    oldValue.close();
-                }
-            }
-        };
+        mMaxSize = maxSize;
+        mRows = new ConcurrentHashMap<String, CachedRow>(maxSize + 1);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripeLocks[i] = new ReentrantLock();
+        }
         mBaseProjection = baseProjection;
         mLogTag = "ContentCache-" + name;
         sContentCaches.add(this);
-        mTokenList = new TokenList(mName);
         mStats = new Statistics(this);
     }
 
@@ -435,33 +425,144 @@ public final class ContentCache {
         return mBaseProjection;
     }
 
+    private static int getStripe(String id) {
+        int h = id.hashCode();
+        // Spread the bits of the hash, as HashMap does, since ids are mostly small numbers
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (STRIPE_COUNT - 1);
+    }
+
+    private void lockStripe(int stripe) {
+        ReentrantLock lock = mStripeLocks[stripe];
+        if (!lock.tryLock()) {
+            mStats.mContentionCount.incrementAndGet();
+            lock.lock();
+        }
+    }
+
+    private void unlockStripe(int stripe) {
+        mStripeLocks[stripe].unlock();
+    }
 
     /**
      * Get a CacheToken for a row as specified by its id (_id column)
      * @param id the id of the record
      * @return a CacheToken needed in order to write data for the record back to the cache
      */
-    public synchronized CacheToken getCacheToken(String id) {
+    public CacheToken getCacheToken(String id) {
+        int stripe = getStripe(id);
+        // Read the version before checking for locks; lock() does it the other way around, so
+        // we either see the lock or end up with a version that lock() has already changed
+        int generation = mGeneration.get();
+        int version = mStripeVersions.get(stripe);
         // If another thread is already writing the data, return an invalid token
-        CacheToken token = mTokenList.add(id);
-        if (mLockMap.contains(id)) {
-            token.invalidate();
+        boolean isValid = READ_CACHE_ENABLED && mStripeLockCounts.get(stripe) == 0;
+        if (Email.DEBUG && DEBUG_TOKENS) {
+            Log.d(mLogTag, "============ Taking " + (isValid ? "" : "invalid ")
+                    + "token for: " + id);
         }
-        return token;
+        return new CacheToken(this, id, stripe, version, generation, isValid);
     }
 
     public int size() {
-        return mLruCache.size();
+        return mRows.size();
     }
 
     @VisibleForTesting
     Cursor get(String id) {
-        return mLruCache.get(id);
+        CachedRow row = mRows.get(id);
+        if (row == null) {
+            return null;
+        }
+        row.mLastUsed = ++mClock;
+        return row.mCursor;
+    }
+
+    /**
+     * @return whether the given cursor is the one cached for the id (without touching the row)
+     */
+    private boolean isCached(String id, Cursor c) {
+        CachedRow row = mRows.get(id);
+        return row != null && row.mCursor == c;
     }
 
     protected Map<String, Cursor> getSnapshot() {
-        return mLruCache.snapshot();
+        HashMap<String, Cursor> snapshot = new HashMap<String, Cursor>();
+        for (Map.Entry<String, CachedRow> entry: mRows.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().mCursor);
+        }
+        return snapshot;
     }
+
+    /**
+     * Cache a cursor, evicting the least recently used row if the cache is full.  The caller
+     * must hold the lock of the id's stripe.
+     */
+    private void putRow(String id, Cursor c) {
+        CachedRow old = mRows.put(id, new CachedRow(c, ++mClock));
+        if (old != null && old.mCursor != c) {
+            closeIfUnused(old.mCursor);
+        }
+        while (mRows.size() > mMaxSize) {
+            String eldestId = null;
+            CachedRow eldest = null;
+            for (Map.Entry<String, CachedRow> entry: mRows.entrySet()) {
+                CachedRow row = entry.getValue();
+                if (!entry.getKey().equals(id)
+                        && (eldest == null || row.mLastUsed < eldest.mLastUsed)) {
+                    eldestId = entry.getKey();
+                    eldest = row;
+                }
+            }
+            if (eldest == null) {
+                break;
+            }
+            // Another thread might be evicting (or replacing) the same row; only the thread that
+            // actually removes it closes the cursor
+            if (mRows.remove(eldestId, eldest)) {
+                closeIfUnused(eldest.mCursor);
+            }
+        }
+    }
+
+    /**
+     * Remove a row from the cache (if it's there).  The caller must hold the lock of the id's
+     * stripe.
+     */
+    private void removeRow(String id) {
+        CachedRow row = mRows.remove(id);
+        if (row != null) {
+            closeIfUnused(row.mCursor);
+        }
+    }
+
+    /**
+     * Close a cursor that has been removed from the cache if there are no cursors using it.
+     * A reader that picked up the cursor before it was removed will find that it's gone (see
+     * newCachedCursor) and close it itself if need be.
+     */
+    private static void closeIfUnused(Cursor c) {
+        if (!sActiveCursors.contains(c)) {
+            c.close();
+        }
+    }
+
+    /**
+     * Wrap a cursor that we found in the cache.  The row might be evicted (and its cursor closed)
+     * between our finding it and our adding it to the active cursors; so check that the cursor is
+     * still cached after adding it, and give up if it isn't.
+     * @return the CachedCursor, or null if the cursor is no longer in the cache
+     */
+    private CachedCursor newCachedCursor(String id, Cursor c) {
+        CachedCursor cachedCursor = new CachedCursor(c, this, id);
+        if (isCached(id, c)) {
+            return cachedCursor;
+        }
+        cachedCursor.close();
+        return null;
+    }
+
     /**
      * Try to cache a cursor for the given id and projection; returns a valid cursor, either a
      * cached cursor (if caching was successful) or the original cursor
@@ -472,37 +573,38 @@ public final class ContentCache {
      * @return whether or not the cursor was cached
      */
     public Cursor putCursor(Cursor c, String id, String[] projection, CacheToken token) {
-        // Make sure the underlying cursor is at the first row, and do this without synchronizing,
+        // Make sure the underlying cursor is at the first row, and do this without locking,
         // to prevent deadlock with a writing thread (which might, for example, be calling into
         // CachedCursor.invalidate)
         c.moveToPosition(0);
         return putCursorImpl(c, id, projection, token);
     }
-    public synchronized Cursor putCursorImpl(Cursor c, String id, String[] projection,
+
+    public Cursor putCursorImpl(Cursor c, String id, String[] projection,
             CacheToken token) {
+        if (c == null || !Arrays.equals(projection, mBaseProjection) || sLockCache) {
+            return c;
+        }
+        int stripe = getStripe(id);
+        lockStripe(stripe);
         try {
+            // Checked under the stripe lock, so that no write can slip in before we've cached
             if (!token.isValid()) {
                 if (Email.DEBUG && DEBUG_CACHE) {
                     Log.d(mLogTag, "============ Stale token for " + id);
                 }
-                mStats.mStaleCount++;
+                mStats.mStaleCount.incrementAndGet();
                 return c;
             }
-            if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
-                if (Email.DEBUG && DEBUG_CACHE) {
-                    Log.d(mLogTag, "============ Caching cursor for: " + id);
-                }
-                // If we've already cached this cursor, invalidate the older one
-                Cursor existingCursor = get(id);
-                if (existingCursor != null) {
-                   unlockImpl(id, null, false);
-                }
-                mLruCache.put(id, c);
-                return new CachedCursor(c, this, id);
+            if (Email.DEBUG && DEBUG_CACHE) {
+                Log.d(mLogTag, "============ Caching cursor for: " + id);
             }
-            return c;
+            // Count the cursor as active before it can be seen (and evicted) by other threads
+            CachedCursor cachedCursor = new CachedCursor(c, this, id);
+            putRow(id, c);
+            return cachedCursor;
         } finally {
-            mTokenList.remove(token);
+            unlockStripe(stripe);
         }
     }
 
@@ -512,7 +614,7 @@ public final class ContentCache {
      * @param projection the requested projection for a query
      * @return a cursor based on cached values, or null if the row is not cached
      */
-    public synchronized Cursor getCachedCursor(String id, String[] projection) {
+    public Cursor getCachedCursor(String id, String[] projection) {
         if (Email.DEBUG && DEBUG_STATISTICS) {
             // Every 200 calls to getCursor, report cache statistics
             dumpOnCount(200);
@@ -527,76 +629,94 @@ public final class ContentCache {
     private CachedCursor getCachedCursorImpl(String id) {
         Cursor c = get(id);
         if (c != null) {
-            mStats.mHitCount++;
-            return new CachedCursor(c, this, id);
+            CachedCursor cachedCursor = newCachedCursor(id, c);
+            if (cachedCursor != null) {
+                mStats.mHitCount.incrementAndGet();
+                return cachedCursor;
+            }
         }
-        mStats.mMissCount++;
+        mStats.mMissCount.incrementAndGet();
         return null;
     }
 
     private MatrixCursor getMatrixCursor(String id, String[] projection) {
-        return getMatrixCursor(id, projection, null);
-    }
-
-    private MatrixCursor getMatrixCursor(String id, String[] projection,
-            ContentValues values) {
         Cursor c = get(id);
         if (c != null) {
-            // Make a new MatrixCursor with the requested columns
-            MatrixCursor mc = new MatrixCursor(projection, 1);
-            if (c.getCount() == 0) {
-                return mc;
-            }
-            Object[] row = new Object[projection.length];
-            if (values != null) {
-                // Make a copy; we don't want to change the original
-                values = new ContentValues(values);
-            }
-            int i = 0;
-            for (String column: projection) {
-                int columnIndex = c.getColumnIndex(column);
-                if (columnIndex < 0) {
-                    mStats.mProjectionMissCount++;
-                    return null;
-                } else {
-                    String value;
-                    if (values != null && values.containsKey(column)) {
-                        Object val = values.get(column);
-                        if (val instanceof Boolean) {
-                            value = (val == Boolean.TRUE) ? "1" : "0";
-                        } else {
-                            value = values.getAsString(column);
-                        }
-                        values.remove(column);
-                    } else {
-                        value = c.getString(columnIndex);
+            // Keep the cursor from being closed while we read it
+            CachedCursor cachedCursor = newCachedCursor(id, c);
+            if (cachedCursor != null) {
+                try {
+                    MatrixCursor mc = getMatrixCursor(c, projection, null);
+                    if (mc != null) {
+                        mStats.mHitCount.incrementAndGet();
                     }
-                    row[i++] = value;
+                    return mc;
+                } finally {
+                    cachedCursor.close();
                 }
             }
-            if (values != null && values.size() != 0) {
+        }
+        mStats.mMissCount.incrementAndGet();
+        return null;
+    }
+
+    private MatrixCursor getMatrixCursor(Cursor c, String[] projection, ContentValues values) {
+        // Make a new MatrixCursor with the requested columns
+        MatrixCursor mc = new MatrixCursor(projection, 1);
+        if (c.getCount() == 0) {
+            return mc;
+        }
+        Object[] row = new Object[projection.length];
+        if (values != null) {
+            // Make a copy; we don't want to change the original
+            values = new ContentValues(values);
+        }
+        int i = 0;
+        for (String column: projection) {
+            int columnIndex = c.getColumnIndex(column);
+            if (columnIndex < 0) {
+                mStats.mProjectionMissCount.incrementAndGet();
                 return null;
+            } else {
+                String value;
+                if (values != null && values.containsKey(column)) {
+                    Object val = values.get(column);
+                    if (val instanceof Boolean) {
+                        value = (val == Boolean.TRUE) ? "1" : "0";
+                    } else {
+                        value = values.getAsString(column);
+                    }
+                    values.remove(column);
+                } else {
+                    value = c.getString(columnIndex);
+                }
+                row[i++] = value;
             }
-            mc.addRow(row);
-            mStats.mHitCount++;
-            return mc;
         }
-        mStats.mMissCount++;
-        return null;
+        if (values != null && values.size() != 0) {
+            return null;
+        }
+        mc.addRow(row);
+        return mc;
     }
 
     /**
      * Lock a given row, such that no new valid CacheTokens can be created for the passed-in id.
      * @param id the id of the row to lock
      */
-    public synchronized void lock(String id) {
-        // Prevent new valid tokens from being created
-        mLockMap.add(id);
-        // Invalidate current tokens
-        int count = mTokenList.invalidateTokens(id);
+    public void lock(String id) {
+        int stripe = getStripe(id);
+        lockStripe(stripe);
+        try {
+            // Prevent new valid tokens from being created
+            mStripeLockCounts.incrementAndGet(stripe);
+            // Invalidate current tokens
+            mStripeVersions.incrementAndGet(stripe);
+        } finally {
+            unlockStripe(stripe);
+        }
         if (Email.DEBUG && DEBUG_TOKENS) {
-            Log.d(mTokenList.mLogTag, "============ Lock invalidated " + count +
-                    " tokens for: " + id);
+            Log.d(mLogTag, "============ Lock invalidated tokens for: " + id);
         }
     }
 
@@ -604,8 +724,8 @@ public final class ContentCache {
      * Unlock a given row, allowing new valid CacheTokens to be created for the passed-in id.
      * @param id the id of the item whose cursor is cached
      */
-    public synchronized void unlock(String id) {
-        unlockImpl(id, null, true);
+    public void unlock(String id) {
+        unlockImpl(id, null);
     }
 
     /**
@@ -615,53 +735,73 @@ public final class ContentCache {
      * @param id the id of the item whose cursor is cached
      * @param values updated values for this row
      */
-    public synchronized void unlock(String id, ContentValues values) {
-        unlockImpl(id, values, true);
+    public void unlock(String id, ContentValues values) {
+        unlockImpl(id, values);
     }
 
     /**
      * If values are passed in, replaces any cached cursor with one containing new values, and
      * then closes the previously cached one (if any, and if not in use)
      * If values are not passed in, removes the row from cache
-     * If the row was locked, unlock it
+     * Then unlocks the row
      * @param id the id of the row
      * @param values new ContentValues for the row (or null if row should simply be removed)
-     * @param wasLocked whether or not the row was locked; if so, the lock will be removed
      */
-    private void unlockImpl(String id, ContentValues values, boolean wasLocked) {
+    private void unlockImpl(String id, ContentValues values) {
+        int stripe = getStripe(id);
+        lockStripe(stripe);
+        try {
+            if (mStripeLockCounts.get(stripe) == 0) {
+                throw new IllegalStateException();
+            }
+            updateRow(id, values);
+            mStripeLockCounts.decrementAndGet(stripe);
+        } finally {
+            unlockStripe(stripe);
+        }
+    }
+
+    /**
+     * Replace the cached cursor for a row with one holding the given values, or remove it if
+     * values is null.  The caller must hold the lock of the id's stripe.
+     */
+    private void updateRow(String id, ContentValues values) {
         Cursor c = get(id);
-        if (c != null) {
+        if (c == null) {
+            return;
+        }
+        // Keep the old cursor open while we read it; a put to another stripe could evict it
+        CachedCursor cachedCursor = newCachedCursor(id, c);
+        if (cachedCursor == null) {
+            return;
+        }
+        try {
             if (Email.DEBUG && DEBUG_CACHE) {
                 Log.d(mLogTag, "=========== Unlocking cache for: " + id);
             }
+            MatrixCursor cursor = null;
             if (values != null && !sLockCache) {
-                MatrixCursor cursor = getMatrixCursor(id, mBaseProjection, values);
-                if (cursor != null) {
-                    if (Email.DEBUG && DEBUG_CACHE) {
-                        Log.d(mLogTag, "=========== Recaching with new values: " + id);
-                    }
-                    cursor.moveToFirst();
-                    mLruCache.put(id, cursor);
-                } else {
-                    mLruCache.remove(id);
+                cursor = getMatrixCursor(c, mBaseProjection, values);
+            }
+            if (cursor != null) {
+                if (Email.DEBUG && DEBUG_CACHE) {
+                    Log.d(mLogTag, "=========== Recaching with new values: " + id);
                 }
+                cursor.moveToFirst();
+                putRow(id, cursor);
             } else {
-                mLruCache.remove(id);
-            }
-            // If there are no cursors using the old cached cursor, close it
-            if (!sActiveCursors.contains(c)) {
-                c.close();
+                removeRow(id);
             }
-        }
-        if (wasLocked) {
-            mLockMap.subtract(id);
+        } finally {
+            // This closes the old cursor, unless somebody else is still using it
+            cachedCursor.close();
         }
     }
 
     /**
      * Invalidate the entire cache, without logging
      */
-    public synchronized void invalidate() {
+    public void invalidate() {
         invalidate(null, null, null);
     }
 
@@ -673,16 +813,50 @@ public final class ContentCache {
      * @param uri the uri causing the invalidate (or null)
      * @param selection the selection used with the uri (or null)
      */
-    public synchronized void invalidate(String operation, Uri uri, String selection) {
+    public void invalidate(String operation, Uri uri, String selection) {
         if (DEBUG_CACHE && (operation != null)) {
             Log.d(mLogTag, "============ INVALIDATED BY " + operation + ": " + uri +
                     ", SELECTION: " + selection);
         }
-        mStats.mInvalidateCount++;
-        // Close all cached cursors that are no longer in use
-        mLruCache.evictAll();
-        // Invalidate all current tokens
-        mTokenList.invalidate();
+        mStats.mInvalidateCount.incrementAndGet();
+        // Hold all of the stripes, so that no put that checked its token against the old
+        // generation can complete after we've emptied the cache
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            lockStripe(i);
+        }
+        try {
+            // Invalidate all current tokens
+            mGeneration.incrementAndGet();
+            // Close all cached cursors that are no longer in use
+            for (String id: mRows.keySet()) {
+                removeRow(id);
+            }
+        } finally {
+            for (int i = STRIPE_COUNT - 1; i >= 0; i--) {
+                unlockStripe(i);
+            }
+        }
+    }
+
+    /**
+     * @return the number of queries answered from the cache
+     */
+    public long getHitCount() {
+        return mStats.mHitCount.get();
+    }
+
+    /**
+     * @return the number of queries for which the row wasn't cached
+     */
+    public long getMissCount() {
+        return mStats.mMissCount.get() + mStats.mProjectionMissCount.get();
+    }
+
+    /**
+     * @return the number of times a thread had to wait for another thread writing to the cache
+     */
+    public long getContentionCount() {
+        return mStats.mContentionCount.get();
     }
 
     // Debugging code below
@@ -695,20 +869,25 @@ public final class ContentCache {
     }
 
     /*package*/ void recordQueryTime(Cursor c, long nanoTime) {
-        if (c instanceof CachedCursor) {
-            mStats.hitTimes += nanoTime;
-            mStats.hits++;
-        } else {
-            if (c.getCount() == 1) {
-                mStats.missTimes += nanoTime;
-                mStats.miss++;
+        // Only used when debugging, so a lock doesn't matter
+        synchronized (mStats) {
+            if (c instanceof CachedCursor) {
+                mStats.hitTimes += nanoTime;
+                mStats.hits++;
+            } else {
+                if (c.getCount() == 1) {
+                    mStats.missTimes += nanoTime;
+                    mStats.miss++;
+                }
             }
         }
     }
 
-    public static synchronized void notCacheable(Uri uri, String selection) {
+    public static void notCacheable(Uri uri, String selection) {
         if (DEBUG_NOT_CACHEABLE) {
-            sNotCacheable++;
+            synchronized (sNotCacheableMap) {
+                sNotCacheable++;
+            }
             String str = uri.toString() + "$" + selection;
             sNotCacheableMap.add(str);
         }
@@ -730,15 +909,12 @@ public final class ContentCache {
     }
 
     private static void dumpNotCacheableQueries() {
-        int size = sNotCacheableMap.size();
-        CacheCounter[] array = new CacheCounter[size];
-
-        int i = 0;
-        for (Map.Entry<String, Integer> entry: sNotCacheableMap.entrySet()) {
-            array[i++] = new CacheCounter(entry.getKey(), entry.getValue());
+        ArrayList<CacheCounter> list = new ArrayList<CacheCounter>(sNotCacheableMap.size());
+        for (Map.Entry<String, AtomicInteger> entry: sNotCacheableMap.entrySet()) {
+            list.add(new CacheCounter(entry.getKey(), entry.getValue().get()));
         }
-        Arrays.sort(array);
-        for (CacheCounter cc: array) {
+        Collections.sort(list);
+        for (CacheCounter cc: list) {
             Log.d("NotCacheable", cc.count + ": " + cc.uri);
         }
     }
@@ -764,19 +940,21 @@ public final class ContentCache {
 
         // Cache statistics
         // The item is in the cache AND is used to create a cursor
-        private int mHitCount = 0;
+        private final AtomicLong mHitCount = new AtomicLong();
         // Basic cache miss (the item is not cached)
-        private int mMissCount = 0;
+        private final AtomicLong mMissCount = new AtomicLong();
         // Incremented when a cachePut is invalid due to an intervening write
-        private int mStaleCount = 0;
+        private final AtomicLong mStaleCount = new AtomicLong();
         // A projection miss occurs when the item is cached, but not all requested columns are
         // available in the base projection
-        private int mProjectionMissCount = 0;
+        private final AtomicLong mProjectionMissCount = new AtomicLong();
         // Incremented whenever the entire cache is invalidated
-        private int mInvalidateCount = 0;
-        // Count of operations put/get
+        private final AtomicLong mInvalidateCount = new AtomicLong();
+        // Incremented whenever a thread has to wait for the lock of a stripe
+        private final AtomicLong mContentionCount = new AtomicLong();
+        // Count of operations put/get (debug only)
         private int mOpCount = 0;
-        // The following are for timing statistics
+        // The following are for timing statistics (debug only)
         private long hits = 0;
         private long hitTimes = 0;
         private long miss = 0;
@@ -784,7 +962,6 @@ public final class ContentCache {
 
         // Used in toString() and addCacheStatistics()
         private int mCursorCount = 0;
-        private int mTokenCount = 0;
 
         Statistics(ContentCache cache) {
             mCache = cache;
@@ -798,16 +975,19 @@ public final class ContentCache {
 
         private void addCacheStatistics(ContentCache cache) {
             if (cache != null) {
-                mHitCount += cache.mStats.mHitCount;
-                mMissCount += cache.mStats.mMissCount;
-                mProjectionMissCount += cache.mStats.mProjectionMissCount;
-                mStaleCount += cache.mStats.mStaleCount;
-                hitTimes += cache.mStats.hitTimes;
-                missTimes += cache.mStats.missTimes;
-                hits += cache.mStats.hits;
-                miss += cache.mStats.miss;
+                mHitCount.addAndGet(cache.mStats.mHitCount.get());
+                mMissCount.addAndGet(cache.mStats.mMissCount.get());
+                mProjectionMissCount.addAndGet(cache.mStats.mProjectionMissCount.get());
+                mStaleCount.addAndGet(cache.mStats.mStaleCount.get());
+                mInvalidateCount.addAndGet(cache.mStats.mInvalidateCount.get());
+                mContentionCount.addAndGet(cache.mStats.mContentionCount.get());
+                synchronized (cache.mStats) {
+                    hitTimes += cache.mStats.hitTimes;
+                    missTimes += cache.mStats.missTimes;
+                    hits += cache.mStats.hits;
+                    miss += cache.mStats.miss;
+                }
                 mCursorCount += cache.size();
-                mTokenCount += cache.mTokenList.size();
             }
         }
 
@@ -820,16 +1000,19 @@ public final class ContentCache {
 
         @Override
         public String toString() {
-            if (mHitCount + mMissCount == 0) return "No cache";
-            int totalTries = mMissCount + mProjectionMissCount + mHitCount;
+            long hitCount = mHitCount.get();
+            long missCount = mMissCount.get() + mProjectionMissCount.get();
+            if (hitCount + mMissCount.get() == 0) return "No cache";
+            long totalTries = missCount + hitCount;
             StringBuilder sb = new StringBuilder();
             sb.append("Cache " + mName);
             append(sb, "Cursors", mCache == null ? mCursorCount : mCache.size());
-            append(sb, "Hits", mHitCount);
-            append(sb, "Misses", mMissCount + mProjectionMissCount);
-            append(sb, "Inval", mInvalidateCount);
-            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.mTokenList.size());
-            append(sb, "Hit%", mHitCount * 100 / totalTries);
+            append(sb, "Hits", hitCount);
+            append(sb, "Misses", missCount);
+            append(sb, "Stale", mStaleCount.get());
+            append(sb, "Inval", mInvalidateCount.get());
+            append(sb, "Contention", mContentionCount.get());
+            append(sb, "Hit%", hitCount * 100 / totalTries);
             append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
             append(sb, "Miss time", missTimes / 1000000.0 / miss);
             return sb.toString();
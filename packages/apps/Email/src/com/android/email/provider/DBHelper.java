@@ -121,10 +121,11 @@ public final class DBHelper {
     // Version 36: mblank intentionally left this space
     // Version 37: Add flag for settings support in folders
     // Version 38&39: Add threadTopic to message (for future support)
+    // Version 40: Add MessageSearch full-text index, and triggers to maintain it
 
     // Versions 100+ are in Email2
 
-    public static final int DATABASE_VERSION = 39;
+    public static final int DATABASE_VERSION = 40;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -285,6 +286,9 @@ public final class DBHelper {
                 '=' + MailboxColumns.MESSAGE_COUNT + "+1" +
                 " where " + EmailContent.RECORD_ID + "=NEW." + MessageColumns.MAILBOX_KEY +
                 "; end");
+
+        // Full-text index of the messages, kept up to date by triggers
+        MessageSearchIndex.createTable(db);
     }
 
     static void resetMessageTable(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -292,6 +296,7 @@ public final class DBHelper {
             db.execSQL("drop table " + Message.TABLE_NAME);
             db.execSQL("drop table " + Message.UPDATED_TABLE_NAME);
             db.execSQL("drop table " + Message.DELETED_TABLE_NAME);
+            MessageSearchIndex.dropTable(db);
         } catch (SQLException e) {
         }
         createMessageTable(db);
@@ -929,6 +934,16 @@ public final class DBHelper {
                 }
                 oldVersion = 39;
             }
+            if (oldVersion == 39) {
+                try {
+                    MessageSearchIndex.createTable(db);
+                    MessageSearchIndex.populate(db);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 39 to 40 " + e);
+                }
+                oldVersion = 40;
+            }
         }
 
         @Override
@@ -159,6 +159,7 @@ public class EmailProvider extends ContentProvider {
     private static final int MESSAGE = MESSAGE_BASE;
     private static final int MESSAGE_ID = MESSAGE_BASE + 1;
     private static final int SYNCED_MESSAGE_ID = MESSAGE_BASE + 2;
+    private static final int MESSAGE_SEARCH = MESSAGE_BASE + 3;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -334,6 +335,8 @@ public class EmailProvider extends ContentProvider {
         // A specific message
         // insert into this URI causes an attachment to be added to the message
         matcher.addURI(EmailContent.AUTHORITY, "message/#", MESSAGE_ID);
+        // Ranked search of an account's messages (query only)
+        matcher.addURI(EmailContent.AUTHORITY, "messageSearch/#", MESSAGE_SEARCH);
 
         // A specific attachment
         matcher.addURI(EmailContent.AUTHORITY, "attachment", ATTACHMENT);
@@ -1115,6 +1118,9 @@ public class EmailProvider extends ContentProvider {
                 case MAILBOX_MOST_RECENT_MESSAGE:
                     c = mostRecentMessageQuery(uri);
                     return c;
+                case MESSAGE_SEARCH:
+                    c = messageSearchQuery(uri, selectionArgs, limit);
+                    return c;
                 case ACCOUNT_DEFAULT_ID:
                     // Start with a snapshot of the cache
                     Map<String, Cursor> accountCache = mCacheAccount.getSnapshot();
@@ -1802,6 +1808,17 @@ outer:
         return db.rawQuery(NOTIFICATION_QUERY, new String[] {accountId});
    }
 
+    public Cursor messageSearchQuery(Uri uri, String[] selectionArgs, String limit) {
+        SQLiteDatabase db = getDatabase(getContext());
+        long accountId = Long.parseLong(uri.getLastPathSegment());
+        String mailboxId = uri.getQueryParameter(MESSAGE_URI_PARAMETER_MAILBOX_ID);
+        String filter = (selectionArgs != null && selectionArgs.length > 0) ?
+                selectionArgs[0] : null;
+        return MessageSearchIndex.query(db, accountId,
+                (mailboxId == null) ? Mailbox.NO_MAILBOX : Long.parseLong(mailboxId), filter,
+                (limit == null) ? 0 : Integer.parseInt(limit));
+    }
+
     public Cursor mostRecentMessageQuery(Uri uri) {
         SQLiteDatabase db = getDatabase(getContext());
         String mailboxId = uri.getLastPathSegment();
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A full-text index over the subject, sender, recipients and snippet of every message, kept in
+ * an FTS3 table whose docid is the message id.  Triggers on the Message table keep the index up
+ * to date as messages are inserted, updated and deleted, so that a search never has to touch
+ * the messages that don't match.
+ */
+/*package*/ final class MessageSearchIndex {
+    /*package*/ static final String TABLE_NAME = "MessageSearch";
+
+    private static final String SUBJECT = "subject";
+    private static final String SENDER = "sender";
+    private static final String RECIPIENTS = "recipients";
+    private static final String SNIPPET = "snippet";
+
+    // How much a hit in each of the columns (in the order created) counts for
+    private static final double[] COLUMN_WEIGHTS = {4.0, 3.0, 1.0, 1.5};
+
+    private static final String SENDER_VALUE = "ifnull(%1$s." + MessageColumns.DISPLAY_NAME +
+            ", '') || ' ' || ifnull(%1$s." + MessageColumns.FROM_LIST + ", '')";
+    private static final String RECIPIENTS_VALUE = "ifnull(%1$s." + MessageColumns.TO_LIST +
+            ", '') || ' ' || ifnull(%1$s." + MessageColumns.CC_LIST +
+            ", '') || ' ' || ifnull(%1$s." + MessageColumns.BCC_LIST + ", '')";
+
+    private static final String QUERY = "select " + Message.TABLE_NAME + "." +
+            EmailContent.RECORD_ID + ", " + SyncColumns.SERVER_ID + ", " +
+            MessageColumns.TIMESTAMP + ", matchinfo(" + TABLE_NAME + ", 'pcx') from " +
+            TABLE_NAME + " join " + Message.TABLE_NAME + " on " + TABLE_NAME + ".docid=" +
+            Message.TABLE_NAME + "." + EmailContent.RECORD_ID + " where " + TABLE_NAME +
+            " match ? and " + MessageColumns.ACCOUNT_KEY + "=?";
+    private static final int QUERY_ID_COLUMN = 0;
+    private static final int QUERY_SERVER_ID_COLUMN = 1;
+    private static final int QUERY_TIMESTAMP_COLUMN = 2;
+    private static final int QUERY_MATCHINFO_COLUMN = 3;
+
+    private MessageSearchIndex() {
+    }
+
+    /**
+     * Create the index and the triggers which maintain it; the index starts out empty
+     */
+    /*package*/ static void createTable(SQLiteDatabase db) {
+        db.execSQL("create virtual table " + TABLE_NAME + " using fts3 (" + SUBJECT + ", " +
+                SENDER + ", " + RECIPIENTS + ", " + SNIPPET + ");");
+
+        String columns = "docid, " + SUBJECT + ", " + SENDER + ", " + RECIPIENTS + ", " +
+                SNIPPET;
+        String newValues = "NEW." + EmailContent.RECORD_ID + ", NEW." + MessageColumns.SUBJECT +
+                ", " + String.format(SENDER_VALUE, "NEW") + ", " +
+                String.format(RECIPIENTS_VALUE, "NEW") + ", NEW." + MessageColumns.SNIPPET;
+
+        db.execSQL("create trigger message_search_insert after insert on " +
+                Message.TABLE_NAME +
+                " begin insert into " + TABLE_NAME + " (" + columns + ") values (" + newValues +
+                "); end");
+        db.execSQL("create trigger message_search_update after update of " +
+                MessageColumns.SUBJECT + ", " + MessageColumns.DISPLAY_NAME + ", " +
+                MessageColumns.FROM_LIST + ", " + MessageColumns.TO_LIST + ", " +
+                MessageColumns.CC_LIST + ", " + MessageColumns.BCC_LIST + ", " +
+                MessageColumns.SNIPPET + " on " + Message.TABLE_NAME +
+                " begin update " + TABLE_NAME + " set " +
+                SUBJECT + "=NEW." + MessageColumns.SUBJECT + ", " +
+                SENDER + "=" + String.format(SENDER_VALUE, "NEW") + ", " +
+                RECIPIENTS + "=" + String.format(RECIPIENTS_VALUE, "NEW") + ", " +
+                SNIPPET + "=NEW." + MessageColumns.SNIPPET +
+                "  where docid=NEW." + EmailContent.RECORD_ID +
+                "; end");
+        db.execSQL("create trigger message_search_delete after delete on " +
+                Message.TABLE_NAME +
+                " begin delete from " + TABLE_NAME + " where docid=OLD." + EmailContent.RECORD_ID +
+                "; end");
+    }
+
+    /**
+     * Index all existing messages (for an upgrade)
+     */
+    /*package*/ static void populate(SQLiteDatabase db) {
+        db.execSQL("insert into " + TABLE_NAME + " (docid, " + SUBJECT + ", " + SENDER + ", " +
+                RECIPIENTS + ", " + SNIPPET + ") select " + EmailContent.RECORD_ID + ", " +
+                MessageColumns.SUBJECT + ", " + String.format(SENDER_VALUE, Message.TABLE_NAME) +
+                ", " + String.format(RECIPIENTS_VALUE, Message.TABLE_NAME) + ", " +
+                MessageColumns.SNIPPET + " from " + Message.TABLE_NAME);
+    }
+
+    /*package*/ static void dropTable(SQLiteDatabase db) {
+        db.execSQL("drop trigger if exists message_search_insert");
+        db.execSQL("drop trigger if exists message_search_update");
+        db.execSQL("drop trigger if exists message_search_delete");
+        db.execSQL("drop table if exists " + TABLE_NAME);
+    }
+
+    /**
+     * Turn what the user typed into an FTS3 query that matches messages containing a word
+     * starting with each of the words typed.  Everything but letters and digits is dropped, so
+     * that nothing typed can be taken for FTS3 syntax.
+     * @return the query, or null if nothing was left to search for
+     */
+    /*package*/ static String buildMatch(String filter) {
+        if (filter == null) return null;
+        StringBuilder sb = new StringBuilder();
+        int length = filter.length();
+        int i = 0;
+        while (i < length) {
+            // The FTS3 "simple" tokenizer takes everything outside ASCII to be part of a word
+            while (i < length && !isTokenChar(filter.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && isTokenChar(filter.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append('"').append(filter, start, i).append("*\"");
+            }
+        }
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Score a match from its matchinfo(..., 'pcx'): each hit in a column counts for the column's
+     * weight, divided by the number of hits in that column across all messages, so that rarer
+     * words count for more
+     */
+    /*package*/ static double rank(byte[] matchinfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt();
+        int columns = buffer.getInt();
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int hitsThisRow = buffer.getInt();
+                int hitsAllRows = buffer.getInt();
+                // The number of rows with a hit
+                buffer.getInt();
+                if (hitsThisRow > 0 && column < COLUMN_WEIGHTS.length) {
+                    score += COLUMN_WEIGHTS[column] * hitsThisRow / hitsAllRows;
+                }
+            }
+        }
+        return score;
+    }
+
+    private static class Hit {
+        final long mId;
+        final String mServerId;
+        final long mTimestamp;
+        final double mScore;
+
+        Hit(long id, String serverId, long timestamp, double score) {
+            mId = id;
+            mServerId = serverId;
+            mTimestamp = timestamp;
+            mScore = score;
+        }
+    }
+
+    private static final Comparator<Hit> RANK_ORDER = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit lhs, Hit rhs) {
+            if (lhs.mScore != rhs.mScore) {
+                return lhs.mScore > rhs.mScore ? -1 : 1;
+            }
+            // Most recent first
+            return lhs.mTimestamp > rhs.mTimestamp ? -1 : lhs.mTimestamp < rhs.mTimestamp ? 1 : 0;
+        }
+    };
+
+    /**
+     * Search the messages of an account
+     * @param accountId the account to search
+     * @param mailboxId the mailbox to search, or Mailbox.NO_MAILBOX for all of them
+     * @param filter the words to look for, as typed by the user
+     * @param limit the maximum number of results, or 0 for no limit
+     * @return a cursor with {@link Message#SEARCH_PROJECTION}, best match first
+     */
+    /*package*/ static Cursor query(SQLiteDatabase db, long accountId, long mailboxId,
+            String filter, int limit) {
+        MatrixCursor result = new MatrixCursor(Message.SEARCH_PROJECTION);
+        String match = buildMatch(filter);
+        if (match == null) return result;
+
+        String sql = QUERY;
+        String[] args;
+        if (mailboxId > 0) {
+            sql += " and " + MessageColumns.MAILBOX_KEY + "=?";
+            args = new String[] {match, Long.toString(accountId), Long.toString(mailboxId)};
+        } else {
+            args = new String[] {match, Long.toString(accountId)};
+        }
+        ArrayList<Hit> hits = new ArrayList<Hit>();
+        Cursor c = db.rawQuery(sql, args);
+        try {
+            while (c.moveToNext()) {
+                hits.add(new Hit(c.getLong(QUERY_ID_COLUMN), c.getString(QUERY_SERVER_ID_COLUMN),
+                        c.getLong(QUERY_TIMESTAMP_COLUMN),
+                        rank(c.getBlob(QUERY_MATCHINFO_COLUMN))));
+            }
+        } finally {
+            c.close();
+        }
+
+        Hit[] sorted = hits.toArray(new Hit[hits.size()]);
+        Arrays.sort(sorted, RANK_ORDER);
+        int count = (limit > 0) ? Math.min(limit, sorted.length) : sorted.length;
+        for (int i = 0; i < count; i++) {
+            result.addRow(new Object[] {sorted[i].mId, sorted[i].mServerId});
+        }
+        return result;
+    }
+}
@@ -52,6 +52,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -81,13 +82,12 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // Maximum prefetch storage (also 25% of total memory)
     private static final float PREFETCH_MAXIMUM_ATTACHMENT_STORAGE = 0.25F;
 
-    // We can try various values here; I think 2 is completely reasonable as a first pass
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
-    // Limit on the number of simultaneous downloads per account
-    // Note that a limit of 1 is currently enforced by both Services (MailService and Controller)
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 1;
+    // Limit on the number of simultaneous downloads, over all accounts; the limit for each account
+    // is set by the DownloadLimiter, according to how its downloads have been going.  One of these
+    // is always left for user requests
+    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 8;
     // Limit on the number of attachments we'll check for background download
-    private static final int MAX_ATTACHMENTS_TO_CHECK = 25;
+    private static final int MAX_ATTACHMENTS_TO_CHECK = 100;
 
     private static final String EXTRA_ATTACHMENT =
         "com.android.email.AttachmentDownloadService.attachment";
@@ -100,6 +100,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
     /*package*/ EmailConnectivityManager mConnectivityManager;
 
     /*package*/ final DownloadSet mDownloadSet = new DownloadSet(new DownloadComparator());
+    /*package*/ final DownloadLimiter mDownloadLimiter = new DownloadLimiter();
 
     private final HashMap<Long, Intent> mAccountServiceMap = new HashMap<Long, Intent>();
     // A map of attachment storage used per account
@@ -310,30 +311,41 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
         /**
          * Run through the AttachmentMap and find DownloadRequests that can be executed, enforcing
-         * the limit on maximum downloads
+         * the limits on maximum downloads.  User requests are always started first, and are only
+         * limited by the overall maximum; other requests are also limited by the account's
+         * DownloadLimiter limit, and wait while the account is held after connection errors.
+         * Requests for an account are started together, so that the service can handle them in
+         * a single session with the server
          */
         /*package*/ synchronized void processQueue() {
             if (Email.DEBUG) {
                 Log.d(TAG, "== Checking attachment queue, " + mDownloadSet.size() + " entries");
             }
 
+            long now = System.currentTimeMillis();
+            // Accounts which have a queued request that can't be started yet; nothing of a lower
+            // priority is started for these
+            HashSet<Long> waitingAccounts = new HashSet<Long>();
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
             // First, start up any required downloads, in priority order
             while (iterator.hasNext() &&
                     (mDownloadsInProgress.size() < MAX_SIMULTANEOUS_DOWNLOADS)) {
                 DownloadRequest req = iterator.next();
-                 // Enforce per-account limit here
-                if (downloadsForAccount(req.accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
-                    if (Email.DEBUG) {
-                        Log.d(TAG, "== Skip #" + req.attachmentId + "; maxed for acct #" +
-                                req.accountId);
+                if (req.inProgress) continue;
+                if (req.priority != PRIORITY_FOREGROUND) {
+                    // Always leave one slot for user requested download
+                    if (mDownloadsInProgress.size() >= MAX_SIMULTANEOUS_DOWNLOADS - 1) break;
+                    // Enforce per-account limit here
+                    if (!canStartForAccount(req.accountId, now)) {
+                        if (Email.DEBUG) {
+                            Log.d(TAG, "== Skip #" + req.attachmentId + "; maxed for acct #" +
+                                    req.accountId);
+                        }
+                        waitingAccounts.add(req.accountId);
+                        continue;
                     }
-                    continue;
-                }
-
-                if (!req.inProgress) {
-                    mDownloadSet.tryStartDownload(req);
                 }
+                mDownloadSet.tryStartDownload(req);
             }
 
             // Don't prefetch if background downloading is disallowed
@@ -347,39 +359,55 @@ public class AttachmentDownloadService extends Service implements Runnable {
             // Then, try opportunistic download of appropriate attachments
             int backgroundDownloads = MAX_SIMULTANEOUS_DOWNLOADS - mDownloadsInProgress.size();
             // Always leave one slot for user requested download
-            if (backgroundDownloads > (MAX_SIMULTANEOUS_DOWNLOADS - 1)) {
-                // We'll load up the newest 25 attachments that aren't loaded or queued
+            if (backgroundDownloads > 1) {
+                // We'll load up the newest attachments that aren't loaded or queued
                 Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
                         MAX_ATTACHMENTS_TO_CHECK);
                 Cursor c = mContext.getContentResolver().query(lookupUri, AttachmentInfo.PROJECTION,
                         EmailContent.Attachment.PRECACHE_INBOX_SELECTION,
                         null, Attachment.RECORD_ID + " DESC");
                 File cacheDir = mContext.getCacheDir();
+                // Whether each account we've come across can prefetch, so that we only check once
+                HashMap<Long, Boolean> prefetchAccounts = new HashMap<Long, Boolean>();
                 try {
-                    while (c.moveToNext()) {
+                    while (c.moveToNext() && (backgroundDownloads > 1)) {
                         long accountKey = c.getLong(AttachmentInfo.COLUMN_ACCOUNT_KEY);
                         long id = c.getLong(AttachmentInfo.COLUMN_ID);
-                        Account account = Account.restoreAccountWithId(mContext, accountKey);
-                        if (account == null) {
-                            // Clean up this orphaned attachment; there's no point in keeping it
-                            // around; then try to find another one
-                            EmailContent.delete(mContext, Attachment.CONTENT_URI, id);
-                        } else if (canPrefetchForAccount(account, cacheDir)) {
-                            // Check that the attachment meets system requirements for download
-                            AttachmentInfo info = new AttachmentInfo(mContext, c);
-                            if (info.isEligibleForDownload()) {
-                                Attachment att = Attachment.restoreAttachmentWithId(mContext, id);
-                                if (att != null) {
-                                    Integer tryCount;
-                                    tryCount = mAttachmentFailureMap.get(att.mId);
-                                    if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
-                                        // move onto the next attachment
-                                        continue;
-                                    }
-                                    // Start this download and we're done
-                                    DownloadRequest req = new DownloadRequest(mContext, att);
-                                    mDownloadSet.tryStartDownload(req);
-                                    break;
+                        if (waitingAccounts.contains(accountKey)) continue;
+                        if (mDownloadsInProgress.containsKey(id)) continue;
+                        Boolean canPrefetch = prefetchAccounts.get(accountKey);
+                        if (canPrefetch == null) {
+                            Account account = Account.restoreAccountWithId(mContext, accountKey);
+                            if (account == null) {
+                                // Clean up this orphaned attachment; there's no point in keeping
+                                // it around; then try to find another one
+                                EmailContent.delete(mContext, Attachment.CONTENT_URI, id);
+                                continue;
+                            }
+                            canPrefetch = canPrefetchForAccount(account, cacheDir);
+                            prefetchAccounts.put(accountKey, canPrefetch);
+                        }
+                        if (!canPrefetch) continue;
+                        if (!canStartForAccount(accountKey, now)) {
+                            // Try this account's attachments again after some have finished
+                            waitingAccounts.add(accountKey);
+                            continue;
+                        }
+                        // Check that the attachment meets system requirements for download
+                        AttachmentInfo info = new AttachmentInfo(mContext, c);
+                        if (info.isEligibleForDownload()) {
+                            Attachment att = Attachment.restoreAttachmentWithId(mContext, id);
+                            if (att != null) {
+                                Integer tryCount;
+                                tryCount = mAttachmentFailureMap.get(att.mId);
+                                if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
+                                    // move onto the next attachment
+                                    continue;
+                                }
+                                // Start this download, and keep looking while there's room
+                                DownloadRequest req = new DownloadRequest(mContext, att);
+                                if (mDownloadSet.tryStartDownload(req)) {
+                                    backgroundDownloads--;
                                 }
                             }
                         }
@@ -390,6 +418,17 @@ public class AttachmentDownloadService extends Service implements Runnable {
             }
         }
 
+        /**
+         * Whether another (non-user) download can be started for this account
+         * @param accountId the id of the account
+         * @param now the current time
+         * @return true if the account is below its limit, and isn't being held
+         */
+        private boolean canStartForAccount(long accountId, long now) {
+            return !mDownloadLimiter.isHeld(accountId, now) &&
+                    (downloadsForAccount(accountId) < mDownloadLimiter.getLimit(accountId));
+        }
+
         /**
          * Count the number of running downloads in progress for this account
          * @param accountId the id of the account
@@ -415,9 +454,18 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 return;
             }
             long now = System.currentTimeMillis();
+            // The services work through an account's downloads one after another, so a download
+            // that hasn't started yet only times out if the account's others have gone quiet too
+            HashMap<Long, Long> lastAccountCallback = new HashMap<Long, Long>();
+            for (DownloadRequest req: mDownloadsInProgress.values()) {
+                Long last = lastAccountCallback.get(req.accountId);
+                if (last == null || req.lastCallbackTime > last) {
+                    lastAccountCallback.put(req.accountId, req.lastCallbackTime);
+                }
+            }
             for (DownloadRequest req: mDownloadsInProgress.values()) {
                 // Check how long it's been since receiving a callback
-                long timeSinceCallback = now - req.lastCallbackTime;
+                long timeSinceCallback = now - lastAccountCallback.get(req.accountId);
                 if (timeSinceCallback > CALLBACK_TIMEOUT) {
                     if (Email.DEBUG) {
                         Log.d(TAG, "== Download of " + req.attachmentId + " timed out");
@@ -493,8 +541,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
         private void startDownload(Intent intent, DownloadRequest req)
                 throws RemoteException {
             req.startTime = System.currentTimeMillis();
+            req.lastCallbackTime = req.startTime;
             req.inProgress = true;
             mDownloadsInProgress.put(req.attachmentId, req);
+            mDownloadLimiter.onDownloadStarted(req.accountId, downloadsForAccount(req.accountId),
+                    req.startTime);
             EmailServiceProxy proxy =
                 new EmailServiceProxy(mContext, intent, mServiceCallback);
             proxy.loadAttachment(req.attachmentId, req.priority != PRIORITY_FOREGROUND);
@@ -504,6 +555,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
         private void cancelDownload(DownloadRequest req) {
             mDownloadsInProgress.remove(req.attachmentId);
             req.inProgress = false;
+            mDownloadLimiter.onConnectionError(req.accountId, System.currentTimeMillis());
         }
 
         /**
@@ -513,12 +565,13 @@ public class AttachmentDownloadService extends Service implements Runnable {
          */
         /*package*/ synchronized void endDownload(long attachmentId, int statusCode) {
             // Say we're no longer downloading this
-            mDownloadsInProgress.remove(attachmentId);
+            DownloadRequest finishedReq = mDownloadsInProgress.remove(attachmentId);
 
             // TODO: This code is conservative and treats connection issues as failures.
-            // Since we have no mechanism to throttle reconnection attempts, it makes
-            // sense to be cautious here. Once logic is in place to prevent connecting
-            // in a tight loop, we can exclude counting connection issues as "failures".
+            // The DownloadLimiter holds an account's background downloads after connection
+            // errors, but user requests are still retried at once, so it makes sense to be
+            // cautious here. Once logic is in place to prevent those from connecting in a
+            // tight loop, we can exclude counting connection issues as "failures".
 
             // Update the attachment failure list if needed
             Integer downloadCount;
@@ -533,6 +586,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
             DownloadRequest req = mDownloadSet.findDownloadRequest(attachmentId);
             if (statusCode == EmailServiceStatus.CONNECTION_ERROR) {
+                // Slow down this account's downloads for a while
+                if (finishedReq != null) {
+                    mDownloadLimiter.onConnectionError(finishedReq.accountId,
+                            System.currentTimeMillis());
+                }
                 // If this needs to be retried, just process the queue again
                 if (Email.DEBUG) {
                     Log.d(TAG, "== The download for attachment #" + attachmentId +
@@ -561,6 +619,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
             }
 
             Attachment attachment = Attachment.restoreAttachmentWithId(mContext, attachmentId);
+            if (attachment != null && finishedReq != null &&
+                    statusCode == EmailServiceStatus.SUCCESS) {
+                mDownloadLimiter.onDownloadFinished(finishedReq.accountId, attachment.mSize,
+                        System.currentTimeMillis());
+            }
             if (attachment != null) {
                 long accountId = attachment.mAccountKey;
                 // Update our attachment storage for this account
@@ -909,9 +972,16 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 stopSelf();
                 break;
             }
+            // If an account is held after connection errors, look again when the hold ends
+            long waitTime = PROCESS_QUEUE_WAIT_TIME;
+            long now = System.currentTimeMillis();
+            long release = mDownloadLimiter.getNextRelease(now);
+            if (release != 0) {
+                waitTime = Math.min(waitTime, release - now);
+            }
             synchronized(mLock) {
                 try {
-                    mLock.wait(PROCESS_QUEUE_WAIT_TIME);
+                    mLock.wait(waitTime);
                 } catch (InterruptedException e) {
                     // That's ok; we'll just keep looping
                 }
@@ -1007,6 +1077,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
                     }
                 }
             }
+            pw.println("  In progress, " + mDownloadSet.mDownloadsInProgress.size() + " entries");
         }
+        pw.println("  Limits");
+        mDownloadLimiter.dump(pw, time);
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/**
+ * Decides how many attachment downloads each account may have in progress, based on how the
+ * account's downloads have been going.
+ *
+ * Each account starts with a limit of one download.  Downloads are measured in windows of (at
+ * least) as many downloads as the limit; after each window in which the account was kept busy,
+ * the limit is raised by one if the last raise paid off (the throughput beats that seen with one
+ * download fewer), and lowered back otherwise.  A limit which didn't pay off isn't tried again
+ * for a number of windows.  A connection error halves the limit, keeps it below the one that
+ * led to the error for longer still (servers often limit the connections of each user), and
+ * holds the account's background downloads for a while, doubling the hold for each error in a
+ * row.
+ *
+ * Times are passed in by the caller, so that the limiter can be driven by a simulated clock.
+ * All methods are synchronized.
+ */
+/*package*/ class DownloadLimiter {
+    // The limit never goes above this, whatever the throughput
+    /*package*/ static final int MAX_DOWNLOADS_PER_ACCOUNT = 4;
+    // Throughput must grow by this fraction for a raise to have paid off
+    private static final float RAISE_THRESHOLD = 0.10F;
+    // The number of windows before we try again to go above a limit that didn't pay off
+    /*package*/ static final int CEILING_WINDOWS = 10;
+    // The same, after a connection error
+    /*package*/ static final int ERROR_CEILING_WINDOWS = 40;
+    // The hold after the first connection error; doubled for each one after that
+    /*package*/ static final long MIN_HOLD_MS = 5 * 1000;
+    /*package*/ static final long MAX_HOLD_MS = 5 * 60 * 1000;
+
+    private static class AccountState {
+        int mLimit = 1;
+        int mCeiling = MAX_DOWNLOADS_PER_ACCOUNT;
+        int mCeilingWindows;
+        // The current window
+        long mWindowStart;
+        int mWindowCount;
+        long mWindowBytes;
+        // Whether the account had as many downloads as its limit at some point in the window
+        boolean mWindowSaturated;
+        // Throughput of the last complete window, in bytes per second (0 if none)
+        long mLastRate;
+        // Throughput with one download fewer than the limit (0 if unknown)
+        long mLowerRate;
+        int mConsecutiveErrors;
+        long mHoldUntil;
+
+        // Totals, for dump()
+        int mDownloadCount;
+        int mErrorCount;
+        long mTotalBytes;
+    }
+
+    private final HashMap<Long, AccountState> mAccounts = new HashMap<Long, AccountState>();
+
+    private AccountState getState(long accountId) {
+        AccountState state = mAccounts.get(accountId);
+        if (state == null) {
+            state = new AccountState();
+            mAccounts.put(accountId, state);
+        }
+        return state;
+    }
+
+    private static void startWindow(AccountState state, long now) {
+        state.mWindowStart = now;
+        state.mWindowCount = 0;
+        state.mWindowBytes = 0;
+        state.mWindowSaturated = false;
+    }
+
+    private static void setCeiling(AccountState state, int limit, int ceiling, int windows) {
+        state.mLimit = Math.max(1, limit);
+        state.mCeiling = Math.max(1, ceiling);
+        state.mCeilingWindows = windows;
+        // We don't know how well one download fewer would do
+        state.mLowerRate = 0;
+    }
+
+    /**
+     * @return the number of downloads the account may have in progress
+     */
+    /*package*/ synchronized int getLimit(long accountId) {
+        AccountState state = mAccounts.get(accountId);
+        return (state == null) ? 1 : state.mLimit;
+    }
+
+    /**
+     * @return whether the account's background downloads are being held after connection errors
+     */
+    /*package*/ synchronized boolean isHeld(long accountId, long now) {
+        AccountState state = mAccounts.get(accountId);
+        return (state != null) && (now < state.mHoldUntil);
+    }
+
+    /**
+     * @return the time at which the next hold ends, or 0 if no account is held
+     */
+    /*package*/ synchronized long getNextRelease(long now) {
+        long next = 0;
+        for (AccountState state: mAccounts.values()) {
+            if (state.mHoldUntil > now && (next == 0 || state.mHoldUntil < next)) {
+                next = state.mHoldUntil;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Called when a download has been started
+     * @param accountId the account of the download
+     * @param inProgress the number of the account's downloads in progress, including this one
+     * @param now the current time
+     */
+    /*package*/ synchronized void onDownloadStarted(long accountId, int inProgress, long now) {
+        AccountState state = getState(accountId);
+        if (state.mWindowStart == 0) {
+            startWindow(state, now);
+        }
+        if (inProgress >= state.mLimit) {
+            state.mWindowSaturated = true;
+        }
+    }
+
+    /**
+     * Called when a download has completed successfully
+     * @param accountId the account of the download
+     * @param bytes the size of the attachment
+     * @param now the current time
+     */
+    /*package*/ synchronized void onDownloadFinished(long accountId, long bytes, long now) {
+        AccountState state = getState(accountId);
+        state.mConsecutiveErrors = 0;
+        state.mDownloadCount++;
+        state.mTotalBytes += bytes;
+        if (state.mWindowStart == 0) {
+            startWindow(state, now);
+        }
+        state.mWindowCount++;
+        state.mWindowBytes += bytes;
+        if (state.mWindowCount < Math.max(2, state.mLimit)) return;
+
+        // The window is complete; see whether more (or fewer) downloads would help
+        long elapsed = Math.max(1, now - state.mWindowStart);
+        long rate = state.mWindowBytes * 1000 / elapsed;
+        if (state.mWindowSaturated) {
+            if (state.mLowerRate > 0 && rate < state.mLowerRate * (1 + RAISE_THRESHOLD)) {
+                // The last raise didn't pay off; go back, and stay there for a while
+                setCeiling(state, state.mLimit - 1, state.mLimit - 1, CEILING_WINDOWS);
+            } else if (state.mLimit < state.mCeiling) {
+                state.mLowerRate = rate;
+                state.mLimit++;
+            } else if (state.mCeiling < MAX_DOWNLOADS_PER_ACCOUNT &&
+                    --state.mCeilingWindows <= 0) {
+                // Things may have changed; try going higher again
+                state.mCeiling = MAX_DOWNLOADS_PER_ACCOUNT;
+            }
+            state.mLastRate = rate;
+        }
+        // Otherwise the queue ran dry, and the window says nothing about the limit
+        startWindow(state, now);
+    }
+
+    /**
+     * Called when a download has failed in a way that suggests trouble with the connection
+     * (a connection error, or no word from the service for too long)
+     * @param accountId the account of the download
+     * @param now the current time
+     */
+    /*package*/ synchronized void onConnectionError(long accountId, long now) {
+        AccountState state = getState(accountId);
+        state.mErrorCount++;
+        state.mConsecutiveErrors++;
+        setCeiling(state, state.mLimit / 2, state.mLimit - 1, ERROR_CEILING_WINDOWS);
+        state.mLastRate = 0;
+        startWindow(state, now);
+        long hold = MIN_HOLD_MS << Math.min(state.mConsecutiveErrors - 1, 16);
+        state.mHoldUntil = now + Math.min(hold, MAX_HOLD_MS);
+    }
+
+    /*package*/ synchronized void dump(PrintWriter pw, long now) {
+        for (Long accountId: mAccounts.keySet()) {
+            AccountState state = mAccounts.get(accountId);
+            pw.println("    Account: " + accountId + ", Limit: " + state.mLimit + ", Ceiling: " +
+                    state.mCeiling + ", Rate: " + state.mLastRate + " B/s");
+            pw.println("      Downloads: " + state.mDownloadCount + ", Bytes: " +
+                    state.mTotalBytes + ", Errors: " + state.mErrorCount +
+                    ((now < state.mHoldUntil) ?
+                            " [Held " + ((state.mHoldUntil - now) / 1000L) + "s]" : ""));
+        }
+    }
+}
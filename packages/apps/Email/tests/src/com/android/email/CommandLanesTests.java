@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * This is a series of unit tests for the CommandLanes class.
+ */
+@MediumTest
+public class CommandLanesTests extends TestCase {
+    private static final int TIMEOUT_SECONDS = 5;
+
+    private final List<String> mRunOrder = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Collects the stats of every command, and lets the test wait for a number of commands
+     */
+    private static class StatsCallback implements CommandLanes.Callback {
+        final List<CommandLanes.LaneStats> mStats =
+            Collections.synchronizedList(new ArrayList<CommandLanes.LaneStats>());
+        private final CountDownLatch mLatch;
+
+        StatsCallback(int expected) {
+            mLatch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onCommandCompleted(CommandLanes.LaneStats stats) {
+            mStats.add(stats);
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRunOrder.add(name);
+            }
+        };
+    }
+
+    private Runnable block(final String name, final CountDownLatch started,
+            final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRunOrder.add(name);
+                started.countDown();
+                try {
+                    release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Just finish
+                }
+            }
+        };
+    }
+
+    private void assertRunOrder(String... expected) {
+        assertEquals(expected.length, mRunOrder.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], mRunOrder.get(i));
+        }
+    }
+
+    public void testForegroundRunsFirst() throws InterruptedException {
+        StatsCallback callback = new StatsCallback(5);
+        CommandLanes lanes = new CommandLanes(1, callback);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "sync", block("sync", started, release));
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "bg1", record("bg1"));
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "bg2", record("bg2"));
+        lanes.submit(1, CommandLanes.PRIORITY_FOREGROUND, "fg1", record("fg1"));
+        lanes.submit(1, CommandLanes.PRIORITY_FOREGROUND, "fg2", record("fg2"));
+        assertTrue(lanes.isBusy());
+        assertEquals(4, lanes.getQueuedCount());
+
+        release.countDown();
+        callback.await();
+        // The running command isn't interrupted; each class keeps its order
+        assertRunOrder("sync", "fg1", "fg2", "bg1", "bg2");
+        assertEquals(0, lanes.getQueuedCount());
+    }
+
+    public void testForegroundLaneRunsFirst() throws InterruptedException {
+        StatsCallback callback = new StatsCallback(4);
+        CommandLanes lanes = new CommandLanes(1, callback);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "sync1",
+                block("sync1", started, release));
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        lanes.submit(2, CommandLanes.PRIORITY_BACKGROUND, "sync2", record("sync2"));
+        lanes.submit(3, CommandLanes.PRIORITY_BACKGROUND, "sync3", record("sync3"));
+        // A foreground command moves its (already waiting) lane ahead of the others
+        lanes.submit(3, CommandLanes.PRIORITY_FOREGROUND, "load3", record("load3"));
+
+        release.countDown();
+        callback.await();
+        assertRunOrder("sync1", "load3", "sync2", "sync3");
+    }
+
+    public void testLanesTakeTurns() throws InterruptedException {
+        StatsCallback callback = new StatsCallback(7);
+        CommandLanes lanes = new CommandLanes(1, callback);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        lanes.submit(0, CommandLanes.PRIORITY_BACKGROUND, "block",
+                block("block", started, release));
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "a1", record("a1"));
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "a2", record("a2"));
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "a3", record("a3"));
+        lanes.submit(2, CommandLanes.PRIORITY_BACKGROUND, "b1", record("b1"));
+        lanes.submit(2, CommandLanes.PRIORITY_BACKGROUND, "b2", record("b2"));
+        lanes.submit(2, CommandLanes.PRIORITY_BACKGROUND, "b3", record("b3"));
+
+        release.countDown();
+        callback.await();
+        assertRunOrder("block", "a1", "b1", "a2", "b2", "a3", "b3");
+    }
+
+    public void testSlowAccountDoesNotBlockOthers() throws InterruptedException {
+        StatsCallback callback = new StatsCallback(4);
+        CommandLanes lanes = new CommandLanes(2, callback);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherDone = new CountDownLatch(2);
+
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "slow", block("slow", started, release));
+        lanes.submit(1, CommandLanes.PRIORITY_BACKGROUND, "after slow", record("after slow"));
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < 2; i++) {
+            lanes.submit(2, CommandLanes.PRIORITY_BACKGROUND, "other", new Runnable() {
+                @Override
+                public void run() {
+                    otherDone.countDown();
+                }
+            });
+        }
+        // Account 2's commands finish while account 1 is still stuck...
+        assertTrue(otherDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // ...but account 1's next command waits for the slow one
+        assertEquals(1, mRunOrder.size());
+
+        release.countDown();
+        callback.await();
+        assertRunOrder("slow", "after slow");
+    }
+
+    public void testOneCommandAtATimePerLane() throws InterruptedException {
+        final int commandCount = 200;
+        StatsCallback callback = new StatsCallback(commandCount * 2);
+        CommandLanes lanes = new CommandLanes(4, callback);
+        final AtomicInteger[] running = new AtomicInteger[] {
+                new AtomicInteger(), new AtomicInteger() };
+        final AtomicInteger overlaps = new AtomicInteger();
+        final int[][] order = new int[2][commandCount];
+        final int[] next = new int[2];
+
+        for (int i = 0; i < commandCount; i++) {
+            for (int account = 0; account < 2; account++) {
+                final int a = account;
+                final int n = i;
+                lanes.submit(account, CommandLanes.PRIORITY_BACKGROUND, "command",
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                if (running[a].incrementAndGet() > 1) {
+                                    overlaps.incrementAndGet();
+                                }
+                                // Only this lane writes these
+                                order[a][next[a]++] = n;
+                                Thread.yield();
+                                running[a].decrementAndGet();
+                            }
+                        });
+            }
+        }
+        callback.await();
+        assertEquals(0, overlaps.get());
+        for (int account = 0; account < 2; account++) {
+            for (int i = 0; i < commandCount; i++) {
+                assertEquals(i, order[account][i]);
+            }
+        }
+    }
+
+    public void testStats() throws InterruptedException {
+        StatsCallback callback = new StatsCallback(3);
+        CommandLanes lanes = new CommandLanes(1, callback);
+        lanes.submit(7, CommandLanes.PRIORITY_BACKGROUND, "first", record("first"));
+        lanes.submit(7, CommandLanes.PRIORITY_BACKGROUND, "second", new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("test");
+            }
+        });
+        lanes.submit(7, CommandLanes.PRIORITY_FOREGROUND, "third", record("third"));
+        callback.await();
+
+        // An exception doesn't stop the lane
+        assertTrue(mRunOrder.contains("third"));
+        assertEquals(3, callback.mStats.size());
+        CommandLanes.LaneStats last = callback.mStats.get(2);
+        assertEquals(7, last.mAccountId);
+        assertEquals(3, last.mCommandCount);
+        assertEquals(0, last.mQueuedCount);
+        assertTrue(last.mMaxWaitMs >= last.getAverageWaitMs());
+        assertTrue(last.mTotalWaitMs >= last.mLastWaitMs);
+        assertTrue(last.mTotalRunMs >= last.mLastRunMs);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, callback.mStats.get(i).mCommandCount);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.MimeHeader;
+import com.android.emailcommon.mail.Flag;
+import com.android.emailcommon.mail.Folder.OpenMode;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.Part;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.emailcommon.utility.Utility;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs ImapFolder against a fake IMAP server on a local socket, which delays every response to
+ * simulate the round trip time of a mobile network, and compares the number of round trips and
+ * the time taken with and without pipelining.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.ImapPipeliningTests email
+ */
+@LargeTest
+public class ImapPipeliningTests extends AndroidTestCase {
+    private static final String TAG = "ImapPipeliningTests";
+    private static final int LATENCY_MS = 20;
+    private static final int PART_COUNT = 60;
+
+    private FakeImapServer mServer;
+    private ImapFolder mFolder;
+    private int mSavedMaxPipelinedCommands;
+
+    /**
+     * A minimal IMAP server, which answers each command LATENCY_MS after it has been received.
+     * Commands that arrive while the server still has responses to send overlap with those, as
+     * they would on a real network.
+     */
+    private static class FakeImapServer extends Thread {
+        private static final Pattern FETCH_PART =
+                Pattern.compile("UID FETCH (\\d+) \\(UID BODY\\.PEEK\\[(\\w+)\\]\\)");
+        private static final Object END = new Object();
+
+        private final ServerSocket mServerSocket;
+        private final LinkedBlockingQueue<Object> mResponses = new LinkedBlockingQueue<Object>();
+        /** Whether to send UID after the body in FETCH responses */
+        private final boolean mUidLast;
+        private int mPendingResponses;
+        private int mRoundTrips;
+        private final ArrayList<String> mCommands = new ArrayList<String>();
+
+        private static class Response {
+            final long mDueTime;
+            final byte[] mData;
+
+            Response(long dueTime, String data) {
+                mDueTime = dueTime;
+                mData = Utility.toAscii(data);
+            }
+        }
+
+        FakeImapServer(boolean uidLast) throws IOException {
+            mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            mUidLast = uidLast;
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        static String getPartText(String uid, String partId) {
+            return "Text of part " + partId + " of message " + uid + "\r\n";
+        }
+
+        synchronized int getRoundTrips() {
+            return mRoundTrips;
+        }
+
+        synchronized void resetStats() {
+            mRoundTrips = 0;
+            mCommands.clear();
+        }
+
+        synchronized ArrayList<String> getCommands() {
+            return new ArrayList<String>(mCommands);
+        }
+
+        /**
+         * A command counts as a new round trip if the server had nothing left to send when it
+         * arrived, i.e. the client was waiting for everything it had asked for.
+         */
+        private synchronized void onCommand(String command, StringBuilder response) {
+            mCommands.add(command);
+            if (mPendingResponses == 0) {
+                mRoundTrips++;
+            }
+            queueResponse(System.currentTimeMillis() + LATENCY_MS, response.toString());
+        }
+
+        private synchronized void queueResponse(long dueTime, String response) {
+            mPendingResponses++;
+            mResponses.add(new Response(dueTime, response));
+        }
+
+        private synchronized void onResponseSent() {
+            mPendingResponses--;
+        }
+
+        private StringBuilder respond(String tag, String command) {
+            final StringBuilder sb = new StringBuilder();
+            final Matcher m = FETCH_PART.matcher(command);
+            if (command.equals("CAPABILITY")) {
+                sb.append("* CAPABILITY IMAP4rev1\r\n");
+            } else if (command.startsWith("SELECT")) {
+                sb.append("* " + PART_COUNT + " EXISTS\r\n");
+                sb.append(tag + " OK [READ-WRITE] SELECT completed\r\n");
+                return sb;
+            } else if (m.matches()) {
+                final String uid = m.group(1);
+                final String partId = m.group(2);
+                final String body = Base64.encodeToString(
+                        Utility.toAscii(getPartText(uid, partId)), Base64.NO_WRAP);
+                final String literal = "BODY[" + partId + "] {" + body.length() + "}\r\n" + body;
+                if (mUidLast) {
+                    sb.append("* " + uid + " FETCH (" + literal + " UID " + uid + ")\r\n");
+                } else {
+                    sb.append("* " + uid + " FETCH (UID " + uid + " " + literal + ")\r\n");
+                }
+            }
+            sb.append(tag + " OK " + command + " completed\r\n");
+            return sb;
+        }
+
+        @Override
+        public void run() {
+            Socket socket = null;
+            try {
+                socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                final OutputStream out = socket.getOutputStream();
+                // Responses are written by another thread, so that we keep reading commands
+                // while they are "in flight"
+                final Thread writer = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (;;) {
+                                Object next = mResponses.take();
+                                if (next == END) {
+                                    return;
+                                }
+                                Response response = (Response) next;
+                                long delay = response.mDueTime - System.currentTimeMillis();
+                                if (delay > 0) {
+                                    Thread.sleep(delay);
+                                }
+                                onResponseSent();
+                                out.write(response.mData);
+                                out.flush();
+                            }
+                        } catch (InterruptedException e) {
+                            // Done
+                        } catch (IOException e) {
+                            // Client went away
+                        }
+                    }
+                };
+                writer.start();
+                queueResponse(0, "* OK fake IMAP server ready\r\n");
+
+                final BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final int space = line.indexOf(' ');
+                    final String tag = line.substring(0, space);
+                    final String command = line.substring(space + 1);
+                    onCommand(command, respond(tag, command));
+                }
+                mResponses.add(END);
+                writer.join();
+            } catch (IOException e) {
+                Log.w(TAG, "Fake IMAP server failed", e);
+            } catch (InterruptedException e) {
+                // Done
+            } finally {
+                try {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                    mServerSocket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+            mResponses.add(END);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+        mSavedMaxPipelinedCommands = ImapConnection.sMaxPipelinedCommands;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ImapConnection.sMaxPipelinedCommands = mSavedMaxPipelinedCommands;
+        if (mFolder != null) {
+            mFolder.close(false);
+        }
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    private void startServer(boolean uidLast) throws Exception {
+        mServer = new FakeImapServer(uidLast);
+        mServer.start();
+
+        HostAuth auth = new HostAuth();
+        auth.setLogin("user", "password");
+        auth.setConnection("imap", "127.0.0.1", mServer.getPort());
+        Account account = new Account();
+        account.mHostAuthRecv = auth;
+        ImapStore store = (ImapStore) ImapStore.newInstance(account, getContext());
+        mFolder = (ImapFolder) store.getFolder("INBOX");
+        mFolder.open(OpenMode.READ_WRITE);
+    }
+
+    private Message[] createMessages(int count) throws Exception {
+        final Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = mFolder.createMessage(Integer.toString(i + 1));
+        }
+        return messages;
+    }
+
+    private static Part createPart(String uid, String partId) throws Exception {
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, partId);
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        part.setSize(FakeImapServer.getPartText(uid, partId).length());
+        return part;
+    }
+
+    /**
+     * Fetch two parts of each message, and check that each part ends up with its own text.
+     * @return the time taken, in ms
+     */
+    private long fetchParts() throws Exception {
+        final Message[] messages = createMessages(PART_COUNT / 2);
+        final Message[] partMessages = new Message[PART_COUNT];
+        final Part[] parts = new Part[PART_COUNT];
+        for (int i = 0; i < PART_COUNT; i++) {
+            partMessages[i] = messages[i / 2];
+            parts[i] = createPart(partMessages[i].getUid(), (i % 2 == 0) ? "1" : "TEXT");
+        }
+
+        mServer.resetStats();
+        final long start = System.currentTimeMillis();
+        mFolder.fetchParts(partMessages, parts, null);
+        final long elapsed = System.currentTimeMillis() - start;
+
+        for (int i = 0; i < PART_COUNT; i++) {
+            assertEquals(FakeImapServer.getPartText(partMessages[i].getUid(),
+                    (i % 2 == 0) ? "1" : "TEXT"),
+                    Utility.fromAscii(IOUtils.toByteArray(parts[i].getBody().getInputStream())));
+        }
+        assertEquals(PART_COUNT, mServer.getCommands().size());
+        return elapsed;
+    }
+
+    public void testFetchPartsPipelined() throws Exception {
+        startServer(false);
+
+        ImapConnection.sMaxPipelinedCommands = 1;
+        final long sequentialTime = fetchParts();
+        final int sequentialRoundTrips = mServer.getRoundTrips();
+
+        ImapConnection.sMaxPipelinedCommands = mSavedMaxPipelinedCommands;
+        final long pipelinedTime = fetchParts();
+        final int pipelinedRoundTrips = mServer.getRoundTrips();
+
+        Log.d(TAG, PART_COUNT + " parts, " + LATENCY_MS + " ms latency: sequential "
+                + sequentialRoundTrips + " round trips, " + sequentialTime + " ms; pipelined "
+                + pipelinedRoundTrips + " round trips, " + pipelinedTime + " ms");
+        assertEquals(PART_COUNT, sequentialRoundTrips);
+        assertTrue(pipelinedRoundTrips * mSavedMaxPipelinedCommands <= PART_COUNT);
+        assertTrue(pipelinedTime < sequentialTime);
+    }
+
+    /**
+     * Servers that send the UID after the body can't have the parts decoded as they are read,
+     * but the parts must still be fetched correctly.
+     */
+    public void testFetchPartsUidLast() throws Exception {
+        startServer(true);
+        fetchParts();
+    }
+
+    public void testSetFlagsSplitsLargeSets() throws Exception {
+        startServer(false);
+        final Message[] messages = createMessages(1200);
+
+        mServer.resetStats();
+        final long start = System.currentTimeMillis();
+        mFolder.setFlags(messages, new Flag[] { Flag.SEEN }, true);
+        final long elapsed = System.currentTimeMillis() - start;
+
+        final ArrayList<String> commands = mServer.getCommands();
+        Log.d(TAG, messages.length + " messages: " + commands.size() + " STORE commands, "
+                + mServer.getRoundTrips() + " round trips, " + elapsed + " ms");
+        assertEquals(3, commands.size());
+        assertTrue(commands.get(0).startsWith("UID STORE 1,2,3,"));
+        assertTrue(commands.get(2).startsWith("UID STORE 1001,"));
+        assertTrue(commands.get(2).endsWith(",1200 +FLAGS.SILENT (\\SEEN)"));
+        assertEquals(1, mServer.getRoundTrips());
+    }
+}
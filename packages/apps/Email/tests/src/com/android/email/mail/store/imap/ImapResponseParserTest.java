@@ -21,6 +21,7 @@ import static com.android.email.mail.store.imap.ImapTestUtils.buildList;
 import static com.android.email.mail.store.imap.ImapTestUtils.buildResponse;
 import static com.android.email.mail.store.imap.ImapTestUtils.createFixedLengthInputStream;
 
+import com.android.email.FixedLengthInputStream;
 import com.android.email.mail.store.imap.ImapResponseParser.ByeException;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.emailcommon.TempDirectory;
@@ -220,6 +221,43 @@ public class ImapResponseParserTest extends AndroidTestCase {
                 ), r);
     }
 
+    public void testLiteralHandler() throws Exception {
+        final StringBuilder handled = new StringBuilder();
+        ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (UID 7 BODY[1] {3}\r\n" +
+                "ABC BODY[2] {4}\r\n" +
+                "wxyz)\r\n"
+                );
+        p.setLiteralHandler(new ImapResponseParser.LiteralHandler() {
+            @Override
+            public boolean handleLiteral(ImapList list, String key, FixedLengthInputStream in)
+                    throws IOException {
+                if (!"BODY[2]".equals(key)) {
+                    return false;
+                }
+                // Only read part of the literal; the parser must skip the rest
+                handled.append(list.getKeyedStringOrEmpty("UID").getString());
+                handled.append(':');
+                handled.append((char) in.read());
+                return true;
+            }
+        });
+        ImapResponse r = p.readResponse();
+        assertEquals("7:w", handled.toString());
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("1"),
+                new ImapSimpleString("FETCH"),
+                buildList(
+                        new ImapSimpleString("UID"),
+                        new ImapSimpleString("7"),
+                        new ImapSimpleString("BODY[1]"),
+                        new ImapMemoryLiteral(createFixedLengthInputStream("ABC")),
+                        new ImapSimpleString("BODY[2]"),
+                        ImapString.EMPTY
+                        )
+                ), r);
+    }
+
     public void testAlert() throws Exception {
         ImapResponse r;
         final ImapResponseParser p = generateParser(100000,
@@ -18,19 +18,23 @@ package com.android.email.provider;
 
 import com.android.email.provider.ContentCache.CacheToken;
 import com.android.email.provider.ContentCache.CachedCursor;
-import com.android.email.provider.ContentCache.TokenList;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.Mailbox;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
 
 /**
  * Tests of ContentCache
@@ -85,48 +89,62 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         assertTrue(map.contains("1"));
     }
 
-    public void testTokenList() {
-        TokenList list = new TokenList("Name");
+    public void testCacheTokens() {
+        ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 2);
 
-        // Add two tokens for "1"
-        CacheToken token1a = list.add("1");
+        // Take two tokens for "1"
+        CacheToken token1a = cache.getCacheToken("1");
         assertTrue(token1a.isValid());
         assertEquals("1", token1a.getId());
-        assertEquals(1, list.size());
-        CacheToken token1b = list.add("1");
+        CacheToken token1b = cache.getCacheToken("1");
         assertTrue(token1b.isValid());
-        assertEquals("1", token1b.getId());
         assertTrue(token1a.equals(token1b));
-        assertEquals(2, list.size());
 
-        // Add a token for "2"
-        CacheToken token2 = list.add("2");
+        // Take a token for "2"; we need one on a different stripe for the check below
+        String id2 = "2";
+        for (int i = 3; isSameStripe(cache, "1", id2); i++) {
+            id2 = Integer.toString(i);
+        }
+        CacheToken token2 = cache.getCacheToken(id2);
         assertFalse(token1a.equals(token2));
-        assertEquals(3, list.size());
 
-        // Invalidate "1"; there should be two tokens invalidated
-        assertEquals(2, list.invalidateTokens("1"));
+        // Lock "1"; both of its tokens become invalid, as do tokens taken while it's locked
+        cache.lock("1");
         assertFalse(token1a.isValid());
         assertFalse(token1b.isValid());
+        CacheToken token1c = cache.getCacheToken("1");
+        assertFalse(token1c.isValid());
         // Token2 should still be valid
         assertTrue(token2.isValid());
-        // Only token2 should be in the list now (invalidation removes tokens)
-        assertEquals(1, list.size());
-        assertEquals(token2, list.get(0));
-
-        // Add 3 tokens for "3"
-        CacheToken token3a = list.add("3");
-        CacheToken token3b = list.add("3");
-        CacheToken token3c = list.add("3");
-        // Remove two of them
-        assertTrue(list.remove(token3a));
-        assertTrue(list.remove(token3b));
-        // Removing tokens doesn't invalidate them
-        assertTrue(token3a.isValid());
-        assertTrue(token3b.isValid());
-        assertTrue(token3c.isValid());
-        // There should be two items left "3" and "2"
-        assertEquals(2, list.size());
+        // A cursor can't be cached with an invalid token
+        Cursor cursor = getOneRowCursor();
+        assertSame(cursor, cache.putCursor(cursor, "1", SIMPLE_PROJECTION, token1c));
+        assertEquals(0, cache.size());
+
+        // Once "1" is unlocked, new tokens are valid again
+        cache.unlock("1");
+        assertFalse(token1c.isValid());
+        CacheToken token1d = cache.getCacheToken("1");
+        assertTrue(token1d.isValid());
+        assertTrue(cache.putCursor(cursor, "1", SIMPLE_PROJECTION, token1d)
+                instanceof CachedCursor);
+        assertEquals(1, cache.size());
+
+        // Invalidating the cache invalidates every token
+        cache.invalidate();
+        assertFalse(token2.isValid());
+        assertFalse(token1d.isValid());
+        assertEquals(0, cache.size());
+    }
+
+    private static boolean isSameStripe(ContentCache cache, String id1, String id2) {
+        CacheToken token = cache.getCacheToken(id2);
+        cache.lock(id1);
+        try {
+            return !token.isValid();
+        } finally {
+            cache.unlock(id1);
+        }
     }
 
     public void testCachedCursors() {
@@ -296,4 +314,92 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
         assertTrue(underlyingCursor.isClosed());
     }
+
+    private static final int THREAD_COUNT = 4;
+    private static final int OPERATION_COUNT = 20000;
+    private static final int ID_COUNT = 8;
+
+    /**
+     * Have several threads read and write the rows of a small cache at once, and check that
+     * nobody is handed a closed cursor or the wrong row, and that no cursor is leaked.
+     */
+    public void testConcurrentAccess() throws Exception {
+        final ContentCache cache = new ContentCache("Concurrent", SIMPLE_PROJECTION, ID_COUNT / 2);
+        final ArrayList<Cursor> cursors = new ArrayList<Cursor>();
+        final ArrayList<Throwable> failures = new ArrayList<Throwable>();
+        final long[] reads = new long[1];
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int readCount = 0;
+                        for (int i = 0; i < OPERATION_COUNT; i++) {
+                            String id = Integer.toString(random.nextInt(ID_COUNT));
+                            int op = random.nextInt(100);
+                            if (op < 80) {
+                                readCount++;
+                                Cursor c = cache.getCachedCursor(id, SIMPLE_PROJECTION);
+                                if (c == null) {
+                                    CacheToken token = cache.getCacheToken(id);
+                                    MatrixCursor row = new MatrixCursor(SIMPLE_PROJECTION, 1);
+                                    row.addRow(new Object[] {id});
+                                    synchronized (cursors) {
+                                        cursors.add(row);
+                                    }
+                                    c = cache.putCursor(row, id, SIMPLE_PROJECTION, token);
+                                }
+                                if (c instanceof CachedCursor) {
+                                    assertFalse(((CachedCursor)c).getWrappedCursor().isClosed());
+                                }
+                                assertTrue(c.moveToFirst());
+                                assertEquals(id, c.getString(0));
+                                c.close();
+                            } else if (op < 98) {
+                                cache.lock(id);
+                                ContentValues values = new ContentValues();
+                                values.put(SIMPLE_PROJECTION[0], id);
+                                cache.unlock(id, (op < 90) ? values : null);
+                            } else {
+                                cache.invalidate();
+                            }
+                        }
+                        synchronized (reads) {
+                            reads[0] += readCount;
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+        Log.d("ContentCacheTests", THREAD_COUNT + " threads: " + elapsed + " ms, "
+                + cache.getHitCount() + " hits, " + cache.getMissCount() + " misses, "
+                + cache.getContentionCount() + " contended writes");
+        assertTrue(cache.size() <= ID_COUNT / 2);
+        // Reads that were answered from the cache count as hits, and the others as misses
+        assertEquals(reads[0], cache.getHitCount() + cache.getMissCount());
+
+        // Once the cache is emptied, every cursor that it held has been closed
+        cache.invalidate();
+        for (Cursor c: cursors) {
+            assertFalse(ContentCache.sActiveCursors.contains(c));
+            assertTrue(c.isClosed());
+        }
+    }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests of the full-text index of messages, and of its search URI.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageSearchIndexTests email
+ */
+@MediumTest
+public class MessageSearchIndexTests extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "MessageSearchIndexTests";
+
+    private Context mMockContext;
+
+    public MessageSearchIndexTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+    }
+
+    private ArrayList<Long> search(long accountId, long mailboxId, String filter) {
+        Uri.Builder builder =
+                ContentUris.withAppendedId(Message.SEARCH_URI, accountId).buildUpon();
+        if (mailboxId != Mailbox.NO_MAILBOX) {
+            builder.appendQueryParameter(EmailProvider.MESSAGE_URI_PARAMETER_MAILBOX_ID,
+                    Long.toString(mailboxId));
+        }
+        Cursor c = mMockContext.getContentResolver().query(builder.build(),
+                Message.SEARCH_PROJECTION, null, new String[] {filter}, null);
+        ArrayList<Long> ids = new ArrayList<Long>();
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(Message.SEARCH_ID_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private Message setupMessage(String name, long accountId, long mailboxId, String subject,
+            String snippet) {
+        Message message = ProviderTestUtils.setupMessage(name, accountId, mailboxId, false,
+                false, mMockContext);
+        message.mSubject = subject;
+        message.mSnippet = snippet;
+        message.save(mMockContext);
+        return message;
+    }
+
+    public void testBuildMatch() {
+        assertNull(MessageSearchIndex.buildMatch(null));
+        assertNull(MessageSearchIndex.buildMatch(""));
+        assertNull(MessageSearchIndex.buildMatch(" \"*- "));
+        assertEquals("\"lunch*\"", MessageSearchIndex.buildMatch("lunch"));
+        assertEquals("\"bob*\" \"example*\" \"com*\"",
+                MessageSearchIndex.buildMatch("bob@example.com"));
+        // FTS3 operators are just words
+        assertEquals("\"a*\" \"OR*\" \"b*\" \"NEAR*\"",
+                MessageSearchIndex.buildMatch("a OR -b \"NEAR\""));
+        assertEquals("\"caf\u00e9*\"", MessageSearchIndex.buildMatch("caf\u00e9"));
+    }
+
+    /**
+     * The index follows inserts, updates and deletes of messages
+     */
+    public void testIndexMaintained() {
+        Account account = ProviderTestUtils.setupAccount("search", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message message = setupMessage("m1", account.mId, box.mId, "Quarterly report",
+                "Numbers attached");
+
+        assertEquals(1, search(account.mId, box.mId, "quarterly").size());
+        assertEquals(1, search(account.mId, box.mId, "quart").size());
+        assertEquals(1, search(account.mId, box.mId, "numbers").size());
+        // The sender and the recipients are indexed too
+        assertEquals(1, search(account.mId, box.mId, "m1").size());
+        assertEquals(1, search(account.mId, box.mId, "bcc").size());
+        assertEquals(0, search(account.mId, box.mId, "lunch").size());
+
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, "Lunch plans");
+        message.update(mMockContext, cv);
+        assertEquals(0, search(account.mId, box.mId, "quarterly").size());
+        assertEquals(1, search(account.mId, box.mId, "lunch").size());
+        // Other columns are unchanged
+        assertEquals(1, search(account.mId, box.mId, "numbers").size());
+
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), null, null);
+        assertEquals(0, search(account.mId, box.mId, "lunch").size());
+        assertEquals(0, search(account.mId, box.mId, "numbers").size());
+    }
+
+    /**
+     * Searches are limited to the account, and to the mailbox if one is given
+     */
+    public void testScope() {
+        Account account1 = ProviderTestUtils.setupAccount("search1", true, mMockContext);
+        Account account2 = ProviderTestUtils.setupAccount("search2", true, mMockContext);
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1.mId, true, mMockContext);
+        Mailbox box2 = ProviderTestUtils.setupMailbox("box2", account1.mId, true, mMockContext);
+        Mailbox box3 = ProviderTestUtils.setupMailbox("box3", account2.mId, true, mMockContext);
+        setupMessage("m1", account1.mId, box1.mId, "offsite agenda", null);
+        setupMessage("m2", account1.mId, box2.mId, "offsite travel", null);
+        setupMessage("m3", account2.mId, box3.mId, "offsite hotel", null);
+
+        assertEquals(1, search(account1.mId, box1.mId, "offsite").size());
+        assertEquals(2, search(account1.mId, Mailbox.NO_MAILBOX, "offsite").size());
+        assertEquals(1, search(account2.mId, Mailbox.NO_MAILBOX, "offsite").size());
+        // All the words must match
+        assertEquals(1, search(account1.mId, Mailbox.NO_MAILBOX, "offsite travel").size());
+        assertEquals(0, search(account1.mId, Mailbox.NO_MAILBOX, "offsite hotel").size());
+    }
+
+    /**
+     * A match in the subject beats a match in the snippet
+     */
+    public void testRanking() {
+        Account account = ProviderTestUtils.setupAccount("search", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message inSnippet = setupMessage("m1", account.mId, box.mId, "Hello",
+                "the budget is attached");
+        Message inSubject = setupMessage("m2", account.mId, box.mId, "Budget", "see attached");
+        ArrayList<Long> ids = search(account.mId, box.mId, "budget");
+        assertEquals(2, ids.size());
+        assertEquals(inSubject.mId, (long)ids.get(0));
+        assertEquals(inSnippet.mId, (long)ids.get(1));
+    }
+
+    private static final String[] WORDS = {
+        "meeting", "report", "lunch", "budget", "review", "project", "update", "schedule",
+        "invoice", "travel", "launch", "design", "customer", "release", "offsite", "hiring",
+        "quarterly", "agenda", "contract", "feedback", "roadmap", "status", "weekly", "draft"
+    };
+
+    private static String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(' ');
+            // Skewed towards the first words, like real text
+            int index = (int)(WORDS.length * random.nextDouble() * random.nextDouble());
+            sb.append(WORDS[index]);
+            if (random.nextInt(4) == 0) {
+                // Plus a rarer word
+                sb.append(' ').append("w").append(random.nextInt(20000));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Index a synthetic mailbox of 100,000 messages, and report the size of the index and the
+     * time taken by common searches
+     */
+    @LargeTest
+    public void testBenchmark() {
+        final int messageCount = 100000;
+        Account account = ProviderTestUtils.setupAccount("bench", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            ContentValues cv = new ContentValues();
+            for (int i = 0; i < messageCount; i++) {
+                cv.put(SyncColumns.SERVER_ID, Integer.toString(i));
+                cv.put(MessageColumns.ACCOUNT_KEY, account.mId);
+                cv.put(MessageColumns.MAILBOX_KEY, box.mId);
+                cv.put(MessageColumns.TIMESTAMP, i);
+                cv.put(MessageColumns.SUBJECT, words(random, 5));
+                cv.put(MessageColumns.DISPLAY_NAME, "Sender " + random.nextInt(500));
+                cv.put(MessageColumns.FROM_LIST,
+                        "sender" + random.nextInt(500) + "@example.com");
+                cv.put(MessageColumns.TO_LIST, "me@example.com, team" + random.nextInt(20) +
+                        "@example.com");
+                cv.put(MessageColumns.SNIPPET, words(random, 25));
+                db.insert(Message.TABLE_NAME, null, cv);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long insertMs = (System.nanoTime() - start) / 1000000;
+
+        long indexBytes = DatabaseUtils.longForQuery(db, "select sum(length(block)) from " +
+                MessageSearchIndex.TABLE_NAME + "_segments", null);
+        long messageBytes = DatabaseUtils.longForQuery(db, "select sum(length(" +
+                MessageColumns.SUBJECT + ") + length(" + MessageColumns.DISPLAY_NAME +
+                ") + length(" + MessageColumns.FROM_LIST + ") + length(" +
+                MessageColumns.TO_LIST + ") + length(" + MessageColumns.SNIPPET + ")) from " +
+                Message.TABLE_NAME, null);
+        Log.d(TAG, messageCount + " messages indexed in " + insertMs + "ms; index " +
+                indexBytes / 1024 + "KB for " + messageBytes / 1024 + "KB of text");
+
+        String[] queries = {"meeting", "roadmap", "w123", "sender42", "quarterly agenda", "rev"};
+        for (String query : queries) {
+            // Once to warm up
+            search(account.mId, box.mId, query);
+            start = System.nanoTime();
+            int count = search(account.mId, box.mId, query).size();
+            long queryMs = (System.nanoTime() - start) / 1000000;
+            Log.d(TAG, "\"" + query + "\": " + count + " results in " + queryMs + "ms");
+        }
+    }
+}
@@ -117,46 +117,87 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
             assertEquals(expectedAttachmentIds[i], req.attachmentId);
         }
 
-        // Process the queue; attachment 1 should be marked "in progress", and should be in
-        // the in-progress map
+        // Process the queue; the user requests (attachments 1 and 4) should be marked "in
+        // progress", and should be in the in-progress map
         mDownloadSet.processQueue();
         DownloadRequest req = mDownloadSet.findDownloadRequest(att1.mId);
         assertNotNull(req);
         assertTrue(req.inProgress);
         assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att1.mId));
-        // There should also be only one download in progress (testing the per-account limitation)
-        assertEquals(1, mDownloadSet.mDownloadsInProgress.size());
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att4.mId));
+        // The others wait for them (testing the per-account limitation)
+        assertEquals(2, mDownloadSet.mDownloadsInProgress.size());
+        assertEquals(1, mService.mDownloadLimiter.getLimit(mAccountId));
         // End the "download" with a connection error; we should still have this in the queue,
         // but it should no longer be in-progress
         mDownloadSet.endDownload(att1.mId, EmailServiceStatus.CONNECTION_ERROR);
         assertFalse(req.inProgress);
-        assertEquals(0, mDownloadSet.mDownloadsInProgress.size());
+        assertEquals(1, mDownloadSet.mDownloadsInProgress.size());
+        // The account's other downloads are held for a while after the error
+        assertTrue(mService.mDownloadLimiter.isHeld(mAccountId, System.currentTimeMillis()));
 
         mDownloadSet.processQueue();
-        // Things should be as they were earlier; att1 should be an in-progress download
+        // Things should be as they were earlier; att1 should be an in-progress download, as
+        // user requests aren't held
         req = mDownloadSet.findDownloadRequest(att1.mId);
         assertNotNull(req);
         assertTrue(req.inProgress);
         assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att1.mId));
-        // Successfully download the attachment; there should be no downloads in progress, and
-        // att1 should no longer be in the queue
+        assertEquals(2, mDownloadSet.mDownloadsInProgress.size());
+        // Successfully download the attachments; there should be no downloads in progress, and
+        // att1 and att4 should no longer be in the queue
         mDownloadSet.endDownload(att1.mId, EmailServiceStatus.SUCCESS);
+        mDownloadSet.endDownload(att4.mId, EmailServiceStatus.SUCCESS);
         assertEquals(0, mDownloadSet.mDownloadsInProgress.size());
         assertNull(mDownloadSet.findDownloadRequest(att1.mId));
+        assertNull(mDownloadSet.findDownloadRequest(att4.mId));
 
         // Test dequeue and isQueued
-        assertEquals(3, mDownloadSet.size());
-        mService.dequeue(att2.mId);
         assertEquals(2, mDownloadSet.size());
-        assertTrue(mService.isQueued(att4.mId));
+        mService.dequeue(att2.mId);
+        assertEquals(1, mDownloadSet.size());
         assertTrue(mService.isQueued(att3.mId));
 
+        // The account is still held, so att3 waits
         mDownloadSet.processQueue();
-        // att4 should be the download in progress
-        req = mDownloadSet.findDownloadRequest(att4.mId);
+        req = mDownloadSet.findDownloadRequest(att3.mId);
         assertNotNull(req);
-        assertTrue(req.inProgress);
-        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att4.mId));
+        assertFalse(req.inProgress);
+        assertEquals(0, mDownloadSet.mDownloadsInProgress.size());
+    }
+
+    /**
+     * Test that requests for the same account wait for those of higher priority
+     */
+    public void testPriorityClassFirst() {
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        Attachment att1 = ProviderTestUtils.setupAttachment(message.mId, "filename1", 1000,
+                Attachment.FLAG_DOWNLOAD_FORWARD, true, mMockContext);
+        Attachment att2 = ProviderTestUtils.setupAttachment(message.mId, "filename2", 1000,
+                Attachment.FLAG_DOWNLOAD_FORWARD, true, mMockContext);
+        mDownloadSet.onChange(mMockContext, att1);
+        mDownloadSet.onChange(mMockContext, att2);
+
+        // The account's limit starts at one download
+        mDownloadSet.processQueue();
+        assertEquals(1, mDownloadSet.mDownloadsInProgress.size());
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att1.mId));
+
+        // A user request doesn't wait for the limit
+        Attachment att3 = ProviderTestUtils.setupAttachment(message.mId, "filename3", 1000,
+                Attachment.FLAG_DOWNLOAD_USER_REQUEST, true, mMockContext);
+        mDownloadSet.onChange(mMockContext, att3);
+        mDownloadSet.processQueue();
+        assertEquals(2, mDownloadSet.mDownloadsInProgress.size());
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att3.mId));
+
+        // As each one finishes, the next in line starts
+        mDownloadSet.endDownload(att1.mId, EmailServiceStatus.SUCCESS);
+        mDownloadSet.endDownload(att3.mId, EmailServiceStatus.SUCCESS);
+        mDownloadSet.processQueue();
+        assertEquals(1, mDownloadSet.mDownloadsInProgress.size());
+        assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att2.mId));
     }
 
     /**
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the DownloadLimiter, including a simulation of AttachmentDownloadService's scheduling
+ * against fake servers, which logs how long the download queue takes to drain.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.DownloadLimiterTests email
+ */
+@SmallTest
+public class DownloadLimiterTests extends TestCase {
+    private static final String TAG = "DownloadLimiterTests";
+    private static final long ACCOUNT = 1;
+
+    /**
+     * Start and finish a window of downloads for ACCOUNT, each taking the given time
+     */
+    private long runWindow(DownloadLimiter limiter, long now, int count, long size, long ms) {
+        for (int i = 0; i < count; i++) {
+            limiter.onDownloadStarted(ACCOUNT, i + 1, now);
+        }
+        for (int i = 0; i < count; i++) {
+            now += ms;
+            limiter.onDownloadFinished(ACCOUNT, size, now);
+        }
+        return now;
+    }
+
+    public void testLimitRaisedWhileThroughputGrows() {
+        DownloadLimiter limiter = new DownloadLimiter();
+        assertEquals(1, limiter.getLimit(ACCOUNT));
+        // The first window always raises the limit
+        long now = runWindow(limiter, 1000, 2, 1000, 100);
+        assertEquals(2, limiter.getLimit(ACCOUNT));
+        // Twice the throughput; raise again
+        now = runWindow(limiter, now, 2, 1000, 50);
+        assertEquals(3, limiter.getLimit(ACCOUNT));
+        // And again
+        now = runWindow(limiter, now, 3, 1000, 25);
+        assertEquals(4, limiter.getLimit(ACCOUNT));
+        // Never above the maximum
+        for (int i = 0; i < 5; i++) {
+            now = runWindow(limiter, now, 4, 1000, 10 >> i);
+        }
+        assertEquals(DownloadLimiter.MAX_DOWNLOADS_PER_ACCOUNT, limiter.getLimit(ACCOUNT));
+    }
+
+    public void testLimitLoweredWhenRaiseDoesNotPay() {
+        DownloadLimiter limiter = new DownloadLimiter();
+        long now = runWindow(limiter, 1000, 2, 1000, 100);
+        now = runWindow(limiter, now, 2, 1000, 50);
+        assertEquals(3, limiter.getLimit(ACCOUNT));
+        // Hardly better than with two downloads; go back to two
+        now = runWindow(limiter, now, 3, 1000, 48);
+        assertEquals(2, limiter.getLimit(ACCOUNT));
+        // And stay there for a while, however well it goes
+        for (int i = 0; i < DownloadLimiter.CEILING_WINDOWS; i++) {
+            assertEquals(2, limiter.getLimit(ACCOUNT));
+            now = runWindow(limiter, now, 2, 1000, 10);
+        }
+        // Then try again
+        now = runWindow(limiter, now, 2, 1000, 10);
+        assertEquals(3, limiter.getLimit(ACCOUNT));
+        // Worse than with two; go back
+        runWindow(limiter, now, 3, 1000, 100);
+        assertEquals(2, limiter.getLimit(ACCOUNT));
+    }
+
+    public void testUnsaturatedWindowKeepsLimit() {
+        DownloadLimiter limiter = new DownloadLimiter();
+        long now = runWindow(limiter, 1000, 2, 1000, 100);
+        assertEquals(2, limiter.getLimit(ACCOUNT));
+        // One download at a time, never reaching the limit; this says nothing about the limit
+        for (int i = 0; i < 4; i++) {
+            limiter.onDownloadStarted(ACCOUNT, 1, now);
+            now += 10;
+            limiter.onDownloadFinished(ACCOUNT, 1000, now);
+        }
+        assertEquals(2, limiter.getLimit(ACCOUNT));
+    }
+
+    public void testConnectionErrorHoldsAccount() {
+        DownloadLimiter limiter = new DownloadLimiter();
+        long now = runWindow(limiter, 1000, 2, 1000, 100);
+        now = runWindow(limiter, now, 2, 1000, 50);
+        now = runWindow(limiter, now, 3, 1000, 25);
+        assertEquals(4, limiter.getLimit(ACCOUNT));
+        assertFalse(limiter.isHeld(ACCOUNT, now));
+        assertEquals(0, limiter.getNextRelease(now));
+
+        limiter.onConnectionError(ACCOUNT, now);
+        assertEquals(2, limiter.getLimit(ACCOUNT));
+        assertTrue(limiter.isHeld(ACCOUNT, now));
+        assertEquals(now + DownloadLimiter.MIN_HOLD_MS, limiter.getNextRelease(now));
+        assertFalse(limiter.isHeld(ACCOUNT, now + DownloadLimiter.MIN_HOLD_MS));
+        // Other accounts aren't affected
+        assertFalse(limiter.isHeld(ACCOUNT + 1, now));
+        assertEquals(1, limiter.getLimit(ACCOUNT + 1));
+
+        // Errors in a row hold for longer, up to the maximum
+        limiter.onConnectionError(ACCOUNT, now);
+        assertEquals(1, limiter.getLimit(ACCOUNT));
+        assertEquals(now + 2 * DownloadLimiter.MIN_HOLD_MS, limiter.getNextRelease(now));
+        for (int i = 0; i < 20; i++) {
+            limiter.onConnectionError(ACCOUNT, now);
+        }
+        assertEquals(1, limiter.getLimit(ACCOUNT));
+        assertEquals(now + DownloadLimiter.MAX_HOLD_MS, limiter.getNextRelease(now));
+
+        // The ceiling after an error is lifted too, after a longer while
+        for (int i = 0; i <= DownloadLimiter.ERROR_CEILING_WINDOWS; i++) {
+            assertEquals(1, limiter.getLimit(ACCOUNT));
+            now = runWindow(limiter, now + DownloadLimiter.MAX_HOLD_MS, 2, 1000, 10);
+        }
+        assertEquals(2, limiter.getLimit(ACCOUNT));
+
+        // A success resets the hold time
+        now += DownloadLimiter.MAX_HOLD_MS;
+        limiter.onDownloadStarted(ACCOUNT, 1, now);
+        limiter.onDownloadFinished(ACCOUNT, 1000, now + 100);
+        limiter.onConnectionError(ACCOUNT, now + 100);
+        assertEquals(now + 100 + DownloadLimiter.MIN_HOLD_MS, limiter.getNextRelease(now + 100));
+    }
+
+    // The step of the simulated clock
+    private static final int TICK_MS = 10;
+    // The simulation fails if the queue takes longer than this to drain
+    private static final long MAX_SIMULATION_MS = 60 * 60 * 1000;
+
+    private static class FakeDownload {
+        final int mAccount;
+        final long mSize;
+        final boolean mForeground;
+        long mRemaining;
+        // When the server starts sending data (-1 if it hasn't got to this download yet)
+        long mDataStart = -1;
+        // When the download will fail (-1 if it won't)
+        long mFailAt = -1;
+        long mQueueTime;
+        long mFinishTime;
+
+        FakeDownload(int account, long size, boolean foreground) {
+            mAccount = account;
+            mSize = size;
+            mForeground = foreground;
+        }
+    }
+
+    /**
+     * A fake server (and the email service talking to it) for one account
+     */
+    private static class FakeServer {
+        // Round trip before the data of each download starts arriving
+        final long mLatencyMs;
+        // Bytes per ms for each download, and for all of them together
+        final long mDownloadRate;
+        final long mLinkRate;
+        // Downloads beyond this many at a time fail with a connection error
+        final int mMaxConnections;
+        // Whether the service handles downloads one at a time (user requests first), like the
+        // IMAP/POP service does
+        final boolean mSerial;
+        final ArrayList<FakeDownload> mActive = new ArrayList<FakeDownload>();
+
+        FakeServer(long latencyMs, long downloadRate, long linkRate, int maxConnections,
+                boolean serial) {
+            mLatencyMs = latencyMs;
+            mDownloadRate = downloadRate;
+            mLinkRate = linkRate;
+            mMaxConnections = maxConnections;
+            mSerial = serial;
+        }
+    }
+
+    /**
+     * Runs downloads against fake servers on a simulated clock.  Without a limiter, the old
+     * fixed limits are used (two downloads in all, one per account); with one, the limits used by
+     * AttachmentDownloadService.processQueue
+     */
+    private static class Simulation {
+        private static final int FIXED_MAX_DOWNLOADS = 2;
+        private static final int ADAPTIVE_MAX_DOWNLOADS = 8;
+
+        final FakeServer[] mServers;
+        final DownloadLimiter mLimiter;
+        // Foreground downloads first; otherwise in the order they were queued
+        final LinkedList<FakeDownload> mQueue = new LinkedList<FakeDownload>();
+        final LinkedList<FakeDownload> mLater = new LinkedList<FakeDownload>();
+        int mInProgress;
+        int mErrors;
+        long mNow;
+
+        Simulation(FakeServer[] servers, boolean adaptive) {
+            mServers = servers;
+            mLimiter = adaptive ? new DownloadLimiter() : null;
+        }
+
+        void queue(FakeDownload download) {
+            download.mQueueTime = mNow;
+            download.mRemaining = download.mSize;
+            download.mDataStart = -1;
+            download.mFailAt = -1;
+            if (!download.mForeground) {
+                mQueue.addLast(download);
+                return;
+            }
+            int index = 0;
+            while (index < mQueue.size() && mQueue.get(index).mForeground) {
+                index++;
+            }
+            mQueue.add(index, download);
+        }
+
+        /**
+         * Queue a download once the clock reaches the given time
+         */
+        void queueAt(long time, FakeDownload download) {
+            download.mQueueTime = time;
+            mLater.add(download);
+        }
+
+        private boolean canStart(FakeDownload download) {
+            FakeServer server = mServers[download.mAccount];
+            if (mLimiter == null) {
+                return server.mActive.size() < 1;
+            }
+            if (download.mForeground) return true;
+            if (mInProgress >= ADAPTIVE_MAX_DOWNLOADS - 1) return false;
+            return !mLimiter.isHeld(download.mAccount, mNow) &&
+                    server.mActive.size() < mLimiter.getLimit(download.mAccount);
+        }
+
+        private void startDownloads() {
+            int max = (mLimiter == null) ? FIXED_MAX_DOWNLOADS : ADAPTIVE_MAX_DOWNLOADS;
+            HashSet<Integer> waitingAccounts = new HashSet<Integer>();
+            Iterator<FakeDownload> iterator = mQueue.iterator();
+            while (iterator.hasNext() && mInProgress < max) {
+                FakeDownload download = iterator.next();
+                if (waitingAccounts.contains(download.mAccount)) continue;
+                if (!canStart(download)) {
+                    waitingAccounts.add(download.mAccount);
+                    continue;
+                }
+                iterator.remove();
+                FakeServer server = mServers[download.mAccount];
+                if (server.mActive.size() >= server.mMaxConnections) {
+                    download.mFailAt = mNow + server.mLatencyMs;
+                } else if (!server.mSerial) {
+                    download.mDataStart = mNow + server.mLatencyMs;
+                }
+                server.mActive.add(download);
+                mInProgress++;
+                if (mLimiter != null) {
+                    mLimiter.onDownloadStarted(download.mAccount, server.mActive.size(), mNow);
+                }
+            }
+        }
+
+        private void advance(FakeServer server) {
+            ArrayList<FakeDownload> receiving = new ArrayList<FakeDownload>();
+            ArrayList<FakeDownload> failed = new ArrayList<FakeDownload>();
+            FakeDownload next = null;
+            for (FakeDownload download: server.mActive) {
+                if (download.mFailAt >= 0) {
+                    if (mNow >= download.mFailAt) {
+                        failed.add(download);
+                    }
+                } else if (download.mDataStart >= 0) {
+                    if (mNow >= download.mDataStart) {
+                        receiving.add(download);
+                    }
+                } else if (next == null || (download.mForeground && !next.mForeground)) {
+                    next = download;
+                }
+            }
+            // A serial service starts on its next download when it has finished the last one
+            if (next != null && server.mSerial) {
+                boolean busy = false;
+                for (FakeDownload download: server.mActive) {
+                    if (download.mDataStart >= 0) {
+                        busy = true;
+                    }
+                }
+                if (!busy) {
+                    next.mDataStart = mNow + server.mLatencyMs;
+                }
+            }
+            for (FakeDownload download: failed) {
+                server.mActive.remove(download);
+                mInProgress--;
+                mErrors++;
+                if (mLimiter != null) {
+                    mLimiter.onConnectionError(download.mAccount, mNow);
+                }
+                queue(download);
+            }
+            if (receiving.isEmpty()) return;
+            long rate = Math.min(server.mDownloadRate, server.mLinkRate / receiving.size());
+            for (FakeDownload download: receiving) {
+                download.mRemaining -= rate * TICK_MS;
+                if (download.mRemaining <= 0) {
+                    download.mFinishTime = mNow;
+                    server.mActive.remove(download);
+                    mInProgress--;
+                    if (mLimiter != null) {
+                        mLimiter.onDownloadFinished(download.mAccount, download.mSize, mNow);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Run until every download has finished
+         * @return the time the queue took to drain
+         */
+        long run() {
+            while (!mQueue.isEmpty() || !mLater.isEmpty() || mInProgress > 0) {
+                Iterator<FakeDownload> iterator = mLater.iterator();
+                while (iterator.hasNext()) {
+                    FakeDownload download = iterator.next();
+                    if (mNow >= download.mQueueTime) {
+                        iterator.remove();
+                        queue(download);
+                    }
+                }
+                startDownloads();
+                for (FakeServer server: mServers) {
+                    advance(server);
+                }
+                mNow += TICK_MS;
+                assertTrue("Queue didn't drain", mNow < MAX_SIMULATION_MS);
+            }
+            return mNow;
+        }
+    }
+
+    private static FakeServer[] createServers() {
+        return new FakeServer[] {
+                // An EAS-like server which is happy to send several attachments at once
+                new FakeServer(300, 100, 1000, 10, false),
+                // An IMAP-like service, which handles one download at a time
+                new FakeServer(200, 200, 200, 10, true),
+        };
+    }
+
+    private static long simulate(String name, FakeServer[] servers, boolean adaptive,
+            FakeDownload... extra) {
+        Simulation sim = new Simulation(servers, adaptive);
+        for (int i = 0; i < 200; i++) {
+            sim.queue(new FakeDownload(i % servers.length, 50000, false));
+        }
+        for (int i = 0; i < extra.length; i++) {
+            sim.queueAt(10000, extra[i]);
+        }
+        long drainTime = sim.run();
+        Log.d(TAG, name + (adaptive ? " (adaptive)" : " (fixed)") + ": drained in " +
+                drainTime + "ms, " + sim.mErrors + " errors");
+        return drainTime;
+    }
+
+    public void testSimulatedDrainTime() {
+        long fixed = simulate("Two accounts", createServers(), false);
+        long adaptive = simulate("Two accounts", createServers(), true);
+        assertTrue(adaptive < fixed * 3 / 4);
+    }
+
+    public void testSimulatedForegroundFirst() {
+        FakeDownload fixedForeground = new FakeDownload(0, 50000, true);
+        simulate("Foreground", createServers(), false, fixedForeground);
+        FakeDownload adaptiveForeground = new FakeDownload(0, 50000, true);
+        FakeDownload serialForeground = new FakeDownload(1, 50000, true);
+        simulate("Foreground", createServers(), true, adaptiveForeground, serialForeground);
+        long fixedWait = fixedForeground.mFinishTime - fixedForeground.mQueueTime;
+        long adaptiveWait = adaptiveForeground.mFinishTime - adaptiveForeground.mQueueTime;
+        long serialWait = serialForeground.mFinishTime - serialForeground.mQueueTime;
+        Log.d(TAG, "Foreground download took " + fixedWait + "ms (fixed), " + adaptiveWait +
+                "ms (adaptive), " + serialWait + "ms (adaptive, serial service)");
+        // The user's download starts at once, and gets its share of the bandwidth
+        assertTrue(adaptiveWait < 2 * (300 + 50000 / 100));
+        // Or goes next, if the service handles one download at a time
+        assertTrue(serialWait < 2 * (200 + 50000 / 200) + 200 + 50000 / 200);
+    }
+
+    public void testSimulatedConnectionLimit() {
+        // A server which refuses more than two connections at a time
+        FakeServer[] servers = new FakeServer[] {new FakeServer(300, 100, 1000, 2, false)};
+        long fixed = simulate("Connection limit", servers, false);
+        servers = new FakeServer[] {new FakeServer(300, 100, 1000, 2, false)};
+        Simulation sim = new Simulation(servers, true);
+        for (int i = 0; i < 200; i++) {
+            sim.queue(new FakeDownload(0, 50000, false));
+        }
+        long adaptive = sim.run();
+        Log.d(TAG, "Connection limit (adaptive): drained in " + adaptive + "ms, " +
+                sim.mErrors + " errors");
+        // The limiter backs off, rather than retrying into the limit over and over
+        assertTrue(sim.mErrors < 20);
+        assertTrue(adaptive < fixed);
+    }
+}
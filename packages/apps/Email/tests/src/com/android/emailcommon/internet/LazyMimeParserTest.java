@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Multipart;
+import com.android.emailcommon.mail.Part;
+
+import org.apache.commons.io.IOUtils;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests of the lazy mode of MimeMessage parsing, which must build the same messages as the
+ * regular parser.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.internet.LazyMimeParserTest email
+ */
+@SmallTest
+public class LazyMimeParserTest extends AndroidTestCase {
+    private static final String TAG = "LazyMimeParserTest";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static String attachment(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte)(i * 7 + i / 251);
+        }
+        return Base64.encodeToString(data, Base64.CRLF);
+    }
+
+    private static String text(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("Line ").append(i).append(" of the message, with some text to read.\r\n");
+        }
+        return sb.toString();
+    }
+
+    private static final String HEADERS =
+        "Return-Path: <sender@example.com>\r\n" +
+        "Received: from mail.example.com (mail.example.com [10.0.0.1])\r\n" +
+        "\tby mx.example.com with ESMTP id 12345\r\n" +
+        "\tfor <recipient@example.com>; Mon, 2 Jan 2012 10:00:00 -0800\r\n" +
+        "From: Sender <sender@example.com>\r\n" +
+        "To: Recipient <recipient@example.com>, other@example.com\r\n" +
+        "Subject: =?UTF-8?B?4oaR4oaT4oaQ4oaS?= test\r\n" +
+        "Date: Mon, 2 Jan 2012 10:00:00 -0800\r\n" +
+        "Message-ID: <1234@example.com>\r\n" +
+        "MIME-Version: 1.0\r\n";
+
+    /**
+     * @return a set of messages with the shapes seen in the wild, including some broken ones
+     */
+    private static ArrayList<String> getCorpus(int attachmentSize) {
+        ArrayList<String> corpus = new ArrayList<String>();
+        // Plain text, with bare LFs
+        corpus.add((HEADERS + "Content-Type: text/plain; charset=us-ascii\r\n\r\n" + text(20))
+                .replace("\r\n", "\n"));
+        // No body at all
+        corpus.add(HEADERS);
+        // Quoted-printable
+        corpus.add(HEADERS +
+                "Content-Type: text/plain; charset=utf-8\r\n" +
+                "Content-Transfer-Encoding: quoted-printable\r\n\r\n" +
+                "caf=C3=A9 soft=\r\nbreak\r\n");
+        // Alternative
+        corpus.add(HEADERS +
+                "Content-Type: multipart/alternative; boundary=\"alt\"\r\n\r\n" +
+                "This is a multi-part message in MIME format.\r\n" +
+                "--alt\r\nContent-Type: text/plain\r\n\r\n" + text(10) +
+                "--alt\r\nContent-Type: text/html\r\n\r\n<html>" + text(10) + "</html>\r\n" +
+                "--alt--\r\nepilogue\r\n");
+        // Mixed, with an alternative and attachments
+        corpus.add(HEADERS +
+                "Content-Type: multipart/mixed;\r\n boundary=\"mixed\"\r\n\r\n" +
+                "--mixed\r\n" +
+                "Content-Type: multipart/alternative; boundary=alt\r\n\r\n" +
+                "--alt\r\nContent-Type: text/plain\r\n\r\n" + text(5) +
+                "--alt\r\nContent-Type: text/html\r\n\r\n" + text(5) +
+                "--alt--\r\n" +
+                "--mixed\r\n" +
+                "Content-Type: image/jpeg; name=\"a.jpg\"\r\n" +
+                "Content-Disposition: attachment; filename=\"a.jpg\"\r\n" +
+                "Content-Transfer-Encoding: base64\r\n\r\n" + attachment(attachmentSize) +
+                "--mixed\r\n" +
+                "Content-Type: application/pdf; name=\"b.pdf\"\r\n" +
+                "Content-Transfer-Encoding: base64\r\n\r\n" + attachment(attachmentSize / 3) +
+                "--mixed--\r\n");
+        // A forwarded message, and one that is base64 encoded
+        String inner = HEADERS + "Content-Type: multipart/mixed; boundary=inner\r\n\r\n" +
+                "--inner\r\nContent-Type: text/plain\r\n\r\n" + text(3) +
+                "--inner\r\nContent-Type: application/octet-stream\r\n" +
+                "Content-Transfer-Encoding: base64\r\n\r\n" + attachment(1000) +
+                "--inner--\r\n";
+        corpus.add(HEADERS +
+                "Content-Type: multipart/mixed; boundary=outer\r\n\r\n" +
+                "--outer\r\nContent-Type: text/plain\r\n\r\nSee below\r\n" +
+                "--outer\r\nContent-Type: message/rfc822\r\n\r\n" + inner +
+                "--outer\r\nContent-Type: message/rfc822\r\n" +
+                "Content-Transfer-Encoding: base64\r\n\r\n" +
+                Base64.encodeToString(inner.getBytes(), Base64.CRLF) +
+                "--outer--\r\n");
+        // No closing boundary, and a part that ends without a line break
+        corpus.add(HEADERS +
+                "Content-Type: multipart/mixed; boundary=\"cut\"\r\n\r\n" +
+                "--cut\r\nContent-Type: text/plain\r\n\r\n" + text(3) +
+                "--cut\r\nContent-Type: text/plain\r\n\r\nno end");
+        // No boundary at all, and lines which only start with the boundary (they count)
+        corpus.add(HEADERS + "Content-Type: multipart/mixed; boundary=none\r\n\r\n" + text(3));
+        corpus.add(HEADERS +
+                "Content-Type: multipart/mixed; boundary=\"b\"\r\n\r\n" +
+                "--b\r\nContent-Type: text/plain\r\n\r\n--bb starts a part\r\n" +
+                "--b junk\r\n\r\nafter\r\n--b--");
+        // Bad base64, and bad header lines
+        corpus.add(HEADERS +
+                "X-Bad Header: ignored\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "Content-Transfer-Encoding: base64\r\n\r\n" + "AAAA$$$$AAAA\r\n");
+        return corpus;
+    }
+
+    // Headers compared part by part; writeTo() covers all of them for the whole message
+    private static final String[] HEADER_NAMES = new String[] {
+        "Received", "From", "To", "Subject", "Content-Type", "Content-Transfer-Encoding",
+        "Content-Disposition", "X-Bad Header"
+    };
+
+    private static byte[] readBody(Body body) throws IOException, MessagingException {
+        return IOUtils.toByteArray(body.getInputStream());
+    }
+
+    /**
+     * Check that the two parts have the same headers and structure, and that the bodies decode
+     * to the same data
+     */
+    private void checkSameParts(String where, Part expected, Part actual) throws Exception {
+        for (String name : HEADER_NAMES) {
+            assertEquals(where + " " + name, Arrays.toString(expected.getHeader(name)),
+                    Arrays.toString(actual.getHeader(name)));
+        }
+        Body expectedBody = expected.getBody();
+        Body actualBody = actual.getBody();
+        if (expectedBody == null || actualBody == null) {
+            assertEquals(where, expectedBody == null, actualBody == null);
+        } else if (expectedBody instanceof Multipart) {
+            assertTrue(where, actualBody instanceof Multipart);
+            MimeMultipart expectedMultipart = (MimeMultipart)expectedBody;
+            MimeMultipart actualMultipart = (MimeMultipart)actualBody;
+            assertEquals(where, expectedMultipart.getPreamble(), actualMultipart.getPreamble());
+            assertEquals(where, expectedMultipart.getCount(), actualMultipart.getCount());
+            for (int i = 0; i < expectedMultipart.getCount(); i++) {
+                checkSameParts(where + "/" + i, expectedMultipart.getBodyPart(i),
+                        actualMultipart.getBodyPart(i));
+            }
+        } else if (expectedBody instanceof MimeMessage) {
+            assertTrue(where, actualBody instanceof MimeMessage);
+            checkSameParts(where + "/message", (Part)expectedBody, (Part)actualBody);
+        } else {
+            assertTrue(where, actualBody instanceof LazyBody);
+            byte[] data = readBody(actualBody);
+            MoreAsserts.assertEquals(where, readBody(expectedBody), data);
+            // Lazy bodies can be read again
+            MoreAsserts.assertEquals(where, data, readBody(actualBody));
+        }
+    }
+
+    private void checkCorpus(int attachmentSize) throws Exception {
+        int index = 0;
+        for (String source : getCorpus(attachmentSize)) {
+            byte[] bytes = source.getBytes("ISO-8859-1");
+            MimeMessage expected = new MimeMessage(new ByteArrayInputStream(bytes));
+            MimeMessage actual = new MimeMessage(new ByteArrayInputStream(bytes), true);
+            checkSameParts("message " + index, expected, actual);
+
+            // And they're written out the same way
+            ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+            ByteArrayOutputStream actualOut = new ByteArrayOutputStream();
+            new MimeMessage(new ByteArrayInputStream(bytes)).writeTo(expectedOut);
+            actual.writeTo(actualOut);
+            assertEquals("message " + index, expectedOut.toString("ISO-8859-1"),
+                    actualOut.toString("ISO-8859-1"));
+            index++;
+        }
+    }
+
+    public void testSameAsEager() throws Exception {
+        checkCorpus(10 * 1024);
+    }
+
+    /**
+     * Messages too big to spool in memory go through a mapped temp file
+     */
+    public void testSameAsEagerMapped() throws Exception {
+        checkCorpus(600 * 1024);
+    }
+
+    /**
+     * Compare the two modes, both when only the structure is wanted and when every body is read
+     */
+    @LargeTest
+    public void testBenchmark() throws Exception {
+        ArrayList<byte[]> corpus = new ArrayList<byte[]>();
+        for (int size : new int[] {1024, 100 * 1024, 2 * 1024 * 1024}) {
+            for (String source : getCorpus(size)) {
+                corpus.add(source.getBytes("ISO-8859-1"));
+            }
+        }
+        final int rounds = 5;
+        for (boolean lazy : new boolean[] {false, true}) {
+            long parseTime = 0;
+            long readTime = 0;
+            for (int round = 0; round < rounds; round++) {
+                for (byte[] bytes : corpus) {
+                    long start = System.nanoTime();
+                    MimeMessage message = new MimeMessage(new ByteArrayInputStream(bytes), lazy);
+                    long parsed = System.nanoTime();
+                    readAll(message);
+                    parseTime += parsed - start;
+                    readTime += System.nanoTime() - parsed;
+                }
+            }
+            Log.d(TAG, (lazy ? "lazy" : "eager") + ": parse " + parseTime / rounds / 1000000 +
+                    "ms, read " + readTime / rounds / 1000000 + "ms per pass of " +
+                    corpus.size() + " messages");
+        }
+    }
+
+    private static void readAll(Part part) throws Exception {
+        Body body = part.getBody();
+        if (body instanceof Multipart) {
+            Multipart multipart = (Multipart)body;
+            for (int i = 0; i < multipart.getCount(); i++) {
+                readAll(multipart.getBodyPart(i));
+            }
+        } else if (body instanceof MimeMessage) {
+            readAll((MimeMessage)body);
+        } else if (body != null) {
+            readBody(body);
+        }
+    }
+}
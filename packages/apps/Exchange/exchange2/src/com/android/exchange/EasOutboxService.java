@@ -49,7 +49,7 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpStatus;
 import org.apache.http.entity.InputStreamEntity;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -84,110 +84,55 @@ public class EasOutboxService extends EasSyncService {
         super(_context, _mailbox);
     }
 
+    private static final int[] MODE_TAGS =  new int[] {Tags.COMPOSE_SEND_MAIL,
+        Tags.COMPOSE_SMART_REPLY, Tags.COMPOSE_SMART_FORWARD};
+
     /**
-     * Our own HttpEntity subclass that is able to insert opaque data (in this case the MIME
-     * representation of the message body as stored in a temporary file) into the serializer stream
+     * Serialize an EAS 14 SendMail (or SmartReply/SmartForward) command whose opaque data is the
+     * MIME representation of the message, as stored in a temporary file.  The Serializer only
+     * refers to the file, which is streamed when the command is posted, so the message is never
+     * copied into memory; the caller must release the Serializer once it has been sent.
+     * @param context the caller's context
+     * @param mimeFile the file holding the message in RFC822 (MIME) format
+     * @param sendTag the command tag
+     * @param message the message being sent
+     * @return the Serializer holding the command
+     * @throws IOException
      */
-    private static class SendMailEntity extends InputStreamEntity {
-        private final Context mContext;
-        private final FileInputStream mFileStream;
-        private final long mFileLength;
-        private final int mSendTag;
-        private final Message mMessage;
-
-        private static final int[] MODE_TAGS =  new int[] {Tags.COMPOSE_SEND_MAIL,
-            Tags.COMPOSE_SMART_REPLY, Tags.COMPOSE_SMART_FORWARD};
-
-        public SendMailEntity(Context context, FileInputStream instream, long length, int tag,
-                Message message) {
-            super(instream, length);
-            mContext = context;
-            mFileStream = instream;
-            mFileLength = length;
-            mSendTag = tag;
-            mMessage = message;
-        }
-
-        /**
-         * We always return -1 because we don't know the actual length of the POST data (this
-         * causes HttpClient to send the data in "chunked" mode)
-         */
-        @Override
-        public long getContentLength() {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try {
-                // Calculate the overhead for the WBXML data
-                writeTo(baos, false);
-                // Return the actual size that will be sent
-                return baos.size() + mFileLength;
-            } catch (IOException e) {
-                // Just return -1 (unknown)
-            } finally {
-                try {
-                    baos.close();
-                } catch (IOException e) {
-                    // Ignore
+    private static Serializer makeSendMailCommand(Context context, File mimeFile, int sendTag,
+            Message message) throws IOException {
+        Serializer s = Serializer.createStreaming();
+        // Send the appropriate initial tag
+        s.start(sendTag);
+        // The Message-Id for this message (note that we cannot use the messageId stored in
+        // the message, as EAS 14 limits the length to 40 chars and we use 70+)
+        s.data(Tags.COMPOSE_CLIENT_ID, "SendMail-" + System.nanoTime());
+        // We always save sent mail
+        s.tag(Tags.COMPOSE_SAVE_IN_SENT_ITEMS);
+
+        // If we're using smart reply/forward, we need info about the original message
+        if (sendTag != Tags.COMPOSE_SEND_MAIL) {
+            OriginalMessageInfo info = getOriginalMessageInfo(context, message.mId);
+            if (info != null) {
+                s.start(Tags.COMPOSE_SOURCE);
+                // For search results, use the long id (stored in mProtocolSearchInfo); else,
+                // use folder id/item id combo
+                if (message.mProtocolSearchInfo != null) {
+                    s.data(Tags.COMPOSE_LONG_ID, message.mProtocolSearchInfo);
+                } else {
+                    s.data(Tags.COMPOSE_ITEM_ID, info.mItemId);
+                    s.data(Tags.COMPOSE_FOLDER_ID, info.mCollectionId);
                 }
+                s.end();  // Tags.COMPOSE_SOURCE
             }
-            return -1;
         }
 
-        @Override
-        public void writeTo(OutputStream outstream) throws IOException {
-            writeTo(outstream, true);
-        }
-
-        /**
-         * Write the message to the output stream
-         * @param outstream the output stream to write
-         * @param withData whether or not the actual data is to be written; true when sending
-         *   mail; false when calculating size only
-         * @throws IOException
-         */
-        public void writeTo(OutputStream outstream, boolean withData) throws IOException {
-            // Not sure if this is possible; the check is taken from the superclass
-            if (outstream == null) {
-                throw new IllegalArgumentException("Output stream may not be null");
-            }
-
-            // We'll serialize directly into the output stream
-            Serializer s = new Serializer(outstream);
-            // Send the appropriate initial tag
-            s.start(mSendTag);
-            // The Message-Id for this message (note that we cannot use the messageId stored in
-            // the message, as EAS 14 limits the length to 40 chars and we use 70+)
-            s.data(Tags.COMPOSE_CLIENT_ID, "SendMail-" + System.nanoTime());
-            // We always save sent mail
-            s.tag(Tags.COMPOSE_SAVE_IN_SENT_ITEMS);
-
-            // If we're using smart reply/forward, we need info about the original message
-            if (mSendTag != Tags.COMPOSE_SEND_MAIL) {
-                OriginalMessageInfo info = getOriginalMessageInfo(mContext, mMessage.mId);
-                if (info != null) {
-                    s.start(Tags.COMPOSE_SOURCE);
-                    // For search results, use the long id (stored in mProtocolSearchInfo); else,
-                    // use folder id/item id combo
-                    if (mMessage.mProtocolSearchInfo != null) {
-                        s.data(Tags.COMPOSE_LONG_ID, mMessage.mProtocolSearchInfo);
-                    } else {
-                        s.data(Tags.COMPOSE_ITEM_ID, info.mItemId);
-                        s.data(Tags.COMPOSE_FOLDER_ID, info.mCollectionId);
-                    }
-                    s.end();  // Tags.COMPOSE_SOURCE
-                }
-            }
-
-            // Start the MIME tag; this is followed by "opaque" data (byte array)
-            s.start(Tags.COMPOSE_MIME);
-            // Send opaque data from the file stream
-            if (withData) {
-                s.opaque(mFileStream, (int)mFileLength);
-            } else {
-                s.opaqueWithoutData((int)mFileLength);
-            }
-            // And we're done
-            s.end().end().done();
-        }
+        // Start the MIME tag; this is followed by "opaque" data (byte array) from the file
+        s.start(Tags.COMPOSE_MIME);
+        s.opaque(mimeFile);
+        // And we're done
+        s.end().end().done();
+        return s;
     }
 
     private static class SendMailParser extends Parser {
@@ -358,7 +303,8 @@ public class EasOutboxService extends EasSyncService {
             }
 
             // Write the message to the temporary file
-            FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+            OutputStream fileOutputStream =
+                new BufferedOutputStream(new FileOutputStream(tmpFile));
             Rfc822Output.writeTo(mContext, msgId, fileOutputStream, smartSend, true);
             fileOutputStream.close();
 
@@ -367,22 +313,24 @@ public class EasOutboxService extends EasSyncService {
                 Eas.SUPPORTED_PROTOCOL_EX2010_DOUBLE);
 
             while (true) {
-                // Get an input stream to our temporary file and create an entity with it
-                FileInputStream fileStream = new FileInputStream(tmpFile);
-                long fileLength = tmpFile.length();
-
                 // The type of entity depends on whether we're using EAS 14
                 HttpEntity inputEntity;
-                // For EAS 14, we need to save the wbxml tag we're using
+                // Before EAS 14, we post the temporary file as is
+                FileInputStream fileStream = null;
+                // For EAS 14, the file is wrapped in a wbxml command...
+                Serializer sendCommand = null;
+                // ...and we need to save the wbxml tag we're using
                 int modeTag = 0;
                 if (isEas14) {
                     int mode =
                         !smartSend ? MODE_NORMAL : reply ? MODE_SMART_REPLY : MODE_SMART_FORWARD;
-                    modeTag = SendMailEntity.MODE_TAGS[mode];
-                    inputEntity =
-                        new SendMailEntity(mContext, fileStream, fileLength, modeTag, msg);
+                    modeTag = MODE_TAGS[mode];
+                    sendCommand = makeSendMailCommand(mContext, tmpFile, modeTag, msg);
+                    // The file is streamed, but we know the size of the command up front
+                    inputEntity = sendCommand.toHttpEntity(false);
                 } else {
-                    inputEntity = new InputStreamEntity(fileStream, fileLength);
+                    fileStream = new FileInputStream(tmpFile);
+                    inputEntity = new InputStreamEntity(fileStream, tmpFile.length());
                 }
                 // Create the appropriate command and POST it to the server
                 String cmd = "SendMail";
@@ -402,9 +350,18 @@ public class EasOutboxService extends EasSyncService {
                 userLog("Send cmd: " + cmd);
 
                 // Finally, post SendMail to the server
-                EasResponse resp = sendHttpClientPost(cmd, inputEntity, SEND_MAIL_TIMEOUT);
+                EasResponse resp;
+                try {
+                    resp = sendHttpClientPost(cmd, inputEntity, SEND_MAIL_TIMEOUT);
+                } finally {
+                    if (fileStream != null) {
+                        fileStream.close();
+                    }
+                    if (sendCommand != null) {
+                        sendCommand.release();
+                    }
+                }
                 try {
-                    fileStream.close();
                     int code = resp.getStatus();
                     if (code == HttpStatus.SC_OK) {
                         // HTTP OK before EAS 14 is a thumbs up; in EAS 14, we've got to parse
@@ -97,7 +97,6 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.Thread.State;
 import java.net.URI;
 import java.security.cert.CertificateException;
 
@@ -220,8 +219,10 @@ public class EasSyncService extends AbstractSyncService {
     @Override
     public boolean alarm() {
         HttpPost post;
-        if (mThread == null) return true;
-        String threadName = mThread.getName();
+        // The scheduler clears mThread when the service finishes, so read it once
+        Thread thread = mThread;
+        if (thread == null) return true;
+        String threadName = thread.getName();
 
         // Synchronize here so that we are guaranteed to have valid mPendingPost and mPostLock
         // executePostWithTimeout (which executes the HttpPost) also uses this lock
@@ -257,17 +258,18 @@ public class EasSyncService extends AbstractSyncService {
         } catch (InterruptedException e) {
         }
 
-        State s = mThread.getState();
-        if (Eas.USER_LOG) {
-            userLog(threadName + ": State = " + s.name());
-        }
-
         synchronized (getSynchronizer()) {
-            // If the thread is still hanging around and the same post is pending, let's try to
+            // The service is done once the scheduler has cleared mThread; a pooled thread may be
+            // running another service by now, so it mustn't be interrupted then.
+            boolean running = (mThread == thread);
+            if (Eas.USER_LOG) {
+                userLog(threadName + (running ? ": Still running" : ": Finished"));
+            }
+            // If the service is still running and the same post is pending, let's try to
             // stop the thread with an interrupt.
-            if ((s != State.TERMINATED) && (mPendingPost != null) && (mPendingPost == post)) {
+            if (running && (mPendingPost != null) && (mPendingPost == post)) {
                 mStop = true;
-                mThread.interrupt();
+                thread.interrupt();
                 userLog("Interrupting...");
                 // Let the caller know we had to interrupt the thread
                 return false;
@@ -1647,7 +1649,8 @@ public class EasSyncService extends AbstractSyncService {
                 continue;
             }
 
-            Serializer s = new Serializer();
+            // Large upsyncs are serialized into pooled chunks instead of one growing array
+            Serializer s = Serializer.createStreaming();
 
             String className = target.getCollectionName();
             String syncKey = target.getSyncKey();
@@ -1685,8 +1688,12 @@ public class EasSyncService extends AbstractSyncService {
             }
 
             s.end().end().end().done();
-            EasResponse resp = sendHttpClientPost("Sync", new ByteArrayEntity(s.toByteArray()),
-                    timeout);
+            EasResponse resp;
+            try {
+                resp = sendHttpClientPost("Sync", s.toHttpEntity(false), timeout);
+            } finally {
+                s.release();
+            }
             try {
                 int code = resp.getStatus();
                 if (code == HttpStatus.SC_OK) {
@@ -85,7 +85,9 @@ import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -182,6 +184,9 @@ public class ExchangeService extends Service implements Runnable {
 
     private static final int MAX_CLIENT_CONNECTION_MANAGER_SHUTDOWNS = 1;
 
+    // The number of worker threads that run mailbox syncs (see SyncScheduler)
+    private static final int MAX_SYNC_THREADS = 4;
+
     // We synchronize on this for all actions affecting the service and error maps
     private static final Object sSyncLock = new Object();
     // All threads can use this lock to wait for connectivity
@@ -194,6 +199,8 @@ public class ExchangeService extends Service implements Runnable {
     // Keeps track of services whose last sync ended with an error (by mailbox id)
     /*package*/ ConcurrentHashMap<Long, SyncError> mSyncErrorMap =
         new ConcurrentHashMap<Long, SyncError>();
+    // Runs the services in mServiceMap; created when the first service is started
+    private SyncScheduler mSyncScheduler;
     // Keeps track of which services require a wake lock (by mailbox id)
     private final HashMap<Long, Boolean> mWakeLocks = new HashMap<Long, Boolean>();
     // Keeps track of PendingIntents for mailbox alarms (by mailbox id)
@@ -1257,6 +1264,16 @@ public class ExchangeService extends Service implements Runnable {
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (sSyncLock) {
+            writer.println("Services: " + mServiceMap.size());
+            if (mSyncScheduler != null) {
+                mSyncScheduler.dump(writer);
+            }
+        }
+    }
+
     static public ConnPerRoute sConnPerRoute = new ConnPerRoute() {
         @Override
         public int getMaxForRoute(HttpRoute route) {
@@ -1320,6 +1337,7 @@ public class ExchangeService extends Service implements Runnable {
                         AbstractSyncService svc = mServiceMap.get(mid);
                         if (svc != null) {
                             svc.stop();
+                            cancelQueuedService(svc);
                             Thread t = svc.mThread;
                             if (t != null) {
                                 t.interrupt();
@@ -1638,8 +1656,41 @@ public class ExchangeService extends Service implements Runnable {
     }
 
     /**
-     * Starts a service thread and enters it into the service map
-     * This is the point of instantiation of all sync threads
+     * Called by the SyncScheduler when a service's run() method returns.  Services normally
+     * release their mailbox through done(); this cleans up after those which didn't (e.g. because
+     * their mailbox or account disappeared before they got going)
+     */
+    private final SyncScheduler.Callback mSchedulerCallback = new SyncScheduler.Callback() {
+        @Override
+        public void onServiceFinished(AbstractSyncService svc) {
+            synchronized (sSyncLock) {
+                long mailboxId = svc.mMailboxId;
+                if (mServiceMap.get(mailboxId) == svc) {
+                    log("Service finished, mailbox released: " + svc.mMailboxName);
+                    releaseMailbox(mailboxId);
+                    setMailboxSyncStatus(mailboxId, EmailContent.SYNC_STATUS_NONE);
+                    kick("service finished");
+                }
+            }
+        }
+    };
+
+    /**
+     * Remove a service that hasn't started running yet from the SyncScheduler's queue
+     * NOTE: This method MUST be called while holding sSyncLock!
+     *
+     * @param svc the service
+     * @return whether the service was removed (and so will never run)
+     */
+    private boolean cancelQueuedService(AbstractSyncService svc) {
+        return mSyncScheduler != null && mSyncScheduler.cancel(svc);
+    }
+
+    /**
+     * Starts a service and enters it into the service map
+     * This is the point of instantiation of all syncs.  The account mailbox (which pings for as
+     * long as the account is pushing) gets a thread of its own; other services are queued to run
+     * on the SyncScheduler's worker threads.
      * @param service the service to start
      * @param m the Mailbox on which the service will operate
      */
@@ -1648,9 +1699,18 @@ public class ExchangeService extends Service implements Runnable {
             Mailbox mailbox = service.mMailbox;
             String mailboxName = mailbox.mDisplayName;
             String accountName = service.mAccount.mDisplayName;
-            Thread thread = new Thread(service, mailboxName + "[" + accountName + "]");
-            log("Starting thread for " + mailboxName + " in account " + accountName);
-            thread.start();
+            String threadName = mailboxName + "[" + accountName + "]";
+            if (mSyncScheduler == null) {
+                mSyncScheduler = new SyncScheduler(MAX_SYNC_THREADS, mSchedulerCallback);
+            }
+            if (mailbox.mType == Mailbox.TYPE_EAS_ACCOUNT_MAILBOX) {
+                log("Starting thread for " + mailboxName + " in account " + accountName);
+                mSyncScheduler.startDedicated(service, threadName);
+            } else {
+                log("Queueing sync for " + mailboxName + " in account " + accountName);
+                mSyncScheduler.schedule(service, threadName,
+                        SyncScheduler.getPriority(mailbox.mType, service.mSyncReason));
+            }
             mServiceMap.put(mailbox.mId, service);
             runAwake(mailbox.mId);
             if (mailbox.mServerId != null && mailbox.mType != Mailbox.TYPE_EAS_ACCOUNT_MAILBOX) {
@@ -1743,8 +1803,9 @@ public class ExchangeService extends Service implements Runnable {
                 if (svc != null) {
                     log("Stopping " + svc.mAccount.mDisplayName + '/' + svc.mMailbox.mDisplayName);
                     svc.stop();
-                    if (svc.mThread != null) {
-                        svc.mThread.interrupt();
+                    Thread thread = svc.mThread;
+                    if (thread != null) {
+                        thread.interrupt();
                     }
                 }
                 releaseWakeLock(mailboxId);
@@ -2058,8 +2119,12 @@ public class ExchangeService extends Service implements Runnable {
             if (INSTANCE != null) {
                 log("ExchangeService shutting down...");
 
-                // Stop our running syncs
+                // Stop our running syncs, and drop those that haven't started
                 stopServiceThreads();
+                if (mSyncScheduler != null) {
+                    mSyncScheduler.shutdown();
+                    mSyncScheduler = null;
+                }
 
                 // Stop receivers
                 if (mConnectivityReceiver != null) {
@@ -2249,11 +2314,17 @@ public class ExchangeService extends Service implements Runnable {
             // If so, stop them or remove them from the map
             for (Long mailboxId: deletedMailboxes) {
                 AbstractSyncService svc = mServiceMap.get(mailboxId);
-                if (svc == null || svc.mThread == null) {
+                Thread thread = svc == null ? null : svc.mThread;
+                if (thread == null) {
+                    // Not running; if it's still queued, make sure it never starts
+                    if (svc != null) {
+                        svc.stop();
+                        cancelQueuedService(svc);
+                    }
                     releaseMailbox(mailboxId);
                     continue;
                 } else {
-                    boolean alive = svc.mThread.isAlive();
+                    boolean alive = thread.isAlive();
                     log("Deleted mailbox: " + svc.mMailboxName);
                     if (alive) {
                         stopManualSync(mailboxId);
@@ -2517,7 +2588,17 @@ public class ExchangeService extends Service implements Runnable {
             if (svc != null) {
                 log("Stopping sync for " + svc.mMailboxName);
                 svc.stop();
-                svc.mThread.interrupt();
+                if (exchangeService.cancelQueuedService(svc)) {
+                    // It never started, so it won't call done()
+                    exchangeService.releaseMailbox(mailboxId);
+                    exchangeService.setMailboxSyncStatus(mailboxId,
+                            EmailContent.SYNC_STATUS_NONE);
+                    return;
+                }
+                Thread thread = svc.mThread;
+                if (thread != null) {
+                    thread.interrupt();
+                }
                 exchangeService.releaseWakeLock(mailboxId);
             }
         }
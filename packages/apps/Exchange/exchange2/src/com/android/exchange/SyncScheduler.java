@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange;
+
+import com.android.emailcommon.provider.Mailbox;
+
+import java.io.PrintWriter;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the sync services started by ExchangeService.
+ *
+ * Mailbox syncs (and Outbox sends) run to completion and then exit, so rather than giving each of
+ * them a thread of its own, they are queued and run by a small, bounded pool of worker threads.
+ * The queue is ordered by priority class (Outbox first, then syncs the user asked for, then the
+ * Inbox, then everything else) and is first-in, first-out within a class.
+ *
+ * The account mailbox service, which holds a Ping open for as long as the account is pushing,
+ * would tie up a worker indefinitely; it still gets a dedicated thread.
+ *
+ * The scheduler keeps a few statistics (queue depth, the time from a sync being requested to it
+ * starting, and the number of threads in use), which ExchangeService includes in its dump.
+ */
+public class SyncScheduler {
+    private static final String TAG = "SyncScheduler";
+
+    // Priority classes; lower values run first
+    public static final int PRIORITY_OUTBOX = 0;
+    public static final int PRIORITY_USER = 1;
+    public static final int PRIORITY_INBOX = 2;
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    // How long an idle worker thread is kept around
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Told when a service's run() method has returned, whether or not the service reported its
+     * result to ExchangeService.
+     */
+    public interface Callback {
+        public void onServiceFinished(AbstractSyncService svc);
+    }
+
+    private final Callback mCallback;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Statistics
+    private final AtomicInteger mDedicatedThreads = new AtomicInteger();
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private volatile int mPeakQueueDepth;
+    private volatile int mPeakThreads;
+    private final AtomicLong mStartedCount = new AtomicLong();
+    private final AtomicLong mTotalWaitMs = new AtomicLong();
+    private volatile long mMaxWaitMs;
+
+    /**
+     * A queued sync; ordered by priority class, then by the order in which syncs were queued
+     */
+    private class SyncTask implements Runnable, Comparable<SyncTask> {
+        final AbstractSyncService mService;
+        final String mName;
+        final int mPriority;
+        final long mSequenceNumber;
+        final long mQueuedTime;
+
+        SyncTask(AbstractSyncService service, String name, int priority) {
+            mService = service;
+            mName = name;
+            mPriority = priority;
+            mSequenceNumber = mSequence.getAndIncrement();
+            mQueuedTime = System.currentTimeMillis();
+        }
+
+        @Override
+        public int compareTo(SyncTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            if (mSequenceNumber != other.mSequenceNumber) {
+                return mSequenceNumber < other.mSequenceNumber ? -1 : 1;
+            }
+            return 0;
+        }
+
+        @Override
+        public void run() {
+            recordWait(System.currentTimeMillis() - mQueuedTime);
+            mRunning.incrementAndGet();
+            try {
+                runService(mService, mName);
+            } finally {
+                mRunning.decrementAndGet();
+            }
+        }
+    }
+
+    public SyncScheduler(int maxThreads, Callback callback) {
+        mCallback = callback;
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, WORKER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "SyncWorker #" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return the priority class of a sync
+     * @param mailboxType the type of the mailbox to be synced
+     * @param reason the reason for the sync (one of ExchangeService.SYNC_*)
+     * @return one of the PRIORITY_* constants
+     */
+    public static int getPriority(int mailboxType, int reason) {
+        if (mailboxType == Mailbox.TYPE_OUTBOX) {
+            return PRIORITY_OUTBOX;
+        } else if (reason == ExchangeService.SYNC_UI_REQUEST ||
+                reason == ExchangeService.SYNC_SERVICE_PART_REQUEST) {
+            return PRIORITY_USER;
+        } else if (mailboxType == Mailbox.TYPE_INBOX) {
+            return PRIORITY_INBOX;
+        }
+        return PRIORITY_BACKGROUND;
+    }
+
+    /**
+     * Queue a service to be run by one of the worker threads
+     * @param service the service
+     * @param name the name the worker thread takes while running the service
+     * @param priority the priority class of the service (one of the PRIORITY_* constants)
+     */
+    public void schedule(AbstractSyncService service, String name, int priority) {
+        mExecutor.execute(new SyncTask(service, name, priority));
+        int depth = mExecutor.getQueue().size();
+        if (depth > mPeakQueueDepth) {
+            mPeakQueueDepth = depth;
+        }
+        updatePeakThreads();
+    }
+
+    /**
+     * Start a service on a thread of its own, for services that don't finish until stopped
+     * @param service the service
+     * @param name the name of the thread
+     */
+    public void startDedicated(final AbstractSyncService service, final String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runService(service, name);
+                } finally {
+                    mDedicatedThreads.decrementAndGet();
+                }
+            }
+        }, name);
+        // Set here (the service sets it again) so that the service can be stopped before it
+        // gets going
+        service.mThread = thread;
+        mDedicatedThreads.incrementAndGet();
+        thread.start();
+        updatePeakThreads();
+    }
+
+    /**
+     * Remove a service from the queue, if it hasn't started yet
+     * @param service the service
+     * @return true if the service was removed; false if it has started (or was never queued)
+     */
+    public boolean cancel(AbstractSyncService service) {
+        for (Runnable r : mExecutor.getQueue()) {
+            SyncTask task = (SyncTask)r;
+            if (task.mService == service) {
+                return mExecutor.remove(task);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop all queued services and interrupt the running ones; the scheduler can't be used after
+     * this is called.  Dedicated threads aren't affected; they must be stopped through their
+     * services.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void runService(AbstractSyncService service, String name) {
+        Thread thread = Thread.currentThread();
+        String oldName = thread.getName();
+        thread.setName(name);
+        synchronized (service.getSynchronizer()) {
+            service.mThread = thread;
+        }
+        try {
+            service.run();
+        } finally {
+            // The thread may go on to run other services; make sure this one can't interrupt it
+            synchronized (service.getSynchronizer()) {
+                service.mThread = null;
+            }
+            Thread.interrupted();
+            thread.setName(oldName);
+            mCallback.onServiceFinished(service);
+        }
+    }
+
+    private void recordWait(long waitMs) {
+        mStartedCount.incrementAndGet();
+        mTotalWaitMs.addAndGet(waitMs);
+        if (waitMs > mMaxWaitMs) {
+            mMaxWaitMs = waitMs;
+        }
+    }
+
+    private void updatePeakThreads() {
+        int threads = getThreadCount();
+        if (threads > mPeakThreads) {
+            mPeakThreads = threads;
+        }
+    }
+
+    /**
+     * @return the number of services waiting for a worker thread
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * @return the number of threads running services, dedicated threads included
+     */
+    public int getThreadCount() {
+        return mExecutor.getPoolSize() + mDedicatedThreads.get();
+    }
+
+    /**
+     * @return the number of services run by the workers so far
+     */
+    public long getStartedCount() {
+        return mStartedCount.get();
+    }
+
+    /**
+     * @return the mean time, in ms, between a service being queued and it starting to run
+     */
+    public long getAverageWaitMs() {
+        long count = mStartedCount.get();
+        return (count == 0) ? 0 : mTotalWaitMs.get() / count;
+    }
+
+    /**
+     * @return the longest time, in ms, between a service being queued and it starting to run
+     */
+    public long getMaxWaitMs() {
+        return mMaxWaitMs;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println(TAG + ":");
+        writer.println("  Queued: " + getQueueDepth() + " (peak " + mPeakQueueDepth + ")");
+        writer.println("  Running on workers: " + mRunning.get() + " of " +
+                mExecutor.getMaximumPoolSize());
+        writer.println("  Threads: " + getThreadCount() + " (" + mDedicatedThreads.get() +
+                " dedicated, peak " + mPeakThreads + ")");
+        writer.println("  Started: " + getStartedCount() + ", wait to start avg " +
+                getAverageWaitMs() + "ms, max " + getMaxWaitMs() + "ms");
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * An OutputStream that keeps what is written to it in a list of fixed size chunks taken from a
+ * process-wide pool, rather than in one array that is copied every time it grows.  Files can be
+ * appended by reference; their contents are only read when the stream is written out, so that
+ * large MIME bodies and attachments never have to be held in memory.
+ *
+ * Call {@link #release} once the contents have been sent to give the chunks back to the pool.
+ */
+public class ChunkedByteOutputStream extends OutputStream {
+    /*package*/ static final int CHUNK_SIZE = 8*1024;
+    // Enough for the typical Sync or SendMail command; anything bigger is left to the GC
+    private static final int MAX_POOLED_CHUNKS = 16;
+    private static final ArrayList<byte[]> sPool = new ArrayList<byte[]>(MAX_POOLED_CHUNKS);
+
+    /**
+     * A piece of the output: either (part of) a pooled chunk or a whole file.
+     */
+    private static class Segment {
+        final byte[] mChunk;
+        int mCount;
+        final File mFile;
+        final long mFileLength;
+
+        Segment(byte[] chunk) {
+            mChunk = chunk;
+            mFile = null;
+            mFileLength = 0;
+        }
+
+        Segment(File file, long length) {
+            mChunk = null;
+            mFile = file;
+            mFileLength = length;
+        }
+    }
+
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    // The chunk being written to; null if nothing was written yet or a file was appended last
+    private Segment mCurrent;
+    private long mSize;
+    private boolean mReleased;
+
+    /*package*/ static byte[] obtainChunk() {
+        synchronized (sPool) {
+            int size = sPool.size();
+            if (size > 0) {
+                return sPool.remove(size - 1);
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    /*package*/ static void recycleChunk(byte[] chunk) {
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED_CHUNKS) {
+                sPool.add(chunk);
+            }
+        }
+    }
+
+    /*package*/ static int getPooledChunkCount() {
+        synchronized (sPool) {
+            return sPool.size();
+        }
+    }
+
+    private void checkNotReleased() {
+        if (mReleased) {
+            throw new IllegalStateException("Stream has been released");
+        }
+    }
+
+    private Segment nextChunk() {
+        mCurrent = new Segment(obtainChunk());
+        mSegments.add(mCurrent);
+        return mCurrent;
+    }
+
+    @Override
+    public void write(int b) {
+        checkNotReleased();
+        Segment segment = mCurrent;
+        if (segment == null || segment.mCount == CHUNK_SIZE) {
+            segment = nextChunk();
+        }
+        segment.mChunk[segment.mCount++] = (byte)b;
+        mSize++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        checkNotReleased();
+        while (len > 0) {
+            Segment segment = mCurrent;
+            if (segment == null || segment.mCount == CHUNK_SIZE) {
+                segment = nextChunk();
+            }
+            int count = Math.min(len, CHUNK_SIZE - segment.mCount);
+            System.arraycopy(b, off, segment.mChunk, segment.mCount, count);
+            segment.mCount += count;
+            off += count;
+            len -= count;
+            mSize += count;
+        }
+    }
+
+    /**
+     * Append the contents of a file without reading it; the file must not change until this
+     * stream has been written out.
+     * @param file the file to append
+     * @param length the number of bytes of the file to send
+     */
+    public void writeFile(File file, long length) {
+        checkNotReleased();
+        mSegments.add(new Segment(file, length));
+        mCurrent = null;
+        mSize += length;
+    }
+
+    /**
+     * @return the total number of bytes in this stream, including those of appended files
+     */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Write the contents of this stream, reading appended files as we go.  This can be called
+     * any number of times until the stream is released.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        checkNotReleased();
+        byte[] buffer = null;
+        try {
+            for (Segment segment: mSegments) {
+                if (segment.mChunk != null) {
+                    out.write(segment.mChunk, 0, segment.mCount);
+                    continue;
+                }
+                if (buffer == null) {
+                    buffer = obtainChunk();
+                }
+                InputStream in = new FileInputStream(segment.mFile);
+                try {
+                    long remaining = segment.mFileLength;
+                    while (remaining > 0) {
+                        int bytesRead = in.read(buffer, 0, (int)Math.min(CHUNK_SIZE, remaining));
+                        if (bytesRead == -1) {
+                            throw new IOException("File shorter than expected: " + segment.mFile);
+                        }
+                        out.write(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            if (buffer != null) {
+                recycleChunk(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return a stream over the contents; it must be consumed before this stream is released
+     */
+    public InputStream getInputStream() throws IOException {
+        checkNotReleased();
+        ArrayList<InputStream> streams = new ArrayList<InputStream>(mSegments.size());
+        for (Segment segment: mSegments) {
+            if (segment.mChunk != null) {
+                streams.add(new ByteArrayInputStream(segment.mChunk, 0, segment.mCount));
+            } else {
+                streams.add(new BoundedFileInputStream(segment.mFile, segment.mFileLength));
+            }
+        }
+        Enumeration<InputStream> e = Collections.enumeration(streams);
+        return new SequenceInputStream(e);
+    }
+
+    /**
+     * @return a copy of the contents; only meant for small output (and for tests)
+     */
+    public byte[] toByteArray() throws IOException {
+        if (mSize > Integer.MAX_VALUE) {
+            throw new IOException("Output too large: " + mSize);
+        }
+        ByteArrayOutputStreamWithoutCopy out = new ByteArrayOutputStreamWithoutCopy((int)mSize);
+        writeTo(out);
+        return out.getBuffer();
+    }
+
+    /**
+     * @param chunked whether to send the entity with chunked transfer encoding rather than with
+     *   the size we've computed as the Content-Length
+     * @return an HttpEntity that streams the contents of this stream when it is posted
+     */
+    public HttpEntity toHttpEntity(boolean chunked) {
+        ChunkedEntity entity = new ChunkedEntity(this);
+        entity.setChunked(chunked);
+        return entity;
+    }
+
+    /**
+     * Give our chunks back to the pool; the stream can't be used afterwards.
+     */
+    public void release() {
+        if (mReleased) return;
+        mReleased = true;
+        for (Segment segment: mSegments) {
+            if (segment.mChunk != null) {
+                recycleChunk(segment.mChunk);
+            }
+        }
+        mSegments.clear();
+        mCurrent = null;
+    }
+
+    private static class ChunkedEntity extends AbstractHttpEntity {
+        private final ChunkedByteOutputStream mStream;
+
+        ChunkedEntity(ChunkedByteOutputStream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return isChunked() ? -1 : mStream.size();
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return mStream.getInputStream();
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            if (outstream == null) {
+                throw new IllegalArgumentException("Output stream may not be null");
+            }
+            mStream.writeTo(outstream);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * Fills an array of exactly the expected size, so toByteArray() needn't copy it again.
+     */
+    private static class ByteArrayOutputStreamWithoutCopy extends OutputStream {
+        private final byte[] mBuffer;
+        private int mCount;
+
+        ByteArrayOutputStreamWithoutCopy(int size) {
+            mBuffer = new byte[size];
+        }
+
+        @Override
+        public void write(int b) {
+            mBuffer[mCount++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+
+        byte[] getBuffer() {
+            return mBuffer;
+        }
+    }
+
+    /**
+     * Reads at most the given number of bytes of a file, opening it on first use.
+     */
+    private static class BoundedFileInputStream extends InputStream {
+        private final File mFile;
+        private long mRemaining;
+        private InputStream mIn;
+
+        BoundedFileInputStream(File file, long length) {
+            mFile = file;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                close();
+                return -1;
+            }
+            if (mIn == null) {
+                mIn = new FileInputStream(mFile);
+            }
+            int bytesRead = mIn.read(b, off, (int)Math.min(len, mRemaining));
+            if (bytesRead == -1) {
+                throw new IOException("File shorter than expected: " + mFile);
+            }
+            mRemaining -= bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mIn != null) {
+                mIn.close();
+                mIn = null;
+            }
+        }
+    }
+}
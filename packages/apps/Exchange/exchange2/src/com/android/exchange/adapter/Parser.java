@@ -30,12 +30,17 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 
 /**
  * Extremely fast and lightweight WBXML parser, implementing only the subset of WBXML that
  * EAS uses (as defined in the EAS specification)
  *
+ * The input is read through a buffer that is shared by all the parsers switched to on the same
+ * stream, and inline strings are read into a reusable value buffer. They are only decoded into a
+ * String when asked for through {@link #getValue()}, and short ASCII values (status codes, flags,
+ * class names...) are then interned so that the same String is returned every time. Callers that
+ * only need to look at the bytes can use {@link #readValue()} to avoid decoding altogether. Values
+ * of skipped tags are never decoded.
  */
 public abstract class Parser {
     private static final boolean LOG_VERBOSE = false;
@@ -57,10 +62,33 @@ public abstract class Parser {
     // Where tags start in a page
     private static final int TAG_BASE = 5;
 
-    private ArrayList<Integer> captureArray;
+    // How a TEXT or OPAQUE value found by getNext should be handled
+    private static final int VALUE_STRING = 0;
+    private static final int VALUE_INT = 1;
+    private static final int VALUE_RAW = 2;
+    private static final int VALUE_SKIP = 3;
+
+    // The size of the input buffer
+    private static final int INPUT_BUFFER_SIZE = 4096;
+    // The initial size of the value buffer; it grows as needed
+    private static final int VALUE_BUFFER_SIZE = 256;
+
+    // Values up to this many bytes are looked up in the intern table
+    private static final int MAX_INTERNED_LENGTH = 32;
+    private static final int INTERN_TABLE_SIZE = 512;
+
+    // Recently decoded short ASCII values, indexed by a hash of their bytes.  The table is shared
+    // by all parsers; racing writers can only cause a cache miss, since Strings are immutable.
+    private static final String[] sInternTable = new String[INTERN_TABLE_SIZE];
+
+    private ByteArrayOutputStream captureStream;
 
     // The input stream for this parser
-    private InputStream in;
+    private ParserInputStream in;
+
+    // The value of the last TEXT or OPAQUE token, as bytes (valueBuffer[0..valueLength))
+    private byte[] valueBuffer = new byte[VALUE_BUFFER_SIZE];
+    private int valueLength;
 
     // The current tag depth
     private int depth;
@@ -111,6 +139,84 @@ public abstract class Parser {
     // The value read, as bytes
     public byte[] bytes;
 
+    /**
+     * A buffered stream shared by all the parsers reading the same input.  It is also what
+     * {@link #getInput()} returns, so that callers reading the raw stream (e.g. attachment data)
+     * get the bytes that are already buffered first.
+     */
+    private static class ParserInputStream extends InputStream {
+        private final InputStream mIn;
+        private final byte[] mBuffer = new byte[INPUT_BUFFER_SIZE];
+        private int mPosition;
+        private int mLimit;
+
+        ParserInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        /**
+         * Refills the buffer once it has been consumed.
+         * @return false at end of stream
+         */
+        private boolean fill() throws IOException {
+            final int count = mIn.read(mBuffer, 0, mBuffer.length);
+            mPosition = 0;
+            mLimit = count > 0 ? count : 0;
+            return count > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition >= mLimit && !fill()) {
+                return EOF_BYTE;
+            }
+            return mBuffer[mPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            final int buffered = mLimit - mPosition;
+            if (buffered <= 0) {
+                // Large reads bypass the buffer entirely
+                if (length >= mBuffer.length) {
+                    return mIn.read(b, offset, length);
+                }
+                if (!fill()) {
+                    return EOF_BYTE;
+                }
+                return read(b, offset, length);
+            }
+            final int count = Math.min(buffered, length);
+            System.arraycopy(mBuffer, mPosition, b, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final int buffered = mLimit - mPosition;
+            if (buffered > 0) {
+                final int count = (int)Math.min(buffered, n);
+                mPosition += count;
+                return count;
+            }
+            return mIn.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (mLimit - mPosition) + mIn.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
     /**
      * Generated when the parser comes to EOF prematurely during parsing (i.e. in error)
      */
@@ -205,7 +311,7 @@ public abstract class Parser {
      */
     public void captureOn() {
         capture = true;
-        captureArray = new ArrayList<Integer>();
+        captureStream = new ByteArrayOutputStream();
     }
 
     /**
@@ -214,7 +320,18 @@ public abstract class Parser {
     public void captureOff(Context context, String file) {
         try {
             FileOutputStream out = context.openFileOutput(file, Context.MODE_WORLD_WRITEABLE);
-            out.write(captureArray.toString().getBytes());
+            // Written as a list of ints, which is what MockParserStream replays
+            final byte[] captured = captureStream.toByteArray();
+            final StringBuilder sb = new StringBuilder(captured.length * 4 + 2);
+            sb.append('[');
+            for (int i = 0; i < captured.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(captured[i] & 0xFF);
+            }
+            sb.append(']');
+            out.write(sb.toString().getBytes());
             out.close();
         } catch (FileNotFoundException e) {
             // This is debug code; exceptions aren't interesting.
@@ -243,8 +360,8 @@ public abstract class Parser {
      * @throws IOException
      */
     public String getValue() throws IOException {
-        // The false argument tells getNext to return the value as a String
-        getNext(false);
+        // Tell getNext to return the value as a String
+        getNext(VALUE_STRING);
         // This means there was no value given, just <Foo/>; we'll return empty string for now
         if (type == END) {
             if (logging) {
@@ -255,7 +372,7 @@ public abstract class Parser {
         // Save the value
         String val = text;
         // Read the next token; it had better be the end of the current tag
-        getNext(false);
+        getNext(VALUE_SKIP);
         // If not, throw an exception
         if (type != END) {
             throw new IOException("No END found!");
@@ -263,6 +380,52 @@ public abstract class Parser {
         return val;
     }
 
+    /**
+     * Read the value of the current tag without decoding or copying it.  The value is found in
+     * the first bytes of {@link #getValueBuffer()}, and is only valid until the next call on this
+     * parser.  This is the allocation-free version of {@link #getValue()}, for callers that only
+     * need to compare or copy the bytes.
+     *
+     * @return the length of the value in bytes, or 0 if the tag has no value
+     * @throws IOException
+     */
+    public int readValue() throws IOException {
+        getNext(VALUE_RAW);
+        if (type == END) {
+            valueLength = 0;
+            return 0;
+        }
+        getNext(VALUE_SKIP);
+        if (type != END) {
+            throw new IOException("No END found!");
+        }
+        return valueLength;
+    }
+
+    /**
+     * @return the buffer holding the value read by the last call to {@link #readValue()}
+     */
+    public byte[] getValueBuffer() {
+        return valueBuffer;
+    }
+
+    /**
+     * @return whether the value read by the last call to {@link #readValue()} is the given
+     * ASCII string
+     */
+    public boolean valueEquals(String ascii) {
+        final int length = ascii.length();
+        if (length != valueLength) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (valueBuffer[i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Return the value of the current tag, as an integer.  Note that the value of this call is
      * indeterminate if the value of this tag is not an immediate string parsed as an integer
@@ -271,15 +434,15 @@ public abstract class Parser {
      * @throws IOException
      */
    public int getValueInt() throws IOException {
-        // The true argument to getNext indicates the desire for an integer return value
-        getNext(true);
+        // Tell getNext to return the value as an integer
+        getNext(VALUE_INT);
         if (type == END) {
             return 0;
         }
         // Save the value
         int val = num;
         // Read the next token; it had better be the end of the current tag
-        getNext(false);
+        getNext(VALUE_SKIP);
         // If not, throw an exception
         if (type != END) {
             throw new IOException("No END found!");
@@ -301,7 +464,7 @@ public abstract class Parser {
     public int nextTag(int endingTag) throws IOException {
         // Lose the page information
         endTag = endingTag &= Tags.PAGE_MASK;
-        while (getNext(false) != DONE) {
+        while (getNext(VALUE_SKIP) != DONE) {
             // If we're a start, set tag to include the page and return it
             if (type == START) {
                 tag = page | startTag;
@@ -330,7 +493,7 @@ public abstract class Parser {
     public void skipTag() throws IOException {
         int thisTag = startTag;
         // Just loop until we hit the end of the current tag
-        while (getNext(false) != DONE) {
+        while (getNext(VALUE_SKIP) != DONE) {
             if (type == END && startTag == thisTag) {
                 return;
             }
@@ -347,7 +510,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public int nextToken() throws IOException {
-        getNext(false);
+        getNext(VALUE_STRING);
         return type;
     }
 
@@ -360,7 +523,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public void setInput(InputStream in, boolean initialize) throws IOException {
-        this.in = in;
+        this.in = wrapInput(in);
         if ((in != null) && initialize) {
             // If we fail on the very first byte, report an empty stream
             try {
@@ -377,7 +540,7 @@ public abstract class Parser {
 
     @VisibleForTesting
     void resetInput(InputStream in) {
-        this.in = in;
+        this.in = wrapInput(in);
         try {
             // Read leading zero
             read();
@@ -385,6 +548,17 @@ public abstract class Parser {
         }
     }
 
+    /**
+     * Wraps a stream in a ParserInputStream, unless it already is one (i.e. it is shared with
+     * another parser)
+     */
+    private static ParserInputStream wrapInput(InputStream in) {
+        if (in == null || in instanceof ParserInputStream) {
+            return (ParserInputStream)in;
+        }
+        return new ParserInputStream(in);
+    }
+
     void log(String str) {
         int cr = str.indexOf('\n');
         if (cr > 0) {
@@ -432,11 +606,12 @@ public abstract class Parser {
      * that has been retrieved - START (start of tag), END (end of tag), DONE (end of stream), or
      * TEXT (the value of a tag)
      *
-     * @param asInt whether a TEXT value should be parsed as a String or an int.
+     * @param valueMode how a TEXT or OPAQUE value should be handled: decoded as a String,
+     * parsed as an int, left as bytes in the value buffer, or skipped
      * @return the type of data retrieved
      * @throws IOException
      */
-    private final int getNext(boolean asInt) throws IOException {
+    private final int getNext(int valueMode) throws IOException {
         if (noContent) {
             nameArray[depth--] = null;
             type = END;
@@ -477,23 +652,33 @@ public abstract class Parser {
             case Wbxml.STR_I:
                 // Inline string
                 type = TEXT;
-                if (asInt) {
+                if (valueMode == VALUE_INT) {
                     num = readInlineInt();
                 } else {
-                    text = readInlineString();
+                    readInlineString();
+                    if (valueMode == VALUE_STRING) {
+                        text = decodeValue();
+                    }
                 }
                 if (logging) {
                     name = tagTable[startTag - TAG_BASE];
-                    log(name + ": " + (asInt ? Integer.toString(num) : text));
+                    log(name + ": " + (valueMode == VALUE_INT ? Integer.toString(num)
+                            : decodeValue()));
                 }
                 break;
 
             case Wbxml.OPAQUE:
                 // Integer length + opaque data
                 int length = readInt();
-                bytes = new byte[length];
-                for (int i = 0; i < length; i++) {
-                    bytes[i] = (byte)readByte();
+                if (valueMode == VALUE_SKIP) {
+                    skipBytes(length);
+                } else if (valueMode == VALUE_RAW) {
+                    ensureValueCapacity(length);
+                    readBytes(valueBuffer, length);
+                    valueLength = length;
+                } else {
+                    bytes = new byte[length];
+                    readBytes(bytes, length);
                 }
                 if (logging) {
                     name = tagTable[startTag - TAG_BASE];
@@ -519,9 +704,14 @@ public abstract class Parser {
      */
     private int read() throws IOException {
         int i;
-        i = in.read();
-        if (capture) {
-            captureArray.add(i);
+        final ParserInputStream input = in;
+        if (input.mPosition < input.mLimit) {
+            i = input.mBuffer[input.mPosition++] & 0xFF;
+        } else {
+            i = input.read();
+        }
+        if (capture && i != EOF_BYTE) {
+            captureStream.write(i);
         }
         if (LOG_VERBOSE) {
             log("Byte: " + i);
@@ -582,25 +772,149 @@ public abstract class Parser {
     }
 
     /**
-     * Read an inline string from the stream
+     * Read length bytes from the stream into dest
+     */
+    private void readBytes(byte[] dest, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int count = in.read(dest, offset, length - offset);
+            if (count < 0) {
+                throw new EofException();
+            }
+            if (capture) {
+                captureStream.write(dest, offset, count);
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Skip length bytes of the stream
+     */
+    private void skipBytes(int length) throws IOException {
+        if (capture) {
+            // Captured streams must be complete, so read the bytes through the capture
+            ensureValueCapacity(length);
+            readBytes(valueBuffer, length);
+            return;
+        }
+        while (length > 0) {
+            final long count = in.skip(length);
+            if (count <= 0) {
+                readByte();
+                length--;
+            } else {
+                length -= count;
+            }
+        }
+    }
+
+    /**
+     * Make sure the value buffer can hold length bytes; its contents are not preserved
+     */
+    private void ensureValueCapacity(int length) {
+        if (valueBuffer.length < length) {
+            valueBuffer = new byte[Math.max(length, valueBuffer.length * 2)];
+        }
+    }
+
+    /**
+     * Read an inline string from the stream into the value buffer, without decoding it
      *
-     * @return the String as parsed from the stream
      * @throws IOException
      */
-    private String readInlineString() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+    private void readInlineString() throws IOException {
+        final ParserInputStream input = in;
+        int length = 0;
         while (true) {
-            int i = read();
+            // Copy straight from the input buffer up to the terminating zero byte
+            final byte[] buffer = input.mBuffer;
+            final int start = input.mPosition;
+            final int limit = input.mLimit;
+            int end = start;
+            while (end < limit && buffer[end] != 0) {
+                end++;
+            }
+            final int count = end - start;
+            if (count > 0) {
+                if (length + count > valueBuffer.length) {
+                    final byte[] newBuffer = new byte[Math.max(length + count,
+                            valueBuffer.length * 2)];
+                    System.arraycopy(valueBuffer, 0, newBuffer, 0, length);
+                    valueBuffer = newBuffer;
+                }
+                System.arraycopy(buffer, start, valueBuffer, length, count);
+                if (capture) {
+                    captureStream.write(buffer, start, count);
+                }
+                length += count;
+                input.mPosition = end;
+            }
+            if (end < limit) {
+                // Consume the zero byte
+                read();
+                break;
+            }
+            // The buffer is exhausted; read() refills it, and may find the zero byte or EOF
+            final int i = read();
             if (i == 0) {
                 break;
             } else if (i == EOF_BYTE) {
                 throw new EofException();
             }
-            outputStream.write(i);
+            if (length == valueBuffer.length) {
+                final byte[] newBuffer = new byte[valueBuffer.length * 2];
+                System.arraycopy(valueBuffer, 0, newBuffer, 0, length);
+                valueBuffer = newBuffer;
+            }
+            valueBuffer[length++] = (byte)i;
+        }
+        valueLength = length;
+    }
+
+    /**
+     * Decode the value buffer as UTF-8.  Short ASCII values are interned.
+     *
+     * @return the String held in the value buffer
+     */
+    private String decodeValue() throws IOException {
+        final byte[] value = valueBuffer;
+        final int length = valueLength;
+        if (length == 0) {
+            return "";
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = value[i];
+            if (b < 0) {
+                // Not ASCII; leave it to the UTF-8 decoder, and don't bother interning
+                return new String(value, 0, length, "UTF-8");
+            }
+            hash = 31 * hash + b;
         }
-        outputStream.flush();
-        String res = outputStream.toString("UTF-8");
-        outputStream.close();
-        return res;
+        final boolean intern = length <= MAX_INTERNED_LENGTH;
+        final int index = (hash ^ (hash >>> 16)) & (INTERN_TABLE_SIZE - 1);
+        if (intern) {
+            final String cached = sInternTable[index];
+            if (cached != null && cached.length() == length) {
+                int i = 0;
+                while (i < length && cached.charAt(i) == value[i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return cached;
+                }
+            }
+        }
+        // ASCII maps directly to chars
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char)value[i];
+        }
+        final String result = new String(chars);
+        if (intern) {
+            sInternTable[index] = result;
+        }
+        return result;
     }
 }
@@ -30,14 +30,17 @@ import com.android.exchange.Eas;
 import com.android.exchange.utility.FileLogger;
 import com.google.common.annotations.VisibleForTesting;
 
+import org.apache.http.HttpEntity;
+
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 public class Serializer {
     private static final String TAG = "Serializer";
-    private static final int BUFFER_SIZE = 16*1024;
     private static final int NOT_PENDING = -1;
 
     private final OutputStream mOutput;
@@ -46,6 +49,7 @@ public class Serializer {
     private String[] mNameStack = new String[20];
     private int mTagPage = 0;
     private boolean mLogging = Log.isLoggable(TAG, Log.VERBOSE);
+    private final byte[] mIntegerBuffer = new byte[5];
 
     public Serializer() throws IOException {
         this(new ByteArrayOutputStream(), true);
@@ -60,6 +64,14 @@ public class Serializer {
         this(new ByteArrayOutputStream(), startDocument);
     }
 
+    /**
+     * Create a Serializer that writes into pooled chunks rather than into a single growing
+     * array; use {@link #toHttpEntity} to post the result and {@link #release} afterwards.
+     */
+    public static Serializer createStreaming() throws IOException {
+        return new Serializer(new ChunkedByteOutputStream(), true);
+    }
+
     /**
      * Base constructor
      * @param outputStream the stream we're serializing to
@@ -180,15 +192,48 @@ public class Serializer {
             log("Opaque, length: " + length);
         }
         // Now write out the opaque data in batches
-        byte[] buffer = new byte[BUFFER_SIZE];
-        while (length > 0) {
-            int bytesRead = is.read(buffer, 0, (int)Math.min(BUFFER_SIZE, length));
-            if (bytesRead == -1) {
-                break;
+        byte[] buffer = ChunkedByteOutputStream.obtainChunk();
+        try {
+            while (length > 0) {
+                int bytesRead = is.read(buffer, 0,
+                        Math.min(ChunkedByteOutputStream.CHUNK_SIZE, length));
+                if (bytesRead == -1) {
+                    break;
+                }
+                mOutput.write(buffer, 0, bytesRead);
+                length -= bytesRead;
             }
-            mOutput.write(buffer, 0, bytesRead);
-            length -= bytesRead;
+        } finally {
+            ChunkedByteOutputStream.recycleChunk(buffer);
+        }
+        return this;
+    }
+
+    /**
+     * Write the contents of a file as opaque data.  A streaming Serializer only keeps a
+     * reference to the file and reads it when the output is sent, so the file must be left
+     * alone until then.
+     */
+    public Serializer opaque(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File too large for opaque data: " + length);
+        }
+        if (!(mOutput instanceof ChunkedByteOutputStream)) {
+            InputStream is = new FileInputStream(file);
+            try {
+                return opaque(is, (int)length);
+            } finally {
+                is.close();
+            }
+        }
+        checkPendingTag(false);
+        mOutput.write(Wbxml.OPAQUE);
+        writeInteger(mOutput, (int)length);
+        if (mLogging) {
+            log("Opaque, length: " + length);
         }
+        ((ChunkedByteOutputStream)mOutput).writeFile(file, length);
         return this;
     }
 
@@ -200,7 +245,7 @@ public class Serializer {
     }
 
     void writeInteger(OutputStream out, int i) throws IOException {
-        byte[] buf = new byte[5];
+        byte[] buf = mIntegerBuffer;
         int idx = 0;
 
         do {
@@ -236,6 +281,8 @@ public class Serializer {
     public String toString() {
         if (mOutput instanceof ByteArrayOutputStream) {
             return ((ByteArrayOutputStream)mOutput).toString();
+        } else if (mOutput instanceof ChunkedByteOutputStream) {
+            return new String(toByteArray());
         }
         throw new IllegalStateException();
     }
@@ -243,8 +290,36 @@ public class Serializer {
     public byte[] toByteArray() {
         if (mOutput instanceof ByteArrayOutputStream) {
             return ((ByteArrayOutputStream)mOutput).toByteArray();
+        } else if (mOutput instanceof ChunkedByteOutputStream) {
+            try {
+                return ((ChunkedByteOutputStream)mOutput).toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
         }
         throw new IllegalStateException();
     }
 
+    /**
+     * @param chunked whether to use chunked transfer encoding instead of sending the computed
+     *   Content-Length
+     * @return an entity that streams the output of a Serializer made by {@link #createStreaming}
+     */
+    public HttpEntity toHttpEntity(boolean chunked) {
+        if (mOutput instanceof ChunkedByteOutputStream) {
+            return ((ChunkedByteOutputStream)mOutput).toHttpEntity(chunked);
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Return the buffers of a streaming Serializer to the pool; its output can't be used after
+     * this.  Does nothing for other Serializers.
+     */
+    public void release() {
+        if (mOutput instanceof ChunkedByteOutputStream) {
+            ((ChunkedByteOutputStream)mOutput).release();
+        }
+    }
+
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replays a WBXML Sync response through MockParserStream, checking the values read by the
+ * parser and timing the String and the allocation-free ways of reading them.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.ParserBenchmarkTests exchange
+ */
+public class ParserBenchmarkTests extends AndroidTestCase {
+    private static final String TAG = "ParserBenchmarkTests";
+    private static final int MESSAGE_COUNT = 2000;
+    private static final int ITERATIONS = 10;
+    // Longer than the parser's input buffer, so that it straddles several refills
+    private static final int LONG_BODY_LENGTH = 10000;
+
+    /**
+     * A parser for the subset of the Sync response written by {@link #makeSyncResponse}.  It
+     * either decodes each value or only looks at its bytes.
+     */
+    private static class SyncResponseParser extends Parser {
+        private final boolean mDecodeValues;
+        int mMessageCount = 0;
+        int mReadCount = 0;
+        int mValueBytes = 0;
+        String mLastSubject;
+        String mLastBody;
+
+        SyncResponseParser(InputStream in, boolean decodeValues) throws IOException {
+            super(in);
+            mDecodeValues = decodeValues;
+        }
+
+        @Override
+        public boolean parse() throws IOException {
+            if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
+                throw new IOException();
+            }
+            while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+                if (tag == Tags.SYNC_COLLECTIONS) {
+                    parseContainer(Tags.SYNC_COLLECTIONS);
+                } else {
+                    skipTag();
+                }
+            }
+            return false;
+        }
+
+        private void parseContainer(int container) throws IOException {
+            while (nextTag(container) != END) {
+                if (tag == Tags.SYNC_COLLECTION || tag == Tags.SYNC_COMMANDS) {
+                    parseContainer(tag);
+                } else if (tag == Tags.SYNC_ADD) {
+                    parseAdd();
+                } else {
+                    skipTag();
+                }
+            }
+        }
+
+        private void parseAdd() throws IOException {
+            while (nextTag(Tags.SYNC_ADD) != END) {
+                if (tag == Tags.SYNC_SERVER_ID) {
+                    if (mDecodeValues) {
+                        getValue();
+                    } else {
+                        readValue();
+                    }
+                } else if (tag == Tags.SYNC_APPLICATION_DATA) {
+                    parseApplicationData();
+                } else {
+                    skipTag();
+                }
+            }
+        }
+
+        private void parseApplicationData() throws IOException {
+            mMessageCount++;
+            while (nextTag(Tags.SYNC_APPLICATION_DATA) != END) {
+                if (tag == Tags.EMAIL_READ) {
+                    if (mDecodeValues) {
+                        if ("1".equals(getValue())) mReadCount++;
+                    } else {
+                        readValue();
+                        if (valueEquals("1")) mReadCount++;
+                    }
+                } else if (tag == Tags.EMAIL_SUBJECT || tag == Tags.EMAIL_FROM) {
+                    if (mDecodeValues) {
+                        final String value = getValue();
+                        mValueBytes += value.length();
+                        if (tag == Tags.EMAIL_SUBJECT) mLastSubject = value;
+                    } else {
+                        mValueBytes += readValue();
+                    }
+                } else if (tag == Tags.BASE_BODY) {
+                    parseBody();
+                } else {
+                    skipTag();
+                }
+            }
+        }
+
+        private void parseBody() throws IOException {
+            while (nextTag(Tags.BASE_BODY) != END) {
+                if (tag == Tags.BASE_DATA) {
+                    if (mDecodeValues) {
+                        mLastBody = getValue();
+                        mValueBytes += mLastBody.length();
+                    } else {
+                        mValueBytes += readValue();
+                    }
+                } else {
+                    skipTag();
+                }
+            }
+        }
+    }
+
+    private static int[] makeSyncResponse(int messageCount) throws IOException {
+        final StringBuilder longBody = new StringBuilder(LONG_BODY_LENGTH);
+        for (int i = 0; i < LONG_BODY_LENGTH; i++) {
+            longBody.append((char)('a' + i % 26));
+        }
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+        s.data(Tags.SYNC_STATUS, "1");
+        s.start(Tags.SYNC_COMMANDS);
+        for (int i = 0; i < messageCount; i++) {
+            s.start(Tags.SYNC_ADD);
+            s.data(Tags.SYNC_SERVER_ID, "5:" + i);
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            s.data(Tags.EMAIL_FROM, "\"Sender " + i + "\" <sender" + i + "@example.com>");
+            s.data(Tags.EMAIL_SUBJECT, "Subject \u00e9\u00e8 " + i);
+            s.data(Tags.EMAIL_READ, (i % 2 == 0) ? "1" : "0");
+            s.start(Tags.BASE_BODY);
+            s.data(Tags.BASE_DATA, (i == messageCount - 1) ? longBody.toString()
+                    : "Body of message " + i);
+            s.end(); // BASE_BODY
+            s.end(); // SYNC_APPLICATION_DATA
+            s.end(); // SYNC_ADD
+        }
+        s.end().end().end().end().done();
+        final byte[] bytes = s.toByteArray();
+        final int[] data = new int[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = bytes[i] & 0xFF;
+        }
+        return data;
+    }
+
+    private static SyncResponseParser parse(int[] data, boolean decodeValues)
+            throws IOException {
+        final SyncResponseParser parser =
+                new SyncResponseParser(new MockParserStream(data), decodeValues);
+        parser.parse();
+        return parser;
+    }
+
+    public void testValues() throws IOException {
+        final int[] data = makeSyncResponse(MESSAGE_COUNT);
+        final SyncResponseParser decoding = parse(data, true);
+        assertEquals(MESSAGE_COUNT, decoding.mMessageCount);
+        assertEquals(MESSAGE_COUNT / 2, decoding.mReadCount);
+        assertEquals("Subject \u00e9\u00e8 " + (MESSAGE_COUNT - 1), decoding.mLastSubject);
+        assertEquals(LONG_BODY_LENGTH, decoding.mLastBody.length());
+        for (int i = 0; i < LONG_BODY_LENGTH; i++) {
+            assertEquals('a' + i % 26, decoding.mLastBody.charAt(i));
+        }
+
+        final SyncResponseParser raw = parse(data, false);
+        assertEquals(MESSAGE_COUNT, raw.mMessageCount);
+        assertEquals(MESSAGE_COUNT / 2, raw.mReadCount);
+        // Every value above is ASCII except for the two accented letters of each subject, which
+        // take two bytes each in UTF-8
+        assertEquals(decoding.mValueBytes + 2 * MESSAGE_COUNT, raw.mValueBytes);
+    }
+
+    public void testParsingSpeed() throws IOException {
+        final int[] data = makeSyncResponse(MESSAGE_COUNT);
+        // Warm up
+        parse(data, true);
+        parse(data, false);
+        for (final boolean decodeValues : new boolean[] { true, false }) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                parse(data, decodeValues);
+            }
+            final long elapsed = (System.nanoTime() - start) / ITERATIONS / 1000;
+            Log.d(TAG, (decodeValues ? "getValue" : "readValue") + ": " + elapsed + " us for "
+                    + data.length + " bytes of WBXML (" + MESSAGE_COUNT + " messages)");
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange;
+
+import com.android.emailcommon.provider.HostAuth;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.SyncSchedulerTests exchange
+ */
+@SmallTest
+public class SyncSchedulerTests extends TestCase {
+
+    /**
+     * A service which records that it ran, optionally waiting for a latch first
+     */
+    private static class TestService extends AbstractSyncService {
+        private final String mName;
+        private final List<String> mRunOrder;
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mRelease;
+        volatile Thread mRunThread;
+        volatile Thread mThreadWhileRunning;
+
+        TestService(String name, List<String> runOrder, CountDownLatch release) {
+            super(name);
+            mName = name;
+            mRunOrder = runOrder;
+            mRelease = release;
+        }
+
+        @Override
+        public void run() {
+            mRunThread = Thread.currentThread();
+            mThreadWhileRunning = mThread;
+            mRunOrder.add(mName);
+            mStarted.countDown();
+            if (mRelease != null) {
+                try {
+                    mRelease.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Just finish
+                }
+            }
+        }
+
+        boolean awaitStarted() throws InterruptedException {
+            return mStarted.await(5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void stop() {
+            mStop = true;
+        }
+
+        @Override
+        public boolean alarm() {
+            return true;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public Bundle validateAccount(HostAuth hostAuth, Context context) {
+            return null;
+        }
+    }
+
+    private static class TestCallback implements SyncScheduler.Callback {
+        private final List<AbstractSyncService> mFinished =
+            Collections.synchronizedList(new ArrayList<AbstractSyncService>());
+        private final CountDownLatch mLatch;
+
+        TestCallback(int expected) {
+            mLatch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onServiceFinished(AbstractSyncService svc) {
+            mFinished.add(svc);
+            mLatch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mLatch.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    public void testGetPriority() {
+        assertEquals(SyncScheduler.PRIORITY_OUTBOX,
+                SyncScheduler.getPriority(Mailbox.TYPE_OUTBOX, ExchangeService.SYNC_SCHEDULED));
+        assertEquals(SyncScheduler.PRIORITY_OUTBOX,
+                SyncScheduler.getPriority(Mailbox.TYPE_OUTBOX, ExchangeService.SYNC_UI_REQUEST));
+        assertEquals(SyncScheduler.PRIORITY_USER,
+                SyncScheduler.getPriority(Mailbox.TYPE_MAIL, ExchangeService.SYNC_UI_REQUEST));
+        assertEquals(SyncScheduler.PRIORITY_USER,
+                SyncScheduler.getPriority(Mailbox.TYPE_CALENDAR,
+                        ExchangeService.SYNC_SERVICE_PART_REQUEST));
+        assertEquals(SyncScheduler.PRIORITY_INBOX,
+                SyncScheduler.getPriority(Mailbox.TYPE_INBOX, ExchangeService.SYNC_PING));
+        assertEquals(SyncScheduler.PRIORITY_INBOX,
+                SyncScheduler.getPriority(Mailbox.TYPE_INBOX, ExchangeService.SYNC_SCHEDULED));
+        assertEquals(SyncScheduler.PRIORITY_BACKGROUND,
+                SyncScheduler.getPriority(Mailbox.TYPE_MAIL, ExchangeService.SYNC_PUSH));
+        assertEquals(SyncScheduler.PRIORITY_BACKGROUND,
+                SyncScheduler.getPriority(Mailbox.TYPE_CONTACTS, ExchangeService.SYNC_SCHEDULED));
+    }
+
+    public void testPriorityOrder() throws InterruptedException {
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        TestCallback callback = new TestCallback(7);
+        SyncScheduler scheduler = new SyncScheduler(1, callback);
+
+        // Occupy the only worker while the others are queued
+        CountDownLatch release = new CountDownLatch(1);
+        TestService blocker = new TestService("blocker", runOrder, release);
+        scheduler.schedule(blocker, "blocker", SyncScheduler.PRIORITY_BACKGROUND);
+        assertTrue(blocker.awaitStarted());
+
+        scheduler.schedule(new TestService("contacts", runOrder, null), "contacts",
+                SyncScheduler.PRIORITY_BACKGROUND);
+        scheduler.schedule(new TestService("inbox", runOrder, null), "inbox",
+                SyncScheduler.PRIORITY_INBOX);
+        scheduler.schedule(new TestService("calendar", runOrder, null), "calendar",
+                SyncScheduler.PRIORITY_BACKGROUND);
+        scheduler.schedule(new TestService("user", runOrder, null), "user",
+                SyncScheduler.PRIORITY_USER);
+        scheduler.schedule(new TestService("outbox", runOrder, null), "outbox",
+                SyncScheduler.PRIORITY_OUTBOX);
+        scheduler.schedule(new TestService("inbox2", runOrder, null), "inbox2",
+                SyncScheduler.PRIORITY_INBOX);
+        assertEquals(6, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getThreadCount());
+
+        release.countDown();
+        assertTrue(callback.await());
+        scheduler.shutdown();
+
+        String[] expected = new String[] {
+                "blocker", "outbox", "user", "inbox", "inbox2", "contacts", "calendar"};
+        assertEquals(expected.length, runOrder.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], runOrder.get(i));
+        }
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(7, scheduler.getStartedCount());
+        assertTrue(scheduler.getMaxWaitMs() >= scheduler.getAverageWaitMs());
+    }
+
+    public void testThreadNameAndCleanup() throws InterruptedException {
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        TestCallback callback = new TestCallback(2);
+        SyncScheduler scheduler = new SyncScheduler(1, callback);
+        TestService first = new TestService("first", runOrder, null);
+        TestService second = new TestService("second", runOrder, null);
+        scheduler.schedule(first, "Inbox[account]", SyncScheduler.PRIORITY_INBOX);
+        scheduler.schedule(second, "Sent[account]", SyncScheduler.PRIORITY_BACKGROUND);
+        assertTrue(callback.await());
+        scheduler.shutdown();
+
+        // The services ran on the same worker, which they saw as their thread while running
+        assertSame(first.mRunThread, second.mRunThread);
+        assertSame(first.mRunThread, first.mThreadWhileRunning);
+        // But once finished, neither can interrupt the worker
+        assertNull(first.mThread);
+        assertNull(second.mThread);
+        assertEquals(2, callback.mFinished.size());
+        assertSame(first, callback.mFinished.get(0));
+        assertSame(second, callback.mFinished.get(1));
+        // The worker gets its own name back
+        assertFalse("Sent[account]".equals(second.mRunThread.getName()));
+    }
+
+    public void testCancel() throws InterruptedException {
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        TestCallback callback = new TestCallback(2);
+        SyncScheduler scheduler = new SyncScheduler(1, callback);
+
+        CountDownLatch release = new CountDownLatch(1);
+        TestService blocker = new TestService("blocker", runOrder, release);
+        scheduler.schedule(blocker, "blocker", SyncScheduler.PRIORITY_BACKGROUND);
+        assertTrue(blocker.awaitStarted());
+        TestService cancelled = new TestService("cancelled", runOrder, null);
+        TestService kept = new TestService("kept", runOrder, null);
+        scheduler.schedule(cancelled, "cancelled", SyncScheduler.PRIORITY_INBOX);
+        scheduler.schedule(kept, "kept", SyncScheduler.PRIORITY_INBOX);
+
+        assertTrue(scheduler.cancel(cancelled));
+        // Can't cancel twice, or once started
+        assertFalse(scheduler.cancel(cancelled));
+        assertFalse(scheduler.cancel(blocker));
+        assertEquals(1, scheduler.getQueueDepth());
+
+        release.countDown();
+        assertTrue(callback.await());
+        scheduler.shutdown();
+        assertEquals(2, runOrder.size());
+        assertFalse(runOrder.contains("cancelled"));
+        assertFalse(callback.mFinished.contains(cancelled));
+    }
+
+    public void testDedicated() throws InterruptedException {
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        TestCallback callback = new TestCallback(1);
+        SyncScheduler scheduler = new SyncScheduler(1, callback);
+
+        CountDownLatch release = new CountDownLatch(1);
+        TestService ping = new TestService("ping", runOrder, release);
+        scheduler.startDedicated(ping, "account: Ping");
+        assertTrue(ping.awaitStarted());
+        assertEquals(1, scheduler.getThreadCount());
+        assertEquals("account: Ping", ping.mRunThread.getName());
+        assertSame(ping.mRunThread, ping.mThread);
+
+        // A dedicated service doesn't hold up the workers
+        TestService inbox = new TestService("inbox", runOrder, null);
+        scheduler.schedule(inbox, "inbox", SyncScheduler.PRIORITY_INBOX);
+        assertTrue(inbox.awaitStarted());
+
+        release.countDown();
+        ping.mRunThread.join(5000);
+        assertFalse(ping.mRunThread.isAlive());
+        assertTrue(callback.mFinished.contains(ping));
+        assertNull(ping.mThread);
+        scheduler.shutdown();
+    }
+}
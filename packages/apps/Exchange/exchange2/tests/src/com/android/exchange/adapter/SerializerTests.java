@@ -20,8 +20,14 @@ import android.content.ContentValues;
 import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 
+import org.apache.http.HttpEntity;
+
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /** You can run this entire test case with:
  *   runtest -c com.android.exchange.adapter.SerializerTests exchange
@@ -91,4 +97,73 @@ public class SerializerTests extends AndroidTestCase {
         // Make sure we get what's expected
         MoreAsserts.assertEquals("Serializer mismatch", bytes, expectedBytes);
     }
+
+    private static void writeSendMail(Serializer s, File mimeFile, int bodyCount)
+            throws IOException {
+        s.start(Tags.COMPOSE_SEND_MAIL);
+        for (int i = 0; i < bodyCount; i++) {
+            s.data(Tags.COMPOSE_CLIENT_ID, ID + i);
+        }
+        s.tag(Tags.COMPOSE_SAVE_IN_SENT_ITEMS);
+        s.start(Tags.COMPOSE_MIME);
+        s.opaque(mimeFile);
+        s.end();  // COMPOSE_MIME
+        s.end();  // COMPOSE_SEND_MAIL
+        s.done(); // DOCUMENT
+    }
+
+    // Check that a streaming Serializer writes the same bytes as the in-memory one, across
+    // several chunks and with opaque data taken from a file
+    public void testStreamingSerializer() throws IOException {
+        File mimeFile = File.createTempFile("serializer", "tmp", getContext().getCacheDir());
+        try {
+            byte[] mime = new byte[3 * ChunkedByteOutputStream.CHUNK_SIZE + 17];
+            for (int i = 0; i < mime.length; i++) {
+                mime[i] = (byte)i;
+            }
+            FileOutputStream out = new FileOutputStream(mimeFile);
+            out.write(mime);
+            out.close();
+
+            Serializer expected = new Serializer();
+            writeSendMail(expected, mimeFile, 5000);
+            byte[] expectedBytes = expected.toByteArray();
+
+            Serializer s = Serializer.createStreaming();
+            writeSendMail(s, mimeFile, 5000);
+            MoreAsserts.assertEquals(expectedBytes, s.toByteArray());
+
+            // The length is computed without reading the file
+            HttpEntity entity = s.toHttpEntity(false);
+            assertEquals(expectedBytes.length, entity.getContentLength());
+            assertTrue(entity.isRepeatable());
+            ByteArrayOutputStream posted = new ByteArrayOutputStream();
+            entity.writeTo(posted);
+            MoreAsserts.assertEquals(expectedBytes, posted.toByteArray());
+
+            InputStream in = entity.getContent();
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                read.write(buffer, 0, count);
+            }
+            in.close();
+            MoreAsserts.assertEquals(expectedBytes, read.toByteArray());
+
+            assertEquals(-1, s.toHttpEntity(true).getContentLength());
+
+            // Releasing the Serializer gives its chunks back to the pool
+            s.release();
+            assertTrue(ChunkedByteOutputStream.getPooledChunkCount() > 0);
+            Serializer small = new Serializer();
+            writeSendMail(small, mimeFile, 1);
+            Serializer next = Serializer.createStreaming();
+            writeSendMail(next, mimeFile, 1);
+            MoreAsserts.assertEquals(small.toByteArray(), next.toByteArray());
+            next.release();
+        } finally {
+            mimeFile.delete();
+        }
+    }
 }
@@ -52,7 +52,7 @@
 // [20] Blob
 //
 // Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// support concurrent use by multiple threads; use ConcurrentBlobCache for that.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
@@ -385,7 +385,7 @@ public class BlobCache implements Closeable {
     private void insertInternal(long key, byte[] data, int length)
             throws IOException {
         byte[] header = mBlobHeader;
-        int sum = checkSum(data);
+        int sum = checkSum(data, 0, length);
         writeLong(header, BH_KEY, key);
         writeInt(header, BH_CHECKSUM, sum);
         writeInt(header, BH_OFFSET, mActiveBytes);
@@ -444,22 +444,8 @@ public class BlobCache implements Closeable {
         // Look up in the inactive region.
         if (lookupInternal(req.key, mInactiveHashStart)) {
             if (getBlob(mInactiveDataFile, mFileOffset, req)) {
-                // If we don't have enough space to insert this blob into
-                // the active file, just return it.
-                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
-                    || mActiveEntries * 2 >= mMaxEntries) {
-                    return true;
-                }
-                // Otherwise copy it over.
                 mSlotOffset = insertOffset;
-                try {
-                    insertInternal(req.key, req.buffer, req.length);
-                    mActiveEntries++;
-                    writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-                    updateIndexHeader();
-                } catch (Throwable t) {
-                    Log.e(TAG, "cannot copy over");
-                }
+                copyToActiveRegion(req);
                 return true;
             }
         }
@@ -467,6 +453,68 @@ public class BlobCache implements Closeable {
         return false;
     }
 
+    // Copies the blob in req (found in the inactive region) to the active
+    // region, if there is enough space for it. The hash entry for the key in
+    // the active region must be pointed by mSlotOffset.
+    private void copyToActiveRegion(LookupRequest req) {
+        // If we don't have enough space to insert this blob into
+        // the active file, just leave it.
+        if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
+            || mActiveEntries * 2 >= mMaxEntries) {
+            return;
+        }
+        // Otherwise copy it over.
+        try {
+            insertInternal(req.key, req.buffer, req.length);
+            mActiveEntries++;
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            updateIndexHeader();
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        }
+    }
+
+    // The results of lookupShared().
+    static final int LOOKUP_NOT_FOUND = 0;
+    static final int LOOKUP_FOUND = 1;
+    static final int LOOKUP_FOUND_INACTIVE = 2;
+
+    // Looks up a key like lookup(LookupRequest), but without changing any
+    // state of the cache, so several threads can call this at once as long as
+    // no thread is writing. The blobs are read through the given files, which
+    // must be opened on the data files of region 0 and region 1; each thread
+    // needs its own.
+    //
+    // Returns LOOKUP_FOUND_INACTIVE if the blob was only found in the inactive
+    // region. The caller can then copy it to the active region by calling
+    // promote() while no other thread is using the cache.
+    int lookupShared(LookupRequest req, RandomAccessFile dataFile0,
+            RandomAccessFile dataFile1) throws IOException {
+        RandomAccessFile activeFile = (mActiveRegion == 0) ? dataFile0 : dataFile1;
+        RandomAccessFile inactiveFile = (mActiveRegion == 1) ? dataFile0 : dataFile1;
+        int offset = findBlob(req.key, mActiveHashStart);
+        if (offset != 0 && getBlob(activeFile, offset, req)) {
+            return LOOKUP_FOUND;
+        }
+        offset = findBlob(req.key, mInactiveHashStart);
+        if (offset != 0 && getBlob(inactiveFile, offset, req)) {
+            return LOOKUP_FOUND_INACTIVE;
+        }
+        return LOOKUP_NOT_FOUND;
+    }
+
+    // Copies a blob returned by lookupShared() from the inactive region to the
+    // active region, unless another thread has already done so.
+    void promote(LookupRequest req) {
+        if (!lookupInternal(req.key, mActiveHashStart)) {
+            copyToActiveRegion(req);
+        }
+    }
+
+    int getActiveRegion() {
+        return mActiveRegion;
+    }
+
 
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
@@ -474,9 +522,12 @@ public class BlobCache implements Closeable {
     // Returns false if the blob is not available (either the index file is
     // not sync with the data file, or one of them is corrupted). The length
     // of the blob is stored in the req.length variable.
+    //
+    // This doesn't use any fields which change, so it can be called by
+    // several threads at once with different files.
     private boolean getBlob(RandomAccessFile file, int offset,
             LookupRequest req) throws IOException {
-        byte[] header = mBlobHeader;
+        byte[] header = new byte[BLOB_HEADER_SIZE];
         long oldPosition = file.getFilePointer();
         try {
             file.seek(offset);
@@ -511,7 +562,9 @@ public class BlobCache implements Closeable {
                 Log.w(TAG, "cannot read blob data");
                 return false;
             }
-            if (checkSum(blob, 0, length) != sum) {
+            Adler32 adler32 = new Adler32();
+            adler32.update(blob, 0, length);
+            if ((int) adler32.getValue() != sum) {
                 Log.w(TAG, "blob checksum does not match: " + sum);
                 return false;
             }
@@ -560,6 +613,29 @@ public class BlobCache implements Closeable {
         }
     }
 
+    // Like lookupInternal(), but only returns the file offset of the blob (or
+    // 0 if the key is not found), and doesn't change any fields or the index.
+    private int findBlob(long key, int hashStart) {
+        int slot = (int) (key % mMaxEntries);
+        if (slot < 0) slot += mMaxEntries;
+        int slotBegin = slot;
+        do {
+            int offset = hashStart + slot * 12;
+            int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            if (candidateOffset == 0) {
+                return 0;
+            } else if (mIndexBuffer.getLong(offset) == key) {
+                return candidateOffset;
+            }
+            if (++slot >= mMaxEntries) {
+                slot = 0;
+            }
+        } while (slot != slotBegin);
+        // The index is corrupted; lookupInternal() will clear a slot when
+        // the key is inserted.
+        return 0;
+    }
+
     public void syncIndex() {
         try {
             mIndexBuffer.force();
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// A BlobCache which can be used by multiple threads at once. It uses the same
+// files, in the same format, as BlobCache.
+//
+// Lookups run concurrently: each one reads the index through the shared
+// memory map, and the blobs through a RandomAccessFile of its own, taken from
+// a small pool of read-only files for each region. (A FileChannel would let
+// the threads share one file with positional reads, but the channel is closed
+// for good when a thread reading from it is interrupted.) Inserts, and the
+// copies of blobs from the inactive region to the active region that lookups
+// make, take a write lock which waits for the lookups in progress.
+//
+package com.android.gallery3d.common;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ConcurrentBlobCache extends BlobCache {
+    // The number of idle read-only files kept open for each region.
+    private static final int MAX_POOLED_READERS = 4;
+
+    private final String mPath;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final ReaderPool mReaders0 = new ReaderPool(".0");
+    private final ReaderPool mReaders1 = new ReaderPool(".1");
+    private boolean mClosed;
+
+    // A pool of read-only files opened on one data file.
+    private class ReaderPool {
+        private final String mSuffix;
+        private final ConcurrentLinkedQueue<RandomAccessFile> mFiles =
+                new ConcurrentLinkedQueue<RandomAccessFile>();
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        ReaderPool(String suffix) {
+            mSuffix = suffix;
+        }
+
+        RandomAccessFile obtain() throws IOException {
+            RandomAccessFile file = mFiles.poll();
+            if (file != null) {
+                mCount.decrementAndGet();
+                return file;
+            }
+            return new RandomAccessFile(mPath + mSuffix, "r");
+        }
+
+        void recycle(RandomAccessFile file) {
+            if (file == null) return;
+            if (mCount.incrementAndGet() <= MAX_POOLED_READERS) {
+                mFiles.offer(file);
+            } else {
+                mCount.decrementAndGet();
+                closeSilently(file);
+            }
+        }
+
+        void closeAll() {
+            RandomAccessFile file;
+            while ((file = mFiles.poll()) != null) {
+                closeSilently(file);
+            }
+        }
+    }
+
+    public ConcurrentBlobCache(String path, int maxEntries, int maxBytes,
+            boolean reset) throws IOException {
+        this(path, maxEntries, maxBytes, reset, 0);
+    }
+
+    public ConcurrentBlobCache(String path, int maxEntries, int maxBytes,
+            boolean reset, int version) throws IOException {
+        super(path, maxEntries, maxBytes, reset, version);
+        mPath = path;
+    }
+
+    @Override
+    public void close() {
+        mLock.writeLock().lock();
+        try {
+            if (mClosed) return;
+            super.close();
+            mClosed = true;
+            mReaders0.closeAll();
+            mReaders1.closeAll();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void insert(long key, byte[] data) throws IOException {
+        mLock.writeLock().lock();
+        try {
+            super.insert(key, data);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] lookup(long key) throws IOException {
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        return lookup(req) ? req.buffer : null;
+    }
+
+    @Override
+    public boolean lookup(LookupRequest req) throws IOException {
+        int result;
+        RandomAccessFile file0 = null;
+        RandomAccessFile file1 = null;
+        mLock.readLock().lock();
+        try {
+            if (mClosed) return false;
+            file0 = mReaders0.obtain();
+            file1 = mReaders1.obtain();
+            result = lookupShared(req, file0, file1);
+        } finally {
+            mReaders0.recycle(file0);
+            mReaders1.recycle(file1);
+            mLock.readLock().unlock();
+        }
+
+        if (result == LOOKUP_FOUND_INACTIVE) {
+            mLock.writeLock().lock();
+            try {
+                if (!mClosed) promote(req);
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+        return result != LOOKUP_NOT_FOUND;
+    }
+
+    @Override
+    public void syncIndex() {
+        mLock.readLock().lock();
+        try {
+            if (!mClosed) super.syncIndex();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void syncAll() {
+        mLock.readLock().lock();
+        try {
+            if (!mClosed) super.syncAll();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    int getActiveCount() {
+        mLock.readLock().lock();
+        try {
+            return super.getActiveCount();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+}
@@ -18,8 +18,8 @@ package com.android.gallery3d.data;
 
 import android.content.Context;
 
-import com.android.gallery3d.common.BlobCache;
 import com.android.gallery3d.common.BlobCache.LookupRequest;
+import com.android.gallery3d.common.ConcurrentBlobCache;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.CacheManager;
@@ -37,10 +37,11 @@ public class ImageCacheService {
     private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
     private static final int IMAGE_CACHE_VERSION = 4;
 
-    private BlobCache mCache;
+    // Thumbnails are looked up by all of the decoding threads at once
+    private ConcurrentBlobCache mCache;
 
     public ImageCacheService(Context context) {
-        mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
+        mCache = CacheManager.getConcurrentCache(context, IMAGE_CACHE_FILE,
                 IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
                 IMAGE_CACHE_VERSION);
     }
@@ -61,9 +62,7 @@ public class ImageCacheService {
             LookupRequest request = new LookupRequest();
             request.key = cacheKey;
             request.buffer = buffer.data;
-            synchronized (mCache) {
-                if (!mCache.lookup(request)) return false;
-            }
+            if (!mCache.lookup(request)) return false;
             if (isSameKey(key, request.buffer)) {
                 buffer.data = request.buffer;
                 buffer.offset = key.length;
@@ -82,12 +81,10 @@ public class ImageCacheService {
         ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
         buffer.put(key);
         buffer.put(value);
-        synchronized (mCache) {
-            try {
-                mCache.insert(cacheKey, buffer.array());
-            } catch (IOException ex) {
-                // ignore.
-            }
+        try {
+            mCache.insert(cacheKey, buffer.array());
+        } catch (IOException ex) {
+            // ignore.
         }
     }
 
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.util.FloatMath;
+
+import com.android.gallery3d.util.GalleryUtils;
+
+import java.util.HashMap;
+import java.util.Random;
+
+// Groups locations with k-means, trying each k in [MIN_GROUPS, MAX_GROUPS]
+// and keeping the grouping with the best score.
+//
+// Photos are mostly taken in a few places, so the points are first put into
+// the cells of a lat-long grid, and k-means runs on the (weighted) centers of
+// the cells instead of on every point. The grid is made coarser until there
+// are at most MAX_CELLS cells; since the cells are much smaller than the
+// groups we are looking for, this changes the groups very little.
+//
+// The centers are chosen one at a time, as in k-means++, except that cells
+// are picked by their distance rather than its square (as we minimize the
+// sum of the distances), and the best of a few picks is kept. Each k starts
+// from the centers found for k - 1, plus one more.
+class LocationKMeans {
+    private static final int MIN_GROUPS = 1;
+    private static final int MAX_GROUPS = 20;
+    private static final int MAX_ITERATIONS = 30;
+
+    // If the total distance change is less than this ratio, stop iterating.
+    private static final float STOP_CHANGE_RATIO = 0.01f;
+
+    // The initial size of the grid cells (about 100 meters of latitude), and
+    // the number of cells we want at most.
+    private static final double INITIAL_CELL_SIZE_RAD = Math.toRadians(0.001);
+    private static final int MAX_CELLS = 2048;
+
+    // The new centers are picked at random; we always use the same seed so
+    // the same photos are always grouped the same way.
+    private static final long RANDOM_SEED = 1;
+    private static final int CENTER_CANDIDATES = 5;
+
+    // The cells: the number of points in each, and their center.
+    private int mCellCount;
+    private int[] mCellWeight;
+    private double[] mCellLat;
+    private double[] mCellLng;
+    // The cell of each point.
+    private int[] mPointCell;
+
+    private LocationKMeans() {
+    }
+
+    // Input: n points, as latitudes and longitudes in radians.
+    // Output: the best k is stored in bestK[0], and the return value is the
+    // an array which specifies the group that each point belongs (0 to k - 1).
+    public static int[] kMeans(double[] latRad, double[] lngRad, int[] bestK) {
+        LocationKMeans kMeans = new LocationKMeans();
+        kMeans.buildCells(latRad, lngRad);
+        int[] cellGrouping = kMeans.kMeansCells(bestK);
+
+        int n = latRad.length;
+        int[] grouping = new int[n];
+        for (int i = 0; i < n; i++) {
+            grouping[i] = cellGrouping[kMeans.mPointCell[i]];
+        }
+        return grouping;
+    }
+
+    // Puts the points into cells, doubling the cell size until there are at
+    // most MAX_CELLS of them.
+    private void buildCells(double[] latRad, double[] lngRad) {
+        int n = latRad.length;
+        mPointCell = new int[n];
+        HashMap<Long, Integer> cells = new HashMap<Long, Integer>();
+        for (double size = INITIAL_CELL_SIZE_RAD; ; size *= 2) {
+            cells.clear();
+            for (int i = 0; i < n; i++) {
+                long row = (long) Math.floor(latRad[i] / size);
+                long column = (long) Math.floor(lngRad[i] / size);
+                Long key = (row << 32) ^ (column & 0xffffffffL);
+                Integer cell = cells.get(key);
+                if (cell == null) {
+                    cell = cells.size();
+                    cells.put(key, cell);
+                }
+                mPointCell[i] = cell;
+            }
+            if (cells.size() <= MAX_CELLS) break;
+        }
+
+        mCellCount = cells.size();
+        mCellWeight = new int[mCellCount];
+        mCellLat = new double[mCellCount];
+        mCellLng = new double[mCellCount];
+        for (int i = 0; i < n; i++) {
+            int cell = mPointCell[i];
+            mCellWeight[cell]++;
+            mCellLat[cell] += latRad[i];
+            mCellLng[cell] += lngRad[i];
+        }
+        for (int i = 0; i < mCellCount; i++) {
+            mCellLat[i] /= mCellWeight[i];
+            mCellLng[i] /= mCellWeight[i];
+        }
+    }
+
+    private static float distance(double latRad1, double lngRad1,
+            double latRad2, double lngRad2) {
+        float distance = (float) GalleryUtils.fastDistanceMeters(
+                latRad1, lngRad1, latRad2, lngRad2);
+        // We may have small non-zero distance introduced by floating point
+        // calculation, so zero out small distances less than 1 meter.
+        return distance < 1 ? 0 : distance;
+    }
+
+    // Picks the next center among the cells: we take a few candidates, each
+    // with a probability proportional to the number of points in the cell
+    // times its distance to the nearest center, and keep the one which makes
+    // the total distance from the points to their nearest center the
+    // smallest.
+    private int pickCenter(Random random, float[] nearestDistance) {
+        double total = 0;
+        for (int i = 0; i < mCellCount; i++) {
+            total += mCellWeight[i] * (double) nearestDistance[i];
+        }
+        // All the cells are at a center.
+        if (total == 0) return -1;
+
+        int best = -1;
+        double bestTotal = Double.MAX_VALUE;
+        for (int c = 0; c < CENTER_CANDIDATES; c++) {
+            double target = random.nextDouble() * total;
+            int candidate = -1;
+            for (int i = 0; i < mCellCount; i++) {
+                if (nearestDistance[i] == 0) continue;
+                candidate = i;
+                target -= mCellWeight[i] * (double) nearestDistance[i];
+                if (target < 0) break;
+            }
+            double candidateTotal = 0;
+            for (int i = 0; i < mCellCount; i++) {
+                float distance = distance(mCellLat[i], mCellLng[i],
+                        mCellLat[candidate], mCellLng[candidate]);
+                candidateTotal += mCellWeight[i]
+                        * (double) Math.min(distance, nearestDistance[i]);
+            }
+            if (candidateTotal < bestTotal) {
+                bestTotal = candidateTotal;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    // The same as kMeans(), on the cells.
+    private int[] kMeansCells(int[] bestK) {
+        int n = mCellCount;
+
+        // min and max number of groups wanted
+        int minK = Math.min(n, MIN_GROUPS);
+        int maxK = Math.min(n, MAX_GROUPS);
+
+        double[] centerLat = new double[maxK];  // center of each group.
+        double[] centerLng = new double[maxK];
+        double[] groupSumLat = new double[maxK];  // sum of points in each group.
+        double[] groupSumLng = new double[maxK];
+        int[] groupCount = new int[maxK];  // number of points in each group.
+        int[] grouping = new int[n];  // The group assignment for each cell.
+        float[] nearestDistance = new float[n];  // The distance to its center.
+
+        // The score we want to minimize is:
+        //   (sum of distance from each point to its group center) * sqrt(k).
+        float bestScore = Float.MAX_VALUE;
+        // The best group assignment up to now.
+        int[] bestGrouping = new int[n];
+        // The best K up to now.
+        bestK[0] = 1;
+
+        Random random = new Random(RANDOM_SEED);
+
+        // Start with the cell with the most points as the only center.
+        int first = 0;
+        for (int i = 1; i < n; i++) {
+            if (mCellWeight[i] > mCellWeight[first]) first = i;
+        }
+        centerLat[0] = mCellLat[first];
+        centerLng[0] = mCellLng[first];
+        int centers = 1;
+        for (int i = 0; i < n; i++) {
+            nearestDistance[i] = distance(mCellLat[i], mCellLng[i],
+                    centerLat[0], centerLng[0]);
+        }
+
+        for (int k = minK; k <= maxK; k++) {
+            // step 1: add centers until there are k of them, keeping the ones
+            // found for k - 1.
+            while (centers < k) {
+                int cell = pickCenter(random, nearestDistance);
+                if (cell == -1) break;
+                centerLat[centers] = mCellLat[cell];
+                centerLng[centers] = mCellLng[cell];
+                for (int i = 0; i < n; i++) {
+                    float distance = distance(mCellLat[i], mCellLng[i],
+                            centerLat[centers], centerLng[centers]);
+                    if (distance < nearestDistance[i]) nearestDistance[i] = distance;
+                }
+                centers++;
+            }
+            // Every cell is a center already, so more groups can't do better.
+            if (centers < k) break;
+
+            float lastDistance = 0;
+            float totalDistance = 0;
+            for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+                // step 2: assign each cell to the nearest center.
+                for (int i = 0; i < k; i++) {
+                    groupSumLat[i] = 0;
+                    groupSumLng[i] = 0;
+                    groupCount[i] = 0;
+                }
+                totalDistance = 0;
+
+                for (int i = 0; i < n; i++) {
+                    double lat = mCellLat[i];
+                    double lng = mCellLng[i];
+                    float bestDistance = Float.MAX_VALUE;
+                    int bestIndex = 0;
+                    for (int j = 0; j < k; j++) {
+                        float distance = distance(lat, lng, centerLat[j], centerLng[j]);
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            bestIndex = j;
+                        }
+                    }
+                    int weight = mCellWeight[i];
+                    grouping[i] = bestIndex;
+                    nearestDistance[i] = bestDistance;
+                    groupCount[bestIndex] += weight;
+                    groupSumLat[bestIndex] += lat * weight;
+                    groupSumLng[bestIndex] += lng * weight;
+                    totalDistance += bestDistance * weight;
+                }
+
+                // step 3: calculate new centers
+                for (int i = 0; i < k; i++) {
+                    if (groupCount[i] > 0) {
+                        centerLat[i] = groupSumLat[i] / groupCount[i];
+                        centerLng[i] = groupSumLng[i] / groupCount[i];
+                    }
+                }
+
+                if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
+                        / totalDistance) < STOP_CHANGE_RATIO) {
+                    break;
+                }
+                lastDistance = totalDistance;
+            }
+
+            // (nearestDistance is now a little off, as the centers have moved
+            // since the last assignment, but it is only used to pick the next
+            // center.)
+
+            // step 4: remove empty groups and reassign group number
+            int reassign[] = new int[k];
+            int realK = 0;
+            for (int i = 0; i < k; i++) {
+                if (groupCount[i] > 0) {
+                    reassign[i] = realK++;
+                }
+            }
+
+            // step 5: calculate the final score
+            float score = totalDistance * FloatMath.sqrt(realK);
+
+            if (score < bestScore) {
+                bestScore = score;
+                bestK[0] = realK;
+                for (int i = 0; i < n; i++) {
+                    bestGrouping[i] = reassign[grouping[i]];
+                }
+                if (score == 0) {
+                    break;
+                }
+            }
+        }
+        return bestGrouping;
+    }
+}
@@ -17,19 +17,35 @@
 package com.android.gallery3d.data;
 
 import com.android.gallery3d.common.Utils;
-import com.android.gallery3d.util.IdentityCache;
+import com.android.gallery3d.util.ConcurrentIdentityCache;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// Paths are interned: there is only one Path object for each path string
+// (for as long as it's in use), so Paths can be compared with ==.
+//
+// Paths are used from many threads at once, so none of this takes a lock:
+// a Path's parent and segment never change, its children are kept in a
+// ConcurrentIdentityCache (created on first use), and its object is
+// published with a compare-and-set.
 public class Path {
     private static final String TAG = "Path";
-    private static Path sRoot = new Path(null, "ROOT");
+    private static volatile Path sRoot = new Path(null, "ROOT");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Path, WeakReference> sObjectUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Path.class, WeakReference.class, "mObject");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Path, ConcurrentIdentityCache>
+            sChildrenUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                    Path.class, ConcurrentIdentityCache.class, "mChildren");
 
     private final Path mParent;
     private final String mSegment;
-    private WeakReference<MediaObject> mObject;
-    private IdentityCache<String, Path> mChildren;
+    private volatile WeakReference<MediaObject> mObject;
+    private volatile ConcurrentIdentityCache<String, Path> mChildren;
 
     private Path(Path parent, String segment) {
         mParent = parent;
@@ -37,24 +53,20 @@ public class Path {
     }
 
     public Path getChild(String segment) {
-        synchronized (Path.class) {
-            if (mChildren == null) {
-                mChildren = new IdentityCache<String, Path>();
-            } else {
-                Path p = mChildren.get(segment);
-                if (p != null) return p;
-            }
-
-            Path p = new Path(this, segment);
-            mChildren.put(segment, p);
-            return p;
+        ConcurrentIdentityCache<String, Path> children = mChildren;
+        if (children == null) {
+            sChildrenUpdater.compareAndSet(
+                    this, null, new ConcurrentIdentityCache<String, Path>());
+            children = mChildren;
+        } else {
+            Path p = children.get(segment);
+            if (p != null) return p;
         }
+        return children.putIfAbsent(segment, new Path(this, segment));
     }
 
     public Path getParent() {
-        synchronized (Path.class) {
-            return mParent;
-        }
+        return mParent;
     }
 
     public Path getChild(int segment) {
@@ -66,55 +78,51 @@ public class Path {
     }
 
     public void setObject(MediaObject object) {
-        synchronized (Path.class) {
-            Utils.assertTrue(mObject == null || mObject.get() == null);
-            mObject = new WeakReference<MediaObject>(object);
+        WeakReference<MediaObject> newObject = new WeakReference<MediaObject>(object);
+        while (true) {
+            WeakReference<MediaObject> current = mObject;
+            Utils.assertTrue(current == null || current.get() == null);
+            if (sObjectUpdater.compareAndSet(this, current, newObject)) return;
         }
     }
 
     public MediaObject getObject() {
-        synchronized (Path.class) {
-            return (mObject == null) ? null : mObject.get();
-        }
+        WeakReference<MediaObject> object = mObject;
+        return (object == null) ? null : object.get();
     }
 
     @Override
     public String toString() {
-        synchronized (Path.class) {
-            StringBuilder sb = new StringBuilder();
-            String[] segments = split();
-            for (int i = 0; i < segments.length; i++) {
-                sb.append("/");
-                sb.append(segments[i]);
-            }
-            return sb.toString();
+        StringBuilder sb = new StringBuilder();
+        String[] segments = split();
+        for (int i = 0; i < segments.length; i++) {
+            sb.append("/");
+            sb.append(segments[i]);
         }
+        return sb.toString();
     }
 
     public static Path fromString(String s) {
-        synchronized (Path.class) {
-            String[] segments = split(s);
-            Path current = sRoot;
-            for (int i = 0; i < segments.length; i++) {
-                current = current.getChild(segments[i]);
-            }
-            return current;
+        String[] segments = split(s);
+        Path current = sRoot;
+        for (int i = 0; i < segments.length; i++) {
+            current = current.getChild(segments[i]);
         }
+        return current;
     }
 
+    // The root is the only Path without a parent.
     public String[] split() {
-        synchronized (Path.class) {
-            int n = 0;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                n++;
-            }
-            String[] segments = new String[n];
-            int i = n - 1;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                segments[i--] = p.mSegment;
-            }
-            return segments;
+        int n = 0;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            n++;
         }
+        String[] segments = new String[n];
+        int i = n - 1;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            segments[i--] = p.mSegment;
+        }
+        return segments;
     }
 
     public static String[] split(String s) {
@@ -175,21 +183,19 @@ public class Path {
     }
 
     public String getPrefix() {
-        if (this == sRoot) return "";
+        if (mParent == null) return "";
         return getPrefixPath().mSegment;
     }
 
     public Path getPrefixPath() {
-        synchronized (Path.class) {
-            Path current = this;
-            if (current == sRoot) {
-                throw new IllegalStateException();
-            }
-            while (current.mParent != sRoot) {
-                current = current.mParent;
-            }
-            return current;
+        Path current = this;
+        if (current.mParent == null) {
+            throw new IllegalStateException();
+        }
+        while (current.mParent.mParent != null) {
+            current = current.mParent;
         }
+        return current;
     }
 
     public String getSuffix() {
@@ -199,9 +205,7 @@ public class Path {
 
     // Below are for testing/debugging only
     static void clearAll() {
-        synchronized (Path.class) {
-            sRoot = new Path(null, "");
-        }
+        sRoot = new Path(null, "");
     }
 
     static void dumpAll() {
@@ -209,25 +213,24 @@ public class Path {
     }
 
     static void dumpAll(Path p, String prefix1, String prefix2) {
-        synchronized (Path.class) {
-            MediaObject obj = p.getObject();
-            Log.d(TAG, prefix1 + p.mSegment + ":"
-                    + (obj == null ? "null" : obj.getClass().getSimpleName()));
-            if (p.mChildren != null) {
-                ArrayList<String> childrenKeys = p.mChildren.keys();
-                int i = 0, n = childrenKeys.size();
-                for (String key : childrenKeys) {
-                    Path child = p.mChildren.get(key);
-                    if (child == null) {
-                        ++i;
-                        continue;
-                    }
-                    Log.d(TAG, prefix2 + "|");
-                    if (++i < n) {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
-                    } else {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
-                    }
+        MediaObject obj = p.getObject();
+        Log.d(TAG, prefix1 + p.mSegment + ":"
+                + (obj == null ? "null" : obj.getClass().getSimpleName()));
+        ConcurrentIdentityCache<String, Path> children = p.mChildren;
+        if (children != null) {
+            ArrayList<String> childrenKeys = children.keys();
+            int i = 0, n = childrenKeys.size();
+            for (String key : childrenKeys) {
+                Path child = children.get(key);
+                if (child == null) {
+                    ++i;
+                    continue;
+                }
+                Log.d(TAG, prefix2 + "|");
+                if (++i < n) {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
+                } else {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
                 }
             }
         }
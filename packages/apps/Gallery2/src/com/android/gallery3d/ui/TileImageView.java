@@ -29,7 +29,6 @@ import com.android.gallery3d.data.BitmapPool;
 import com.android.gallery3d.data.DecodeUtils;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.ThreadPool;
-import com.android.gallery3d.util.ThreadPool.CancelListener;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -47,6 +46,14 @@ public class TileImageView extends GLView {
     private static final int BITMAP_SIZE = TILE_SIZE + TILE_BORDER * 2;
     private static final int UPLOAD_LIMIT = 1;
 
+    // The number of threads decoding tiles at most. The decoders come from
+    // the shared thread pool, so we leave some of its threads for others.
+    private static final int MAX_DECODE_WORKERS = 3;
+
+    // Added to the decode priority of the tiles not in the displayed level,
+    // so they are decoded after all those in the displayed level.
+    private static final long OTHER_LEVEL_PRIORITY = 1L << 48;
+
     private static final BitmapPool sTilePool =
             new BitmapPool(BITMAP_SIZE, BITMAP_SIZE, 128);
 
@@ -103,7 +110,7 @@ public class TileImageView extends GLView {
     // The following three queue is guarded by TileImageView.this
     private final TileQueue mRecycledQueue = new TileQueue();
     private final TileQueue mUploadQueue = new TileQueue();
-    private final TileQueue mDecodeQueue = new TileQueue();
+    private final DecodeQueue mDecodeQueue = new DecodeQueue();
 
     // The width and height of the full-sized bitmap
     protected int mImageWidth = SIZE_UNKNOWN;
@@ -120,8 +127,14 @@ public class TileImageView extends GLView {
 
     private final TileUploader mTileUploader = new TileUploader();
     private boolean mIsTextureFreed;
-    private Future<Void> mTileDecoder;
     private final ThreadPool mThreadPool;
+
+    // The running decoders, one slot per worker. A decoder is started when a
+    // tile is queued and a slot is free, and stops when it finds the decode
+    // queue empty. Both fields are guarded by TileImageView.this.
+    private final Future<?>[] mTileDecoders;
+    private boolean mDecodeEnabled = true;
+
     private boolean mBackgroundTileUploaded;
 
     public static interface Model {
@@ -141,14 +154,20 @@ public class TileImageView extends GLView {
         // the original image (down-scaled by a factor of 2^level), but (x, y)
         // still refers to the coordinate on the original image.
         //
-        // The method would be called in another thread.
+        // The method would be called in other threads, possibly several of
+        // them at once.
         public Bitmap getTile(int level, int x, int y, int tileSize,
                 int borderSize, BitmapPool pool);
     }
 
     public TileImageView(GalleryContext context) {
+        this(context, Utils.clamp(Runtime.getRuntime().availableProcessors(),
+                1, MAX_DECODE_WORKERS));
+    }
+
+    TileImageView(GalleryContext context, int decodeWorkers) {
         mThreadPool = context.getThreadPool();
-        mTileDecoder = mThreadPool.submit(new TileDecoder());
+        mTileDecoders = new Future<?>[decodeWorkers];
     }
 
     public void setModel(Model model) {
@@ -354,10 +373,22 @@ public class TileImageView extends GLView {
     public void freeTextures() {
         mIsTextureFreed = true;
 
-        if (mTileDecoder != null) {
-            mTileDecoder.cancel();
-            mTileDecoder.get();
-            mTileDecoder = null;
+        Future<?>[] decoders;
+        synchronized (this) {
+            mDecodeEnabled = false;
+            decoders = mTileDecoders.clone();
+        }
+        for (Future<?> decoder : decoders) {
+            if (decoder != null) decoder.cancel();
+        }
+        for (Future<?> decoder : decoders) {
+            if (decoder != null) decoder.get();
+        }
+        synchronized (this) {
+            // A decoder cancelled before it started has not freed its slot.
+            for (int i = 0; i < mTileDecoders.length; i++) {
+                mTileDecoders[i] = null;
+            }
         }
 
         int n = mActiveTiles.size();
@@ -382,8 +413,8 @@ public class TileImageView extends GLView {
     }
 
     public void prepareTextures() {
-        if (mTileDecoder == null) {
-            mTileDecoder = mThreadPool.submit(new TileDecoder());
+        synchronized (this) {
+            mDecodeEnabled = true;
         }
         if (mIsTextureFreed) {
             layoutTiles(mCenterX, mCenterY, mScale, mRotation);
@@ -473,7 +504,34 @@ public class TileImageView extends GLView {
     synchronized void queueForDecode(Tile tile) {
         if (tile.mTileState == STATE_ACTIVATED) {
             tile.mTileState = STATE_IN_QUEUE;
-            if (mDecodeQueue.push(tile)) notifyAll();
+            tile.mDecodePriority = getDecodePriority(tile);
+            mDecodeQueue.push(tile);
+            startDecoder();
+        }
+    }
+
+    // The decode queue is cleaned whenever the position changes, so the
+    // priorities of the tiles in it are always relative to the same center.
+    // Lower values are decoded first: the tiles of the displayed level, from
+    // the center of the view outwards, then those of the other level.
+    private long getDecodePriority(Tile tile) {
+        int level = tile.mTileLevel;
+        int size = TILE_SIZE << level;
+        long dx = (tile.mX + size / 2 - mCenterX) >> level;
+        long dy = (tile.mY + size / 2 - mCenterY) >> level;
+        long priority = dx * dx + dy * dy;
+        return level == mLevel ? priority : priority + OTHER_LEVEL_PRIORITY;
+    }
+
+    // Starts another decoder if there is a free slot. This must be called
+    // with the TileImageView.this lock held.
+    private void startDecoder() {
+        if (!mDecodeEnabled) return;
+        for (int i = 0; i < mTileDecoders.length; i++) {
+            if (mTileDecoders[i] == null) {
+                mTileDecoders[i] = mThreadPool.submit(new TileDecoder(i));
+                return;
+            }
         }
     }
 
@@ -642,6 +700,7 @@ public class TileImageView extends GLView {
         public int mY;
         public int mTileLevel;
         public Tile mNext;
+        public long mDecodePriority;
         public Bitmap mDecodedTile;
         public volatile int mTileState = STATE_ACTIVATED;
 
@@ -741,33 +800,86 @@ public class TileImageView extends GLView {
         }
     }
 
-    private class TileDecoder implements ThreadPool.Job<Void> {
+    // A binary heap of the tiles to decode, ordered by mDecodePriority.
+    private static class DecodeQueue {
+        private Tile[] mHeap = new Tile[16];
+        private int mSize;
 
-        private CancelListener mNotifier = new CancelListener() {
-            @Override
-            public void onCancel() {
-                synchronized (TileImageView.this) {
-                    TileImageView.this.notifyAll();
+        public Tile pop() {
+            if (mSize == 0) return null;
+            Tile[] heap = mHeap;
+            Tile result = heap[0];
+            Tile last = heap[--mSize];
+            heap[mSize] = null;
+            if (mSize == 0) return result;
+
+            // Sift the last tile down from the top.
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) break;
+                if (child + 1 < mSize && heap[child + 1].mDecodePriority
+                        < heap[child].mDecodePriority) {
+                    child++;
                 }
+                if (last.mDecodePriority <= heap[child].mDecodePriority) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return result;
+        }
+
+        public void push(Tile tile) {
+            if (mSize == mHeap.length) {
+                Tile[] heap = new Tile[mSize * 2];
+                System.arraycopy(mHeap, 0, heap, 0, mSize);
+                mHeap = heap;
+            }
+            Tile[] heap = mHeap;
+
+            // Sift the new tile up from the bottom.
+            int i = mSize++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heap[parent].mDecodePriority <= tile.mDecodePriority) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = tile;
+        }
+
+        public void clean() {
+            for (int i = 0; i < mSize; i++) {
+                mHeap[i] = null;
             }
-        };
+            mSize = 0;
+        }
+    }
+
+    // Decodes the queued tiles until the queue is empty or the decoder is
+    // cancelled, then frees its slot in mTileDecoders.
+    private class TileDecoder implements ThreadPool.Job<Void> {
+        private final int mSlot;
+
+        public TileDecoder(int slot) {
+            mSlot = slot;
+        }
 
         @Override
         public Void run(JobContext jc) {
             jc.setMode(ThreadPool.MODE_NONE);
-            jc.setCancelListener(mNotifier);
-            while (!jc.isCancelled()) {
-                Tile tile = null;
-                synchronized(TileImageView.this) {
-                    tile = mDecodeQueue.pop();
-                    if (tile == null && !jc.isCancelled()) {
-                        Utils.waitWithoutInterrupt(TileImageView.this);
+            while (true) {
+                Tile tile;
+                synchronized (TileImageView.this) {
+                    tile = jc.isCancelled() ? null : mDecodeQueue.pop();
+                    if (tile == null) {
+                        mTileDecoders[mSlot] = null;
+                        return null;
                     }
                 }
-                if (tile == null) continue;
                 if (decodeTile(tile)) queueForUpload(tile);
             }
-            return null;
         }
     }
 }
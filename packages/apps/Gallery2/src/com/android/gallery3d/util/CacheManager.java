@@ -21,6 +21,7 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.common.ConcurrentBlobCache;
 
 import java.io.File;
 import java.io.IOException;
@@ -38,6 +39,19 @@ public class CacheManager {
     // This can only be called from data thread.
     public static BlobCache getCache(Context context, String filename,
             int maxEntries, int maxBytes, int version) {
+        return getCache(context, filename, maxEntries, maxBytes, version, false);
+    }
+
+    // Like getCache(), but the returned cache can be used by several threads
+    // at once. The same file name must not be used with getCache().
+    public static ConcurrentBlobCache getConcurrentCache(Context context,
+            String filename, int maxEntries, int maxBytes, int version) {
+        return (ConcurrentBlobCache) getCache(context, filename, maxEntries,
+                maxBytes, version, true);
+    }
+
+    private static BlobCache getCache(Context context, String filename,
+            int maxEntries, int maxBytes, int version, boolean concurrent) {
         synchronized (sCacheMap) {
             if (!sOldCheckDone) {
                 removeOldFilesIfNecessary(context);
@@ -48,8 +62,11 @@ public class CacheManager {
                 File cacheDir = context.getExternalCacheDir();
                 String path = cacheDir.getAbsolutePath() + "/" + filename;
                 try {
-                    cache = new BlobCache(path, maxEntries, maxBytes, false,
-                            version);
+                    cache = concurrent
+                            ? new ConcurrentBlobCache(path, maxEntries, maxBytes,
+                                    false, version)
+                            : new BlobCache(path, maxEntries, maxBytes, false,
+                                    version);
                     sCacheMap.put(filename, cache);
                 } catch (IOException e) {
                     Log.e(TAG, "Cannot instantiate cache!", e);
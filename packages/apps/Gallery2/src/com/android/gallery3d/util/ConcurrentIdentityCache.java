@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A version of IdentityCache which can be used from many threads without a
+// lock: values are weakly referenced from a ConcurrentHashMap, and
+// putIfAbsent() makes sure that all the threads asking for the same key get
+// the same value.
+//
+// Entries whose values have been collected are removed when values are
+// added, so that lookups never touch the reference queue (whose poll() takes
+// a lock).
+public class ConcurrentIdentityCache<K, V> {
+
+    private final ConcurrentHashMap<K, Entry<K, V>> mWeakMap =
+            new ConcurrentHashMap<K, Entry<K, V>>(4, 0.75f, 1);
+    private final ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
+
+    public ConcurrentIdentityCache() {
+    }
+
+    private static class Entry<K, V> extends WeakReference<V> {
+        final K mKey;
+
+        public Entry(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            mKey = key;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void cleanUpWeakMap() {
+        Entry<K, V> entry = (Entry<K, V>) mQueue.poll();
+        while (entry != null) {
+            // Only remove the entry if it hasn't been replaced already
+            mWeakMap.remove(entry.mKey, entry);
+            entry = (Entry<K, V>) mQueue.poll();
+        }
+    }
+
+    public V get(K key) {
+        Entry<K, V> entry = mWeakMap.get(key);
+        return entry == null ? null : entry.get();
+    }
+
+    // Returns the value already in the cache for the key, if any; otherwise
+    // adds the given value and returns it.
+    public V putIfAbsent(K key, V value) {
+        cleanUpWeakMap();
+        Entry<K, V> newEntry = new Entry<K, V>(key, value, mQueue);
+        while (true) {
+            Entry<K, V> entry = mWeakMap.putIfAbsent(key, newEntry);
+            if (entry == null) return value;
+            V current = entry.get();
+            if (current != null) return current;
+            // The value has been collected; replace its entry, unless some
+            // other thread has done so first.
+            if (mWeakMap.replace(key, entry, newEntry)) return value;
+        }
+    }
+
+    // This is for debugging only
+    public ArrayList<K> keys() {
+        return new ArrayList<K>(mWeakMap.keySet());
+    }
+}
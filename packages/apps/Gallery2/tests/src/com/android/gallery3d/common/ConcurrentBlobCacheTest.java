@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.common;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentBlobCacheTest extends AndroidTestCase {
+    private static final String TAG = "ConcurrentBlobCacheTest";
+
+    private static final String TEST_FILE_NAME = "/sdcard/cbtest";
+    private static final String TEST_FILE_NAME_2 = "/sdcard/cbtest2";
+    private static final int MAX_ENTRIES = 100;
+    private static final int MAX_BYTES = 1000;
+
+    // Roughly the size of a micro thumbnail in the image cache
+    private static final int THUMBNAIL_SIZE = 16 * 1024;
+    private static final int THUMBNAIL_COUNT = 400;
+    private static final int LOOKUPS_PER_RUN = 8000;
+
+    private static byte[] makeData(long key, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (key * 31 + i);
+        }
+        return data;
+    }
+
+    private static void assertData(long key, byte[] data, int length) {
+        byte[] expected = makeData(key, length);
+        for (int i = 0; i < length; i++) {
+            assertEquals(expected[i], data[i]);
+        }
+    }
+
+    @MediumTest
+    public void testSameFormat() throws IOException {
+        // Written by the concurrent cache, read by the plain one...
+        ConcurrentBlobCache cbc = new ConcurrentBlobCache(TEST_FILE_NAME,
+                MAX_ENTRIES, MAX_BYTES, true);
+        for (int i = 0; i < 10; i++) {
+            cbc.insert(i, makeData(i, 10 + i));
+        }
+        cbc.close();
+
+        BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, false);
+        for (int i = 0; i < 10; i++) {
+            byte[] data = bc.lookup(i);
+            assertEquals(10 + i, data.length);
+            assertData(i, data, data.length);
+        }
+        bc.insert(10, makeData(10, 20));
+        bc.close();
+
+        // ...and the other way around.
+        cbc = new ConcurrentBlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, false);
+        for (int i = 0; i <= 10; i++) {
+            byte[] data = cbc.lookup(i);
+            assertNotNull(data);
+            assertData(i, data, data.length);
+        }
+        assertNull(cbc.lookup(11));
+        assertEquals(11, cbc.getActiveCount());
+        cbc.close();
+    }
+
+    @MediumTest
+    public void testCopyOver() throws IOException {
+        ConcurrentBlobCache cbc = new ConcurrentBlobCache(TEST_FILE_NAME,
+                MAX_ENTRIES, MAX_BYTES, true);
+        cbc.insert(1, makeData(1, 100));
+        // Fill the active region so that it flips, moving key 1 to the
+        // inactive region.
+        for (int i = 2; i < 10; i++) {
+            cbc.insert(i, makeData(i, 100));
+        }
+        assertEquals(1, cbc.getActiveCount());
+
+        // Looking the key up copies it back to the active region.
+        BlobCache.LookupRequest req = new BlobCache.LookupRequest();
+        req.key = 1;
+        assertTrue(cbc.lookup(req));
+        assertEquals(100, req.length);
+        assertData(1, req.buffer, req.length);
+        assertEquals(2, cbc.getActiveCount());
+        cbc.close();
+    }
+
+    // Several threads look up blobs while one thread keeps inserting new
+    // ones, which makes the regions flip now and then. Every blob which is
+    // found must have the right contents.
+    @LargeTest
+    public void testConcurrentLookupsAndInserts() throws Exception {
+        final ConcurrentBlobCache cbc = new ConcurrentBlobCache(TEST_FILE_NAME,
+                1000, 200000, true);
+        final int keyCount = 300;
+        final AtomicInteger inserted = new AtomicInteger();
+        final AtomicInteger found = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Random random = new Random(0);
+                    for (int i = 0; i < 2000; i++) {
+                        long key = random.nextInt(keyCount);
+                        cbc.insert(key, makeData(key, (int) (100 + key * 3)));
+                        inserted.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final Random random = new Random(t + 1);
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        BlobCache.LookupRequest req = new BlobCache.LookupRequest();
+                        for (int i = 0; i < 5000; i++) {
+                            req.key = random.nextInt(keyCount);
+                            if (cbc.lookup(req)) {
+                                assertEquals(100 + req.key * 3, req.length);
+                                assertData(req.key, req.buffer, req.length);
+                                found.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+        }
+
+        writer.start();
+        for (Thread reader : readers) reader.start();
+        writer.join();
+        for (Thread reader : readers) reader.join();
+        cbc.close();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(2000, inserted.get());
+        Log.v(TAG, found.get() + " blobs found by concurrent lookups");
+    }
+
+    private interface Lookup {
+        boolean lookup(BlobCache.LookupRequest req) throws IOException;
+    }
+
+    // Runs LOOKUPS_PER_RUN lookups of random thumbnails, spread over the
+    // given number of threads, and returns the number of lookups per second.
+    private static long measureThroughput(final Lookup lookup, int threadCount)
+            throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final int lookupsPerThread = LOOKUPS_PER_RUN / threadCount;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        BlobCache.LookupRequest req = new BlobCache.LookupRequest();
+                        req.buffer = new byte[THUMBNAIL_SIZE];
+                        for (int i = 0; i < lookupsPerThread; i++) {
+                            req.key = random.nextInt(THUMBNAIL_COUNT);
+                            assertTrue(lookup.lookup(req));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        long elapsed = System.nanoTime() - start;
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        return LOOKUPS_PER_RUN * 1000000000L / elapsed;
+    }
+
+    // Compares the thumbnail lookup throughput of a BlobCache used under a
+    // lock (as ImageCacheService used to) with that of a ConcurrentBlobCache,
+    // as the number of threads grows.
+    @LargeTest
+    public void testLookupThroughput() throws Exception {
+        int maxEntries = THUMBNAIL_COUNT * 4;
+        int maxBytes = THUMBNAIL_COUNT * (THUMBNAIL_SIZE + 100) * 2;
+        final BlobCache bc = new BlobCache(TEST_FILE_NAME_2, maxEntries, maxBytes, true);
+        final ConcurrentBlobCache cbc = new ConcurrentBlobCache(TEST_FILE_NAME,
+                maxEntries, maxBytes, true);
+        for (int i = 0; i < THUMBNAIL_COUNT; i++) {
+            byte[] data = makeData(i, THUMBNAIL_SIZE);
+            bc.insert(i, data);
+            cbc.insert(i, data);
+        }
+        bc.syncAll();
+        cbc.syncAll();
+
+        Lookup locked = new Lookup() {
+            public boolean lookup(BlobCache.LookupRequest req) throws IOException {
+                synchronized (bc) {
+                    return bc.lookup(req);
+                }
+            }
+        };
+        Lookup concurrent = new Lookup() {
+            public boolean lookup(BlobCache.LookupRequest req) throws IOException {
+                return cbc.lookup(req);
+            }
+        };
+
+        // Warm up
+        measureThroughput(locked, 1);
+        measureThroughput(concurrent, 1);
+        for (int threadCount = 1; threadCount <= 8; threadCount *= 2) {
+            long lockedRate = measureThroughput(locked, threadCount);
+            long concurrentRate = measureThroughput(concurrent, threadCount);
+            Log.v(TAG, threadCount + " threads: " + lockedRate
+                    + " lookups/s with a lock, " + concurrentRate
+                    + " lookups/s concurrently");
+        }
+        bc.close();
+        cbc.close();
+    }
+}
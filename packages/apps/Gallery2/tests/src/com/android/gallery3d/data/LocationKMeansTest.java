@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.gallery3d.util.GalleryUtils;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+@MediumTest
+public class LocationKMeansTest extends TestCase {
+    private static final String TAG = "LocationKMeansTest";
+
+    // Some places, as latitude and longitude in degrees.
+    private static final double[][] CITIES = {
+        {37.42, -122.08},  // Mountain View
+        {40.71, -74.01},   // New York
+        {51.51, -0.13},    // London
+        {35.68, 139.69},   // Tokyo
+        {-33.87, 151.21},  // Sydney
+        {48.86, 2.35},     // Paris
+    };
+
+    private static class Points {
+        final double[] mLatRad;
+        final double[] mLngRad;
+
+        Points(int n) {
+            mLatRad = new double[n];
+            mLngRad = new double[n];
+        }
+
+        // Puts a point around (lat, lng), about sigma meters away.
+        void set(int i, Random random, double lat, double lng, double sigma) {
+            double degrees = sigma / 111000;
+            mLatRad[i] = Math.toRadians(lat + random.nextGaussian() * degrees);
+            mLngRad[i] = Math.toRadians(lng + random.nextGaussian() * degrees
+                    / Math.cos(Math.toRadians(lat)));
+        }
+    }
+
+    // Most photos are taken around home, the others on trips to other
+    // cities, and some on the way.
+    private static Points traveller(int n, long seed) {
+        Random random = new Random(seed);
+        Points points = new Points(n);
+        for (int i = 0; i < n; i++) {
+            int r = random.nextInt(100);
+            if (r < 60) {
+                points.set(i, random, CITIES[0][0], CITIES[0][1], 5000);
+            } else if (r < 95) {
+                double[] city = CITIES[1 + random.nextInt(CITIES.length - 1)];
+                points.set(i, random, city[0], city[1], 2000);
+            } else {
+                points.set(i, random, random.nextDouble() * 120 - 60,
+                        random.nextDouble() * 360 - 180, 0);
+            }
+        }
+        return points;
+    }
+
+    // Photos spread all over an area of about 1000km.
+    private static Points spread(int n, long seed) {
+        Random random = new Random(seed);
+        Points points = new Points(n);
+        for (int i = 0; i < n; i++) {
+            points.set(i, random, 45 + random.nextDouble() * 9,
+                    5 + random.nextDouble() * 12, 0);
+        }
+        return points;
+    }
+
+    // Photos taken in a few places, many of them at the very same spot (as
+    // happens when the location comes from the network).
+    private static Points spots(int n, long seed) {
+        Random random = new Random(seed);
+        Points points = new Points(n);
+        double[][] spots = new double[50][];
+        for (int i = 0; i < spots.length; i++) {
+            double[] city = CITIES[random.nextInt(CITIES.length)];
+            spots[i] = new double[] {city[0] + random.nextGaussian() * 0.05,
+                    city[1] + random.nextGaussian() * 0.05};
+        }
+        for (int i = 0; i < n; i++) {
+            double[] spot = spots[random.nextInt(spots.length)];
+            points.set(i, random, spot[0], spot[1], 0);
+        }
+        return points;
+    }
+
+    // The score which kMeans() minimizes, of the given grouping: the sum of
+    // the distances from each point to the center of its group, times sqrt(k).
+    private static double score(Points points, int[] grouping, int k) {
+        int n = grouping.length;
+        double[] lat = new double[k];
+        double[] lng = new double[k];
+        int[] count = new int[k];
+        for (int i = 0; i < n; i++) {
+            lat[grouping[i]] += points.mLatRad[i];
+            lng[grouping[i]] += points.mLngRad[i];
+            count[grouping[i]]++;
+        }
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            int g = grouping[i];
+            total += GalleryUtils.fastDistanceMeters(points.mLatRad[i],
+                    points.mLngRad[i], lat[g] / count[g], lng[g] / count[g]);
+        }
+        return total * Math.sqrt(k);
+    }
+
+    private static void checkGrouping(int[] grouping, int k) {
+        boolean[] used = new boolean[k];
+        for (int g : grouping) {
+            assertTrue(g >= 0 && g < k);
+            used[g] = true;
+        }
+        for (boolean u : used) {
+            assertTrue(u);
+        }
+    }
+
+    public void testOnePlace() {
+        Points points = new Points(100);
+        Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            points.set(i, random, CITIES[2][0], CITIES[2][1], 0);
+        }
+        int[] bestK = new int[1];
+        int[] grouping = LocationKMeans.kMeans(points.mLatRad, points.mLngRad, bestK);
+        assertEquals(1, bestK[0]);
+        checkGrouping(grouping, 1);
+    }
+
+    public void testOnePoint() {
+        int[] bestK = new int[1];
+        int[] grouping = LocationKMeans.kMeans(new double[] {0.1}, new double[] {0.2}, bestK);
+        assertEquals(1, bestK[0]);
+        assertEquals(0, grouping[0]);
+    }
+
+    public void testCities() {
+        // Photos around each of the cities: each city is a group.
+        int n = 3000;
+        Random random = new Random(0);
+        Points points = new Points(n);
+        int[] city = new int[n];
+        for (int i = 0; i < n; i++) {
+            city[i] = random.nextInt(CITIES.length);
+            points.set(i, random, CITIES[city[i]][0], CITIES[city[i]][1], 3000);
+        }
+        int[] bestK = new int[1];
+        int[] grouping = LocationKMeans.kMeans(points.mLatRad, points.mLngRad, bestK);
+        assertEquals(CITIES.length, bestK[0]);
+        checkGrouping(grouping, bestK[0]);
+
+        int[] cityGroup = new int[CITIES.length];
+        Arrays.fill(cityGroup, -1);
+        for (int i = 0; i < n; i++) {
+            if (cityGroup[city[i]] == -1) cityGroup[city[i]] = grouping[i];
+            assertEquals(cityGroup[city[i]], grouping[i]);
+        }
+    }
+
+    // The groups are as good as those found by running k-means on every
+    // point, on all kinds of distributions.
+    public void testAsGoodAsFullKMeans() {
+        for (long seed = 0; seed < 3; seed++) {
+            for (Points points : new Points[] {traveller(2000, seed),
+                    spread(2000, seed), spots(2000, seed)}) {
+                int[] bestK = new int[1];
+                int[] grouping = LocationKMeans.kMeans(
+                        points.mLatRad, points.mLngRad, bestK);
+                checkGrouping(grouping, bestK[0]);
+                int[] fullK = new int[1];
+                int[] fullGrouping = fullKMeans(points.mLatRad, points.mLngRad, fullK);
+                double score = score(points, grouping, bestK[0]);
+                double fullScore = score(points, fullGrouping, fullK[0]);
+                assertTrue(score + " vs " + fullScore, score <= fullScore * 1.05);
+            }
+        }
+    }
+
+    // Compares the time taken by kMeans() with that of k-means on every
+    // point, as LocationClustering used to do it.
+    @LargeTest
+    public void testBenchmark() {
+        for (int n : new int[] {1000, 10000, 30000}) {
+            Points[] sets = {traveller(n, 0), spread(n, 0), spots(n, 0)};
+            String[] names = {"traveller", "spread", "spots"};
+            for (int i = 0; i < sets.length; i++) {
+                Points points = sets[i];
+                int[] bestK = new int[1];
+                long start = System.nanoTime();
+                int[] grouping = LocationKMeans.kMeans(points.mLatRad, points.mLngRad, bestK);
+                long time = System.nanoTime() - start;
+                int[] fullK = new int[1];
+                start = System.nanoTime();
+                int[] fullGrouping = fullKMeans(points.mLatRad, points.mLngRad, fullK);
+                long fullTime = System.nanoTime() - start;
+                Log.v(TAG, names[i] + " " + n + ": " + time / 1000000 + "ms, k=" + bestK[0]
+                        + ", score " + (long) score(points, grouping, bestK[0])
+                        + "; full k-means " + fullTime / 1000000 + "ms, k=" + fullK[0]
+                        + ", score " + (long) score(points, fullGrouping, fullK[0]));
+            }
+        }
+    }
+
+    // k-means on every point, for each k from 1 to 20, with the initial
+    // centers spread evenly over the points. This is how LocationClustering
+    // grouped the photos before LocationKMeans.
+    private static int[] fullKMeans(double[] latRad, double[] lngRad, int[] bestK) {
+        int n = latRad.length;
+        int minK = Math.min(n, 1);
+        int maxK = Math.min(n, 20);
+
+        double[] centerLat = new double[maxK];
+        double[] centerLng = new double[maxK];
+        double[] sumLat = new double[maxK];
+        double[] sumLng = new double[maxK];
+        int[] groupCount = new int[maxK];
+        int[] grouping = new int[n];
+
+        float bestScore = Float.MAX_VALUE;
+        int[] bestGrouping = new int[n];
+        bestK[0] = 1;
+
+        float lastDistance = 0;
+        float totalDistance = 0;
+
+        for (int k = minK; k <= maxK; k++) {
+            int delta = n / k;
+            for (int i = 0; i < k; i++) {
+                centerLat[i] = latRad[i * delta];
+                centerLng[i] = lngRad[i * delta];
+            }
+
+            for (int iter = 0; iter < 30; iter++) {
+                for (int i = 0; i < k; i++) {
+                    sumLat[i] = 0;
+                    sumLng[i] = 0;
+                    groupCount[i] = 0;
+                }
+                totalDistance = 0;
+
+                for (int i = 0; i < n; i++) {
+                    float bestDistance = Float.MAX_VALUE;
+                    int bestIndex = 0;
+                    for (int j = 0; j < k; j++) {
+                        float distance = (float) GalleryUtils.fastDistanceMeters(
+                                latRad[i], lngRad[i], centerLat[j], centerLng[j]);
+                        if (distance < 1) {
+                            distance = 0;
+                        }
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            bestIndex = j;
+                        }
+                    }
+                    grouping[i] = bestIndex;
+                    groupCount[bestIndex]++;
+                    sumLat[bestIndex] += latRad[i];
+                    sumLng[bestIndex] += lngRad[i];
+                    totalDistance += bestDistance;
+                }
+
+                for (int i = 0; i < k; i++) {
+                    if (groupCount[i] > 0) {
+                        centerLat[i] = sumLat[i] / groupCount[i];
+                        centerLng[i] = sumLng[i] / groupCount[i];
+                    }
+                }
+
+                if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
+                        / totalDistance) < 0.01f) {
+                    break;
+                }
+                lastDistance = totalDistance;
+            }
+
+            int reassign[] = new int[k];
+            int realK = 0;
+            for (int i = 0; i < k; i++) {
+                if (groupCount[i] > 0) {
+                    reassign[i] = realK++;
+                }
+            }
+
+            float score = totalDistance * (float) Math.sqrt(realK);
+            if (score < bestScore) {
+                bestScore = score;
+                bestK[0] = realK;
+                for (int i = 0; i < n; i++) {
+                    bestGrouping[i] = reassign[grouping[i]];
+                }
+                if (score == 0) {
+                    break;
+                }
+            }
+        }
+        return bestGrouping;
+    }
+}
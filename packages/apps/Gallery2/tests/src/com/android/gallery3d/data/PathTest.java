@@ -17,12 +17,22 @@
 package com.android.gallery3d.data;
 
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PathTest extends AndroidTestCase {
-    @SuppressWarnings("unused")
     private static final String TAG = "PathTest";
 
+    private static final int THREAD_COUNT = 8;
+    private static final int ITEM_COUNT = 2000;
+    private static final int LOOKUPS_PER_RUN = 200000;
+
     @SmallTest
     public void testToString() {
         Path p = Path.fromString("/hello/world");
@@ -79,4 +89,117 @@ public class PathTest extends AndroidTestCase {
         assertEquals("{bb,ccc}", s[1]);
         assertEquals("d", s[2]);
     }
+
+    @SmallTest
+    public void testObject() {
+        Path p = Path.fromString("/test/object/1");
+        assertNull(p.getObject());
+        MockItem item = new MockItem(p);
+        assertSame(item, p.getObject());
+        assertSame(item, Path.fromString("/test/object/1").getObject());
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    // Runs the task on THREAD_COUNT threads started together, and rethrows
+    // the first failure.
+    private static void runThreads(final Task task, int threadCount) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(thread);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    // Threads racing to create the same paths must all get the same Path
+    // objects.
+    @MediumTest
+    public void testConcurrentInterning() throws Exception {
+        final Path[][] found = new Path[THREAD_COUNT][ITEM_COUNT];
+        runThreads(new Task() {
+            public void run(int thread) {
+                for (int i = 0; i < ITEM_COUNT; i++) {
+                    found[thread][i] = Path.fromString("/race/" + (i % 7) + "/" + i);
+                }
+            }
+        }, THREAD_COUNT);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            Path p = found[0][i];
+            assertEquals("/race/" + (i % 7) + "/" + i, p.toString());
+            assertSame(Path.fromString("/race/" + (i % 7)), p.getParent());
+            for (int t = 1; t < THREAD_COUNT; t++) {
+                assertSame(p, found[t][i]);
+            }
+        }
+    }
+
+    // Runs LOOKUPS_PER_RUN lookups of random items (a fromString() and a
+    // getObject() each), spread over the given number of threads, and
+    // returns the number of lookups per second.
+    private static long measureThroughput(final boolean locked, int threadCount)
+            throws Exception {
+        final int lookupsPerThread = LOOKUPS_PER_RUN / threadCount;
+        long start = System.nanoTime();
+        runThreads(new Task() {
+            public void run(int thread) {
+                Random random = new Random(thread);
+                for (int i = 0; i < lookupsPerThread; i++) {
+                    String s = "/bench/all/" + random.nextInt(ITEM_COUNT);
+                    MediaObject object;
+                    if (locked) {
+                        // All Path operations used to hold the Path.class lock
+                        synchronized (Path.class) {
+                            object = Path.fromString(s).getObject();
+                        }
+                    } else {
+                        object = Path.fromString(s).getObject();
+                    }
+                    assertNotNull(object);
+                }
+            }
+        }, threadCount);
+        long elapsed = System.nanoTime() - start;
+        return LOOKUPS_PER_RUN * 1000000000L / elapsed;
+    }
+
+    // Compares the throughput of Path lookups under one global lock (as they
+    // used to be) with that of the lock-free version, as the number of
+    // threads grows.
+    @LargeTest
+    public void testLookupThroughput() throws Exception {
+        ArrayList<MediaObject> items = new ArrayList<MediaObject>();
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            items.add(new MockItem(Path.fromString("/bench/all/" + i)));
+        }
+
+        // Warm up
+        measureThroughput(true, 1);
+        measureThroughput(false, 1);
+        for (int threadCount = 1; threadCount <= THREAD_COUNT; threadCount *= 2) {
+            long lockedRate = measureThroughput(true, threadCount);
+            long concurrentRate = measureThroughput(false, threadCount);
+            Log.v(TAG, threadCount + " threads: " + lockedRate
+                    + " lookups/s with a lock, " + concurrentRate
+                    + " lookups/s lock-free");
+        }
+        // Keep the items (and so their paths) alive until the end
+        assertEquals(ITEM_COUNT, items.size());
+    }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.ui;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Looper;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.gallery3d.app.GalleryContext;
+import com.android.gallery3d.data.BitmapPool;
+import com.android.gallery3d.data.DataManager;
+import com.android.gallery3d.util.ThreadPool;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+@MediumTest
+public class TileImageViewTest extends TestCase {
+    private static final String TAG = "TileImageViewTest";
+
+    // A 22.7 megapixel photo, shown at full size in a view of 5 x 3 tiles.
+    private static final int TILE_SIZE = 254;
+    private static final int IMAGE_WIDTH = TILE_SIZE * 22;
+    private static final int IMAGE_HEIGHT = TILE_SIZE * 16;
+    private static final int VIEW_WIDTH = TILE_SIZE * 5;
+    private static final int VIEW_HEIGHT = TILE_SIZE * 3;
+    // A little off the center of the photo, so no two tiles are at the
+    // same distance from the center of the view.
+    private static final int CENTER_X = IMAGE_WIDTH / 2 + TILE_SIZE / 4;
+    private static final int CENTER_Y = IMAGE_HEIGHT / 2 + TILE_SIZE / 4;
+    // With the view at the center of the photo, it shows 6 x 4 tiles.
+    private static final int CENTER_TILE_COUNT = 24;
+
+    private static final long TIMEOUT = 10000;
+
+    private final ThreadPool mThreadPool = new ThreadPool();
+
+    private final GalleryContext mContext = new GalleryContext() {
+        public DataManager getDataManager() { return null; }
+        public Context getAndroidContext() { return null; }
+        public Looper getMainLooper() { return null; }
+        public Resources getResources() { return null; }
+        public ThreadPool getThreadPool() { return mThreadPool; }
+    };
+
+    // A model which computes its tiles, and records the order they are
+    // asked for. If it is closed, the first getTile() waits until it is
+    // opened.
+    private static class TileModel implements TileImageView.Model {
+        final ArrayList<int[]> mRequests = new ArrayList<int[]>();
+        private final int mWork;
+        private boolean mOpen;
+
+        TileModel(int work, boolean open) {
+            mWork = work;
+            mOpen = open;
+        }
+
+        public int getLevelCount() { return 5; }
+        public ScreenNail getScreenNail() { return null; }
+        public int getImageWidth() { return IMAGE_WIDTH; }
+        public int getImageHeight() { return IMAGE_HEIGHT; }
+
+        public synchronized void open() {
+            mOpen = true;
+            notifyAll();
+        }
+
+        public synchronized int[] waitForRequests(int count) throws Exception {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (mRequests.size() < count) {
+                long now = System.currentTimeMillis();
+                assertTrue("timeout", now < end);
+                wait(end - now);
+            }
+            return mRequests.get(0);
+        }
+
+        public synchronized int getRequestCount() {
+            return mRequests.size();
+        }
+
+        public Bitmap getTile(int level, int x, int y, int tileSize,
+                int borderSize, BitmapPool pool) {
+            synchronized (this) {
+                mRequests.add(new int[] {level, x, y});
+                notifyAll();
+                while (!mOpen) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+
+            int size = tileSize + 2 * borderSize;
+            Bitmap bitmap = pool == null ? null : pool.getBitmap();
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(size, size, Config.ARGB_8888);
+            }
+            // Stand-in for the decoding work.
+            int[] pixels = new int[size * size];
+            for (int i = 0; i < pixels.length; i++) {
+                int v = i ^ (x + y);
+                for (int j = 0; j < mWork; j++) {
+                    v = v * 1103515245 + 12345;
+                }
+                pixels[i] = 0xff000000 | (v >>> 8);
+            }
+            bitmap.setPixels(pixels, 0, size, 0, 0, size, size);
+            return bitmap;
+        }
+    }
+
+    private TileImageView createView(TileModel model, int decodeWorkers) {
+        TileImageView view = new TileImageView(mContext, decodeWorkers);
+        view.attachToRoot(new GLRootStub());
+        view.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+        view.setModel(model);
+        view.setPosition(CENTER_X, CENTER_Y, 1f, 0);
+        return view;
+    }
+
+    // Drawing the view queues its missing tiles. The decoders wait for the
+    // lock, so they only start once all the tiles are queued.
+    private static void render(TileImageView view) {
+        synchronized (view) {
+            view.render(new GLCanvasStub());
+        }
+    }
+
+    private static long distance(int[] request) {
+        int size = TILE_SIZE << request[0];
+        long dx = request[1] + size / 2 - CENTER_X;
+        long dy = request[2] + size / 2 - CENTER_Y;
+        return dx * dx + dy * dy;
+    }
+
+    public void testCenterFirst() throws Exception {
+        TileModel model = new TileModel(0, true);
+        TileImageView view = createView(model, 1);
+        render(view);
+        model.waitForRequests(CENTER_TILE_COUNT);
+        view.freeTextures();
+
+        assertEquals(CENTER_TILE_COUNT, model.getRequestCount());
+        int[] first = model.mRequests.get(0);
+        assertEquals(0, first[0]);
+        assertTrue(first[1] <= CENTER_X && CENTER_X < first[1] + TILE_SIZE);
+        assertTrue(first[2] <= CENTER_Y && CENTER_Y < first[2] + TILE_SIZE);
+        for (int i = 1; i < CENTER_TILE_COUNT; i++) {
+            assertTrue(distance(model.mRequests.get(i - 1))
+                    <= distance(model.mRequests.get(i)));
+        }
+    }
+
+    public void testOutOfRangeCancelled() throws Exception {
+        TileModel model = new TileModel(0, false);
+        TileImageView view = createView(model, 1);
+        render(view);
+        int[] first = model.waitForRequests(1);
+
+        // Move to the top-left corner while the first tile is decoding; the
+        // tiles queued for the center are not decoded.
+        view.setPosition(VIEW_WIDTH / 2, VIEW_HEIGHT / 2, 1f, 0);
+        render(view);
+        model.open();
+        model.waitForRequests(1 + 15);
+        Thread.sleep(100);
+        view.freeTextures();
+
+        assertEquals(1 + 15, model.getRequestCount());
+        assertEquals(CENTER_X / TILE_SIZE, first[1] / TILE_SIZE);
+        for (int i = 1; i < model.mRequests.size(); i++) {
+            int[] request = model.mRequests.get(i);
+            assertTrue(request[1] < VIEW_WIDTH && request[2] < VIEW_HEIGHT);
+        }
+    }
+
+    public void testDecodeAfterFree() throws Exception {
+        TileModel model = new TileModel(0, true);
+        TileImageView view = createView(model, 2);
+        view.freeTextures();
+        view.prepareTextures();
+        render(view);
+        model.waitForRequests(CENTER_TILE_COUNT);
+        view.freeTextures();
+    }
+
+    // Decodes the tiles visible at the center of a large photo, with 1, 2 and
+    // 4 decode workers.
+    @LargeTest
+    public void testDecodeThroughput() throws Exception {
+        final int rounds = 5;
+        for (int workers = 1; workers <= 4; workers *= 2) {
+            long total = 0;
+            for (int i = 0; i < rounds + 1; i++) {
+                TileModel model = new TileModel(20, true);
+                TileImageView view = createView(model, workers);
+                long start = System.nanoTime();
+                render(view);
+                model.waitForRequests(CENTER_TILE_COUNT);
+                // Wait for the last tiles to be decoded, too.
+                view.freeTextures();
+                // The first round is a warm up.
+                if (i > 0) total += System.nanoTime() - start;
+            }
+            Log.v(TAG, workers + " workers: " + CENTER_TILE_COUNT
+                    + " tiles in " + total / rounds / 1000000 + "ms");
+        }
+    }
+}
@@ -5,9 +5,11 @@ import java.io.InputStream;
 import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 import android.content.ContentUris;
 import android.content.Context;
@@ -20,6 +22,7 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Presence;
@@ -92,6 +95,8 @@ public class Contact {
     private boolean mQueryPending;
     private boolean mIsMe;          // true if this contact is me!
     private boolean mSendToVoicemail;   // true if this contact should not put up notification
+    private long mPhotoId;          // photo mAvatarData was loaded from, 0 if none
+    private int mPhotoVersion = -1; // DATA_VERSION of that photo, -1 if unknown
 
     public interface UpdateListener {
         public void onUpdate(Contact updated);
@@ -373,7 +378,7 @@ public class Contact {
         sContactCache.dump();
     }
 
-    private static class ContactsCache {
+    static class ContactsCache {
         private final TaskStack mTaskQueue = new TaskStack();
         private static final String SEPARATOR = ";";
 
@@ -391,7 +396,7 @@ public class Contact {
          * comparison.
          */
         // query params for caller id lookup
-        private static final String CALLER_ID_SELECTION = " Data._ID IN "
+        static final String CALLER_ID_SELECTION = " Data._ID IN "
                 + " (SELECT DISTINCT lookup.data_id "
                 + " FROM "
                     + " (SELECT data_id, normalized_number, length(normalized_number) as len "
@@ -402,7 +407,7 @@ public class Contact {
                         + " substr(?, ? - lookup.len + 1) = lookup.normalized_number))";
 
         // query params for caller id lookup without E164 number as param
-        private static final String CALLER_ID_SELECTION_WITHOUT_E164 =  " Data._ID IN "
+        static final String CALLER_ID_SELECTION_WITHOUT_E164 =  " Data._ID IN "
             + " (SELECT DISTINCT lookup.data_id "
             + " FROM "
                 + " (SELECT data_id, normalized_number, length(normalized_number) as len "
@@ -412,6 +417,11 @@ public class Contact {
                 + " (lookup.len <= ? AND "
                     + " substr(?, ? - lookup.len + 1) = lookup.normalized_number))";
 
+        // query for the candidates of several numbers at once, the matching rules of
+        // CALLER_ID_SELECTION are then applied by matchesNumber()
+        private static final String CALLER_ID_BATCH_SELECTION = " Data._ID IN "
+                + " (SELECT DISTINCT data_id FROM phone_lookup WHERE min_match IN (%s))";
+
         // Utilizing private API
         private static final Uri PHONES_WITH_PRESENCE_URI = Data.CONTENT_URI;
 
@@ -424,7 +434,8 @@ public class Contact {
                 Phone.CONTACT_PRESENCE,         // 5
                 Phone.CONTACT_STATUS,           // 6
                 Phone.NORMALIZED_NUMBER,        // 7
-                Contacts.SEND_TO_VOICEMAIL      // 8
+                Contacts.SEND_TO_VOICEMAIL,     // 8
+                Contacts.PHOTO_ID               // 9
         };
 
         private static final int PHONE_ID_COLUMN = 0;
@@ -436,6 +447,7 @@ public class Contact {
         private static final int CONTACT_STATUS_COLUMN = 6;
         private static final int PHONE_NORMALIZED_NUMBER = 7;
         private static final int SEND_TO_VOICEMAIL = 8;
+        private static final int PHOTO_ID_COLUMN = 9;
 
         private static final String[] SELF_PROJECTION = new String[] {
                 Phone._ID,                      // 0
@@ -451,13 +463,18 @@ public class Contact {
         private static final String EMAIL_SELECTION = "UPPER(" + Email.DATA + ")=UPPER(?) AND "
                 + Data.MIMETYPE + "='" + Email.CONTENT_ITEM_TYPE + "'";
 
+        private static final String EMAIL_BATCH_SELECTION = "UPPER(" + Email.DATA + ") IN (%s)"
+                + " AND " + Data.MIMETYPE + "='" + Email.CONTENT_ITEM_TYPE + "'";
+
         private static final String[] EMAIL_PROJECTION = new String[] {
                 Email._ID,                    // 0
                 Email.DISPLAY_NAME,           // 1
                 Email.CONTACT_PRESENCE,       // 2
                 Email.CONTACT_ID,             // 3
                 Phone.DISPLAY_NAME,           // 4
-                Contacts.SEND_TO_VOICEMAIL    // 5
+                Contacts.SEND_TO_VOICEMAIL,   // 5
+                Email.DATA,                   // 6
+                Contacts.PHOTO_ID             // 7
         };
         private static final int EMAIL_ID_COLUMN = 0;
         private static final int EMAIL_NAME_COLUMN = 1;
@@ -465,13 +482,42 @@ public class Contact {
         private static final int EMAIL_CONTACT_ID_COLUMN = 3;
         private static final int EMAIL_CONTACT_NAME_COLUMN = 4;
         private static final int EMAIL_SEND_TO_VOICEMAIL_COLUMN = 5;
+        private static final int EMAIL_DATA_COLUMN = 6;
+        private static final int EMAIL_PHOTO_ID_COLUMN = 7;
+
+        private static final String[] PHOTO_VERSION_PROJECTION = new String[] {
+                Data._ID,                     // 0
+                Data.DATA_VERSION             // 1
+        };
+        private static final int PHOTO_VERSION_ID_COLUMN = 0;
+        private static final int PHOTO_VERSION_COLUMN = 1;
+
+        // Most contacts the worker thread looks up in one round. This also bounds the number
+        // of arguments of the batched queries, which sqlite limits to 999.
+        private static final int BATCH_SIZE = 50;
 
         private final Context mContext;
 
         private final HashMap<String, ArrayList<Contact>> mContactsHash =
             new HashMap<String, ArrayList<Contact>>();
 
-        private ContactsCache(Context context) {
+        // Normalized phone number -> id of the phone row it matched when last looked up.
+        // invalidate() leaves this alone, so that refreshing a number afterwards only has to
+        // check that its row still matches instead of searching phone_lookup again.
+        // Package private for testing.
+        final HashMap<String, Long> mPhoneDataIds = new HashMap<String, Long>();
+
+        // Contacts waiting for the worker thread, in the order they were asked for.
+        private final ArrayList<Contact> mPendingUpdates = new ArrayList<Contact>();
+        private boolean mUpdateScheduled;
+
+        // Timing of the current burst of updates, for the log.
+        private long mPopulateStartTime;
+        private long mFirstRoundMillis;
+        private int mPopulateCount;
+        private int mPopulateRounds;
+
+        ContactsCache(Context context) {
             mContext = context;
         }
 
@@ -555,7 +601,7 @@ public class Contact {
             // Always return a Contact object, if if we don't have an actual contact
             // in the contacts db.
             Contact contact = internalGet(number, isMe);
-            Runnable r = null;
+            boolean update = false;
 
             synchronized (contact) {
                 // If there's a query pending and we're willing to block then
@@ -578,33 +624,83 @@ public class Contact {
                                 " isStale: " + contact.mIsStale);
                     }
 
-                    final Contact c = contact;
-                    r = new Runnable() {
-                        @Override
-                        public void run() {
-                            updateContact(c);
-                        }
-                    };
-
                     // set this to true while we have the lock on contact since we will
-                    // either run the query directly (canBlock case) or push the query
-                    // onto the queue.  In either case the mQueryPending will get set
-                    // to false via updateContact.
+                    // either run the query directly (canBlock case) or queue the contact
+                    // for the worker thread.  In either case the mQueryPending will get set
+                    // to false via applyContactInfo.
                     contact.mQueryPending = true;
+                    update = true;
                 }
             }
             // do this outside of the synchronized so we don't hold up any
             // subsequent calls to "get" on other threads
-            if (r != null) {
+            if (update) {
                 if (canBlock) {
-                    r.run();
+                    updateContact(contact);
                 } else {
-                    pushTask(r);
+                    enqueueUpdate(contact);
                 }
             }
             return contact;
         }
 
+        /**
+         * Queues a contact to be updated on the worker thread. Contacts queued while the worker
+         * is busy are looked up together in its next round, see updateContacts().
+         */
+        private void enqueueUpdate(Contact c) {
+            synchronized (mPendingUpdates) {
+                mPendingUpdates.add(c);
+                if (mPopulateStartTime == 0) {
+                    mPopulateStartTime = SystemClock.elapsedRealtime();
+                }
+                if (mUpdateScheduled) {
+                    return;
+                }
+                mUpdateScheduled = true;
+            }
+            pushTask(mUpdateTask);
+        }
+
+        private final Runnable mUpdateTask = new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<Contact> batch;
+                synchronized (mPendingUpdates) {
+                    final List<Contact> head = mPendingUpdates.subList(0,
+                            Math.min(mPendingUpdates.size(), BATCH_SIZE));
+                    batch = new ArrayList<Contact>(head);
+                    head.clear();
+                }
+
+                updateContacts(batch);
+
+                synchronized (mPendingUpdates) {
+                    final long elapsed = SystemClock.elapsedRealtime() - mPopulateStartTime;
+                    mPopulateCount += batch.size();
+                    if (mPopulateRounds++ == 0) {
+                        // The first round holds the contacts asked for first, which are
+                        // usually those of the rows on screen.
+                        mFirstRoundMillis = elapsed;
+                    }
+                    if (!mPendingUpdates.isEmpty()) {
+                        // Keep mUpdateScheduled set and run another round.
+                        pushTask(this);
+                        return;
+                    }
+                    if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+                        log("updated " + mPopulateCount + " contacts in " + mPopulateRounds
+                                + " rounds: first round done in " + mFirstRoundMillis
+                                + " ms, all done in " + elapsed + " ms");
+                    }
+                    mUpdateScheduled = false;
+                    mPopulateStartTime = 0;
+                    mPopulateCount = 0;
+                    mPopulateRounds = 0;
+                }
+            }
+        };
+
         /**
          * Get CacheEntry list for given phone URIs. This method will do single one query to
          * get expected contacts from provider. Be sure passed in URIs are not null and contains
@@ -724,6 +820,50 @@ public class Contact {
             }
 
             Contact entry = getContactInfo(c);
+            loadAvatarData(c, entry, getPhotoVersions(Collections.singletonList(entry)));
+            applyContactInfo(c, entry);
+        }
+
+        /**
+         * Updates a batch of contacts with as few queries as possible: their phone numbers are
+         * looked up together by getContactInfoForPhoneNumbers(), and their email addresses by
+         * getContactInfoForEmailAddresses().
+         */
+        private void updateContacts(List<Contact> contacts) {
+            ArrayList<Contact> phones = new ArrayList<Contact>();
+            ArrayList<Contact> emails = new ArrayList<Contact>();
+            for (Contact c : contacts) {
+                if (c.mIsMe) {
+                    updateContact(c);
+                } else if (Mms.isEmailAddress(c.mNumber) || isAlphaNumber(c.mNumber)) {
+                    emails.add(c);
+                } else {
+                    phones.add(c);
+                }
+            }
+            if (!phones.isEmpty()) {
+                applyContactInfo(phones, getContactInfoForPhoneNumbers(phones));
+            }
+            if (!emails.isEmpty()) {
+                applyContactInfo(emails, getContactInfoForEmailAddresses(emails));
+            }
+        }
+
+        private void applyContactInfo(List<Contact> contacts, List<Contact> entries) {
+            HashMap<Long, Integer> photoVersions = getPhotoVersions(entries);
+            for (int i = 0; i < contacts.size(); i++) {
+                Contact c = contacts.get(i);
+                Contact entry = entries.get(i);
+                loadAvatarData(c, entry, photoVersions);
+                applyContactInfo(c, entry);
+            }
+        }
+
+        /**
+         * Copies the info just queried for a contact into it, notifies the listeners if
+         * anything changed, and wakes up the threads waiting for the query.
+         */
+        private void applyContactInfo(final Contact c, Contact entry) {
             synchronized (c) {
                 if (contactChanged(c, entry)) {
                     if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
@@ -742,6 +882,8 @@ public class Contact {
                     c.mNumberE164 = entry.mNumberE164;
                     c.mName = entry.mName;
                     c.mSendToVoicemail = entry.mSendToVoicemail;
+                    c.mPhotoId = entry.mPhotoId;
+                    c.mPhotoVersion = entry.mPhotoVersion;
 
                     c.notSynchronizedUpdateNameAndNumber();
 
@@ -862,7 +1004,7 @@ public class Contact {
 
                 try {
                     if (cursor.moveToFirst()) {
-                        fillPhoneTypeContact(entry, cursor);
+                        readPhoneTypeContact(entry, cursor);
                     }
                 } finally {
                     cursor.close();
@@ -871,6 +1013,270 @@ public class Contact {
             return entry;
         }
 
+        /**
+         * The lookup of one normalized number by getContactInfoForPhoneNumbers(), shared by
+         * the contacts of the batch that have that number.
+         */
+        private static class PhoneNumberLookup {
+            final String number;
+            final String normalizedNumber;
+            final String minMatch;
+            final String numberE164;
+            Contact entry;
+            boolean found;
+            boolean hasCandidates;
+            // Set when more than one row matched, in which case the provider's order decides.
+            boolean ambiguous;
+
+            PhoneNumberLookup(String number, String normalizedNumber, String minMatch) {
+                this.number = number;
+                this.normalizedNumber = normalizedNumber;
+                this.minMatch = minMatch;
+                numberE164 = PhoneNumberUtils.formatNumberToE164(
+                        number, MmsApp.getApplication().getCurrentCountryIso());
+                entry = new Contact(number);
+                entry.mContactMethodType = CONTACT_METHOD_TYPE_PHONE;
+            }
+
+            boolean matchesNumber(Cursor cursor) {
+                return ContactsCache.matchesNumber(cursor.getString(PHONE_NUMBER_COLUMN),
+                        cursor.getString(PHONE_NORMALIZED_NUMBER), normalizedNumber, numberE164,
+                        minMatch);
+            }
+        }
+
+        /**
+         * Whether a phone row matches a number, with the same rules as CALLER_ID_SELECTION.
+         * The provider keeps two phone_lookup keys for the row, its normalized number and its
+         * E.164 number, and the row matches if either key has the number's min match and is
+         * either equal to the number's E.164 number or a suffix of its normalized number.
+         *
+         * @param rowNumber the row's Phone.NUMBER
+         * @param rowNumberE164 the row's Phone.NORMALIZED_NUMBER, its E.164 number
+         * @param normalizedNumber the normalized number looked up
+         * @param numberE164 the E.164 number looked up, or null if it has none
+         * @param minMatch the min match of normalizedNumber
+         */
+        static boolean matchesNumber(String rowNumber, String rowNumberE164,
+                String normalizedNumber, String numberE164, String minMatch) {
+            return matchesLookupKey(rowNumber != null
+                            ? PhoneNumberUtils.normalizeNumber(rowNumber) : null,
+                            normalizedNumber, numberE164, minMatch)
+                    || matchesLookupKey(rowNumberE164, normalizedNumber, numberE164, minMatch);
+        }
+
+        private static boolean matchesLookupKey(String key, String normalizedNumber,
+                String numberE164, String minMatch) {
+            if (TextUtils.isEmpty(key)
+                    || !minMatch.equals(PhoneNumberUtils.toCallerIDMinMatch(key))) {
+                return false;
+            }
+            return key.equals(numberE164)
+                    || (key.length() <= normalizedNumber.length()
+                            && normalizedNumber.endsWith(key));
+        }
+
+        private static String normalizedNumberOf(Cursor cursor) {
+            String number = cursor.getString(PHONE_NUMBER_COLUMN);
+            return number != null ? PhoneNumberUtils.normalizeNumber(number) : "";
+        }
+
+        /**
+         * Queries the caller id info of several phone numbers, like
+         * getContactInfoForPhoneNumber() but with a few queries for the whole batch instead
+         * of one per number:
+         * <ul>
+         * <li>Numbers found in mPhoneDataIds are checked against the row they matched last
+         * time, by id.
+         * <li>The other numbers get their candidates from phone_lookup with one query on all
+         * their min matches, and are matched to them by matchesNumber().
+         * <li>Numbers that had candidates but matched none of them are looked up on their own
+         * with getContactInfoForPhoneNumber(), so that we never miss a match because the
+         * provider normalizes numbers differently. So are numbers that matched several rows,
+         * so that the provider's order picks one of them as it does for a single number.
+         * </ul>
+         * With verbose logging on, every number is also looked up on its own, and differences
+         * between the two lookups are logged.
+         * @return the caller id info for each contact, in the same order as the contacts
+         */
+        private List<Contact> getContactInfoForPhoneNumbers(List<Contact> contacts) {
+            final int count = contacts.size();
+            final Contact[] entries = new Contact[count];
+            final PhoneNumberLookup[] lookups = new PhoneNumberLookup[count];
+            final HashMap<String, PhoneNumberLookup> lookupsByNumber =
+                    new HashMap<String, PhoneNumberLookup>();
+            final HashMap<Long, ArrayList<PhoneNumberLookup>> lookupsById =
+                    new HashMap<Long, ArrayList<PhoneNumberLookup>>();
+
+            for (int i = 0; i < count; i++) {
+                String number = PhoneNumberUtils.stripSeparators(contacts.get(i).mNumber);
+                String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+                String minMatch = PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber);
+                if (TextUtils.isEmpty(normalizedNumber) || TextUtils.isEmpty(minMatch)) {
+                    entries[i] = new Contact(number);
+                    entries[i].mContactMethodType = CONTACT_METHOD_TYPE_PHONE;
+                    continue;
+                }
+                PhoneNumberLookup lookup = lookupsByNumber.get(normalizedNumber);
+                if (lookup == null) {
+                    lookup = new PhoneNumberLookup(number, normalizedNumber, minMatch);
+                    lookupsByNumber.put(normalizedNumber, lookup);
+
+                    Long dataId;
+                    synchronized (ContactsCache.this) {
+                        dataId = mPhoneDataIds.get(normalizedNumber);
+                    }
+                    if (dataId != null) {
+                        ArrayList<PhoneNumberLookup> list = lookupsById.get(dataId);
+                        if (list == null) {
+                            list = new ArrayList<PhoneNumberLookup>();
+                            lookupsById.put(dataId, list);
+                        }
+                        list.add(lookup);
+                    }
+                }
+                lookups[i] = lookup;
+            }
+
+            if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+                log("getContactInfoForPhoneNumbers: " + count + " contacts, "
+                        + lookupsByNumber.size() + " numbers, " + lookupsById.size()
+                        + " known rows");
+            }
+
+            if (!lookupsById.isEmpty()) {
+                StringBuilder ids = new StringBuilder();
+                for (Long id : lookupsById.keySet()) {
+                    if (ids.length() > 0) {
+                        ids.append(',');
+                    }
+                    ids.append(id);
+                }
+                Cursor cursor = mContext.getContentResolver().query(PHONES_WITH_PRESENCE_URI,
+                        CALLER_ID_PROJECTION, Phone._ID + " IN (" + ids + ")", null, null);
+                if (cursor != null) {
+                    try {
+                        while (cursor.moveToNext()) {
+                            for (PhoneNumberLookup lookup :
+                                    lookupsById.get(cursor.getLong(PHONE_ID_COLUMN))) {
+                                if (!lookup.found && lookup.matchesNumber(cursor)) {
+                                    readPhoneTypeContact(lookup.entry, cursor);
+                                    lookup.found = true;
+                                }
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }
+
+            // Look the rest up by min match.
+            final HashMap<String, ArrayList<PhoneNumberLookup>> lookupsByMinMatch =
+                    new HashMap<String, ArrayList<PhoneNumberLookup>>();
+            for (PhoneNumberLookup lookup : lookupsByNumber.values()) {
+                if (!lookup.found) {
+                    ArrayList<PhoneNumberLookup> list = lookupsByMinMatch.get(lookup.minMatch);
+                    if (list == null) {
+                        list = new ArrayList<PhoneNumberLookup>();
+                        lookupsByMinMatch.put(lookup.minMatch, list);
+                    }
+                    list.add(lookup);
+                }
+            }
+            if (!lookupsByMinMatch.isEmpty()) {
+                StringBuilder placeholders = new StringBuilder();
+                for (int i = 0; i < lookupsByMinMatch.size(); i++) {
+                    placeholders.append(i == 0 ? "?" : ",?");
+                }
+                String[] args = lookupsByMinMatch.keySet().toArray(
+                        new String[lookupsByMinMatch.size()]);
+                Cursor cursor = mContext.getContentResolver().query(PHONES_WITH_PRESENCE_URI,
+                        CALLER_ID_PROJECTION,
+                        String.format(CALLER_ID_BATCH_SELECTION, placeholders), args, null);
+                if (cursor == null) {
+                    Log.w(TAG, "getContactInfoForPhoneNumbers() returned NULL cursor!"
+                            + " contact uri used " + PHONES_WITH_PRESENCE_URI);
+                } else {
+                    // Set when a row doesn't have the min match of any of the numbers, which
+                    // means we can't tell which numbers it was a candidate for.
+                    boolean unexplainedRow = false;
+                    try {
+                        while (cursor.moveToNext()) {
+                            String rowMinMatch =
+                                    PhoneNumberUtils.toCallerIDMinMatch(normalizedNumberOf(cursor));
+                            ArrayList<PhoneNumberLookup> candidates =
+                                    lookupsByMinMatch.get(rowMinMatch);
+                            if (candidates == null) {
+                                String rowE164 = cursor.getString(PHONE_NORMALIZED_NUMBER);
+                                if (!TextUtils.isEmpty(rowE164)) {
+                                    candidates = lookupsByMinMatch.get(
+                                            PhoneNumberUtils.toCallerIDMinMatch(rowE164));
+                                }
+                            }
+                            if (candidates == null) {
+                                unexplainedRow = true;
+                                continue;
+                            }
+                            for (PhoneNumberLookup lookup : candidates) {
+                                lookup.hasCandidates = true;
+                                if (lookup.matchesNumber(cursor)) {
+                                    if (lookup.found) {
+                                        lookup.ambiguous = true;
+                                    } else {
+                                        readPhoneTypeContact(lookup.entry, cursor);
+                                        lookup.found = true;
+                                    }
+                                }
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+
+                    for (ArrayList<PhoneNumberLookup> list : lookupsByMinMatch.values()) {
+                        for (PhoneNumberLookup lookup : list) {
+                            boolean missed = !lookup.found
+                                    && (lookup.hasCandidates || unexplainedRow);
+                            if (missed || lookup.ambiguous) {
+                                lookup.entry = getContactInfoForPhoneNumber(lookup.number);
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (Log.isLoggable(LogTag.CONTACT, Log.VERBOSE)) {
+                for (PhoneNumberLookup lookup : lookupsByNumber.values()) {
+                    long expectedId = getContactInfoForPhoneNumber(lookup.number).mContactMethodId;
+                    if (lookup.entry.mContactMethodId != expectedId) {
+                        Log.w(TAG, "getContactInfoForPhoneNumbers: " + lookup.number
+                                + " matched row " + lookup.entry.mContactMethodId
+                                + ", the caller id query matches row " + expectedId);
+                    }
+                }
+            }
+
+            synchronized (ContactsCache.this) {
+                for (PhoneNumberLookup lookup : lookupsByNumber.values()) {
+                    // Numbers with several matching rows always go through the full lookup.
+                    if (lookup.entry.mContactMethodId != CONTACT_METHOD_ID_UNKNOWN
+                            && !lookup.ambiguous) {
+                        mPhoneDataIds.put(lookup.normalizedNumber, lookup.entry.mContactMethodId);
+                    } else {
+                        mPhoneDataIds.remove(lookup.normalizedNumber);
+                    }
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (lookups[i] != null) {
+                    entries[i] = lookups[i].entry;
+                }
+            }
+            return Arrays.asList(entries);
+        }
+
         /**
          * @return a Contact containing the info for the profile.
          */
@@ -900,6 +1306,15 @@ public class Contact {
         }
 
         private void fillPhoneTypeContact(final Contact contact, final Cursor cursor) {
+            readPhoneTypeContact(contact, cursor);
+            byte[] data = loadAvatarData(contact);
+
+            synchronized (contact) {
+                contact.mAvatarData = data;
+            }
+        }
+
+        private void readPhoneTypeContact(final Contact contact, final Cursor cursor) {
             synchronized (contact) {
                 contact.mContactMethodType = CONTACT_METHOD_TYPE_PHONE;
                 contact.mContactMethodId = cursor.getLong(PHONE_ID_COLUMN);
@@ -911,17 +1326,13 @@ public class Contact {
                 contact.mPresenceText = cursor.getString(CONTACT_STATUS_COLUMN);
                 contact.mNumberE164 = cursor.getString(PHONE_NORMALIZED_NUMBER);
                 contact.mSendToVoicemail = cursor.getInt(SEND_TO_VOICEMAIL) == 1;
+                contact.mPhotoId = cursor.getLong(PHOTO_ID_COLUMN);
                 if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
                     log("fillPhoneTypeContact: name=" + contact.mName + ", number="
                             + contact.mNumber + ", presence=" + contact.mPresenceResId
                             + " SendToVoicemail: " + contact.mSendToVoicemail);
                 }
             }
-            byte[] data = loadAvatarData(contact);
-
-            synchronized (contact) {
-                contact.mAvatarData = data;
-            }
         }
 
         private void fillSelfContact(final Contact contact, final Cursor cursor) {
@@ -935,10 +1346,75 @@ public class Contact {
                             + contact.mNumber);
                 }
             }
-            byte[] data = loadAvatarData(contact);
+        }
 
-            synchronized (contact) {
-                contact.mAvatarData = data;
+        /**
+         * Returns the DATA_VERSION of the photo rows of the given contacts, by row id, in one
+         * query. Contacts updates a photo row in place when the photo is changed, so the row
+         * id alone doesn't tell whether the avatar is still the same.
+         */
+        private HashMap<Long, Integer> getPhotoVersions(List<Contact> entries) {
+            HashMap<Long, Integer> versions = new HashMap<Long, Integer>();
+            StringBuilder ids = new StringBuilder();
+            for (Contact entry : entries) {
+                if (entry.mPhotoId != 0) {
+                    if (ids.length() > 0) {
+                        ids.append(',');
+                    }
+                    ids.append(entry.mPhotoId);
+                }
+            }
+            if (ids.length() == 0) {
+                return versions;
+            }
+            Cursor cursor = mContext.getContentResolver().query(Data.CONTENT_URI,
+                    PHOTO_VERSION_PROJECTION, Data._ID + " IN (" + ids + ")", null, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        versions.put(cursor.getLong(PHOTO_VERSION_ID_COLUMN),
+                                cursor.getInt(PHOTO_VERSION_COLUMN));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            return versions;
+        }
+
+        /**
+         * Loads the avatar data for contact info just queried for {@code orig}, unless orig
+         * already has the avatar of the same version of the same photo. This keeps refreshing
+         * the cache after invalidate() from reading every photo again.
+         *
+         * @param photoVersions the DATA_VERSION of the photo rows, see getPhotoVersions()
+         */
+        private void loadAvatarData(Contact orig, Contact entry,
+                HashMap<Long, Integer> photoVersions) {
+            int version = -1;
+            if (entry.mPhotoId == 0) {
+                version = 0;
+            } else if (photoVersions.containsKey(entry.mPhotoId)) {
+                version = photoVersions.get(entry.mPhotoId);
+            }
+            boolean unchanged;
+            byte[] data;
+            BitmapDrawable avatar;
+            synchronized (orig) {
+                unchanged = !orig.mIsMe && orig.mPersonId != 0
+                        && orig.mPersonId == entry.mPersonId && orig.mPhotoId == entry.mPhotoId
+                        && version != -1 && orig.mPhotoVersion == version;
+                data = orig.mAvatarData;
+                avatar = orig.mAvatar;
+            }
+            if (!unchanged) {
+                data = loadAvatarData(entry);
+                avatar = null;
+            }
+            synchronized (entry) {
+                entry.mAvatarData = data;
+                entry.mAvatar = avatar;
+                entry.mPhotoVersion = version;
             }
         }
         /*
@@ -1021,6 +1497,7 @@ public class Contact {
                             entry.mPersonId = cursor.getLong(EMAIL_CONTACT_ID_COLUMN);
                             entry.mSendToVoicemail =
                                     cursor.getInt(EMAIL_SEND_TO_VOICEMAIL_COLUMN) == 1;
+                            entry.mPhotoId = cursor.getLong(EMAIL_PHOTO_ID_COLUMN);
 
                             String name = cursor.getString(EMAIL_NAME_COLUMN);
                             if (TextUtils.isEmpty(name)) {
@@ -1038,11 +1515,6 @@ public class Contact {
                         }
 
                         if (found) {
-                            byte[] data = loadAvatarData(entry);
-                            synchronized (entry) {
-                                entry.mAvatarData = data;
-                            }
-
                             break;
                         }
                     }
@@ -1053,6 +1525,87 @@ public class Contact {
             return entry;
         }
 
+        /**
+         * Queries the contact email table for several email addresses at once, like
+         * getContactInfoForEmailAddress().
+         * @return the info for each contact, in the same order as the contacts
+         */
+        private List<Contact> getContactInfoForEmailAddresses(List<Contact> contacts) {
+            final int count = contacts.size();
+            final ArrayList<Contact> entries = new ArrayList<Contact>(count);
+            // Upper case address -> the entries with that address.
+            final HashMap<String, ArrayList<Contact>> entriesByEmail =
+                    new HashMap<String, ArrayList<Contact>>();
+            final HashSet<Contact> found = new HashSet<Contact>();
+            final StringBuilder placeholders = new StringBuilder();
+            final String[] args = new String[count];
+
+            for (int i = 0; i < count; i++) {
+                String email = contacts.get(i).mNumber;
+                Contact entry = new Contact(email);
+                entry.mContactMethodType = CONTACT_METHOD_TYPE_EMAIL;
+                entries.add(entry);
+
+                String key = email.toUpperCase(Locale.US);
+                ArrayList<Contact> list = entriesByEmail.get(key);
+                if (list == null) {
+                    list = new ArrayList<Contact>();
+                    entriesByEmail.put(key, list);
+                }
+                list.add(entry);
+                placeholders.append(i == 0 ? "UPPER(?)" : ",UPPER(?)");
+                args[i] = email;
+            }
+
+            Cursor cursor = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                    EMAIL_WITH_PRESENCE_URI,
+                    EMAIL_PROJECTION,
+                    String.format(EMAIL_BATCH_SELECTION, placeholders),
+                    args,
+                    null);
+
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        String email = cursor.getString(EMAIL_DATA_COLUMN);
+                        ArrayList<Contact> list = email != null ?
+                                entriesByEmail.get(email.toUpperCase(Locale.US)) : null;
+                        if (list == null) {
+                            continue;
+                        }
+                        for (Contact entry : list) {
+                            if (found.contains(entry)) {
+                                continue;
+                            }
+                            // Same as getContactInfoForEmailAddress(): take the first row
+                            // with a name, or the last one if none has a name.
+                            synchronized (entry) {
+                                entry.mContactMethodId = cursor.getLong(EMAIL_ID_COLUMN);
+                                entry.mPresenceResId = getPresenceIconResourceId(
+                                        cursor.getInt(EMAIL_STATUS_COLUMN));
+                                entry.mPersonId = cursor.getLong(EMAIL_CONTACT_ID_COLUMN);
+                                entry.mSendToVoicemail =
+                                        cursor.getInt(EMAIL_SEND_TO_VOICEMAIL_COLUMN) == 1;
+                                entry.mPhotoId = cursor.getLong(EMAIL_PHOTO_ID_COLUMN);
+
+                                String name = cursor.getString(EMAIL_NAME_COLUMN);
+                                if (TextUtils.isEmpty(name)) {
+                                    name = cursor.getString(EMAIL_CONTACT_NAME_COLUMN);
+                                }
+                                if (!TextUtils.isEmpty(name)) {
+                                    entry.mName = name;
+                                    found.add(entry);
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            return entries;
+        }
+
         // Invert and truncate to five characters the phoneNumber so that we
         // can use it as the key in a hashtable.  We keep a mapping of this
         // key to a list of all contacts which have the same key.
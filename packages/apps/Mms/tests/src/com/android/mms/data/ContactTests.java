@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.telephony.PhoneNumberUtils;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.mms.data.Contact.ContactsCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Unit tests for the phone number matching of Contact's cache.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.data.ContactTests mms
+ */
+@SmallTest
+public class ContactTests extends AndroidTestCase {
+    private static final String TAG = "ContactTests";
+    private static final String COUNTRY_ISO = "US";
+
+    // Contacts in the conversation list of the latency test, and how many fit on a screen.
+    private static final int LIST_SIZE = 400;
+    private static final int SCREEN_SIZE = 10;
+
+    // Time the fake provider spends on each query, standing in for the binder call and the
+    // database work of the contacts provider.
+    private static final long QUERY_MILLIS = 2;
+
+    // Phone.NUMBER and Phone.NORMALIZED_NUMBER of the rows of the phone_lookup test.
+    private static final String[][] ROWS = {
+        { "650-123-4567", "+16501234567" },
+        { "1-650-123-4567", "+16501234567" },
+        { "123-4567", null },
+        { "(650) 555-4567", "+16505554567" },
+        { "+44 20 7123 4567", "+442071234567" },
+        { "12345", null },
+        { "2345", null },
+        { "", null },
+    };
+
+    private static final String[] NUMBERS = {
+        "6501234567",
+        "+1 (650) 123-4567",
+        "16501234567",
+        "1234567",
+        "555-4567",
+        "+442071234567",
+        "02071234567",
+        "12345",
+        "2345",
+        "012345",
+    };
+
+    private static boolean matches(String rowNumber, String rowNumberE164, String number) {
+        number = PhoneNumberUtils.stripSeparators(number);
+        String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+        return ContactsCache.matchesNumber(rowNumber, rowNumberE164, normalizedNumber,
+                PhoneNumberUtils.formatNumberToE164(number, COUNTRY_ISO),
+                PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+    }
+
+    public void testMatchesNumber_E164() {
+        // The E.164 numbers are equal, whatever the digits the row was saved with.
+        assertTrue(matches("650-123-4567", "+16501234567", "+1 (650) 123-4567"));
+        assertTrue(matches("1-650-123-4567", "+16501234567", "6501234567"));
+        assertFalse(matches("650-555-4567", "+16505554567", "+16501234567"));
+
+        // A number without E.164 still matches a row whose E.164 number it is.
+        assertTrue(ContactsCache.matchesNumber("650-123-4567", "+16501234567",
+                "+16501234567", null, PhoneNumberUtils.toCallerIDMinMatch("+16501234567")));
+    }
+
+    public void testMatchesNumber_Suffix() {
+        // The row's normalized number is a suffix of the number.
+        assertTrue(matches("123-4567", null, "6501234567"));
+        assertTrue(matches("650-123-4567", null, "16501234567"));
+        // ...but not the other way around.
+        assertFalse(matches("1-650-123-4567", null, "6501234567"));
+        assertFalse(matches("650-123-4567", null, "1234567"));
+        // Same min match, different digits before it.
+        assertFalse(matches("650-123-4567", null, "4151234567"));
+    }
+
+    public void testMatchesNumber_MinMatch() {
+        // Numbers shorter than the min match only match the row with all of their digits.
+        assertTrue(matches("12345", null, "12345"));
+        assertFalse(matches("2345", null, "12345"));
+        assertFalse(matches("12345", null, "2345"));
+        assertFalse(matches("12345", null, "012345"));
+
+        // Rows without a number never match.
+        assertFalse(matches("", null, "12345"));
+        assertFalse(matches(null, null, "12345"));
+    }
+
+    /**
+     * Checks matchesNumber() against the caller id queries it stands in for, run on a
+     * phone_lookup table filled the way the contacts provider fills it.
+     */
+    public void testMatchesNumberAgreesWithCallerIdSelection() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE data (_id INTEGER PRIMARY KEY)");
+            db.execSQL("CREATE TABLE phone_lookup (data_id INTEGER, normalized_number TEXT,"
+                    + " min_match TEXT)");
+            for (int i = 0; i < ROWS.length; i++) {
+                ContentValues values = new ContentValues();
+                values.put("_id", i);
+                db.insert("data", null, values);
+                String normalizedNumber = PhoneNumberUtils.normalizeNumber(ROWS[i][0]);
+                insertLookupKey(db, i, normalizedNumber);
+                String numberE164 = ROWS[i][1];
+                if (!TextUtils.isEmpty(numberE164) && !numberE164.equals(normalizedNumber)) {
+                    insertLookupKey(db, i, numberE164);
+                }
+            }
+
+            for (String number : NUMBERS) {
+                HashSet<Integer> expected = queryCallerId(db, number);
+                for (int i = 0; i < ROWS.length; i++) {
+                    assertEquals(number + " against " + ROWS[i][0], expected.contains(i),
+                            matches(ROWS[i][0], ROWS[i][1], number));
+                }
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void insertLookupKey(SQLiteDatabase db, int dataId, String key) {
+        ContentValues values = new ContentValues();
+        values.put("data_id", dataId);
+        values.put("normalized_number", key);
+        values.put("min_match", PhoneNumberUtils.toCallerIDMinMatch(key));
+        db.insert("phone_lookup", null, values);
+    }
+
+    /**
+     * Runs the selection of ContactsCache#getContactInfoForPhoneNumber for a number.
+     */
+    private static HashSet<Integer> queryCallerId(SQLiteDatabase db, String number) {
+        number = PhoneNumberUtils.stripSeparators(number);
+        String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+        String minMatch = PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber);
+        String numberLen = String.valueOf(normalizedNumber.length());
+        String numberE164 = PhoneNumberUtils.formatNumberToE164(number, COUNTRY_ISO);
+        String selection;
+        String[] args;
+        if (TextUtils.isEmpty(numberE164)) {
+            selection = ContactsCache.CALLER_ID_SELECTION_WITHOUT_E164;
+            args = new String[] {minMatch, numberLen, normalizedNumber, numberLen};
+        } else {
+            selection = ContactsCache.CALLER_ID_SELECTION;
+            args = new String[] {minMatch, numberE164, numberLen, normalizedNumber, numberLen};
+        }
+
+        HashSet<Integer> ids = new HashSet<Integer>();
+        Cursor cursor = db.rawQuery("SELECT _id FROM data WHERE " + selection, args);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    public void testInvalidateKeepsPhoneDataIds() {
+        ContactsCache cache = new ContactsCache(getContext());
+        cache.mPhoneDataIds.put("6501234567", 42L);
+        cache.invalidate();
+        assertEquals(Long.valueOf(42), cache.mPhoneDataIds.get("6501234567"));
+    }
+
+    /**
+     * Contacts updates a photo row in place when the photo changes, so refreshing a contact
+     * must not reuse its avatar just because its photo id is the same.
+     */
+    public void testInvalidateReloadsPhotoUpdatedInPlace() {
+        FakeContactsProvider provider = new FakeContactsProvider();
+        provider.addPhone(1, "6505550001", "+16505550001", 100);
+        provider.mPhotoVersions.put(100L, 1);
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, provider);
+        ContactsCache cache = new ContactsCache(new ResolverContext(resolver));
+
+        cache.get("6505550001", true);
+        assertEquals(1, provider.mPhotoQueryCount);
+
+        cache.invalidate();
+        cache.get("6505550001", true);
+        assertEquals(1, provider.mPhotoQueryCount);
+
+        provider.mPhotoVersions.put(100L, 2);
+        cache.invalidate();
+        cache.get("6505550001", true);
+        assertEquals(2, provider.mPhotoQueryCount);
+    }
+
+    /**
+     * A contacts provider with a list of phone rows, which answers the phone queries of
+     * ContactsCache like the contacts provider would and counts them.
+     */
+    private static class FakeContactsProvider extends MockContentProvider {
+        private final ArrayList<Object[]> mRows = new ArrayList<Object[]>();
+        // Photo row id -> DATA_VERSION.
+        final HashMap<Long, Integer> mPhotoVersions = new HashMap<Long, Integer>();
+        int mQueryCount;
+        int mPhotoQueryCount;
+
+        void addPhone(long id, String number, String numberE164) {
+            addPhone(id, number, numberE164, 0);
+        }
+
+        void addPhone(long id, String number, String numberE164, long photoId) {
+            // The columns of ContactsCache.CALLER_ID_PROJECTION.
+            mRows.add(new Object[] {
+                    id, number, null, "Name " + id, id, 0, null, numberE164, 0, photoId });
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (selection == null) {
+                // Photos, whose data is left out.
+                mPhotoQueryCount++;
+                return cursor;
+            }
+            mQueryCount++;
+            SystemClock.sleep(QUERY_MILLIS);
+            if (Arrays.asList(projection).contains(Data.DATA_VERSION)) {
+                // The versions of photo rows, by id.
+                List<String> ids = Arrays.asList(selection.substring(
+                        selection.indexOf('(') + 1, selection.lastIndexOf(')')).split(","));
+                for (Long id : mPhotoVersions.keySet()) {
+                    if (ids.contains(String.valueOf(id))) {
+                        cursor.addRow(new Object[] { id, mPhotoVersions.get(id) });
+                    }
+                }
+                return cursor;
+            }
+            for (Object[] row : mRows) {
+                if (matches((String) row[1], (String) row[7], (Long) row[0], selection,
+                        selectionArgs)) {
+                    cursor.addRow(row);
+                }
+            }
+            return cursor;
+        }
+
+        private static boolean matches(String number, String numberE164, long id,
+                String selection, String[] args) {
+            if (ContactsCache.CALLER_ID_SELECTION.equals(selection)) {
+                return ContactsCache.matchesNumber(number, numberE164, args[3], args[1], args[0]);
+            } else if (ContactsCache.CALLER_ID_SELECTION_WITHOUT_E164.equals(selection)) {
+                return ContactsCache.matchesNumber(number, numberE164, args[2], null, args[0]);
+            } else if (selection.contains("min_match IN")) {
+                List<String> minMatches = Arrays.asList(args);
+                return minMatches.contains(PhoneNumberUtils.toCallerIDMinMatch(
+                                PhoneNumberUtils.normalizeNumber(number)))
+                        || minMatches.contains(PhoneNumberUtils.toCallerIDMinMatch(numberE164));
+            } else if (selection.startsWith(Phone._ID + " IN (")) {
+                String ids = selection.substring(selection.indexOf('(') + 1,
+                        selection.lastIndexOf(')'));
+                return Arrays.asList(ids.split(",")).contains(String.valueOf(id));
+            }
+            throw new IllegalArgumentException("Unexpected selection: " + selection);
+        }
+    }
+
+    private static class ResolverContext extends MockContext {
+        private final ContentResolver mResolver;
+
+        ResolverContext(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+    }
+
+    /**
+     * Measures how long the cache takes to resolve the contacts of a conversation list: the
+     * first screen, and the whole list. The contacts are either all asked for without
+     * blocking, as the list does, which lets the worker look them up in batches, or one by
+     * one with canBlock set, which runs one caller id query per number.
+     */
+    public void testLookupLatency() {
+        FakeContactsProvider provider = new FakeContactsProvider();
+        ArrayList<String> numbers = new ArrayList<String>();
+        for (int i = 0; i < LIST_SIZE; i++) {
+            String number = String.format("650555%04d", i);
+            provider.addPhone(i + 1, number, "+1" + number);
+            numbers.add(number);
+        }
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, provider);
+        ResolverContext context = new ResolverContext(resolver);
+
+        int[] queryCounts = new int[2];
+        for (int pass = 0; pass < 2; pass++) {
+            boolean batched = pass == 1;
+            ContactsCache cache = new ContactsCache(context);
+            provider.mQueryCount = 0;
+            long start = SystemClock.elapsedRealtime();
+            if (batched) {
+                for (String number : numbers) {
+                    cache.get(number, false);
+                }
+            }
+            long screenMillis = 0;
+            for (int i = 0; i < numbers.size(); i++) {
+                // Waits for the lookup if it is still pending.
+                Contact c = cache.get(numbers.get(i), true);
+                assertTrue(numbers.get(i), c.existsInDatabase());
+                if (i == SCREEN_SIZE - 1) {
+                    screenMillis = SystemClock.elapsedRealtime() - start;
+                }
+            }
+            long listMillis = SystemClock.elapsedRealtime() - start;
+            queryCounts[pass] = provider.mQueryCount;
+            Log.d(TAG, (batched ? "batched" : "one by one") + ": first " + SCREEN_SIZE
+                    + " contacts in " + screenMillis + " ms, all " + LIST_SIZE + " in "
+                    + listMillis + " ms, " + provider.mQueryCount + " queries");
+        }
+        assertTrue(queryCounts[1] < queryCounts[0]);
+    }
+}
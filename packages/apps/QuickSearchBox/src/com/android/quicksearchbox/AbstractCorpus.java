@@ -45,6 +45,10 @@ public abstract class AbstractCorpus implements Corpus {
         return mConfig.isCorpusHidden(getName());
     }
 
+    public boolean isPrefixMonotonic() {
+        return mConfig.isCorpusPrefixMonotonic(getName());
+    }
+
     @Override
     public String toString() {
         return getName();
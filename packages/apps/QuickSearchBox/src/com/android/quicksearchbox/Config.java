@@ -57,6 +57,9 @@ public class Config {
     private static final long TYPING_SUGGESTIONS_UPDATE_DELAY_MILLIS = 100;
     private static final long PUBLISH_RESULT_DELAY_MILLIS = 200;
 
+    private static final int CORPUS_RESULT_CACHE_SIZE = 500;
+    private static final long CORPUS_RESULT_CACHE_MAX_AGE_MILLIS = 30 * SECOND_MILLIS;
+
     private static final long VOICE_SEARCH_HINT_ACTIVE_PERIOD = 7L * DAY_MILLIS;
 
     private static final long VOICE_SEARCH_HINT_UPDATE_INTERVAL
@@ -77,6 +80,7 @@ public class Config {
     private final Context mContext;
     private HashSet<String> mDefaultCorpora;
     private HashSet<String> mHiddenCorpora;
+    private HashSet<String> mPrefixMonotonicCorpora;
     private HashSet<String> mDefaultCorporaSuggestUris;
 
     /**
@@ -148,6 +152,17 @@ public class Config {
         return mHiddenCorpora.contains(corpusName);
     }
 
+    /**
+     * Checks if the suggestions of the given corpus can be refined locally as the query
+     * gets longer. See {@link Corpus#isPrefixMonotonic()}.
+     */
+    public synchronized boolean isCorpusPrefixMonotonic(String corpusName) {
+        if (mPrefixMonotonicCorpora == null) {
+            mPrefixMonotonicCorpora = loadResourceStringSet(R.array.prefix_monotonic_corpora);
+        }
+        return mPrefixMonotonicCorpora.contains(corpusName);
+    }
+
     /**
      * The number of promoted sources.
      */
@@ -262,6 +277,20 @@ public class Config {
         return PUBLISH_RESULT_DELAY_MILLIS;
     }
 
+    /**
+     * The maximum number of suggestions kept by the {@link CorpusResultCache}.
+     */
+    public int getCorpusResultCacheSize() {
+        return CORPUS_RESULT_CACHE_SIZE;
+    }
+
+    /**
+     * The time after which results in the {@link CorpusResultCache} are no longer used.
+     */
+    public long getCorpusResultCacheMaxAgeMillis() {
+        return CORPUS_RESULT_CACHE_MAX_AGE_MILLIS;
+    }
+
     public boolean allowVoiceSearchHints() {
         return true;
     }
@@ -92,4 +92,11 @@ public interface Corpus extends SuggestionCursorProvider<CorpusResult> {
      */
     boolean isCorpusHidden();
 
+    /**
+     * Checks if this corpus' suggestions for a query can be computed from its suggestions for
+     * any prefix of the query, by keeping those whose text1 has a word that starts with the
+     * query.
+     */
+    boolean isPrefixMonotonic();
+
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import org.json.JSONException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Keeps recent corpus results, so that they can be reused while the user edits the query.
+ *
+ * A result for the same query is reused as is. It is only final for corpora that are
+ * {@link Corpus#isPrefixMonotonic() prefix monotonic}. Other corpora, such as web suggest,
+ * may return something else for the same query, so their cached result is returned as
+ * provisional, and the corpus should still be queried to confirm it.
+ *
+ * For prefix monotonic corpora, the result for the longest cached prefix of the query is
+ * also refined by dropping the suggestions that don't match the longer query. Refinements
+ * are always provisional: our word prefix matching only approximates the corpus' own, and
+ * the prefix result may have been cut off at the query limit.
+ *
+ * The cache holds at most {@link Config#getCorpusResultCacheSize()} suggestions, and
+ * evicts the least recently used results first. Results older than
+ * {@link Config#getCorpusResultCacheMaxAgeMillis()} are not used.
+ *
+ * This class is thread safe.
+ */
+public class CorpusResultCache {
+
+    private static final boolean DBG = false;
+    private static final String TAG = "QSB.CorpusResultCache";
+
+    private final Config mConfig;
+
+    /** Cached results by corpus name and query, in access order. */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** The number of suggestions in {@link #mEntries}. */
+    private int mSuggestionCount;
+
+    public CorpusResultCache(Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * Adds a result that was returned by its corpus. Empty results are not cached, since they
+     * may be failed queries, and {@link ShouldQueryStrategy} already handles corpora that
+     * returned no results.
+     *
+     * @param result The result. Its position is left unchanged.
+     * @param queryLimit The number of suggestions the corpus was asked for.
+     */
+    public void put(CorpusResult result, int queryLimit) {
+        int count = result.getCount();
+        if (count == 0) return;
+        String query = result.getUserQuery();
+        ArrayList<SuggestionData> suggestions = new ArrayList<SuggestionData>(count);
+        int pos = result.getPosition();
+        for (int i = 0; i < count; i++) {
+            result.moveTo(i);
+            suggestions.add(copySuggestion(result));
+        }
+        if (pos >= 0 && pos < count) {
+            result.moveTo(pos);
+        }
+        Entry entry = new Entry(suggestions, count < queryLimit, SystemClock.uptimeMillis());
+
+        synchronized (this) {
+            Entry old = mEntries.put(getKey(result.getCorpus(), query), entry);
+            if (old != null) {
+                mSuggestionCount -= old.suggestions.size();
+            }
+            mSuggestionCount += count;
+            trim();
+        }
+        if (DBG) Log.d(TAG, "put(" + result + ") complete=" + entry.complete);
+    }
+
+    /**
+     * Gets a result for a query from the cache.
+     *
+     * @return A result, or {@code null} if the cache can't help with this query. If the
+     *         result is {@link Result#isProvisional() provisional}, the corpus should still
+     *         be queried.
+     */
+    public synchronized Result get(Corpus corpus, String query, int queryLimit) {
+        long now = SystemClock.uptimeMillis();
+        Entry exact = getFreshEntry(corpus, query, now);
+        if (exact != null && (exact.complete || exact.suggestions.size() >= queryLimit)) {
+            boolean provisional = !corpus.isPrefixMonotonic();
+            if (DBG) {
+                Log.d(TAG, "Cached " + corpus + "[" + query + "], provisional=" + provisional);
+            }
+            Result result = new Result(corpus, query, queryLimit, provisional);
+            for (int i = 0; i < exact.suggestions.size() && i < queryLimit; i++) {
+                result.add(exact.suggestions.get(i));
+            }
+            return result;
+        }
+        if (!corpus.isPrefixMonotonic()) return null;
+
+        // Refine the result for the longest prefix we have. Empty prefixes are not used, since
+        // zero query suggestions are usually not a superset of the others.
+        for (int length = query.length() - 1; length > 0; length--) {
+            Entry prefix = getFreshEntry(corpus, query.substring(0, length), now);
+            if (prefix == null) continue;
+            if (DBG) {
+                Log.d(TAG, "Refining " + corpus + "[" + query.substring(0, length) + "] to ["
+                        + query + "]");
+            }
+            Result result = new Result(corpus, query, queryLimit, true);
+            String lowerQuery = query.toLowerCase(Locale.US);
+            for (SuggestionData suggestion : prefix.suggestions) {
+                if (result.getCount() >= queryLimit) break;
+                if (hasWordWithPrefix(suggestion.getSuggestionText1(), lowerQuery)) {
+                    result.add(suggestion);
+                }
+            }
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * Removes all results.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mSuggestionCount = 0;
+    }
+
+    private Entry getFreshEntry(Corpus corpus, String query, long now) {
+        String key = getKey(corpus, query);
+        Entry entry = mEntries.get(key);
+        if (entry != null && now - entry.time > mConfig.getCorpusResultCacheMaxAgeMillis()) {
+            mEntries.remove(key);
+            mSuggestionCount -= entry.suggestions.size();
+            return null;
+        }
+        return entry;
+    }
+
+    private void trim() {
+        int maxSize = mConfig.getCorpusResultCacheSize();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSuggestionCount > maxSize && it.hasNext()) {
+            mSuggestionCount -= it.next().suggestions.size();
+            it.remove();
+        }
+    }
+
+    private static String getKey(Corpus corpus, String query) {
+        return corpus.getName() + '\0' + query;
+    }
+
+    /**
+     * Checks whether any space separated word of the text starts with the query.
+     *
+     * @param lowerQuery The query, in lower case.
+     */
+    private static boolean hasWordWithPrefix(String text, String lowerQuery) {
+        if (text == null) return false;
+        String lowerText = text.toLowerCase(Locale.US);
+        int start = 0;
+        while (true) {
+            if (lowerText.startsWith(lowerQuery, start)) return true;
+            start = lowerText.indexOf(' ', start) + 1;
+            if (start == 0) return false;
+        }
+    }
+
+    /**
+     * Copies the current suggestion of a cursor, so that it outlives the cursor.
+     */
+    private static SuggestionData copySuggestion(SuggestionCursor cursor) {
+        SuggestionData suggestion = new SuggestionData(cursor.getSuggestionSource())
+                .setFormat(cursor.getSuggestionFormat())
+                .setText1(cursor.getSuggestionText1())
+                .setText2(cursor.getSuggestionText2())
+                .setText2Url(cursor.getSuggestionText2Url())
+                .setIcon1(cursor.getSuggestionIcon1())
+                .setIcon2(cursor.getSuggestionIcon2())
+                .setShortcutId(cursor.getShortcutId())
+                .setSpinnerWhileRefreshing(cursor.isSpinnerWhileRefreshing())
+                .setIntentAction(cursor.getSuggestionIntentAction())
+                .setIntentData(cursor.getSuggestionIntentDataString())
+                .setIntentExtraData(cursor.getSuggestionIntentExtraData())
+                .setSuggestionQuery(cursor.getSuggestionQuery())
+                .setSuggestionLogType(cursor.getSuggestionLogType())
+                .setIsShortcut(cursor.isSuggestionShortcut())
+                .setIsHistory(cursor.isHistorySuggestion());
+        SuggestionExtras extras = cursor.getExtras();
+        if (extras != null) {
+            try {
+                suggestion.setExtras(new JsonBackedSuggestionExtras(extras));
+            } catch (JSONException e) {
+                Log.w(TAG, "Could not copy suggestion extras", e);
+            }
+        }
+        return suggestion;
+    }
+
+    private static class Entry {
+        final ArrayList<SuggestionData> suggestions;
+        /** Whether the corpus returned all its suggestions, rather than hitting the limit. */
+        final boolean complete;
+        final long time;
+
+        Entry(ArrayList<SuggestionData> suggestions, boolean complete, long time) {
+            this.suggestions = suggestions;
+            this.complete = complete;
+            this.time = time;
+        }
+    }
+
+    /**
+     * A corpus result served from the cache.
+     */
+    public static class Result extends ListSuggestionCursor implements CorpusResult {
+
+        private final Corpus mCorpus;
+
+        private final boolean mProvisional;
+
+        Result(Corpus corpus, String userQuery, int capacity, boolean provisional) {
+            super(userQuery, capacity);
+            mCorpus = corpus;
+            mProvisional = provisional;
+        }
+
+        public Corpus getCorpus() {
+            return mCorpus;
+        }
+
+        public int getLatency() {
+            return 0;
+        }
+
+        /**
+         * Checks whether this result may differ from what the corpus would return, either
+         * because it was refined from the result of a shorter query, or because the corpus
+         * is not prefix monotonic.
+         */
+        public boolean isProvisional() {
+            return mProvisional;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + getCorpus() + "[" + getUserQuery() + "]" + ";n=" + getCount()
+                    + (mProvisional ? ";provisional}" : "}");
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import com.android.quicksearchbox.ShortcutRepositoryImplLog.Shortcuts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory copy of the shortcuts and click log tables of {@link ShortcutRepositoryImplLog},
+ * indexed by click query, so that shortcuts can be looked up without going to the database.
+ *
+ * Shortcut rows are arrays of column values, indexed by {@link Shortcuts#ordinal()}.
+ *
+ * Each method mirrors the effect that the corresponding database statement, and the triggers
+ * it fires, have on the tables. This class is thread safe.
+ */
+class ShortcutIndex {
+
+    private final long mMaxStatAgeMillis;
+
+    /** Shortcut rows by intent key. */
+    private final HashMap<String, Object[]> mShortcuts = new HashMap<String, Object[]>();
+
+    /** Clicks by query. Clicks without a query are kept under the empty string. */
+    private final TreeMap<String, ArrayList<Click>> mClicksByQuery =
+            new TreeMap<String, ArrayList<Click>>();
+
+    /** Clicks by intent key. */
+    private final HashMap<String, ArrayList<Click>> mClicksByIntentKey =
+            new HashMap<String, ArrayList<Click>>();
+
+    /** The number of clicks in the log for each corpus. */
+    private final HashMap<String, Integer> mCorpusClicks = new HashMap<String, Integer>();
+
+    /**
+     * The click counts as of the last reported click. Like the source totals table, this is
+     * not updated when clicks are deleted along with their shortcut.
+     */
+    private HashMap<String, Integer> mCorpusTotals = new HashMap<String, Integer>();
+
+    /** A lower bound on the hit time of all clicks in the log. */
+    private long mOldestHitTime = Long.MAX_VALUE;
+
+    public ShortcutIndex(long maxStatAgeMillis) {
+        mMaxStatAgeMillis = maxStatAgeMillis;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mShortcuts.isEmpty();
+    }
+
+    /**
+     * Adds a shortcut, or replaces the shortcut with the same intent key. The clicks on the
+     * old shortcut are kept.
+     */
+    public synchronized void putShortcut(Object[] shortcut) {
+        mShortcuts.put(getIntentKey(shortcut), shortcut);
+    }
+
+    /**
+     * Adds a click, and drops clicks that are older than the max stat age relative to it.
+     */
+    public synchronized void addClick(String intentKey, String query, long hitTime,
+            String corpus) {
+        long cutOffTime = hitTime - mMaxStatAgeMillis;
+        if (mOldestHitTime < cutOffTime) {
+            removeClicksBefore(cutOffTime);
+        }
+        insertClick(new Click(intentKey, query, hitTime, corpus));
+        mCorpusTotals = new HashMap<String, Integer>(mCorpusClicks);
+    }
+
+    /**
+     * Adds a click as it was read from the database, without dropping old clicks.
+     */
+    public synchronized void loadClick(String intentKey, String query, long hitTime,
+            String corpus) {
+        insertClick(new Click(intentKey, query, hitTime, corpus));
+    }
+
+    /**
+     * Sets the click counts of all corpora, as read from the source totals table.
+     */
+    public synchronized void loadCorpusTotals(Map<String, Integer> totals) {
+        mCorpusTotals = new HashMap<String, Integer>(totals);
+    }
+
+    /**
+     * Removes a shortcut and all clicks on it.
+     */
+    public synchronized void removeShortcut(String intentKey) {
+        mShortcuts.remove(intentKey);
+        ArrayList<Click> clicks = mClicksByIntentKey.remove(intentKey);
+        if (clicks == null) return;
+        for (Click click : clicks) {
+            ArrayList<Click> sameQuery = mClicksByQuery.get(click.query);
+            sameQuery.remove(click);
+            if (sameQuery.isEmpty()) {
+                mClicksByQuery.remove(click.query);
+            }
+            decrementCorpusClicks(click.corpus);
+        }
+    }
+
+    /**
+     * Replaces all shortcuts with the given shortcut id and source, and moves their clicks to
+     * the new shortcut. If {@code shortcut} is {@code null}, the shortcuts and their clicks are
+     * removed. Does nothing if there are no such shortcuts.
+     */
+    public synchronized void updateShortcuts(String shortcutId, String source,
+            Object[] shortcut) {
+        ArrayList<String> intentKeys = findShortcuts(shortcutId, source);
+        for (String intentKey : intentKeys) {
+            if (shortcut == null) {
+                removeShortcut(intentKey);
+            } else {
+                mShortcuts.remove(intentKey);
+                moveClicks(intentKey, getIntentKey(shortcut));
+            }
+        }
+        if (shortcut != null && !intentKeys.isEmpty()) {
+            putShortcut(shortcut);
+        }
+    }
+
+    public synchronized void clear() {
+        mShortcuts.clear();
+        mClicksByQuery.clear();
+        mClicksByIntentKey.clear();
+        mCorpusClicks.clear();
+        mCorpusTotals = new HashMap<String, Integer>();
+        mOldestHitTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets the shortcuts that were clicked for queries that start with the given query,
+     * within the max stat age. The shortcut with the most recent click comes first, and the
+     * rest are ordered by the sum over their clicks of the number of seconds between the
+     * start of the max stat age window and the click.
+     *
+     * @return The shortcut rows. The caller must not modify them.
+     */
+    public synchronized List<Object[]> getShortcuts(String query, long now) {
+        long cutOffTime = now - mMaxStatAgeMillis;
+        SortedMap<String, ArrayList<Click>> candidates =
+                query.length() == 0 ? mClicksByQuery : mClicksByQuery.tailMap(query);
+        HashMap<String, Score> scores = new HashMap<String, Score>();
+        long lastHitTime = Long.MIN_VALUE;
+        for (Map.Entry<String, ArrayList<Click>> entry : candidates.entrySet()) {
+            // All queries with the prefix sort right after it
+            if (!entry.getKey().startsWith(query)) break;
+            for (Click click : entry.getValue()) {
+                if (click.hitTime < cutOffTime) continue;
+                Score score = scores.get(click.intentKey);
+                if (score == null) {
+                    score = new Score(click.intentKey);
+                    scores.put(click.intentKey, score);
+                }
+                score.add(click.hitTime, cutOffTime);
+                lastHitTime = Math.max(lastHitTime, click.hitTime);
+            }
+        }
+
+        ArrayList<Score> ranked = new ArrayList<Score>(scores.values());
+        Collections.sort(ranked, new ScoreComparator(lastHitTime));
+        ArrayList<Object[]> shortcuts = new ArrayList<Object[]>(ranked.size());
+        for (Score score : ranked) {
+            Object[] shortcut = mShortcuts.get(score.intentKey);
+            if (shortcut != null) {
+                shortcuts.add(shortcut);
+            }
+        }
+        return shortcuts;
+    }
+
+    /**
+     * Gets the click counts of the corpora with at least {@code minClicks} clicks.
+     */
+    public synchronized Map<String, Integer> getCorpusScores(int minClicks) {
+        HashMap<String, Integer> scores = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : mCorpusTotals.entrySet()) {
+            if (entry.getValue() >= minClicks) {
+                scores.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return scores;
+    }
+
+    private static String getIntentKey(Object[] shortcut) {
+        return (String) shortcut[Shortcuts.intent_key.ordinal()];
+    }
+
+    private ArrayList<String> findShortcuts(String shortcutId, String source) {
+        ArrayList<String> intentKeys = new ArrayList<String>();
+        for (Object[] shortcut : mShortcuts.values()) {
+            if (shortcutId.equals(shortcut[Shortcuts.shortcut_id.ordinal()])
+                    && source.equals(shortcut[Shortcuts.source.ordinal()])) {
+                intentKeys.add(getIntentKey(shortcut));
+            }
+        }
+        return intentKeys;
+    }
+
+    private void insertClick(Click click) {
+        ArrayList<Click> sameQuery = mClicksByQuery.get(click.query);
+        if (sameQuery == null) {
+            sameQuery = new ArrayList<Click>();
+            mClicksByQuery.put(click.query, sameQuery);
+        }
+        sameQuery.add(click);
+        getClicksByIntentKey(click.intentKey).add(click);
+        Integer count = mCorpusClicks.get(click.corpus);
+        mCorpusClicks.put(click.corpus, count == null ? 1 : count + 1);
+        mOldestHitTime = Math.min(mOldestHitTime, click.hitTime);
+    }
+
+    private ArrayList<Click> getClicksByIntentKey(String intentKey) {
+        ArrayList<Click> clicks = mClicksByIntentKey.get(intentKey);
+        if (clicks == null) {
+            clicks = new ArrayList<Click>();
+            mClicksByIntentKey.put(intentKey, clicks);
+        }
+        return clicks;
+    }
+
+    private void moveClicks(String fromIntentKey, String toIntentKey) {
+        if (fromIntentKey.equals(toIntentKey)) return;
+        ArrayList<Click> clicks = mClicksByIntentKey.remove(fromIntentKey);
+        if (clicks == null) return;
+        for (Click click : clicks) {
+            click.intentKey = toIntentKey;
+        }
+        getClicksByIntentKey(toIntentKey).addAll(clicks);
+    }
+
+    private void removeClicksBefore(long cutOffTime) {
+        long oldestHitTime = Long.MAX_VALUE;
+        Iterator<ArrayList<Click>> queries = mClicksByQuery.values().iterator();
+        while (queries.hasNext()) {
+            ArrayList<Click> sameQuery = queries.next();
+            Iterator<Click> it = sameQuery.iterator();
+            while (it.hasNext()) {
+                Click click = it.next();
+                if (click.hitTime < cutOffTime) {
+                    it.remove();
+                    ArrayList<Click> sameIntentKey = mClicksByIntentKey.get(click.intentKey);
+                    sameIntentKey.remove(click);
+                    if (sameIntentKey.isEmpty()) {
+                        mClicksByIntentKey.remove(click.intentKey);
+                    }
+                    decrementCorpusClicks(click.corpus);
+                } else {
+                    oldestHitTime = Math.min(oldestHitTime, click.hitTime);
+                }
+            }
+            if (sameQuery.isEmpty()) {
+                queries.remove();
+            }
+        }
+        mOldestHitTime = oldestHitTime;
+    }
+
+    private void decrementCorpusClicks(String corpus) {
+        int count = mCorpusClicks.get(corpus) - 1;
+        if (count == 0) {
+            mCorpusClicks.remove(corpus);
+        } else {
+            mCorpusClicks.put(corpus, count);
+        }
+    }
+
+    private static class Click {
+        String intentKey;
+        final String query;
+        final long hitTime;
+        final String corpus;
+
+        Click(String intentKey, String query, long hitTime, String corpus) {
+            this.intentKey = intentKey;
+            this.query = query == null ? "" : query;
+            this.hitTime = hitTime;
+            this.corpus = corpus;
+        }
+    }
+
+    private static class Score {
+        final String intentKey;
+        long lastHitTime = Long.MIN_VALUE;
+        long value;
+
+        Score(String intentKey) {
+            this.intentKey = intentKey;
+        }
+
+        void add(long hitTime, long cutOffTime) {
+            lastHitTime = Math.max(lastHitTime, hitTime);
+            value += (hitTime - cutOffTime) / 1000;
+        }
+    }
+
+    private static class ScoreComparator implements Comparator<Score> {
+        private final long mLastHitTime;
+
+        ScoreComparator(long lastHitTime) {
+            mLastHitTime = lastHitTime;
+        }
+
+        public int compare(Score a, Score b) {
+            boolean aLatest = a.lastHitTime == mLastHitTime;
+            boolean bLatest = b.lastHitTime == mLastHitTime;
+            if (aLatest != bLatest) {
+                return aLatest ? -1 : 1;
+            }
+            if (a.value != b.value) {
+                return a.value > b.value ? -1 : 1;
+            }
+            return a.intentKey.compareTo(b.intentKey);
+        }
+    }
+}
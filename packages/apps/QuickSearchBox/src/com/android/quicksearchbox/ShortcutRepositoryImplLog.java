@@ -31,9 +31,9 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Handler;
 import android.text.TextUtils;
@@ -42,12 +42,17 @@ import android.util.Log;
 import java.io.File;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
 
 /**
  * A shortcut repository implementation that uses a log of every click.
  *
+ * The database is only used as the durable store. Shortcuts are looked up in a
+ * {@link ShortcutIndex}, which is loaded from the database on first use, and then updated
+ * along with it.
+ *
  * To inspect DB:
  * # sqlite3 /data/data/com.android.quicksearchbox/databases/qsb-log.db
  *
@@ -61,16 +66,9 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     private static final String DB_NAME = "qsb-log.db";
     private static final int DB_VERSION = 32;
 
-    private static final String HAS_HISTORY_QUERY =
-        "SELECT " + Shortcuts.intent_key.fullName + " FROM " + Shortcuts.TABLE_NAME;
-    private String mEmptyQueryShortcutQuery ;
-    private String mShortcutQuery;
-
     private static final String SHORTCUT_BY_ID_WHERE =
             Shortcuts.shortcut_id.name() + "=? AND " + Shortcuts.source.name() + "=?";
 
-    private static final String SOURCE_RANKING_SQL = buildSourceRankingSql();
-
     private final Context mContext;
     private final Config mConfig;
     private final Corpora mCorpora;
@@ -80,6 +78,8 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     private final Executor mLogExecutor;
     private final DbOpenHelper mOpenHelper;
     private final String mSearchSpinner;
+    // Loaded on first use, on the log executor thread
+    private ShortcutIndex mIndex;
 
     /**
      * Create an instance to the repo.
@@ -105,99 +105,105 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         mUiThread = uiThread;
         mLogExecutor = logExecutor;
         mOpenHelper = new DbOpenHelper(context, name, DB_VERSION, config);
-        buildShortcutQueries();
 
         mSearchSpinner = Util.getResourceUri(mContext, R.drawable.search_spinner).toString();
     }
 
-    // clicklog first, since that's where restrict the result set
-    private static final String TABLES = ClickLog.TABLE_NAME + " INNER JOIN " +
-            Shortcuts.TABLE_NAME + " ON " + ClickLog.intent_key.fullName + " = " +
-            Shortcuts.intent_key.fullName;
-
-    private static final String AS = " AS ";
-
-    private static final String[] SHORTCUT_QUERY_COLUMNS = {
-            Shortcuts.intent_key.fullName,
-            Shortcuts.source.fullName,
-            Shortcuts.source_version_code.fullName,
-            Shortcuts.format.fullName + AS + SearchManager.SUGGEST_COLUMN_FORMAT,
-            Shortcuts.title + AS + SearchManager.SUGGEST_COLUMN_TEXT_1,
-            Shortcuts.description + AS + SearchManager.SUGGEST_COLUMN_TEXT_2,
-            Shortcuts.description_url + AS + SearchManager.SUGGEST_COLUMN_TEXT_2_URL,
-            Shortcuts.icon1 + AS + SearchManager.SUGGEST_COLUMN_ICON_1,
-            Shortcuts.icon2 + AS + SearchManager.SUGGEST_COLUMN_ICON_2,
-            Shortcuts.intent_action + AS + SearchManager.SUGGEST_COLUMN_INTENT_ACTION,
-            Shortcuts.intent_component.fullName,
-            Shortcuts.intent_data + AS + SearchManager.SUGGEST_COLUMN_INTENT_DATA,
-            Shortcuts.intent_query + AS + SearchManager.SUGGEST_COLUMN_QUERY,
-            Shortcuts.intent_extradata + AS + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA,
-            Shortcuts.shortcut_id + AS + SearchManager.SUGGEST_COLUMN_SHORTCUT_ID,
-            Shortcuts.spinner_while_refreshing + AS +
-                    SearchManager.SUGGEST_COLUMN_SPINNER_WHILE_REFRESHING,
-            Shortcuts.log_type + AS + CursorBackedSuggestionCursor.SUGGEST_COLUMN_LOG_TYPE,
-            Shortcuts.custom_columns.fullName,
+    // The columns of the shortcut cursors, in the order of Shortcuts, so that the
+    // shortcut rows in the index can be used as cursor rows.
+    private static final String[] SHORTCUT_CURSOR_COLUMNS = {
+            Shortcuts.intent_key.name(),
+            Shortcuts.source.name(),
+            Shortcuts.source_version_code.name(),
+            SearchManager.SUGGEST_COLUMN_FORMAT,
+            SearchManager.SUGGEST_COLUMN_TEXT_1,
+            SearchManager.SUGGEST_COLUMN_TEXT_2,
+            SearchManager.SUGGEST_COLUMN_TEXT_2_URL,
+            SearchManager.SUGGEST_COLUMN_ICON_1,
+            SearchManager.SUGGEST_COLUMN_ICON_2,
+            SearchManager.SUGGEST_COLUMN_INTENT_ACTION,
+            Shortcuts.intent_component.name(),
+            SearchManager.SUGGEST_COLUMN_INTENT_DATA,
+            SearchManager.SUGGEST_COLUMN_QUERY,
+            SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA,
+            SearchManager.SUGGEST_COLUMN_SHORTCUT_ID,
+            SearchManager.SUGGEST_COLUMN_SPINNER_WHILE_REFRESHING,
+            CursorBackedSuggestionCursor.SUGGEST_COLUMN_LOG_TYPE,
+            Shortcuts.custom_columns.name(),
         };
 
-    // Avoid GLOB by using >= AND <, with some manipulation (see nextString(String)).
-    // to figure out the upper bound (e.g. >= "abc" AND < "abd"
-    // This allows us to use parameter binding and still take advantage of the
-    // index on the query column.
-    private static final String PREFIX_RESTRICTION =
-            ClickLog.query.fullName + " >= ?1 AND " + ClickLog.query.fullName + " < ?2";
-
-    private static final String LAST_HIT_TIME_EXPR = "MAX(" + ClickLog.hit_time.fullName + ")";
-    private static final String GROUP_BY = ClickLog.intent_key.fullName;
-    private static final String PREFER_LATEST_PREFIX =
-        "(" + LAST_HIT_TIME_EXPR + " = (SELECT " + LAST_HIT_TIME_EXPR + " FROM " +
-        ClickLog.TABLE_NAME + " WHERE ";
-    private static final String PREFER_LATEST_SUFFIX = "))";
-
-    private void buildShortcutQueries() {
-        // SQL expression for the time before which no clicks should be counted.
-        String cutOffTime_expr = "(?3 - " + mConfig.getMaxStatAgeMillis() + ")";
-        // Filter out clicks that are too old
-        String ageRestriction = ClickLog.hit_time.fullName + " >= " + cutOffTime_expr;
-        String having = null;
-        // Order by sum of hit times (seconds since cutoff) for the clicks for each shortcut.
-        // This has the effect of multiplying the average hit time with the click count
-        String ordering_expr =
-                "SUM((" + ClickLog.hit_time.fullName + " - " + cutOffTime_expr + ") / 1000)";
-
-        String where = ageRestriction;
-        String preferLatest = PREFER_LATEST_PREFIX + where + PREFER_LATEST_SUFFIX;
-        String orderBy = preferLatest + " DESC, " + ordering_expr + " DESC";
-        mEmptyQueryShortcutQuery = SQLiteQueryBuilder.buildQueryString(
-                false, TABLES, SHORTCUT_QUERY_COLUMNS, where, GROUP_BY, having, orderBy, null);
-        if (DBG) Log.d(TAG, "Empty shortcut query:\n" + mEmptyQueryShortcutQuery);
-
-        where = PREFIX_RESTRICTION + " AND " + ageRestriction;
-        preferLatest = PREFER_LATEST_PREFIX + where + PREFER_LATEST_SUFFIX;
-        orderBy = preferLatest + " DESC, " + ordering_expr + " DESC";
-        mShortcutQuery = SQLiteQueryBuilder.buildQueryString(
-                false, TABLES, SHORTCUT_QUERY_COLUMNS, where, GROUP_BY, having, orderBy, null);
-        if (DBG) Log.d(TAG, "Empty shortcut:\n" + mShortcutQuery);
+    protected DbOpenHelper getOpenHelper() {
+        return mOpenHelper;
     }
 
     /**
-     * @return sql that ranks sources by total clicks, filtering out sources
-     *         without enough clicks.
+     * Gets the shortcut index, loading it from the database if needed. Transactions must call
+     * this before they modify the database, so that the index doesn't see their changes twice.
      */
-    private static String buildSourceRankingSql() {
-        final String orderingExpr = SourceStats.total_clicks.name();
-        final String tables = SourceStats.TABLE_NAME;
-        final String[] columns = SourceStats.COLUMNS;
-        final String where = SourceStats.total_clicks + " >= $1";
-        final String groupBy = null;
-        final String having = null;
-        final String orderBy = orderingExpr + " DESC";
-        final String limit = null;
-        return SQLiteQueryBuilder.buildQueryString(
-                false, tables, columns, where, groupBy, having, orderBy, limit);
+    private synchronized ShortcutIndex getIndex() {
+        if (mIndex == null) {
+            mIndex = loadIndex(mOpenHelper.getReadableDatabase());
+        }
+        return mIndex;
     }
 
-    protected DbOpenHelper getOpenHelper() {
-        return mOpenHelper;
+    private ShortcutIndex loadIndex(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        ShortcutIndex index = new ShortcutIndex(mConfig.getMaxStatAgeMillis());
+        Cursor cursor = db.query(Shortcuts.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            int[] columns = new int[Shortcuts.values().length];
+            for (Shortcuts column : Shortcuts.values()) {
+                columns[column.ordinal()] = cursor.getColumnIndexOrThrow(column.name());
+            }
+            while (cursor.moveToNext()) {
+                Object[] shortcut = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    shortcut[i] = cursor.getString(columns[i]);
+                }
+                int versionCode = Shortcuts.source_version_code.ordinal();
+                shortcut[versionCode] = cursor.getInt(columns[versionCode]);
+                index.putShortcut(shortcut);
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = db.query(ClickLog.TABLE_NAME, new String[] { ClickLog.intent_key.name(),
+                ClickLog.query.name(), ClickLog.hit_time.name(), ClickLog.corpus.name() },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                index.loadClick(cursor.getString(0), cursor.getString(1), cursor.getLong(2),
+                        cursor.getString(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = db.query(SourceStats.TABLE_NAME, SourceStats.COLUMNS,
+                null, null, null, null, null);
+        try {
+            HashMap<String, Integer> totals = new HashMap<String, Integer>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                totals.put(cursor.getString(SourceStats.corpus.ordinal()),
+                        cursor.getInt(SourceStats.total_clicks.ordinal()));
+            }
+            index.loadCorpusTotals(totals);
+        } finally {
+            cursor.close();
+        }
+        if (DBG) Log.d(TAG, "Loaded index in " + (System.currentTimeMillis() - start) + "ms");
+        return index;
+    }
+
+    /**
+     * Converts a row of the shortcuts table to the format used by {@link ShortcutIndex}.
+     */
+    private static Object[] makeShortcutIndexRow(ContentValues shortcut) {
+        Object[] row = new Object[Shortcuts.values().length];
+        for (Shortcuts column : Shortcuts.values()) {
+            row[column.ordinal()] = shortcut.get(column.name());
+        }
+        return row;
     }
 
     private void runTransactionAsync(final SQLiteTransaction transaction) {
@@ -222,7 +228,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         runQueryAsync(new SQLiteAsyncQuery<Boolean>() {
             @Override
             protected Boolean performQuery(SQLiteDatabase db) {
-                return hasHistory(db);
+                return !getIndex().isEmpty();
             }
         }, consumer);
     }
@@ -233,8 +239,10 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         runTransactionAsync(new SQLiteTransaction() {
             @Override
             public boolean performTransaction(SQLiteDatabase db) {
+                ShortcutIndex index = getIndex();
                 db.delete(Shortcuts.TABLE_NAME, Shortcuts.intent_key.fullName + " = ?",
                         new String[]{ intentKey });
+                index.removeShortcut(intentKey);
                 return true;
             }
         });
@@ -244,9 +252,11 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         runTransactionAsync(new SQLiteTransaction() {
             @Override
             public boolean performTransaction(SQLiteDatabase db) {
+                ShortcutIndex index = getIndex();
                 db.delete(ClickLog.TABLE_NAME, null, null);
                 db.delete(Shortcuts.TABLE_NAME, null, null);
                 db.delete(SourceStats.TABLE_NAME, null, null);
+                index.clear();
                 return true;
             }
         });
@@ -255,6 +265,9 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     @VisibleForTesting
     public void deleteRepository() {
         getOpenHelper().deleteDatabase();
+        synchronized (this) {
+            mIndex = null;
+        }
     }
 
     public void close() {
@@ -293,16 +306,6 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
 
 // -------------------------- end ShortcutRepository --------------------------
 
-    private boolean hasHistory(SQLiteDatabase db) {
-        Cursor cursor = db.rawQuery(HAS_HISTORY_QUERY, null);
-        try {
-            if (DBG) Log.d(TAG, "hasHistory(): cursor=" + cursor);
-            return cursor != null && cursor.getCount() > 0;
-        } finally {
-            if (cursor != null) cursor.close();
-        }
-    }
-
     private Map<String,Integer> getCorpusScores() {
         return getCorpusScores(mConfig.getMinClicksForSourceRanking());
     }
@@ -316,15 +319,14 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     ShortcutCursor getShortcutsForQuery(String query, Collection<Corpus> allowedCorpora,
             boolean allowWebSearchShortcuts, long now) {
         if (DBG) Log.d(TAG, "getShortcutsForQuery(" + query + "," + allowedCorpora + ")");
-        String sql = query.length() == 0 ? mEmptyQueryShortcutQuery : mShortcutQuery;
-        String[] params = buildShortcutQueryParams(query, now);
-
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor cursor = db.rawQuery(sql, params);
-        if (cursor.getCount() == 0) {
-            cursor.close();
+        List<Object[]> shortcuts = getIndex().getShortcuts(query, now);
+        if (shortcuts.isEmpty()) {
             return null;
         }
+        MatrixCursor cursor = new MatrixCursor(SHORTCUT_CURSOR_COLUMNS, shortcuts.size());
+        for (Object[] shortcut : shortcuts) {
+            cursor.addRow(shortcut);
+        }
 
         if (DBG) Log.d(TAG, "Allowed sources: ");
         HashMap<String,Source> allowedSources = new HashMap<String,Source>();
@@ -345,7 +347,8 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         if (source == null) throw new NullPointerException("source");
         if (shortcutId == null) throw new NullPointerException("shortcutId");
 
-        final String[] whereArgs = { shortcutId, source.getName() };
+        final String sourceName = source.getName();
+        final String[] whereArgs = { shortcutId, sourceName };
         final ContentValues shortcut;
         if (refreshed == null || refreshed.getCount() == 0) {
             shortcut = null;
@@ -357,13 +360,17 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         runTransactionAsync(new SQLiteTransaction() {
             @Override
             protected boolean performTransaction(SQLiteDatabase db) {
+                ShortcutIndex index = getIndex();
                 if (shortcut == null) {
                     if (DBG) Log.d(TAG, "Deleting shortcut: " + shortcutId);
                     db.delete(Shortcuts.TABLE_NAME, SHORTCUT_BY_ID_WHERE, whereArgs);
+                    index.updateShortcuts(shortcutId, sourceName, null);
                 } else {
                     if (DBG) Log.d(TAG, "Updating shortcut: " + shortcut);
                     db.updateWithOnConflict(Shortcuts.TABLE_NAME, shortcut,
                             SHORTCUT_BY_ID_WHERE, whereArgs, SQLiteDatabase.CONFLICT_REPLACE);
+                    index.updateShortcuts(shortcutId, sourceName,
+                            makeShortcutIndexRow(shortcut));
                 }
                 return true;
             }
@@ -467,41 +474,6 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         }
     }
 
-    /**
-     * Builds a parameter list for the queries built by {@link #buildShortcutQueries}.
-     */
-    private static String[] buildShortcutQueryParams(String query, long now) {
-        return new String[]{ query, nextString(query), String.valueOf(now) };
-    }
-
-    /**
-     * Given a string x, this method returns the least string y such that x is not a prefix of y.
-     * This is useful to implement prefix filtering by comparison, since the only strings z that
-     * have x as a prefix are such that z is greater than or equal to x and z is less than y.
-     *
-     * @param str A non-empty string. The contract above is not honored for an empty input string,
-     *        since all strings have the empty string as a prefix.
-     */
-    private static String nextString(String str) {
-        int len = str.length();
-        if (len == 0) {
-            return str;
-        }
-        // The last code point in the string. Within the Basic Multilingual Plane,
-        // this is the same as str.charAt(len-1)
-        int codePoint = str.codePointBefore(len);
-        // This should be safe from overflow, since the largest code point
-        // representable in UTF-16 is U+10FFFF.
-        int nextCodePoint = codePoint + 1;
-        // The index of the start of the last code point.
-        // Character.charCount(codePoint) is always 1 (in the BMP) or 2
-        int lastIndex = len - Character.charCount(codePoint);
-        return new StringBuilder(len)
-                .append(str, 0, lastIndex)  // append everything but the last code point
-                .appendCodePoint(nextCodePoint)  // instead of the last code point, use successor
-                .toString();
-    }
-
     /**
      * Returns the source ranking for sources with a minimum number of clicks.
      *
@@ -509,20 +481,7 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
      * @return The list of sources, ranked by total clicks.
      */
     Map<String,Integer> getCorpusScores(int minClicks) {
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        final Cursor cursor = db.rawQuery(
-                SOURCE_RANKING_SQL, new String[] { String.valueOf(minClicks) });
-        try {
-            Map<String,Integer> corpora = new HashMap<String,Integer>(cursor.getCount());
-            while (cursor.moveToNext()) {
-                String name = cursor.getString(SourceStats.corpus.ordinal());
-                int clicks = cursor.getInt(SourceStats.total_clicks.ordinal());
-                corpora.put(name, clicks);
-            }
-            return corpora;
-        } finally {
-            cursor.close();
-        }
+        return getIndex().getCorpusScores(minClicks);
     }
 
     private ContentValues makeShortcutRow(Suggestion suggestion) {
@@ -662,21 +621,26 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         // Since intent_key is the primary key, any existing
         // suggestion with the same source+data+action will be replaced
         final ContentValues shortcut = makeShortcutRow(suggestion);
-        String intentKey = shortcut.getAsString(Shortcuts.intent_key.name());
+        final String intentKey = shortcut.getAsString(Shortcuts.intent_key.name());
+        final String query = suggestion.getUserQuery();
+        final String corpusName = corpus.getName();
 
         // Log click for shortcut
         final ContentValues click = new ContentValues();
         click.put(ClickLog.intent_key.name(), intentKey);
-        click.put(ClickLog.query.name(), suggestion.getUserQuery());
+        click.put(ClickLog.query.name(), query);
         click.put(ClickLog.hit_time.name(), now);
-        click.put(ClickLog.corpus.name(), corpus.getName());
+        click.put(ClickLog.corpus.name(), corpusName);
 
         runTransactionAsync(new SQLiteTransaction() {
             @Override
             protected boolean performTransaction(SQLiteDatabase db) {
                 if (DBG) Log.d(TAG, "Adding shortcut: " + shortcut);
+                ShortcutIndex index = getIndex();
                 db.replaceOrThrow(Shortcuts.TABLE_NAME, null, shortcut);
                 db.insertOrThrow(ClickLog.TABLE_NAME, null, click);
+                index.putShortcut(makeShortcutIndexRow(shortcut));
+                index.addClick(intentKey, query, now, corpusName);
                 return true;
             }
         });
@@ -844,8 +808,6 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + Shortcuts.TABLE_NAME + " (" +
-                    // COLLATE UNICODE is needed to make it possible to use nextString()
-                    // to implement fast prefix filtering.
                     Shortcuts.intent_key.name() + " TEXT NOT NULL COLLATE UNICODE PRIMARY KEY, " +
                     Shortcuts.source.name() + " TEXT NOT NULL, " +
                     Shortcuts.source_version_code.name() + " INTEGER NOT NULL, " +
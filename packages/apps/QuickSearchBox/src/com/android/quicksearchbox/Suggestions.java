@@ -62,6 +62,12 @@ public class Suggestions {
      * */
     private final CorpusResult[] mCorpusResults;
 
+    /**
+     * Whether each item of {@link #mCorpusResults} is provisional, that is will be replaced
+     * when the corpus reports its result.
+     */
+    private final boolean[] mProvisional;
+
     private CorpusResult mWebResult;
 
     private int mRefCount = 0;
@@ -72,6 +78,7 @@ public class Suggestions {
         mQuery = query;
         mExpectedCorpora = expectedCorpora;
         mCorpusResults = new CorpusResult[mExpectedCorpora.size()];
+        mProvisional = new boolean[mExpectedCorpora.size()];
         // create a map of corpus name -> position in mExpectedCorpora for sorting later
         // (we want to keep the ordering of corpora in mCorpusResults).
         mCorpusPositions = new HashMap<String, Integer>();
@@ -177,7 +184,7 @@ public class Suggestions {
     private int countCorpusResults() {
         int count = 0;
         for (int i = 0; i < mCorpusResults.length; ++i) {
-            if (mCorpusResults[i] != null) {
+            if (mCorpusResults[i] != null && !mProvisional[i]) {
                 count++;
             }
         }
@@ -211,6 +218,10 @@ public class Suggestions {
                         corpusResult.getCorpus().getName());
                 corpusResult.close();
             } else {
+                if (mProvisional[pos]) {
+                    mCorpusResults[pos].close();
+                    mProvisional[pos] = false;
+                }
                 mCorpusResults[pos] = corpusResult;
                 if (corpusResult.getCorpus().isWebCorpus()) {
                     mWebResult = corpusResult;
@@ -220,6 +231,38 @@ public class Suggestions {
         notifyDataSetChanged();
     }
 
+    /**
+     * Adds a corpus result that is shown until the corpus reports its result, which then
+     * replaces it. A provisional result does not count as reported for
+     * {@link #getResultCount()} and {@link #isDone()}. Must be called on the UI thread, or
+     * before this object is seen by the UI thread.
+     */
+    public void addProvisionalCorpusResult(CorpusResult corpusResult) {
+        Integer pos = mCorpusPositions.get(corpusResult.getCorpus().getName());
+        if (isClosed() || pos == null
+                || (mCorpusResults[pos] != null && !mProvisional[pos])) {
+            corpusResult.close();
+            return;
+        }
+        if (!mQuery.equals(corpusResult.getUserQuery())) {
+            throw new IllegalArgumentException("Got result for wrong query: "
+                  + mQuery + " != " + corpusResult.getUserQuery());
+        }
+        if (DBG) {
+            Log.d(TAG, "addProvisionalCorpusResult["+ hashCode() + "] corpus:" +
+                    corpusResult.getCorpus().getName() + " results:" + corpusResult.getCount());
+        }
+        if (mCorpusResults[pos] != null) {
+            mCorpusResults[pos].close();
+        }
+        mCorpusResults[pos] = corpusResult;
+        mProvisional[pos] = true;
+        if (corpusResult.getCorpus().isWebCorpus()) {
+            mWebResult = corpusResult;
+        }
+        notifyDataSetChanged();
+    }
+
     /**
      * Registers an observer that will be notified when the reported results or
      * the done status changes.
@@ -46,6 +46,8 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
 
     private final ShouldQueryStrategy mShouldQueryStrategy;
 
+    private final CorpusResultCache mResultCache;
+
     private final Logger mLogger;
 
     private BatchingNamedTaskExecutor mBatchingExecutor;
@@ -59,6 +61,7 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
         mPublishThread = publishThread;
         mLogger = logger;
         mShouldQueryStrategy = new ShouldQueryStrategy(mConfig);
+        mResultCache = new CorpusResultCache(mConfig);
     }
 
     public void close() {
@@ -116,7 +119,36 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
             return suggestions;
         }
 
-        int initialBatchSize = countDefaultCorpora(corporaToQuery);
+        int maxResultsPerSource = mConfig.getMaxResultsPerSource();
+        boolean displayResults = shouldDisplayResults(query);
+
+        // Use cached results where we can. Corpora with provisional results are still
+        // queried, and their results replace the provisional ones.
+        List<Corpus> corporaToFetch = corporaToQuery;
+        int cachedCount = 0;
+        if (displayResults) {
+            corporaToFetch = new ArrayList<Corpus>(corporaToQuery.size());
+            ArrayList<CorpusResult> cachedResults = new ArrayList<CorpusResult>();
+            for (Corpus corpus : corporaToQuery) {
+                CorpusResultCache.Result cached =
+                        mResultCache.get(corpus, query, maxResultsPerSource);
+                if (cached == null) {
+                    corporaToFetch.add(corpus);
+                } else if (cached.isProvisional()) {
+                    suggestions.addProvisionalCorpusResult(cached);
+                    corporaToFetch.add(corpus);
+                } else {
+                    cachedResults.add(cached);
+                }
+            }
+            if (!cachedResults.isEmpty()) {
+                suggestions.addCorpusResults(cachedResults);
+                cachedCount = cachedResults.size();
+            }
+            if (DBG) Log.d(TAG, "cached:" + cachedCount + ",fetching:" + corporaToFetch);
+        }
+
+        int initialBatchSize = countDefaultCorpora(corporaToFetch);
         if (initialBatchSize == 0) {
             initialBatchSize = mConfig.getNumPromotedSources();
         }
@@ -126,17 +158,26 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
         long publishResultDelayMillis = mConfig.getPublishResultDelayMillis();
 
         Consumer<CorpusResult> receiver;
-        if (shouldDisplayResults(query)) {
+        List<? extends SuggestionCursorProvider<CorpusResult>> providers;
+        if (displayResults) {
+            // The cached results count towards the first batch, since they have already
+            // been published.
             receiver = new SuggestionCursorReceiver(
-                    mBatchingExecutor, suggestions, initialBatchSize,
+                    mBatchingExecutor, suggestions, cachedCount + initialBatchSize,
                     publishResultDelayMillis);
+            ArrayList<CachingCorpus> cachingCorpora =
+                    new ArrayList<CachingCorpus>(corporaToFetch.size());
+            for (Corpus corpus : corporaToFetch) {
+                cachingCorpora.add(new CachingCorpus(corpus));
+            }
+            providers = cachingCorpora;
         } else {
             receiver = new NoOpConsumer<CorpusResult>();
+            providers = corporaToFetch;
             suggestions.done();
         }
 
-        int maxResultsPerSource = mConfig.getMaxResultsPerSource();
-        QueryTask.startQueries(query, maxResultsPerSource, corporaToQuery, mBatchingExecutor,
+        QueryTask.startQueries(query, maxResultsPerSource, providers, mBatchingExecutor,
                 mPublishThread, receiver, corporaToQuery.size() == 1);
         mBatchingExecutor.executeNextBatch(initialBatchSize);
 
@@ -164,6 +205,35 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
     }
 
 
+    /**
+     * Gets the suggestions of a corpus, and adds them to the result cache. This runs on the
+     * query thread, so copying the suggestions into the cache doesn't hold up publishing.
+     */
+    private class CachingCorpus implements SuggestionCursorProvider<CorpusResult> {
+        private final Corpus mCorpus;
+
+        public CachingCorpus(Corpus corpus) {
+            mCorpus = corpus;
+        }
+
+        public String getName() {
+            return mCorpus.getName();
+        }
+
+        public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyOne) {
+            CorpusResult result = mCorpus.getSuggestions(query, queryLimit, onlyOne);
+            if (result != null) {
+                mResultCache.put(result, queryLimit);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return mCorpus.toString();
+        }
+    }
+
     private class SuggestionCursorReceiver implements Consumer<CorpusResult> {
         private final BatchingNamedTaskExecutor mExecutor;
         private final Suggestions mSuggestions;
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link CorpusResultCache}.
+ */
+@SmallTest
+public class CorpusResultCacheTest extends AndroidTestCase {
+
+    private static final int LIMIT = 10;
+
+    private static final Corpus CORPUS = new MockCorpus(
+            new MockWordPrefixSource("WORDS", "Alarm Clock", "Browser", "Calculator",
+                    "Calendar", "Camera", "Car Home"),
+            true, true);
+
+    private static final Corpus NON_ASCII_CORPUS = new MockCorpus(
+            new MockWordPrefixSource("NON_ASCII", "Café Finder", "Camera"), true, true);
+
+    private static final Corpus NON_MONOTONIC_CORPUS = new MockCorpus(
+            new MockWordPrefixSource("NON_MONOTONIC", "Calculator", "Calendar"), true, false);
+
+    private int mCacheSize;
+    private long mMaxAgeMillis;
+    private CorpusResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheSize = 100;
+        mMaxAgeMillis = 60000;
+        mCache = new CorpusResultCache(new Config(getContext()) {
+            @Override
+            public int getCorpusResultCacheSize() {
+                return mCacheSize;
+            }
+            @Override
+            public long getCorpusResultCacheMaxAgeMillis() {
+                return mMaxAgeMillis;
+            }
+        });
+    }
+
+    public void testExactQuery() {
+        put(CORPUS, "ca", LIMIT);
+        CorpusResultCache.Result result = mCache.get(CORPUS, "ca", LIMIT);
+        assertNotNull(result);
+        assertFalse(result.isProvisional());
+        assertEquals("ca", result.getUserQuery());
+        assertSame(CORPUS, result.getCorpus());
+        assertTexts(result, "Calculator", "Calendar", "Camera", "Car Home");
+    }
+
+    public void testExactQueryOfNonMonotonicCorpusIsProvisional() {
+        put(NON_MONOTONIC_CORPUS, "ca", LIMIT);
+        CorpusResultCache.Result result = mCache.get(NON_MONOTONIC_CORPUS, "ca", LIMIT);
+        assertTrue(result.isProvisional());
+        assertTexts(result, "Calculator", "Calendar");
+    }
+
+    public void testMiss() {
+        put(CORPUS, "ca", LIMIT);
+        assertNull(mCache.get(CORPUS, "b", LIMIT));
+        assertNull(mCache.get(CORPUS, "c", LIMIT));
+        assertNull(mCache.get(MockCorpus.CORPUS_1, "ca", LIMIT));
+    }
+
+    public void testRefinementIsProvisional() {
+        put(CORPUS, "c", LIMIT);
+        CorpusResultCache.Result result = mCache.get(CORPUS, "cal", LIMIT);
+        assertNotNull(result);
+        assertTrue(result.isProvisional());
+        assertEquals("cal", result.getUserQuery());
+        assertTexts(result, "Calculator", "Calendar");
+    }
+
+    public void testRefinesOnWordBoundaries() {
+        put(CORPUS, "c", LIMIT);
+        assertTexts(mCache.get(CORPUS, "cl", LIMIT), "Alarm Clock");
+        assertTexts(mCache.get(CORPUS, "cAL", LIMIT), "Calculator", "Calendar");
+        assertTexts(mCache.get(CORPUS, "cx", LIMIT));
+    }
+
+    public void testRefinementOfTruncatedResultIsProvisional() {
+        put(CORPUS, "c", 3);
+        CorpusResultCache.Result result = mCache.get(CORPUS, "cal", 3);
+        assertTrue(result.isProvisional());
+        assertTexts(result, "Calculator", "Calendar");
+    }
+
+    public void testRefinementOfNonAsciiIsProvisional() {
+        put(NON_ASCII_CORPUS, "ca", LIMIT);
+        assertTrue(mCache.get(NON_ASCII_CORPUS, "caf", LIMIT).isProvisional());
+        put(CORPUS, "a", LIMIT);
+        assertTrue(mCache.get(CORPUS, "alé", LIMIT).isProvisional());
+    }
+
+    public void testDoesNotRefineNonMonotonicCorpus() {
+        put(NON_MONOTONIC_CORPUS, "c", LIMIT);
+        assertNull(mCache.get(NON_MONOTONIC_CORPUS, "cal", LIMIT));
+        assertNotNull(mCache.get(NON_MONOTONIC_CORPUS, "c", LIMIT));
+    }
+
+    public void testDoesNotCacheEmptyResults() {
+        put(CORPUS, "x", LIMIT);
+        assertNull(mCache.get(CORPUS, "x", LIMIT));
+    }
+
+    public void testExpires() {
+        mMaxAgeMillis = -1;
+        put(CORPUS, "c", LIMIT);
+        assertNull(mCache.get(CORPUS, "c", LIMIT));
+        assertNull(mCache.get(CORPUS, "ca", LIMIT));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        mCacheSize = 4;
+        put(CORPUS, "br", LIMIT);
+        put(CORPUS, "al", LIMIT);
+        put(CORPUS, "cam", LIMIT);
+        put(CORPUS, "car", LIMIT);
+        assertNotNull(mCache.get(CORPUS, "br", LIMIT));
+        // The fifth suggestion pushes out "al", which was used less recently than "br"
+        put(CORPUS, "cl", LIMIT);
+        assertNull(mCache.get(CORPUS, "al", LIMIT));
+        assertNotNull(mCache.get(CORPUS, "br", LIMIT));
+        assertNotNull(mCache.get(CORPUS, "cl", LIMIT));
+    }
+
+    private void put(Corpus corpus, String query, int queryLimit) {
+        CorpusResult result = corpus.getSuggestions(query, queryLimit, true);
+        mCache.put(result, queryLimit);
+        result.close();
+    }
+
+    private static void assertTexts(SuggestionCursor cursor, String... expected) {
+        assertEquals("Wrong count for " + cursor, expected.length, cursor.getCount());
+        for (int i = 0; i < expected.length; i++) {
+            cursor.moveTo(i);
+            assertEquals(expected[i], cursor.getSuggestionText1());
+        }
+    }
+}
@@ -42,14 +42,21 @@ public class MockCorpus implements Corpus {
 
     private final boolean mDefaultEnabled;
 
+    private final boolean mPrefixMonotonic;
+
     public MockCorpus(Source source) {
         this(source, true);
     }
 
     public MockCorpus(Source source, boolean defaultEnabled) {
+        this(source, defaultEnabled, false);
+    }
+
+    public MockCorpus(Source source, boolean defaultEnabled, boolean prefixMonotonic) {
         mName = "corpus_" + source.getName();
         mSource = source;
         mDefaultEnabled = defaultEnabled;
+        mPrefixMonotonic = prefixMonotonic;
     }
 
     public Intent createSearchIntent(String query, Bundle appData) {
@@ -157,4 +164,8 @@ public class MockCorpus implements Corpus {
         return false;
     }
 
+    public boolean isPrefixMonotonic() {
+        return mPrefixMonotonic;
+    }
+
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+/**
+ * Mock source that matches a fixed list of names by word prefix, like the apps source,
+ * and counts the queries it gets.
+ */
+public class MockWordPrefixSource extends MockSource {
+
+    private final String[] mNames;
+
+    private int mQueryCount;
+
+    public MockWordPrefixSource(String name, String... names) {
+        super(name);
+        mNames = names;
+    }
+
+    @Override
+    public SourceResult getSuggestions(String query, int queryLimit, boolean onlySource) {
+        mQueryCount++;
+        Result result = new Result(query);
+        String lowerQuery = query.toLowerCase();
+        for (String name : mNames) {
+            if (result.getCount() >= queryLimit) break;
+            for (String word : name.toLowerCase().split(" ")) {
+                if (word.startsWith(lowerQuery)) {
+                    result.add(createSuggestion(name));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    public int getQueryCount() {
+        return mQueryCount;
+    }
+
+    private class Result extends ListSuggestionCursor implements SourceResult {
+
+        public Result(String userQuery) {
+            super(userQuery);
+        }
+
+        public Source getSource() {
+            return MockWordPrefixSource.this;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import com.android.quicksearchbox.ShortcutRepositoryImplLog.Shortcuts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link ShortcutIndex}. The ranking is covered in more detail by
+ * {@link ShortcutRepositoryTest}.
+ */
+@SmallTest
+public class ShortcutIndexTest extends AndroidTestCase {
+
+    private static final long NOW = ShortcutRepositoryTest.NOW;
+
+    private static final long MAX_AGE = 1000000;
+
+    private ShortcutIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new ShortcutIndex(MAX_AGE);
+    }
+
+    public void testEmpty() {
+        assertTrue(mIndex.isEmpty());
+        assertShortcuts("");
+        click("a", "app", NOW);
+        assertFalse(mIndex.isEmpty());
+        mIndex.clear();
+        assertTrue(mIndex.isEmpty());
+        assertShortcuts("");
+    }
+
+    public void testPrefixMatch() {
+        click("a", "app", NOW);
+        click("b", "bob", NOW);
+        click("c", null, NOW);
+        assertShortcuts("ap", "a");
+        assertShortcuts("app", "a");
+        assertShortcuts("apps");
+        assertShortcuts("bo", "b");
+        assertShortcuts("", "a", "b", "c");
+    }
+
+    public void testMostRecentClickFirst() {
+        click("a", "app", NOW - 3000);
+        click("a", "app", NOW - 3000);
+        click("b", "app", NOW - 2000);
+        assertShortcuts("app", "b", "a");
+        click("c", "apple", NOW - 5000);
+        click("c", "apple", NOW - 5000);
+        click("c", "apple", NOW - 5000);
+        assertShortcuts("a", "b", "c", "a");
+    }
+
+    public void testOldClicksIgnored() {
+        click("a", "app", NOW - MAX_AGE - 1);
+        click("b", "app", NOW - MAX_AGE);
+        assertShortcuts("app", NOW, "b");
+        assertShortcuts("app", NOW - 1, "b", "a");
+    }
+
+    public void testOldClicksDropped() {
+        click("a", "app", NOW - MAX_AGE - 1);
+        click("b", "bob", NOW);
+        // The click on a is gone, even when looking from before it expired
+        assertShortcuts("", NOW - MAX_AGE, "b");
+    }
+
+    public void testRemoveShortcut() {
+        click("a", "app", NOW);
+        click("b", "app", NOW);
+        mIndex.removeShortcut("a");
+        assertShortcuts("app", "b");
+        // Clicks on a were removed with it
+        click("a", "app", NOW - 2000);
+        click("b", "app", NOW - 3000);
+        assertShortcuts("app", "b", "a");
+    }
+
+    public void testUpdateShortcutMovesClicks() {
+        click("a", "app", NOW - 1000);
+        click("a", "app", NOW - 1000);
+        click("b", "app", NOW);
+        mIndex.updateShortcuts("id_a", "source", shortcut("a2", "id_a"));
+        assertShortcuts("app", "b", "a2");
+        click("c", "app", NOW);
+        assertShortcuts("app", "b", "c", "a2");
+    }
+
+    public void testUpdateUnknownShortcut() {
+        mIndex.updateShortcuts("id_a", "source", shortcut("a", "id_a"));
+        assertTrue(mIndex.isEmpty());
+    }
+
+    public void testInvalidateShortcut() {
+        click("a", "app", NOW);
+        click("b", "app", NOW);
+        mIndex.updateShortcuts("id_a", "source", null);
+        assertShortcuts("app", "b");
+    }
+
+    public void testCorpusScores() {
+        click("a", "app", NOW, "apps");
+        click("a", "app", NOW, "apps");
+        click("b", "bob", NOW, "contacts");
+        Map<String, Integer> scores = mIndex.getCorpusScores(1);
+        assertEquals(2, scores.size());
+        assertEquals(2, (int) scores.get("apps"));
+        assertEquals(1, (int) scores.get("contacts"));
+        assertEquals(1, mIndex.getCorpusScores(2).size());
+
+        // Like the source totals table, the scores are only updated on clicks
+        mIndex.removeShortcut("a");
+        assertEquals(2, (int) mIndex.getCorpusScores(1).get("apps"));
+        click("b", "bob", NOW, "contacts");
+        assertNull(mIndex.getCorpusScores(1).get("apps"));
+    }
+
+    private void click(String intentKey, String query, long hitTime) {
+        click(intentKey, query, hitTime, "corpus");
+    }
+
+    private void click(String intentKey, String query, long hitTime, String corpus) {
+        mIndex.putShortcut(shortcut(intentKey, "id_" + intentKey));
+        mIndex.addClick(intentKey, query, hitTime, corpus);
+    }
+
+    private static Object[] shortcut(String intentKey, String shortcutId) {
+        Object[] shortcut = new Object[Shortcuts.values().length];
+        shortcut[Shortcuts.intent_key.ordinal()] = intentKey;
+        shortcut[Shortcuts.source.ordinal()] = "source";
+        shortcut[Shortcuts.shortcut_id.ordinal()] = shortcutId;
+        return shortcut;
+    }
+
+    private void assertShortcuts(String query, String... expected) {
+        assertShortcuts(query, NOW, expected);
+    }
+
+    private void assertShortcuts(String query, long now, String... expected) {
+        List<Object[]> shortcuts = mIndex.getShortcuts(query, now);
+        String[] intentKeys = new String[shortcuts.size()];
+        for (int i = 0; i < intentKeys.length; i++) {
+            intentKeys[i] = (String) shortcuts.get(i)[Shortcuts.intent_key.ordinal()];
+        }
+        assertEquals("Shortcuts for \"" + query + "\"",
+                Arrays.asList(expected), Arrays.asList(intentKeys));
+    }
+}
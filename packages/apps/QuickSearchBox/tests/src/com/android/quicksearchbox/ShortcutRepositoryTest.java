@@ -170,6 +170,22 @@ public class ShortcutRepositoryTest extends AndroidTestCase {
         assertHasHistory(false);
     }
 
+    public void testShortcutsReloaded() {
+        reportClick("app", mApp1, NOW - 2);
+        reportClick("app", mApp1, NOW - 2);
+        reportClick("app", mApp2, NOW - 3);
+        reportClick("app", mApp3, NOW - 1);
+        reportClick("bob", mContact1, NOW - 2);
+        mRepo.close();
+
+        mRepo = createShortcutRepository();
+        assertHasHistory(true);
+        assertShortcuts("app", mApp3, mApp1, mApp2);
+        assertShortcuts("b", mContact1);
+        reportClick("app", mApp2, NOW);
+        assertShortcuts("app", mApp2, mApp1, mApp3);
+    }
+
     public void testRemoveFromHistory() {
         SuggestionData john = new SuggestionData(CONTACTS_SOURCE)
                 .setText1("john doe")
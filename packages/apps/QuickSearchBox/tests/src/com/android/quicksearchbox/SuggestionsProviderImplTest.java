@@ -21,6 +21,7 @@ import com.android.quicksearchbox.util.MockNamedTaskExecutor;
 import android.os.Handler;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -33,6 +34,13 @@ import java.util.List;
 @MediumTest
 public class SuggestionsProviderImplTest extends AndroidTestCase {
 
+    private static final String TAG = "QSB.SuggestionsProviderImplTest";
+
+    private static final String[] APP_NAMES = {
+        "Alarm Clock", "Browser", "Calculator", "Calendar", "Camera", "Car Home",
+        "Contacts", "Email", "Gallery", "Maps", "Messaging", "Music", "Phone", "Settings",
+    };
+
     private List<Corpus> mCorpora;
     private MockNamedTaskExecutor mTaskExecutor;
     private SuggestionsProviderImpl mProvider;
@@ -99,6 +107,97 @@ public class SuggestionsProviderImplTest extends AndroidTestCase {
         }
     }
 
+    public void testRepeatedQueryIsCached() {
+        Corpus corpus = new MockCorpus(MockSource.SOURCE_1, true, true);
+        getSuggestionsAndRun("foo", corpus).release();
+        Suggestions suggestions = mProvider.getSuggestions("foo",
+                Collections.singletonList(corpus));
+        try {
+            assertEquals(1, suggestions.getResultCount());
+            assertTrue(suggestions.isDone());
+            assertEquals(corpus.getSuggestions("foo", 3, true).getCount(),
+                    promote(suggestions).getCount());
+            mTaskExecutor.assertDone();
+        } finally {
+            suggestions.release();
+        }
+    }
+
+    public void testRepeatedQueryOfNonMonotonicCorpusIsConfirmed() {
+        getSuggestionsAndRun("foo", MockCorpus.CORPUS_1).release();
+        Suggestions suggestions = mProvider.getSuggestions("foo",
+                Collections.singletonList(MockCorpus.CORPUS_1));
+        try {
+            // The cached result is shown, but the corpus is still queried
+            assertEquals(0, suggestions.getResultCount());
+            assertFalse(suggestions.isDone());
+            int count = promote(suggestions).getCount();
+            assertTrue(count > 0);
+            assertTrue(mTaskExecutor.runNext());
+            assertEquals(1, suggestions.getResultCount());
+            assertEquals(count, promote(suggestions).getCount());
+            mTaskExecutor.assertDone();
+        } finally {
+            suggestions.release();
+        }
+    }
+
+    public void testProvisionalResultIsReplaced() {
+        MockWordPrefixSource source = new MockWordPrefixSource("NON_ASCII", "Café", "Calendar");
+        Corpus corpus = new MockCorpus(source, true, true);
+        getSuggestionsAndRun("c", corpus).release();
+        Suggestions suggestions = mProvider.getSuggestions("caf",
+                Collections.singletonList(corpus));
+        try {
+            // The refined result is shown, but the corpus is still queried
+            assertEquals(0, suggestions.getResultCount());
+            assertFalse(suggestions.isDone());
+            assertEquals(1, promote(suggestions).getCount());
+            assertTrue(mTaskExecutor.runNext());
+            assertEquals(1, suggestions.getResultCount());
+            assertEquals(1, promote(suggestions).getCount());
+            assertEquals(2, source.getQueryCount());
+            mTaskExecutor.assertDone();
+        } finally {
+            suggestions.release();
+        }
+    }
+
+    /**
+     * Types the name of an app one key at a time, and checks for how many keystrokes
+     * suggestions are shown before the query returns. Without the cache, nothing is shown
+     * until it returns. Each keystroke is still a query, which confirms what was shown.
+     */
+    public void testTypingBenchmark() {
+        MockWordPrefixSource source = new MockWordPrefixSource("APPS", APP_NAMES);
+        Corpus corpus = new MockCorpus(source, true, true);
+        String name = "calendar";
+        int immediate = 0;
+        for (int i = 1; i <= name.length(); i++) {
+            Suggestions suggestions = mProvider.getSuggestions(name.substring(0, i),
+                    Collections.singletonList(corpus));
+            try {
+                if (promote(suggestions).getCount() > 0) immediate++;
+                while (mTaskExecutor.runNext()) { }
+                assertTrue(suggestions.isDone());
+                assertTrue(promote(suggestions).getCount() > 0);
+            } finally {
+                suggestions.release();
+            }
+        }
+        Log.i(TAG, "Typing \"" + name + "\": " + source.getQueryCount() + " queries for "
+                + name.length() + " keystrokes, " + immediate + " answered immediately");
+        assertEquals(name.length(), source.getQueryCount());
+        assertEquals(name.length() - 1, immediate);
+    }
+
+    private Suggestions getSuggestionsAndRun(String query, Corpus corpus) {
+        Suggestions suggestions = mProvider.getSuggestions(query,
+                Collections.singletonList(corpus));
+        while (mTaskExecutor.runNext()) { }
+        return suggestions;
+    }
+
     private SuggestionCursor promote(Suggestions suggestions) {
         return suggestions.getPromoted(new ConcatPromoter(), 10);
     }
@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.keyboard.KeyDetector;
+import com.android.inputmethod.keyboard.Keyboard;
+import com.android.inputmethod.latin.Dictionary.WordCallback;
+import com.android.inputmethod.latin.UserHistoryForgettingCurveUtils.ForgettingCurveParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Array-backed trie used as an alternative store for {@link ExpandableDictionary}.
+ *
+ * Nodes are indices into parallel primitive arrays rather than objects. Each node knows its
+ * first child, its next sibling and its parent, so the children of a node are visited in
+ * insertion order exactly like the NodeArray of the object graph. Bigrams are kept in
+ * another set of parallel arrays chained per source word, with a free list for removed
+ * entries. The result is a handful of large arrays instead of several objects per character,
+ * which is much lighter on the heap and on the garbage collector for dictionaries with tens
+ * of thousands of entries.
+ *
+ * Node 0 is the root. It holds no character and is never terminal.
+ *
+ * This class is not thread-safe; the owning dictionary is responsible for synchronization.
+ */
+final class CompactTrie {
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final byte FLAG_TERMINAL = 0x01;
+    private static final byte FLAG_SHORTCUT_ONLY = 0x02;
+
+    // Per-node data.
+    private char[] mChars;
+    private byte[] mFlags;
+    private int[] mFrequencies;
+    private int[] mParents;
+    private int[] mFirstChildren;
+    private int[] mNextSiblings;
+    // Index of the first bigram of the word ending at this node, or NONE.
+    private int[] mBigramHeads;
+    // 1 + index into mShortcutTargets, or 0 if the node has no shortcut targets.
+    private int[] mShortcutIndices;
+    private int mNodeCount;
+
+    // Shortcut targets are rare, so they are stored out of line.
+    private final ArrayList<ArrayList<char[]>> mShortcutTargets =
+            new ArrayList<ArrayList<char[]>>();
+
+    // Per-bigram data.
+    private int[] mBigramTargets;
+    private int[] mBigramFrequencies;
+    private int[] mBigramNexts;
+    // Only allocated once a history bigram is added.
+    private ForgettingCurveParams[] mBigramFcParams;
+    private int mBigramCount;
+    private int mFreeBigram;
+
+    // Search state, set for the duration of a getWords() call.
+    private int[][] mCodes;
+    private int mInputLength;
+    private int mMaxDepth;
+    private int mDicTypeId;
+
+    CompactTrie() {
+        clear();
+    }
+
+    void clear() {
+        mChars = new char[INITIAL_CAPACITY];
+        mFlags = new byte[INITIAL_CAPACITY];
+        mFrequencies = new int[INITIAL_CAPACITY];
+        mParents = new int[INITIAL_CAPACITY];
+        mFirstChildren = new int[INITIAL_CAPACITY];
+        mNextSiblings = new int[INITIAL_CAPACITY];
+        mBigramHeads = new int[INITIAL_CAPACITY];
+        mShortcutIndices = new int[INITIAL_CAPACITY];
+        mShortcutTargets.clear();
+        mNodeCount = 0;
+        mBigramTargets = new int[INITIAL_CAPACITY];
+        mBigramFrequencies = new int[INITIAL_CAPACITY];
+        mBigramNexts = new int[INITIAL_CAPACITY];
+        mBigramFcParams = null;
+        mBigramCount = 0;
+        mFreeBigram = NONE;
+        newNode((char)0, NONE);
+    }
+
+    /**
+     * Returns the number of nodes in the trie, including the root.
+     */
+    int getNodeCount() {
+        return mNodeCount;
+    }
+
+    private static int newCapacity(final int capacity) {
+        return capacity + (capacity >> 1);
+    }
+
+    private int newNode(final char c, final int parent) {
+        if (mNodeCount == mChars.length) {
+            final int capacity = newCapacity(mNodeCount);
+            mChars = Arrays.copyOf(mChars, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mFrequencies = Arrays.copyOf(mFrequencies, capacity);
+            mParents = Arrays.copyOf(mParents, capacity);
+            mFirstChildren = Arrays.copyOf(mFirstChildren, capacity);
+            mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+            mBigramHeads = Arrays.copyOf(mBigramHeads, capacity);
+            mShortcutIndices = Arrays.copyOf(mShortcutIndices, capacity);
+        }
+        final int node = mNodeCount++;
+        mChars[node] = c;
+        mFlags[node] = 0;
+        mFrequencies[node] = 0;
+        mParents[node] = parent;
+        mFirstChildren[node] = NONE;
+        mNextSiblings[node] = NONE;
+        mBigramHeads[node] = NONE;
+        mShortcutIndices[node] = 0;
+        return node;
+    }
+
+    /**
+     * Returns the child of {@code parent} holding {@code c}, creating it at the end of the
+     * children list if it does not exist.
+     */
+    private int findOrAddChild(final int parent, final char c, final boolean shortcutOnly) {
+        int last = NONE;
+        for (int child = mFirstChildren[parent]; child != NONE; child = mNextSiblings[child]) {
+            if (mChars[child] == c) return child;
+            last = child;
+        }
+        final int child = newNode(c, parent);
+        if (shortcutOnly) mFlags[child] |= FLAG_SHORTCUT_ONLY;
+        if (NONE == last) {
+            mFirstChildren[parent] = child;
+        } else {
+            mNextSiblings[last] = child;
+        }
+        return child;
+    }
+
+    private boolean isTerminal(final int node) {
+        return 0 != (mFlags[node] & FLAG_TERMINAL);
+    }
+
+    private boolean isShortcutOnly(final int node) {
+        return 0 != (mFlags[node] & FLAG_SHORTCUT_ONLY);
+    }
+
+    /**
+     * Adds a word, or a shortcut to {@code shortcutTarget} if it is not null.
+     * @see ExpandableDictionary#addWord(String, String, int)
+     */
+    void addWord(final String word, final String shortcutTarget, final int frequency) {
+        final int wordLength = word.length();
+        if (0 == wordLength) return;
+        final boolean isShortcutOnly = (null != shortcutTarget);
+        int node = ROOT;
+        for (int depth = 0; depth < wordLength; ++depth) {
+            node = findOrAddChild(node, word.charAt(depth), isShortcutOnly);
+        }
+        mFlags[node] |= FLAG_TERMINAL;
+        if (isShortcutOnly) {
+            if (0 == mShortcutIndices[node]) {
+                mShortcutTargets.add(new ArrayList<char[]>());
+                mShortcutIndices[node] = mShortcutTargets.size();
+            }
+            mShortcutTargets.get(mShortcutIndices[node] - 1).add(shortcutTarget.toCharArray());
+        } else {
+            mFlags[node] &= ~FLAG_SHORTCUT_ONLY;
+        }
+        mFrequencies[node] = Math.min(Math.max(frequency, mFrequencies[node]), 255);
+    }
+
+    /**
+     * Searches for the word and adds it if it does not exist.
+     * @return the terminal node of the word.
+     */
+    private int searchWord(final String word) {
+        final int wordLength = word.length();
+        int node = ROOT;
+        for (int depth = 0; depth < wordLength; ++depth) {
+            node = findOrAddChild(node, word.charAt(depth), false);
+        }
+        mFlags[node] |= FLAG_TERMINAL;
+        return node;
+    }
+
+    /**
+     * Returns the terminal node of the word, or NONE if the word is not in the trie.
+     */
+    private int searchNode(final CharSequence word) {
+        final int length = word.length();
+        if (0 == length) return NONE;
+        int node = ROOT;
+        for (int offset = 0; offset < length; ++offset) {
+            final char c = word.charAt(offset);
+            int child = mFirstChildren[node];
+            while (child != NONE && mChars[child] != c) {
+                child = mNextSiblings[child];
+            }
+            if (NONE == child) return NONE;
+            node = child;
+        }
+        return isTerminal(node) ? node : NONE;
+    }
+
+    /**
+     * Returns whether the word exists as a word and not only as a shortcut.
+     */
+    boolean isValidWord(final CharSequence word) {
+        final int node = searchNode(word);
+        return NONE != node && !isShortcutOnly(node);
+    }
+
+    /**
+     * Returns the word's frequency or -1 if not found.
+     */
+    int getWordFrequency(final CharSequence word) {
+        final int node = searchNode(word);
+        return NONE == node ? -1 : mFrequencies[node];
+    }
+
+    private int findBigram(final int firstWord, final int secondWord) {
+        for (int bigram = mBigramHeads[firstWord]; bigram != NONE;
+                bigram = mBigramNexts[bigram]) {
+            if (mBigramTargets[bigram] == secondWord) return bigram;
+        }
+        return NONE;
+    }
+
+    private int newBigram() {
+        if (NONE != mFreeBigram) {
+            final int bigram = mFreeBigram;
+            mFreeBigram = mBigramNexts[bigram];
+            return bigram;
+        }
+        if (mBigramCount == mBigramTargets.length) {
+            final int capacity = newCapacity(mBigramCount);
+            mBigramTargets = Arrays.copyOf(mBigramTargets, capacity);
+            mBigramFrequencies = Arrays.copyOf(mBigramFrequencies, capacity);
+            mBigramNexts = Arrays.copyOf(mBigramNexts, capacity);
+            if (null != mBigramFcParams) {
+                mBigramFcParams = Arrays.copyOf(mBigramFcParams, capacity);
+            }
+        }
+        return mBigramCount++;
+    }
+
+    /**
+     * Adds a bigram, or notifies an existing one that it was typed again.
+     *
+     * Like {@link ExpandableDictionary}, both words are added to the trie if they are missing
+     * and the left hand side word is expected to be lower-cased by the caller.
+     * @param fcp the forgetting curve parameters of a history bigram, or null for a static one.
+     * @return the final bigram frequency.
+     */
+    int setBigramAndGetFrequency(final String word1, final String word2, final int frequency,
+            final ForgettingCurveParams fcp) {
+        final int firstWord = searchWord(word1);
+        final int secondWord = searchWord(word2);
+        final int existing = findBigram(firstWord, secondWord);
+        if (NONE != existing) {
+            final ForgettingCurveParams existingFcp = getBigramFcParams(existing);
+            return null == existingFcp ? mBigramFrequencies[existing]
+                    : existingFcp.notifyTypedAgainAndGetFrequency();
+        }
+        final int bigram = newBigram();
+        mBigramTargets[bigram] = secondWord;
+        mBigramFrequencies[bigram] = frequency;
+        if (null != fcp && null == mBigramFcParams) {
+            mBigramFcParams = new ForgettingCurveParams[mBigramTargets.length];
+        }
+        if (null != mBigramFcParams) mBigramFcParams[bigram] = fcp;
+        // Append so that bigrams come out in insertion order.
+        mBigramNexts[bigram] = NONE;
+        int last = mBigramHeads[firstWord];
+        if (NONE == last) {
+            mBigramHeads[firstWord] = bigram;
+        } else {
+            while (NONE != mBigramNexts[last]) last = mBigramNexts[last];
+            mBigramNexts[last] = bigram;
+        }
+        return frequency;
+    }
+
+    /**
+     * Looks up a bigram. Both words are added to the trie if they are missing.
+     * @return the index of the bigram, or -1 if it does not exist.
+     */
+    int getBigram(final String word1, final String word2) {
+        return findBigram(searchWord(word1), searchWord(word2));
+    }
+
+    int getBigramFrequency(final int bigram) {
+        final ForgettingCurveParams fcp = getBigramFcParams(bigram);
+        return null == fcp ? mBigramFrequencies[bigram] : fcp.getFrequency();
+    }
+
+    ForgettingCurveParams getBigramFcParams(final int bigram) {
+        return null == mBigramFcParams ? null : mBigramFcParams[bigram];
+    }
+
+    int notifyBigramTypedAgainAndGetFrequency(final int bigram) {
+        final ForgettingCurveParams fcp = getBigramFcParams(bigram);
+        return null == fcp ? mBigramFrequencies[bigram] : fcp.notifyTypedAgainAndGetFrequency();
+    }
+
+    /**
+     * Removes a bigram. Both words are added to the trie if they are missing.
+     * @return whether the bigram existed.
+     */
+    boolean removeBigram(final String word1, final String word2) {
+        final int firstWord = searchWord(word1);
+        final int secondWord = searchWord(word2);
+        int previous = NONE;
+        for (int bigram = mBigramHeads[firstWord]; bigram != NONE;
+                bigram = mBigramNexts[bigram]) {
+            if (mBigramTargets[bigram] == secondWord) {
+                if (NONE == previous) {
+                    mBigramHeads[firstWord] = mBigramNexts[bigram];
+                } else {
+                    mBigramNexts[previous] = mBigramNexts[bigram];
+                }
+                if (null != mBigramFcParams) mBigramFcParams[bigram] = null;
+                mBigramNexts[bigram] = mFreeBigram;
+                mFreeBigram = bigram;
+                return true;
+            }
+            previous = bigram;
+        }
+        return false;
+    }
+
+    /**
+     * Adds all the bigrams of {@code previousWord} through the callback.
+     * @param lookedUpString a buffer of at least the maximum word length.
+     */
+    void getBigrams(final CharSequence previousWord, final char[] lookedUpString,
+            final int dicTypeId, final WordCallback callback) {
+        final int prevWord = searchNode(previousWord);
+        if (NONE == prevWord) return;
+        final int bufferLength = lookedUpString.length;
+        for (int bigram = mBigramHeads[prevWord]; bigram != NONE;
+                bigram = mBigramNexts[bigram]) {
+            final int freq = getBigramFrequency(bigram);
+            int index = bufferLength;
+            for (int node = mBigramTargets[bigram]; node != ROOT; node = mParents[node]) {
+                lookedUpString[--index] = mChars[node];
+            }
+            if (freq >= 0) {
+                callback.addWord(lookedUpString, index, bufferLength - index, freq, dicTypeId,
+                        Dictionary.BIGRAM);
+            }
+        }
+    }
+
+    /**
+     * Searches for words matching the input codes. This is the same search as
+     * {@link ExpandableDictionary#getWordsRec}, so results and scores are identical.
+     * @param codes the proximity codes for each input position.
+     * @param inputLength the number of input positions.
+     * @param word a buffer of at least the maximum word length.
+     */
+    void getWords(final int[][] codes, final int inputLength, final char[] word,
+            final int dicTypeId, final WordCallback callback) {
+        mCodes = codes;
+        mInputLength = inputLength;
+        mMaxDepth = inputLength * 3;
+        mDicTypeId = dicTypeId;
+        try {
+            getWordsRec(ROOT, word, 0, false, 1, 0, -1, callback);
+            for (int i = 0; i < inputLength; i++) {
+                getWordsRec(ROOT, word, 0, false, 1, 0, i, callback);
+            }
+        } finally {
+            mCodes = null;
+        }
+    }
+
+    private boolean addWordAndShortcutsFromNode(final int node, final char[] word,
+            final int depth, final int finalFreq, final WordCallback callback) {
+        if (finalFreq > 0 && !isShortcutOnly(node)) {
+            if (!callback.addWord(word, 0, depth + 1, finalFreq, mDicTypeId,
+                    Dictionary.UNIGRAM)) {
+                return false;
+            }
+        }
+        if (0 != mShortcutIndices[node]) {
+            final ArrayList<char[]> shortcuts = mShortcutTargets.get(mShortcutIndices[node] - 1);
+            final int length = shortcuts.size();
+            for (int shortcutIndex = 0; shortcutIndex < length; ++shortcutIndex) {
+                final char[] shortcut = shortcuts.get(shortcutIndex);
+                if (!callback.addWord(shortcut, 0, shortcut.length, finalFreq, mDicTypeId,
+                        Dictionary.UNIGRAM)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void getWordsRec(final int parent, final char[] word, final int depth,
+            final boolean completion, final int snr, final int inputIndex, final int skipPos,
+            final WordCallback callback) {
+        final int codeSize = mInputLength;
+        // Optimization: Prune out words that are too long compared to how much was typed.
+        if (depth > mMaxDepth) {
+            return;
+        }
+        final int[] currentChars = codeSize <= inputIndex ? null : mCodes[inputIndex];
+
+        for (int node = mFirstChildren[parent]; node != NONE; node = mNextSiblings[node]) {
+            final char c = mChars[node];
+            final char lowerC = ExpandableDictionary.toLowerCase(c);
+            final boolean terminal = isTerminal(node);
+            final boolean hasChildren = NONE != mFirstChildren[node];
+            final int freq = mFrequencies[node];
+            if (completion || currentChars == null) {
+                word[depth] = c;
+                if (terminal) {
+                    final int finalFreq;
+                    if (skipPos < 0) {
+                        finalFreq = freq * snr;
+                    } else {
+                        finalFreq = ExpandableDictionary.computeSkippedWordFinalFreq(freq, snr,
+                                mInputLength);
+                    }
+                    if (!addWordAndShortcutsFromNode(node, word, depth, finalFreq, callback)) {
+                        // No space left in the queue, bail out
+                        return;
+                    }
+                }
+                if (hasChildren) {
+                    getWordsRec(node, word, depth + 1, true, snr, inputIndex, skipPos, callback);
+                }
+            } else if ((c == Keyboard.CODE_SINGLE_QUOTE
+                    && currentChars[0] != Keyboard.CODE_SINGLE_QUOTE) || depth == skipPos) {
+                // Skip the ' and continue deeper
+                word[depth] = c;
+                if (hasChildren) {
+                    getWordsRec(node, word, depth + 1, completion, snr, inputIndex, skipPos,
+                            callback);
+                }
+            } else {
+                // Don't use alternatives if we're looking for missing characters
+                final int alternativesSize = skipPos >= 0 ? 1 : currentChars.length;
+                for (int j = 0; j < alternativesSize; j++) {
+                    final int addedAttenuation = (j > 0 ? 1 : 2);
+                    final int currentChar = currentChars[j];
+                    if (currentChar == KeyDetector.NOT_A_CODE) {
+                        break;
+                    }
+                    if (currentChar == lowerC || currentChar == c) {
+                        word[depth] = c;
+
+                        if (codeSize == inputIndex + 1) {
+                            if (terminal) {
+                                final int finalFreq;
+                                if (skipPos < 0) {
+                                    finalFreq = freq * snr * addedAttenuation
+                                            * Dictionary.FULL_WORD_SCORE_MULTIPLIER;
+                                } else {
+                                    finalFreq = ExpandableDictionary.computeSkippedWordFinalFreq(
+                                            freq, snr * addedAttenuation, mInputLength);
+                                }
+                                if (!addWordAndShortcutsFromNode(node, word, depth, finalFreq,
+                                        callback)) {
+                                    // No space left in the queue, bail out
+                                    return;
+                                }
+                            }
+                            if (hasChildren) {
+                                getWordsRec(node, word, depth + 1, true,
+                                        snr * addedAttenuation, inputIndex + 1, skipPos,
+                                        callback);
+                            }
+                        } else if (hasChildren) {
+                            getWordsRec(node, word, depth + 1, false, snr * addedAttenuation,
+                                    inputIndex + 1, skipPos, callback);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -26,6 +26,9 @@ import android.util.Log;
 
 import com.android.inputmethod.keyboard.Keyboard;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 
 public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
@@ -49,8 +52,26 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
 
     private static final int INDEX_NAME = 1;
 
-    /** The number of contacts in the most recent dictionary rebuild. */
-    static private int sContactCountAtLastRebuild = 0;
+    /**
+     * What a dictionary file was last built from. Dictionaries for different locales are
+     * different files, each updated on its own, so there is one of these per file. It is only
+     * used with the file's dictionary lock held.
+     */
+    private static class Snapshot {
+        /** The number of contacts in the most recent rebuild or delta update. */
+        int mContactCount = 0;
+
+        /**
+         * The names in the dictionary as of the most recent rebuild or delta update, or null if
+         * the dictionary has not been built by this process yet.
+         */
+        HashSet<String> mNames = null;
+    }
+
+    /** The snapshots by dictionary file name. */
+    private static final HashMap<String, Snapshot> sSnapshots = new HashMap<String, Snapshot>();
+
+    private final Snapshot mSnapshot;
 
     private ContentObserver mObserver;
 
@@ -61,6 +82,7 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
 
     public ContactsBinaryDictionary(final Context context, final int dicTypeId, Locale locale) {
         super(context, getFilenameWithLocale(NAME, locale.toString()), dicTypeId);
+        mSnapshot = getSnapshot(getFilenameWithLocale(NAME, locale.toString()));
         mUseFirstLastBigrams = useFirstLastBigramsForLocale(locale);
         registerObserver(context);
 
@@ -69,6 +91,17 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
         loadDictionary();
     }
 
+    private static Snapshot getSnapshot(final String filename) {
+        synchronized (sSnapshots) {
+            Snapshot snapshot = sSnapshots.get(filename);
+            if (snapshot == null) {
+                snapshot = new Snapshot();
+                sSnapshots.put(filename, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
     private synchronized void registerObserver(final Context context) {
         // Perform a managed query. The Activity will handle closing and requerying the cursor
         // when needed.
@@ -104,7 +137,7 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
             if (cursor != null) {
                 try {
                     if (cursor.moveToFirst()) {
-                        sContactCountAtLastRebuild = getContactCount();
+                        mSnapshot.mContactCount = getContactCount();
                         addWords(cursor);
                     }
                 } finally {
@@ -132,15 +165,126 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
 
     private void addWords(Cursor cursor) {
         clearFusionDictionary();
+        final HashSet<String> names = readNames(cursor);
+        for (final String name : names) {
+            addName(name);
+        }
+        mSnapshot.mNames = names;
+    }
+
+    /**
+     * Reads up to MAX_CONTACT_COUNT valid names, starting from the current cursor position.
+     */
+    private static HashSet<String> readNames(Cursor cursor) {
+        final HashSet<String> names = new HashSet<String>();
         int count = 0;
         while (!cursor.isAfterLast() && count < MAX_CONTACT_COUNT) {
             String name = cursor.getString(INDEX_NAME);
             if (isValidName(name)) {
-                addName(name);
+                names.add(name);
                 ++count;
             }
             cursor.moveToNext();
         }
+        return names;
+    }
+
+    /**
+     * Adds only the words and bigrams that were added or removed since the last update to the
+     * delta, so that a single contact edit does not regenerate the whole binary dictionary.
+     */
+    @Override
+    protected boolean loadDeltaAsync() {
+        if (mSnapshot.mNames == null) return false;
+        final HashSet<String> names;
+        final int contactCount;
+        try {
+            Cursor cursor = mContext.getContentResolver()
+                    .query(Contacts.CONTENT_URI, PROJECTION, null, null, null);
+            if (cursor == null) return false;
+            try {
+                contactCount = cursor.getCount();
+                names = cursor.moveToFirst() ? readNames(cursor) : new HashSet<String>();
+            } finally {
+                cursor.close();
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Contacts DB is having problems");
+            return false;
+        }
+
+        final HashSet<String> oldWords = new HashSet<String>();
+        final HashMap<String, HashSet<String>> oldBigrams = new HashMap<String, HashSet<String>>();
+        for (final String name : mSnapshot.mNames) {
+            collectWordsAndBigrams(name, oldWords, oldBigrams);
+        }
+        final HashSet<String> newWords = new HashSet<String>();
+        final HashMap<String, HashSet<String>> newBigrams = new HashMap<String, HashSet<String>>();
+        for (final String name : names) {
+            collectWordsAndBigrams(name, newWords, newBigrams);
+        }
+
+        int changeCount = 0;
+        for (final String word : newWords) {
+            if (!oldWords.contains(word)) {
+                addWordToDelta(word, FREQUENCY_FOR_CONTACTS);
+                ++changeCount;
+            }
+        }
+        for (final String word : oldWords) {
+            if (!newWords.contains(word)) {
+                removeWordFromDelta(word);
+                ++changeCount;
+            }
+        }
+        for (final String prevWord : newBigrams.keySet()) {
+            final HashSet<String> oldNextWords = oldBigrams.get(prevWord);
+            for (final String word : newBigrams.get(prevWord)) {
+                if (oldNextWords == null || !oldNextWords.contains(word)) {
+                    setBigramInDelta(prevWord, word, FREQUENCY_FOR_CONTACTS_BIGRAM);
+                    ++changeCount;
+                }
+            }
+        }
+        for (final String prevWord : oldBigrams.keySet()) {
+            final HashSet<String> newNextWords = newBigrams.get(prevWord);
+            for (final String word : oldBigrams.get(prevWord)) {
+                if (newNextWords == null || !newNextWords.contains(word)) {
+                    removeBigramFromDelta(prevWord, word);
+                    ++changeCount;
+                }
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Contacts delta: " + changeCount + " changes for " + names.size()
+                    + " names");
+        }
+        mSnapshot.mNames = names;
+        mSnapshot.mContactCount = contactCount;
+        return true;
+    }
+
+    /**
+     * Collects the words in a name, and their bigrams depending on locale.
+     */
+    private void collectWordsAndBigrams(String name, HashSet<String> words,
+            HashMap<String, HashSet<String>> bigrams) {
+        String prevWord = null;
+        for (final String word : getWordsInName(name)) {
+            words.add(word);
+            if (mUseFirstLastBigrams && !TextUtils.isEmpty(prevWord)) {
+                // The dictionary keys bigrams by the lower case first word, so "Jane Doe" and
+                // "jane Doe" are one bigram.
+                final String key = prevWord.toLowerCase();
+                HashSet<String> nextWords = bigrams.get(key);
+                if (nextWords == null) {
+                    nextWords = new HashSet<String>();
+                    bigrams.put(key, nextWords);
+                }
+                nextWords.add(word);
+            }
+            prevWord = word;
+        }
     }
 
     private int getContactCount() {
@@ -163,8 +307,24 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
      * bigrams depending on locale.
      */
     private void addName(String name) {
-        int len = name.codePointCount(0, name.length());
         String prevWord = null;
+        for (final String word : getWordsInName(name)) {
+            super.addWord(word, null /* shortcut */, FREQUENCY_FOR_CONTACTS);
+            if (!TextUtils.isEmpty(prevWord)) {
+                if (mUseFirstLastBigrams) {
+                    super.setBigram(prevWord, word, FREQUENCY_FOR_CONTACTS_BIGRAM);
+                }
+            }
+            prevWord = word;
+        }
+    }
+
+    /**
+     * Splits a name into the words that go in the dictionary.
+     */
+    private static ArrayList<String> getWordsInName(String name) {
+        final ArrayList<String> words = new ArrayList<String>();
+        int len = name.codePointCount(0, name.length());
         // TODO: Better tokenization for non-Latin writing systems
         for (int i = 0; i < len; i++) {
             if (Character.isLetter(name.codePointAt(i))) {
@@ -175,16 +335,11 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
                 // capitalization of i.
                 final int wordLen = word.codePointCount(0, word.length());
                 if (wordLen < MAX_WORD_LENGTH && wordLen > 1) {
-                    super.addWord(word, null /* shortcut */, FREQUENCY_FOR_CONTACTS);
-                    if (!TextUtils.isEmpty(prevWord)) {
-                        if (mUseFirstLastBigrams) {
-                            super.setBigram(prevWord, word, FREQUENCY_FOR_CONTACTS_BIGRAM);
-                        }
-                    }
-                    prevWord = word;
+                    words.add(word);
                 }
             }
         }
+        return words;
     }
 
     /**
@@ -213,9 +368,9 @@ public class ContactsBinaryDictionary extends ExpandableBinaryDictionary {
             // TODO: Sort and check only the MAX_CONTACT_COUNT most recent contacts?
             return false;
         }
-        if (contactCount != sContactCountAtLastRebuild) {
+        if (contactCount != mSnapshot.mContactCount) {
             if (DEBUG) {
-                Log.d(TAG, "Contact count changed: " + sContactCountAtLastRebuild + " to "
+                Log.d(TAG, "Contact count changed: " + mSnapshot.mContactCount + " to "
                         + contactCount);
             }
             return true;
@@ -57,7 +57,7 @@ public class ContactsDictionary extends ExpandableDictionary {
     private long mLastLoadedContacts;
 
     public ContactsDictionary(final Context context, final int dicTypeId) {
-        super(context, dicTypeId);
+        super(context, dicTypeId, true /* useCompactTrie */);
         registerObserver(context);
         loadDictionary();
     }
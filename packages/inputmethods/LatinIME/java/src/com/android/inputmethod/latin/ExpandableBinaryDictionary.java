@@ -16,6 +16,7 @@ package com.android.inputmethod.latin;
 
 import android.content.Context;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.inputmethod.keyboard.ProximityInfo;
@@ -25,11 +26,18 @@ import com.android.inputmethod.latin.makedict.FusionDictionary.Node;
 import com.android.inputmethod.latin.makedict.FusionDictionary.WeightedString;
 import com.android.inputmethod.latin.makedict.UnsupportedFormatException;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -39,6 +47,12 @@ import java.util.concurrent.locks.ReentrantLock;
  * shared across multiple ExpandableBinaryDictionary instances. Updates to each dictionary filename
  * are controlled across multiple instances to ensure that only one instance can update the same
  * dictionary at the same time.
+ *
+ * Subclasses that can tell which words were added or removed since the last update may implement
+ * {@link #loadDeltaAsync()}. Their changes are then appended to a small delta file next to the
+ * binary dictionary and merged with it at query time, instead of regenerating the whole binary
+ * dictionary. The binary dictionary is only rebuilt, which compacts the delta, when the delta
+ * grows beyond {@link #MAX_DELTA_ENTRIES} entries or the subclass cannot provide a delta.
  */
 abstract public class ExpandableBinaryDictionary extends Dictionary {
 
@@ -54,6 +68,21 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      */
     protected static final int MAX_WORD_LENGTH = BinaryDictionary.MAX_WORD_LENGTH;
 
+    /**
+     * The maximum number of entries in the delta file. Beyond that the binary dictionary is
+     * rebuilt from scratch, which empties the delta file.
+     */
+    private static final int MAX_DELTA_ENTRIES = 1000;
+
+    private static final String DELTA_FILE_SUFFIX = ".delta";
+
+    // Entry types of the delta file. Each entry is a line of tab-separated fields, escaped by
+    // formatDeltaEntry().
+    static final String DELTA_ADD_WORD = "w";
+    static final String DELTA_REMOVE_WORD = "-w";
+    static final String DELTA_ADD_BIGRAM = "b";
+    static final String DELTA_REMOVE_BIGRAM = "-b";
+
     /**
      * A static map of locks, each of which controls access to a single binary dictionary file. They
      * ensure that only one instance can update the same dictionary at the same time. The key for
@@ -75,6 +104,13 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     /** The expandable fusion dictionary used to generate the binary dictionary. */
     private FusionDictionary mFusionDictionary;
 
+    /** The changes made since the binary dictionary was generated. Never null. */
+    private DictionaryDelta mDelta;
+
+    /** The delta being written by loadDeltaAsync(), or null outside of a delta update. */
+    private DictionaryDelta mPendingDelta;
+    private BufferedWriter mPendingDeltaWriter;
+
     /** The dictionary type id. */
     public final int mDicTypeId;
 
@@ -97,6 +133,19 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      */
     protected abstract void loadDictionaryAsync();
 
+    /**
+     * Override to add the changes of the source dictionary since the last update, using
+     * {@link #addWordToDelta}, {@link #removeWordFromDelta}, {@link #setBigramInDelta} and
+     * {@link #removeBigramFromDelta}. Called in a background thread with the shared binary
+     * dictionary locked, after {@link #hasContentChanged()} returned true.
+     *
+     * @return false if the changes can't be computed, in which case the binary dictionary is
+     * rebuilt with {@link #loadDictionaryAsync()} and anything added to the delta is discarded.
+     */
+    protected boolean loadDeltaAsync() {
+        return false;
+    }
+
     /**
      * Indicates that the source dictionary content has changed and a rebuild of the binary file is
      * required. If it returns false, the next reload will only read the current binary dictionary
@@ -132,6 +181,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         mContext = context;
         mBinaryDictionary = null;
         mSharedDictionaryController = getSharedDictionaryController(filename);
+        mDelta = new DictionaryDelta(context, dictType);
         clearFusionDictionary();
     }
 
@@ -193,6 +243,50 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         mFusionDictionary.setBigram(prevWord, word, frequency);
     }
 
+    /**
+     * Adds a word unigram to the delta. May only be called from {@link #loadDeltaAsync()}.
+     */
+    protected void addWordToDelta(final String word, final int frequency) {
+        writeDeltaEntry(DELTA_ADD_WORD, word, Integer.toString(frequency));
+    }
+
+    /**
+     * Removes a word unigram through the delta. May only be called from
+     * {@link #loadDeltaAsync()}.
+     */
+    protected void removeWordFromDelta(final String word) {
+        writeDeltaEntry(DELTA_REMOVE_WORD, word);
+    }
+
+    /**
+     * Sets a word bigram in the delta. May only be called from {@link #loadDeltaAsync()}.
+     */
+    protected void setBigramInDelta(final String prevWord, final String word,
+            final int frequency) {
+        writeDeltaEntry(DELTA_ADD_BIGRAM, prevWord, word, Integer.toString(frequency));
+    }
+
+    /**
+     * Removes a word bigram through the delta. May only be called from
+     * {@link #loadDeltaAsync()}.
+     */
+    protected void removeBigramFromDelta(final String prevWord, final String word) {
+        writeDeltaEntry(DELTA_REMOVE_BIGRAM, prevWord, word);
+    }
+
+    private void writeDeltaEntry(final String... fields) {
+        if (mPendingDelta == null) {
+            throw new IllegalStateException("Delta entries may only be added in loadDeltaAsync");
+        }
+        if (!mPendingDelta.apply(fields)) return;
+        try {
+            mPendingDeltaWriter.write(formatDeltaEntry(fields));
+            mPendingDeltaWriter.newLine();
+        } catch (IOException e) {
+            Log.e(TAG, "IO exception while writing delta file: " + e);
+        }
+    }
+
     @Override
     public void getWords(final WordComposer codes, final CharSequence prevWordForBigrams,
             final WordCallback callback, final ProximityInfo proximityInfo) {
@@ -208,8 +302,10 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         if (mLocalDictionaryController.tryLock()) {
             try {
                 if (mBinaryDictionary != null) {
-                    mBinaryDictionary.getWords(codes, prevWordForBigrams, callback, proximityInfo);
+                    mBinaryDictionary.getWords(codes, prevWordForBigrams,
+                            mDelta.filter(null, callback), proximityInfo);
                 }
+                mDelta.getWords(codes, prevWordForBigrams, callback, proximityInfo);
             } finally {
                 mLocalDictionaryController.unlock();
             }
@@ -228,8 +324,10 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         if (mLocalDictionaryController.tryLock()) {
             try {
                 if (mBinaryDictionary != null) {
-                    mBinaryDictionary.getBigrams(codes, previousWord, callback);
+                    mBinaryDictionary.getBigrams(codes, previousWord,
+                            mDelta.filter(previousWord, callback));
                 }
+                mDelta.getBigrams(codes, previousWord, callback);
             } finally {
                 mLocalDictionaryController.unlock();
             }
@@ -254,13 +352,15 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     }
 
     protected boolean isValidWordLocked(final CharSequence word) {
+        final String wordString = word.toString();
+        if (mDelta.mRemovedWords.contains(wordString)) return false;
+        if (mDelta.mAddedWords.containsKey(wordString)) return true;
         if (mBinaryDictionary == null) return false;
         return mBinaryDictionary.isValidWord(word);
     }
 
     protected boolean isValidBigram(final CharSequence word1, final CharSequence word2) {
-        if (mBinaryDictionary == null) return false;
-        return mBinaryDictionary.isValidBigram(word1, word2);
+        return isValidBigramInner(word1, word2);
     }
 
     protected boolean isValidBigramInner(final CharSequence word1, final CharSequence word2) {
@@ -275,6 +375,14 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     }
 
     protected boolean isValidBigramLocked(final CharSequence word1, final CharSequence word2) {
+        final String word1String = word1.toString();
+        final String word2String = word2.toString();
+        if (mDelta.mRemovedWords.contains(word1String)
+                || mDelta.mRemovedWords.contains(word2String)
+                || mDelta.isBigramRemoved(word1String, word2String)) {
+            return false;
+        }
+        if (mDelta.isBigramAdded(word1String, word2String)) return true;
         if (mBinaryDictionary == null) return false;
         return mBinaryDictionary.isValidBigram(word1, word2);
     }
@@ -307,6 +415,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         final BinaryDictionary newBinaryDictionary =
                 new BinaryDictionary(mContext, filename, 0, length, true /* useFullEditDistance */,
                         null);
+        final DictionaryDelta newDelta = readDelta();
 
         if (mBinaryDictionary != null) {
             // Ensure all threads accessing the current dictionary have finished before swapping in
@@ -314,13 +423,144 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
             final BinaryDictionary oldBinaryDictionary = mBinaryDictionary;
             mLocalDictionaryController.lock();
             mBinaryDictionary = newBinaryDictionary;
+            mDelta = newDelta;
             mLocalDictionaryController.unlock();
             oldBinaryDictionary.close();
         } else {
+            mDelta = newDelta;
             mBinaryDictionary = newBinaryDictionary;
         }
     }
 
+    /**
+     * Loads the current delta file, leaving the binary dictionary as it is.
+     */
+    private void loadDelta() {
+        final DictionaryDelta newDelta = readDelta();
+        mLocalDictionaryController.lock();
+        mDelta = newDelta;
+        mLocalDictionaryController.unlock();
+    }
+
+    private File getDeltaFile() {
+        return new File(mContext.getFilesDir(), mFilename + DELTA_FILE_SUFFIX);
+    }
+
+    private DictionaryDelta readDelta() {
+        return readDelta(mContext, mDicTypeId, getDeltaFile());
+    }
+
+    /**
+     * Reads a delta file. A missing or unreadable delta file results in an empty delta.
+     */
+    static DictionaryDelta readDelta(final Context context, final int dicTypeId,
+            final File file) {
+        final DictionaryDelta delta = new DictionaryDelta(context, dicTypeId);
+        if (!file.exists()) return delta;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                delta.apply(parseDeltaEntry(line));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IO exception while reading delta file: " + e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        delta.buildDictionary();
+        return delta;
+    }
+
+    /**
+     * Appends the changes reported by loadDeltaAsync() to the delta file.
+     *
+     * @return whether the delta file was updated. If not, the binary dictionary must be rebuilt.
+     */
+    private boolean updateDelta() {
+        final DictionaryDelta current = readDelta();
+        if (current.mEntryCount >= MAX_DELTA_ENTRIES) return false;
+        boolean success = false;
+        try {
+            mPendingDelta = current;
+            mPendingDeltaWriter = new BufferedWriter(
+                    new FileWriter(getDeltaFile(), true /* append */));
+            success = loadDeltaAsync() && current.mEntryCount <= MAX_DELTA_ENTRIES;
+        } catch (IOException e) {
+            Log.e(TAG, "IO exception while opening delta file: " + e);
+        } finally {
+            if (mPendingDeltaWriter != null) {
+                try {
+                    mPendingDeltaWriter.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "IO exception while writing delta file: " + e);
+                    success = false;
+                }
+            }
+            mPendingDelta = null;
+            mPendingDeltaWriter = null;
+        }
+        // If this failed, the binary dictionary is rebuilt, which also discards the delta file.
+        return success;
+    }
+
+    /**
+     * Formats a delta entry as a line of tab separated fields. Backslashes, tabs and line breaks
+     * in the fields are escaped so that any word survives the round trip.
+     */
+    static String formatDeltaEntry(final String... fields) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < fields.length; ++i) {
+            if (i > 0) builder.append('\t');
+            final String field = fields[i];
+            for (int j = 0; j < field.length(); ++j) {
+                final char c = field.charAt(j);
+                switch (c) {
+                case '\\': builder.append("\\\\"); break;
+                case '\t': builder.append("\\t"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                default: builder.append(c);
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Splits a line written by {@link #formatDeltaEntry(String...)} back into its fields.
+     */
+    static String[] parseDeltaEntry(final String line) {
+        final ArrayList<String> fields = new ArrayList<String>();
+        final StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); ++i) {
+            final char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                final char escaped = line.charAt(++i);
+                switch (escaped) {
+                case 't': field.append('\t'); break;
+                case 'n': field.append('\n'); break;
+                case 'r': field.append('\r'); break;
+                default: field.append(escaped);
+                }
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+
     /**
      * Generates and writes a new binary dictionary based on the contents of the fusion dictionary.
      */
@@ -343,6 +583,8 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
             out.flush();
             out.close();
             tempFile.renameTo(file);
+            // The new binary dictionary includes all the changes recorded in the delta.
+            getDeltaFile().delete();
             clearFusionDictionary();
         } catch (IOException e) {
             Log.e(TAG, "IO exception while writing file: " + e);
@@ -416,13 +658,30 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
             if (mSharedDictionaryController.isOutOfDate() || !dictionaryFileExists) {
                 // If the shared dictionary file does not exist or is out of date, the first
                 // instance that acquires the lock will generate a new one.
-                if (hasContentChanged() || !dictionaryFileExists) {
-                    // If the source content has changed or the dictionary does not exist, rebuild
-                    // the binary dictionary. Empty dictionaries are supported (in the case where
-                    // loadDictionaryAsync() adds nothing) in order to provide a uniform framework.
+                if (!dictionaryFileExists || hasContentChanged()) {
                     mSharedDictionaryController.mLastUpdateTime = time;
-                    generateBinaryDictionary();
-                    loadBinaryDictionary();
+                    if (dictionaryFileExists && mBinaryDictionary != null && updateDelta()) {
+                        // Only some entries have changed, and they have been appended to the
+                        // delta. The binary dictionary stays as it is.
+                        loadDelta();
+                        if (DEBUG) {
+                            Log.d(TAG, "Updated delta: " + mFilename + " entries="
+                                    + mDelta.mEntryCount + " (runtime = "
+                                    + (SystemClock.uptimeMillis() - time) + " ms)");
+                        }
+                    } else {
+                        // If the source content has changed or the dictionary does not exist,
+                        // rebuild the binary dictionary. Empty dictionaries are supported (in the
+                        // case where loadDictionaryAsync() adds nothing) in order to provide a
+                        // uniform framework.
+                        generateBinaryDictionary();
+                        loadBinaryDictionary();
+                        if (DEBUG) {
+                            Log.d(TAG, "Rebuilt binary dictionary: " + mFilename
+                                    + " (runtime = " + (SystemClock.uptimeMillis() - time)
+                                    + " ms)");
+                        }
+                    }
                 } else {
                     // If not, the reload request was unnecessary so revert LastUpdateRequestTime
                     // to LastUpdateTime.
@@ -457,6 +716,168 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         }
     }
 
+    /**
+     * The changes made on top of the binary dictionary. Added words and bigrams are served by a
+     * small in-memory dictionary, and removed ones are filtered out of the binary dictionary
+     * results.
+     */
+    static class DictionaryDelta {
+        final HashMap<String, Integer> mAddedWords = new HashMap<String, Integer>();
+        final HashSet<String> mRemovedWords = new HashSet<String>();
+        final HashMap<String, HashMap<String, Integer>> mAddedBigrams =
+                new HashMap<String, HashMap<String, Integer>>();
+        final HashMap<String, HashSet<String>> mRemovedBigrams =
+                new HashMap<String, HashSet<String>>();
+        int mEntryCount = 0;
+
+        private final ExpandableDictionary mDictionary;
+
+        DictionaryDelta(final Context context, final int dicTypeId) {
+            mDictionary = new ExpandableDictionary(context, dicTypeId, true /* useCompactTrie */);
+        }
+
+        /**
+         * Applies a delta entry.
+         *
+         * @return whether the entry was well-formed and changed anything.
+         */
+        boolean apply(final String[] fields) {
+            final String type = fields[0];
+            if (DELTA_ADD_WORD.equals(type) && fields.length == 3) {
+                final Integer frequency = parseFrequency(fields[2]);
+                if (frequency == null || frequency.equals(mAddedWords.get(fields[1]))) {
+                    return false;
+                }
+                mRemovedWords.remove(fields[1]);
+                mAddedWords.put(fields[1], frequency);
+            } else if (DELTA_REMOVE_WORD.equals(type) && fields.length == 2) {
+                if (!mRemovedWords.add(fields[1])) return false;
+                mAddedWords.remove(fields[1]);
+            } else if (DELTA_ADD_BIGRAM.equals(type) && fields.length == 4) {
+                final Integer frequency = parseFrequency(fields[3]);
+                if (frequency == null) return false;
+                final String key = bigramKey(fields[1]);
+                final HashSet<String> removed = mRemovedBigrams.get(key);
+                if (removed != null) removed.remove(fields[2]);
+                HashMap<String, Integer> added = mAddedBigrams.get(key);
+                if (added == null) {
+                    added = new HashMap<String, Integer>();
+                    mAddedBigrams.put(key, added);
+                }
+                if (frequency.equals(added.put(fields[2], frequency))) return false;
+            } else if (DELTA_REMOVE_BIGRAM.equals(type) && fields.length == 3) {
+                final String key = bigramKey(fields[1]);
+                final HashMap<String, Integer> added = mAddedBigrams.get(key);
+                if (added != null) added.remove(fields[2]);
+                HashSet<String> removed = mRemovedBigrams.get(key);
+                if (removed == null) {
+                    removed = new HashSet<String>();
+                    mRemovedBigrams.put(key, removed);
+                }
+                if (!removed.add(fields[2])) return false;
+            } else {
+                Log.e(TAG, "Malformed delta entry: " + TextUtils.join(",", fields));
+                return false;
+            }
+            ++mEntryCount;
+            return true;
+        }
+
+        /**
+         * Returns the key of the bigrams of {@code word1}. The added bigrams are served by an
+         * ExpandableDictionary, which stores and looks them up by the lower case version of
+         * their first word, so the added and removed bigrams are keyed the same way.
+         */
+        private static String bigramKey(final CharSequence word1) {
+            return word1.toString().toLowerCase();
+        }
+
+        private static Integer parseFrequency(final String frequency) {
+            try {
+                return Integer.valueOf(frequency);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Fills the in-memory dictionary once all the entries have been applied.
+         */
+        void buildDictionary() {
+            for (final Map.Entry<String, Integer> entry : mAddedWords.entrySet()) {
+                mDictionary.addWord(entry.getKey(), null /* shortcut */, entry.getValue());
+            }
+            for (final Map.Entry<String, HashMap<String, Integer>> bigrams
+                    : mAddedBigrams.entrySet()) {
+                for (final Map.Entry<String, Integer> entry : bigrams.getValue().entrySet()) {
+                    mDictionary.setBigramAndGetFrequency(bigrams.getKey(), entry.getKey(),
+                            entry.getValue());
+                }
+            }
+        }
+
+        boolean isBigramAdded(final String word1, final String word2) {
+            final HashMap<String, Integer> added = mAddedBigrams.get(bigramKey(word1));
+            return added != null && added.containsKey(word2);
+        }
+
+        boolean isBigramRemoved(final String word1, final String word2) {
+            final HashSet<String> removed = mRemovedBigrams.get(bigramKey(word1));
+            return removed != null && removed.contains(word2);
+        }
+
+        void getWords(final WordComposer codes, final CharSequence prevWordForBigrams,
+                final WordCallback callback, final ProximityInfo proximityInfo) {
+            if (mAddedWords.isEmpty()) return;
+            mDictionary.getWords(codes, prevWordForBigrams, callback, proximityInfo);
+        }
+
+        void getBigrams(final WordComposer codes, final CharSequence previousWord,
+                final WordCallback callback) {
+            if (mAddedBigrams.isEmpty()) return;
+            mDictionary.getBigrams(codes, previousWord, callback);
+        }
+
+        /**
+         * Returns a callback that drops the removed words before passing results on to
+         * {@code callback}. If {@code previousWord} is null, the added words are dropped too,
+         * and otherwise the removed and added bigrams of {@code previousWord}: the delta serves
+         * its own copy of those through {@link #getWords} and {@link #getBigrams}.
+         */
+        WordCallback filter(final CharSequence previousWord, final WordCallback callback) {
+            final Set<String> removedBigrams;
+            final Set<String> addedWords;
+            if (previousWord == null) {
+                removedBigrams = null;
+                addedWords = mAddedWords.keySet();
+            } else {
+                removedBigrams = mRemovedBigrams.get(bigramKey(previousWord));
+                final HashMap<String, Integer> addedBigrams =
+                        mAddedBigrams.get(bigramKey(previousWord));
+                addedWords = addedBigrams == null ? null : addedBigrams.keySet();
+            }
+            if (mRemovedWords.isEmpty() && (removedBigrams == null || removedBigrams.isEmpty())
+                    && (addedWords == null || addedWords.isEmpty())) {
+                return callback;
+            }
+            return new WordCallback() {
+                @Override
+                public boolean addWord(final char[] word, final int wordOffset,
+                        final int wordLength, final int score, final int dicTypeId,
+                        final int dataType) {
+                    final String wordString = new String(word, wordOffset, wordLength);
+                    if (mRemovedWords.contains(wordString)
+                            || (removedBigrams != null && removedBigrams.contains(wordString))
+                            || (addedWords != null && addedWords.contains(wordString))) {
+                        return true;
+                    }
+                    return callback.addWord(word, wordOffset, wordLength, score, dicTypeId,
+                            dataType);
+                }
+            };
+        }
+    }
+
     /**
      * Lock for controlling access to a given binary dictionary and for tracking whether the
      * dictionary is out of date. Can be shared across multiple dictionary instances that access the
@@ -147,12 +147,59 @@ public class ExpandableDictionary extends Dictionary {
         }
     }
 
+    /**
+     * A bigram stored in the compact trie. It has no node to point to, but otherwise behaves
+     * like the other {@link NextWord} implementations.
+     */
+    private static class NextCompactWord implements NextWord {
+        private final CompactTrie mTrie;
+        private final int mBigram;
+
+        public NextCompactWord(CompactTrie trie, int bigram) {
+            mTrie = trie;
+            mBigram = bigram;
+        }
+
+        @Override
+        public Node getWordNode() {
+            return null;
+        }
+
+        @Override
+        public int getFrequency() {
+            return mTrie.getBigramFrequency(mBigram);
+        }
+
+        @Override
+        public ForgettingCurveParams getFcParams() {
+            return mTrie.getBigramFcParams(mBigram);
+        }
+
+        @Override
+        public int notifyTypedAgainAndGetFrequency() {
+            return mTrie.notifyBigramTypedAgainAndGetFrequency(mBigram);
+        }
+    }
+
     private NodeArray mRoots;
 
+    // Non-null if this dictionary uses the compact trie instead of the node graph.
+    private final CompactTrie mCompactTrie;
+
     private int[][] mCodes;
 
     public ExpandableDictionary(Context context, int dicTypeId) {
+        this(context, dicTypeId, false);
+    }
+
+    /**
+     * @param useCompactTrie if true, words and bigrams are stored in a {@link CompactTrie}
+     * instead of a graph of node objects. Lookups return the same results either way, but the
+     * compact trie needs a fraction of the memory for large dictionaries.
+     */
+    public ExpandableDictionary(Context context, int dicTypeId, boolean useCompactTrie) {
         mContext = context;
+        mCompactTrie = useCompactTrie ? new CompactTrie() : null;
         clearDictionary();
         mCodes = new int[BinaryDictionary.MAX_WORD_LENGTH][];
         mDicTypeId = dicTypeId;
@@ -199,6 +246,10 @@ public class ExpandableDictionary extends Dictionary {
         if (word.length() >= BinaryDictionary.MAX_WORD_LENGTH) {
             return;
         }
+        if (null != mCompactTrie) {
+            mCompactTrie.addWord(word, shortcutTarget, frequency);
+            return;
+        }
         addWordRec(mRoots, word, 0, shortcutTarget, frequency, null);
     }
 
@@ -225,7 +276,7 @@ public class ExpandableDictionary extends Dictionary {
             childNode.mShortcutOnly = isShortcutOnly;
             children.add(childNode);
         }
-        if (wordLength == depth + 1 && shortcutTarget != null) {
+        if (wordLength == depth + 1) {
             // Terminate this word
             childNode.mTerminal = true;
             if (isShortcutOnly) {
@@ -280,6 +331,10 @@ public class ExpandableDictionary extends Dictionary {
                     yCoordinates[i] : WordComposer.NOT_A_COORDINATE;
             proximityInfo.fillArrayWithNearestKeyCodes(x, y, codes.getCodeAt(i), mCodes[i]);
         }
+        if (null != mCompactTrie) {
+            mCompactTrie.getWords(mCodes, mInputLength, mWordBuilder, mDicTypeId, callback);
+            return;
+        }
         mMaxDepth = mInputLength * 3;
         getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
         for (int i = 0; i < mInputLength; i++) {
@@ -294,6 +349,7 @@ public class ExpandableDictionary extends Dictionary {
             if (mRequiresReload) startDictionaryLoadingTaskLocked();
             if (mUpdatingDictionary) return false;
         }
+        if (null != mCompactTrie) return mCompactTrie.isValidWord(word);
         final Node node = searchNode(mRoots, word, 0, word.length());
         // If node is null, we didn't find the word, so it's not valid.
         // If node.mShortcutOnly is true, then it exists as a shortcut but not as a word,
@@ -305,6 +361,7 @@ public class ExpandableDictionary extends Dictionary {
 
     protected boolean removeBigram(String word1, String word2) {
         // Refer to addOrSetBigram() about word1.toLowerCase()
+        if (null != mCompactTrie) return mCompactTrie.removeBigram(word1.toLowerCase(), word2);
         final Node firstWord = searchWord(mRoots, word1.toLowerCase(), 0, null);
         final Node secondWord = searchWord(mRoots, word2, 0, null);
         LinkedList<NextWord> bigrams = firstWord.mNGrams;
@@ -330,12 +387,17 @@ public class ExpandableDictionary extends Dictionary {
      */
     protected int getWordFrequency(CharSequence word) {
         // Case-sensitive search
+        if (null != mCompactTrie) return mCompactTrie.getWordFrequency(word);
         final Node node = searchNode(mRoots, word, 0, word.length());
         return (node == null) ? -1 : node.mFrequency;
     }
 
     protected NextWord getBigramWord(String word1, String word2) {
         // Refer to addOrSetBigram() about word1.toLowerCase()
+        if (null != mCompactTrie) {
+            final int bigram = mCompactTrie.getBigram(word1.toLowerCase(), word2);
+            return bigram < 0 ? null : new NextCompactWord(mCompactTrie, bigram);
+        }
         final Node firstWord = searchWord(mRoots, word1.toLowerCase(), 0, null);
         final Node secondWord = searchWord(mRoots, word2, 0, null);
         LinkedList<NextWord> bigrams = firstWord.mNGrams;
@@ -351,7 +413,7 @@ public class ExpandableDictionary extends Dictionary {
         return null;
     }
 
-    private static int computeSkippedWordFinalFreq(int freq, int snr, int inputLength) {
+    /* package */ static int computeSkippedWordFinalFreq(int freq, int snr, int inputLength) {
         // The computation itself makes sense for >= 2, but the == 2 case returns 0
         // anyway so we may as well test against 3 instead and return the constant
         if (inputLength >= 3) {
@@ -524,6 +586,10 @@ public class ExpandableDictionary extends Dictionary {
         // word. We do want however to return the correct case for the right hand side.
         // So we want to squash the case of the left hand side, and preserve that of the right
         // hand side word.
+        if (null != mCompactTrie) {
+            return mCompactTrie.setBigramAndGetFrequency(word1.toLowerCase(), word2, frequency,
+                    fcp);
+        }
         Node firstWord = searchWord(mRoots, word1.toLowerCase(), 0, null);
         Node secondWord = searchWord(mRoots, word2, 0, null);
         LinkedList<NextWord> bigrams = firstWord.mNGrams;
@@ -594,6 +660,11 @@ public class ExpandableDictionary extends Dictionary {
             final WordCallback callback) {
         // Search for the lowercase version of the word only, because that's where bigrams
         // store their sons.
+        if (null != mCompactTrie) {
+            mCompactTrie.getBigrams(previousWord.toString().toLowerCase(), mLookedUpString,
+                    mDicTypeId, callback);
+            return;
+        }
         Node prevWord = searchNode(mRoots, previousWord.toString().toLowerCase(), 0,
                 previousWord.length());
         if (prevWord != null && prevWord.mNGrams != null) {
@@ -691,6 +762,10 @@ public class ExpandableDictionary extends Dictionary {
     }
 
     protected void clearDictionary() {
+        if (null != mCompactTrie) {
+            mCompactTrie.clear();
+            return;
+        }
         mRoots = new NodeArray();
     }
 
@@ -705,7 +780,7 @@ public class ExpandableDictionary extends Dictionary {
         }
     }
 
-    private static char toLowerCase(char c) {
+    /* package */ static char toLowerCase(char c) {
         char baseChar = c;
         if (c < BASE_CHARS.length) {
             baseChar = BASE_CHARS[c];
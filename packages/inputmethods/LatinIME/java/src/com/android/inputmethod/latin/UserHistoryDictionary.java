@@ -135,7 +135,7 @@ public class UserHistoryDictionary extends ExpandableDictionary {
 
     private UserHistoryDictionary(final Context context, final String locale, final int dicTypeId,
             SharedPreferences sp) {
-        super(context, dicTypeId);
+        super(context, dicTypeId, true /* useCompactTrie */);
         mLocale = locale;
         mPrefs = sp;
         if (sOpenHelper == null) {
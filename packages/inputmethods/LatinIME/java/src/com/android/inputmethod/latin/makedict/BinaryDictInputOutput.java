@@ -26,12 +26,20 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Reads and writes XML files for a FusionDictionary.
@@ -185,6 +193,11 @@ public class BinaryDictInputOutput {
     // suspicion that a bug might be causing an infinite loop.
     private static final int MAX_PASSES = 24;
 
+    // The number of nodes each task processes when writing a dictionary in parallel. This is
+    // large enough for the tasks to be worth their overhead, and small enough for a large
+    // dictionary to be split into many more tasks than there are processors.
+    private static final int NODES_PER_PARALLEL_TASK = 4096;
+
     /**
      * A class grouping utility function for our specific character encoding.
      */
@@ -337,6 +350,51 @@ public class BinaryDictInputOutput {
             }
             return character;
         }
+
+        /**
+         * Reads a string from a ByteBuffer. This is the same as the RandomAccessFile version.
+         */
+        private static String readString(final ByteBuffer source) {
+            final StringBuilder s = new StringBuilder();
+            int character = readChar(source);
+            while (character != INVALID_CHARACTER) {
+                s.appendCodePoint(character);
+                character = readChar(source);
+            }
+            return s.toString();
+        }
+
+        /**
+         * Reads a character from a ByteBuffer, at its current position.
+         *
+         * @param source the buffer, positioned over an encoded character.
+         * @return the character code.
+         */
+        private static int readChar(final ByteBuffer source) {
+            int character = readUnsignedByte(source);
+            if (!fitsOnOneByte(character)) {
+                if (GROUP_CHARACTERS_TERMINATOR == character)
+                    return INVALID_CHARACTER;
+                character <<= 16;
+                character += readUnsignedShort(source);
+            }
+            return character;
+        }
+    }
+
+    /**
+     * Reads an unsigned byte from a ByteBuffer and forwards its position.
+     */
+    private static int readUnsignedByte(final ByteBuffer source) {
+        return source.get() & 0xFF;
+    }
+
+    /**
+     * Reads a big-endian unsigned short from a ByteBuffer and forwards its position.
+     */
+    private static int readUnsignedShort(final ByteBuffer source) {
+        final int msb = source.get() & 0xFF;
+        return (msb << 8) + (source.get() & 0xFF);
     }
 
     /**
@@ -481,27 +539,18 @@ public class BinaryDictInputOutput {
         final int treeSize = FusionDictionary.countCharGroups(root);
         MakedictLog.i("Counted nodes : " + treeSize);
         final ArrayList<Node> flatTree = new ArrayList<Node>(treeSize);
-        return flattenTreeInner(flatTree, root);
+        flattenTreeInner(flatTree, root);
+        return removeEarlierOccurrences(flatTree);
     }
 
     private static ArrayList<Node> flattenTreeInner(ArrayList<Node> list, Node node) {
-        // Removing the node is necessary if the tails are merged, because we would then
-        // add the same node several times when we only want it once. A number of places in
-        // the code also depends on any node being only once in the list.
-        // Merging tails can only be done if there are no attributes. Searching for attributes
-        // in LatinIME code depends on a total breadth-first ordering, which merging tails
-        // breaks. If there are no attributes, it should be fine (and reduce the file size)
-        // to merge tails, and removing the node from the list would be necessary. However,
-        // we don't merge tails because breaking the breadth-first ordering would result in
-        // extreme overhead at bigram lookup time (it would make the search function O(n) instead
-        // of the current O(log(n)), where n=number of nodes in the dictionary which is pretty
-        // high).
-        // If no nodes are ever merged, we can't have the same node twice in the list, hence
-        // searching for duplicates in unnecessary. It is also very performance consuming,
-        // since `list' is an ArrayList so it's an O(n) operation that runs on all nodes, making
-        // this simple list.remove operation O(n*n) overall. On Android this overhead is very
-        // high.
-        // For future reference, the code to remove duplicate is a simple : list.remove(node);
+        // Nodes are listed depth-first. If the tails are merged, a node is listed once for
+        // each group it is the children of; see removeEarlierOccurrences for how this is dealt
+        // with.
+        // Searching for attributes in LatinIME code depends on the children of the nodes on the
+        // path to the attribute to be in this order. Merging tails changes the position of
+        // merged nodes, which is why FusionDictionary#mergeTails never merges nodes on such a
+        // path. See there for details.
         list.add(node);
         final ArrayList<CharGroup> branches = node.mData;
         final int nodeSize = branches.size();
@@ -512,14 +561,114 @@ public class BinaryDictInputOutput {
     }
 
     /**
-     * Finds the absolute address of a word in the dictionary.
+     * Removes all the occurrences of each node but the last one from a flattened tree.
+     *
+     * A number of places in the code depend on any node being only once in the list. When tails
+     * are merged, a node may be the children of several groups, and the binary format can only
+     * store children addresses that are after the group. Keeping the last occurrence ensures
+     * the node comes after all of the groups pointing to it. If no tails are merged, this
+     * returns a list in the same order as the passed one.
+     * Searching for duplicates with list.remove(node) would be O(n*n) overall, since the list
+     * is an ArrayList, so this uses a set instead.
+     *
+     * @param list the flattened tree, possibly containing several times the same node.
+     * @return a list of the same nodes, in order of their last occurrence.
+     */
+    private static ArrayList<Node> removeEarlierOccurrences(final ArrayList<Node> list) {
+        final HashSet<Node> seenNodes = new HashSet<Node>();
+        final ArrayList<Node> result = new ArrayList<Node>(list.size());
+        for (int i = list.size() - 1; i >= 0; --i) {
+            final Node node = list.get(i);
+            if (seenNodes.add(node)) result.add(node);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Finds the char groups of all the words that are the target of a bigram.
+     *
+     * The address of each bigram target is needed at each pass of the address computation and
+     * again when writing, and looking up a word in the tree is expensive. This looks up each
+     * target once; its address can then be read from the cached address of its group.
      *
      * @param dict the dictionary in which to search.
-     * @param word the word we are searching for.
-     * @return the word address. If it is not found, an exception is thrown.
+     * @param flatNodes the flattened nodes of the dictionary.
+     * @param executor an executor to search in parallel, or null to search on this thread.
+     * @return a map from each bigram target word to its char group.
+     */
+    private static HashMap<String, CharGroup> findBigramTargets(final FusionDictionary dict,
+            final ArrayList<Node> flatNodes, final ExecutorService executor) {
+        if (null == executor) return findBigramTargets(dict, flatNodes);
+        final ArrayList<Callable<HashMap<String, CharGroup>>> tasks =
+                new ArrayList<Callable<HashMap<String, CharGroup>>>();
+        for (final List<Node> chunk : splitIntoChunks(flatNodes)) {
+            tasks.add(new Callable<HashMap<String, CharGroup>>() {
+                @Override
+                public HashMap<String, CharGroup> call() {
+                    return findBigramTargets(dict, chunk);
+                }
+            });
+        }
+        final HashMap<String, CharGroup> targets = new HashMap<String, CharGroup>();
+        for (final HashMap<String, CharGroup> chunkTargets : invokeAll(executor, tasks)) {
+            targets.putAll(chunkTargets);
+        }
+        return targets;
+    }
+
+    private static HashMap<String, CharGroup> findBigramTargets(final FusionDictionary dict,
+            final List<Node> nodes) {
+        final HashMap<String, CharGroup> targets = new HashMap<String, CharGroup>();
+        for (final Node n : nodes) {
+            for (final CharGroup group : n.mData) {
+                if (null == group.mBigrams) continue;
+                for (final WeightedString bigram : group.mBigrams) {
+                    if (targets.containsKey(bigram.mWord)) continue;
+                    final CharGroup target = FusionDictionary.findWordInTree(dict.mRoot,
+                            bigram.mWord);
+                    if (null == target) {
+                        throw new RuntimeException("Bigram target not found : " + bigram.mWord);
+                    }
+                    targets.put(bigram.mWord, target);
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Splits an array of nodes into contiguous chunks to be processed in parallel.
      */
-    private static int findAddressOfWord(final FusionDictionary dict, final String word) {
-        return FusionDictionary.findWordInTree(dict.mRoot, word).mCachedAddress;
+    private static ArrayList<List<Node>> splitIntoChunks(final ArrayList<Node> flatNodes) {
+        final ArrayList<List<Node>> chunks = new ArrayList<List<Node>>();
+        final int size = flatNodes.size();
+        for (int start = 0; start < size; start += NODES_PER_PARALLEL_TASK) {
+            chunks.add(flatNodes.subList(start, Math.min(size, start + NODES_PER_PARALLEL_TASK)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Runs tasks on an executor, waits for all of them, and returns their results in order.
+     *
+     * Any exception thrown by a task is rethrown as a RuntimeException.
+     */
+    /* package */ static <T> ArrayList<T> invokeAll(final ExecutorService executor,
+            final ArrayList<Callable<T>> tasks) {
+        final ArrayList<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (final Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for tasks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
     }
 
     /**
@@ -533,10 +682,11 @@ public class BinaryDictInputOutput {
      * respect to their previous value.
      *
      * @param node the node to compute the size of.
-     * @param dict the dictionary in which the word/attributes are to be found.
+     * @param bigramTargets the char groups of the bigram targets, as found by findBigramTargets.
      * @return false if none of the cached addresses inside the node changed, true otherwise.
      */
-    private static boolean computeActualNodeSize(Node node, FusionDictionary dict) {
+    private static boolean computeActualNodeSize(Node node,
+            HashMap<String, CharGroup> bigramTargets) {
         boolean changed = false;
         int size = getGroupCountSize(node);
         for (CharGroup group : node.mData) {
@@ -556,7 +706,7 @@ public class BinaryDictInputOutput {
                 for (WeightedString bigram : group.mBigrams) {
                     final int offsetBasePoint = groupSize + node.mCachedAddress + size
                             + GROUP_FLAGS_SIZE;
-                    final int addressOfBigram = findAddressOfWord(dict, bigram.mWord);
+                    final int addressOfBigram = bigramTargets.get(bigram.mWord).mCachedAddress;
                     final int offset = addressOfBigram - offsetBasePoint;
                     groupSize += getByteSize(offset) + GROUP_FLAGS_SIZE;
                 }
@@ -605,11 +755,14 @@ public class BinaryDictInputOutput {
      * The order of the node is given by the order of the array. This method makes no effort
      * to find a good order; it only mechanically computes the size this order results in.
      *
-     * @param dict the dictionary
+     * Each pass depends on the addresses updated by the previous nodes in the same pass, so
+     * the passes can't be run in parallel without changing the result.
+     *
+     * @param bigramTargets the char groups of the bigram targets, as found by findBigramTargets.
      * @param flatNodes the ordered array of nodes
      * @return the same array it was passed. The nodes have been updated for address and size.
      */
-    private static ArrayList<Node> computeAddresses(FusionDictionary dict,
+    private static ArrayList<Node> computeAddresses(HashMap<String, CharGroup> bigramTargets,
             ArrayList<Node> flatNodes) {
         // First get the worst sizes and offsets
         for (Node n : flatNodes) setNodeMaximumSize(n);
@@ -624,7 +777,7 @@ public class BinaryDictInputOutput {
             changesDone = false;
             for (Node n : flatNodes) {
                 final int oldNodeSize = n.mCachedSize;
-                final boolean changed = computeActualNodeSize(n, dict);
+                final boolean changed = computeActualNodeSize(n, bigramTargets);
                 final int newNodeSize = n.mCachedSize;
                 if (oldNodeSize < newNodeSize) throw new RuntimeException("Increased size ?!");
                 changesDone |= changed;
@@ -829,12 +982,16 @@ public class BinaryDictInputOutput {
      * This can be an empty map, but the more is inside the faster the lookups will be. It can
      * be carried on as long as nodes do not move.
      *
-     * @param dict the dictionary the node is a part of (for relative offsets).
+     * This only writes to the part of the buffer where the node is placed, so several nodes
+     * can be written at the same time.
+     *
+     * @param bigramTargets the char groups of the bigram targets, as found by findBigramTargets.
      * @param buffer the memory buffer to write to.
      * @param node the node to write.
      * @return the address of the END of the node.
      */
-    private static int writePlacedNode(FusionDictionary dict, byte[] buffer, Node node) {
+    private static int writePlacedNode(HashMap<String, CharGroup> bigramTargets, byte[] buffer,
+            Node node) {
         int index = node.mCachedAddress;
 
         final int groupCount = node.mData.size();
@@ -905,8 +1062,7 @@ public class BinaryDictInputOutput {
                 final Iterator<WeightedString> bigramIterator = group.mBigrams.iterator();
                 while (bigramIterator.hasNext()) {
                     final WeightedString bigram = bigramIterator.next();
-                    final CharGroup target =
-                            FusionDictionary.findWordInTree(dict.mRoot, bigram.mWord);
+                    final CharGroup target = bigramTargets.get(bigram.mWord);
                     final int addressOfBigram = target.mCachedAddress;
                     final int unigramFrequencyForThisWord = target.mFrequency;
                     ++groupAddress;
@@ -933,8 +1089,11 @@ public class BinaryDictInputOutput {
      *
      * This prints purely informative stuff, like the total estimated file size, the
      * number of nodes, of character groups, the repartition of each address size, etc
+     * If tails have been merged, this also prints how many nodes are shared, the size the
+     * file would have had without merging, and how far the children of groups are on average
+     * from the group itself, as an indication of how merging affects locality at read time.
      *
-     * @param nodes the node array.
+     * @param nodes the node array. The first node is expected to be the root.
      */
     private static void showStatistics(ArrayList<Node> nodes) {
         int firstTerminalAddress = Integer.MAX_VALUE;
@@ -981,6 +1140,42 @@ public class BinaryDictInputOutput {
         for (int i = 0; i < runCounts.length; ++i) {
             MakedictLog.i("    " + i + " : " + runCounts[i]);
         }
+
+        final HashMap<Node, Integer> occurrences = new HashMap<Node, Integer>();
+        countOccurrences(nodes.get(0), occurrences);
+        int sharedNodes = 0;
+        long unmergedSize = 0;
+        long childrenReferences = 0;
+        long childrenDistance = 0;
+        for (Node n : nodes) {
+            final int count = occurrences.get(n);
+            if (count > 1) ++sharedNodes;
+            unmergedSize += (long)count * n.mCachedSize;
+            for (CharGroup cg : n.mData) {
+                if (null == cg.mChildren) continue;
+                ++childrenReferences;
+                childrenDistance += cg.mChildren.mCachedAddress - cg.mCachedAddress;
+            }
+        }
+        MakedictLog.i("  Tail merging stats :\n"
+                + "    " + sharedNodes + " shared nodes\n"
+                + "    estimated size without merging " + unmergedSize + " ("
+                        + (unmergedSize - size) + " bytes saved)\n"
+                + "    average distance to children "
+                        + (0 == childrenReferences ? 0 : childrenDistance / childrenReferences));
+    }
+
+    /**
+     * Counts how many times each node is reached from the root, for statistics.
+     */
+    private static void countOccurrences(final Node node, final HashMap<Node, Integer> counts) {
+        final Integer count = counts.get(node);
+        counts.put(node, null == count ? 1 : count + 1);
+        // This walks the tree as if no tails were merged, so each node under a shared node is
+        // counted once for each time the shared node is reached.
+        for (CharGroup group : node.mData) {
+            if (null != group.mChildren) countOccurrences(group.mChildren, counts);
+        }
     }
 
     /**
@@ -995,6 +1190,26 @@ public class BinaryDictInputOutput {
     public static void writeDictionaryBinary(final OutputStream destination,
             final FusionDictionary dict, final int version)
             throws IOException, UnsupportedFormatException {
+        writeDictionaryBinary(destination, dict, version, null);
+    }
+
+    /**
+     * Dumps a FusionDictionary to a file, using an executor for the steps that can be run in
+     * parallel.
+     *
+     * The written file is exactly the same as the one written without an executor. Bigram
+     * targets are looked up and nodes are written in parallel; computing the addresses is
+     * not, as it depends on the order in which nodes are processed.
+     *
+     * @param destination the stream to write the binary data to.
+     * @param dict the dictionary to write.
+     * @param version the version of the format to write, currently either 1 or 2.
+     * @param executor the executor to run tasks in parallel, or null to do everything on the
+     *   calling thread.
+     */
+    public static void writeDictionaryBinary(final OutputStream destination,
+            final FusionDictionary dict, final int version, final ExecutorService executor)
+            throws IOException, UnsupportedFormatException {
 
         // Addresses are limited to 3 bytes, but since addresses can be relative to each node, the
         // structure itself is not limited to 16MB. However, if it is over 16MB deciding the order
@@ -1059,10 +1274,21 @@ public class BinaryDictInputOutput {
 
         // Leave the choice of the optimal node order to the flattenTree function.
         MakedictLog.i("Flattening the tree...");
+        long startTime = System.currentTimeMillis();
         ArrayList<Node> flatNodes = flattenTree(dict.mRoot);
+        MakedictLog.i("Flattened in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        MakedictLog.i("Finding bigram targets...");
+        startTime = System.currentTimeMillis();
+        final HashMap<String, CharGroup> bigramTargets =
+                findBigramTargets(dict, flatNodes, executor);
+        MakedictLog.i("Found " + bigramTargets.size() + " bigram targets in "
+                + (System.currentTimeMillis() - startTime) + " ms");
 
         MakedictLog.i("Computing addresses...");
-        computeAddresses(dict, flatNodes);
+        startTime = System.currentTimeMillis();
+        computeAddresses(bigramTargets, flatNodes);
+        MakedictLog.i("Computed addresses in " + (System.currentTimeMillis() - startTime) + " ms");
         MakedictLog.i("Checking array...");
         if (DBG) checkFlatNodeArray(flatNodes);
 
@@ -1073,10 +1299,30 @@ public class BinaryDictInputOutput {
         int index = 0;
 
         MakedictLog.i("Writing file...");
+        startTime = System.currentTimeMillis();
         int dataEndOffset = 0;
-        for (Node n : flatNodes) {
-            dataEndOffset = writePlacedNode(dict, buffer, n);
+        if (null == executor) {
+            for (Node n : flatNodes) {
+                dataEndOffset = writePlacedNode(bigramTargets, buffer, n);
+            }
+        } else {
+            final ArrayList<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (final List<Node> chunk : splitIntoChunks(flatNodes)) {
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int endOffset = 0;
+                        for (Node n : chunk) {
+                            endOffset = writePlacedNode(bigramTargets, buffer, n);
+                        }
+                        return endOffset;
+                    }
+                });
+            }
+            final ArrayList<Integer> endOffsets = invokeAll(executor, tasks);
+            dataEndOffset = endOffsets.get(endOffsets.size() - 1);
         }
+        MakedictLog.i("Written in " + (System.currentTimeMillis() - startTime) + " ms");
 
         if (DBG) showStatistics(flatNodes);
 
@@ -1200,23 +1446,23 @@ public class BinaryDictInputOutput {
         }
     }
 
-    // The word cache here is a stopgap bandaid to help the catastrophic performance
-    // of this method. Since it performs direct, unbuffered random access to the file and
-    // may be called hundreds of thousands of times, the resulting performance is not
-    // reasonable without some kind of cache. Thus:
-    // TODO: perform buffered I/O here and in other places in the code.
-    private static TreeMap<Integer, String> wordCache = new TreeMap<Integer, String>();
     /**
      * Finds, as a string, the word at the address passed as an argument.
      *
+     * This performs direct, unbuffered random access to the file and may be called hundreds
+     * of thousands of times, so results are remembered in the passed cache. The cache belongs
+     * to a single read and is dropped with it. For large files, prefer the ByteBuffer version
+     * of readDictionaryBinary, which resolves all addresses in a single pass.
+     *
      * @param source the file to read from.
      * @param headerSize the size of the header.
      * @param address the address to seek.
+     * @param wordCache a cache of already resolved addresses for this file.
      * @return the word, as a string.
      * @throws IOException if the file can't be read.
      */
     private static String getWordAtAddress(final RandomAccessFile source, final long headerSize,
-            int address) throws IOException {
+            int address, final Map<Integer, String> wordCache) throws IOException {
         final String cachedString = wordCache.get(address);
         if (null != cachedString) return cachedString;
         final long originalPointer = source.getFilePointer();
@@ -1273,11 +1519,12 @@ public class BinaryDictInputOutput {
      * @param headerSize the size, in bytes, of the file header.
      * @param reverseNodeMap a mapping from addresses to already read nodes.
      * @param reverseGroupMap a mapping from addresses to already read character groups.
+     * @param wordCache a cache of the words at already resolved bigram addresses.
      * @return the read node with all his children already read.
      */
     private static Node readNode(RandomAccessFile source, long headerSize,
-            Map<Integer, Node> reverseNodeMap, Map<Integer, CharGroup> reverseGroupMap)
-            throws IOException {
+            Map<Integer, Node> reverseNodeMap, Map<Integer, CharGroup> reverseGroupMap,
+            Map<Integer, String> wordCache) throws IOException {
         final int nodeOrigin = (int)(source.getFilePointer() - headerSize);
         final int count = readCharGroupCount(source);
         final ArrayList<CharGroup> nodeContents = new ArrayList<CharGroup>();
@@ -1289,7 +1536,8 @@ public class BinaryDictInputOutput {
             if (null != info.mBigrams) {
                 bigrams = new ArrayList<WeightedString>();
                 for (PendingAttribute bigram : info.mBigrams) {
-                    final String word = getWordAtAddress(source, headerSize, bigram.mAddress);
+                    final String word = getWordAtAddress(source, headerSize, bigram.mAddress,
+                            wordCache);
                     bigrams.add(new WeightedString(word, bigram.mFrequency));
                 }
             }
@@ -1298,7 +1546,8 @@ public class BinaryDictInputOutput {
                 if (null == children) {
                     final long currentPosition = source.getFilePointer();
                     source.seek(info.mChildrenAddress + headerSize);
-                    children = readNode(source, headerSize, reverseNodeMap, reverseGroupMap);
+                    children = readNode(source, headerSize, reverseNodeMap, reverseGroupMap,
+                            wordCache);
                     source.seek(currentPosition);
                 }
                 nodeContents.add(
@@ -1368,25 +1617,338 @@ public class BinaryDictInputOutput {
 
         Map<Integer, Node> reverseNodeMapping = new TreeMap<Integer, Node>();
         Map<Integer, CharGroup> reverseGroupMapping = new TreeMap<Integer, CharGroup>();
-        final Node root = readNode(source, headerSize, reverseNodeMapping, reverseGroupMapping);
+        final Map<Integer, String> wordCache = new HashMap<Integer, String>();
+        final Node root = readNode(source, headerSize, reverseNodeMapping, reverseGroupMapping,
+                wordCache);
 
         FusionDictionary newDict = new FusionDictionary(root,
                 new FusionDictionary.DictionaryOptions(options,
                         0 != (optionsFlags & GERMAN_UMLAUT_PROCESSING_FLAG),
                         0 != (optionsFlags & FRENCH_LIGATURE_PROCESSING_FLAG)));
-        if (null != dict) {
-            for (final Word w : dict) {
-                newDict.add(w.mWord, w.mFrequency, w.mShortcutTargets);
+        if (null != dict) return mergeDictionaries(newDict, dict);
+
+        return newDict;
+    }
+
+    /**
+     * Helper method to merge the words of a dictionary that was just read with another.
+     *
+     * The read dictionary may share nodes if its tails were merged, so words can't be added
+     * to it directly. All words are added to a new dictionary instead.
+     *
+     * @param readDict the dictionary that was read from the file.
+     * @param dict the dictionary to add words from.
+     * @return a new dictionary with the words of both, and the options of the read dictionary.
+     */
+    private static FusionDictionary mergeDictionaries(final FusionDictionary readDict,
+            final FusionDictionary dict) {
+        final FusionDictionary newDict = new FusionDictionary(new Node(), readDict.mOptions);
+        addWordsToDictionary(readDict, newDict);
+        addWordsToDictionary(dict, newDict);
+        return newDict;
+    }
+
+    /**
+     * Helper method to add all the words of a dictionary, with their attributes, to another.
+     *
+     * @param source the dictionary to take the words from.
+     * @param destination the dictionary to add the words to.
+     */
+    private static void addWordsToDictionary(final FusionDictionary source,
+            final FusionDictionary destination) {
+        for (final Word w : source) {
+            destination.add(w.mWord, w.mFrequency, w.mShortcutTargets);
+        }
+        for (final Word w : source) {
+            // By construction a binary dictionary may not have bigrams pointing to
+            // words that are not also registered as unigrams so we don't have to avoid
+            // them explicitly here.
+            for (final WeightedString bigram : w.mBigrams) {
+                destination.setBigram(w.mWord, bigram.mWord, bigram.mFrequency);
+            }
+        }
+    }
+
+    // Buffer-based input methods. These read the same format as the RandomAccessFile methods
+    // above, but from a ByteBuffer that will typically be a MappedByteBuffer over the whole
+    // file, so that no read goes to the file system. Bigram addresses are not resolved while
+    // reading nodes; they are recorded and resolved all at once when the whole tree is in
+    // memory, through an index built for this read only.
+
+    /**
+     * Reads a char group from a ByteBuffer. This is the same as the RandomAccessFile version.
+     *
+     * @param source the buffer, positioned at the start of the char group.
+     * @param originalGroupAddress the address of the group, relative to the end of the header.
+     * @return the raw info of the char group, with bigrams still pending.
+     */
+    private static CharGroupInfo readCharGroup(final ByteBuffer source,
+            final int originalGroupAddress) {
+        int addressPointer = originalGroupAddress;
+        final int flags = readUnsignedByte(source);
+        ++addressPointer;
+        final int characters[];
+        if (0 != (flags & FLAG_HAS_MULTIPLE_CHARS)) {
+            int index = 0;
+            int character = CharEncoding.readChar(source);
+            addressPointer += CharEncoding.getCharSize(character);
+            while (-1 != character) {
+                characterBuffer[index++] = character;
+                character = CharEncoding.readChar(source);
+                addressPointer += CharEncoding.getCharSize(character);
             }
-            for (final Word w : dict) {
-                // By construction a binary dictionary may not have bigrams pointing to
-                // words that are not also registered as unigrams so we don't have to avoid
-                // them explicitly here.
-                for (final WeightedString bigram : w.mBigrams) {
-                    newDict.setBigram(w.mWord, bigram.mWord, bigram.mFrequency);
+            characters = Arrays.copyOfRange(characterBuffer, 0, index);
+        } else {
+            final int character = CharEncoding.readChar(source);
+            addressPointer += CharEncoding.getCharSize(character);
+            characters = new int[] { character };
+        }
+        final int frequency;
+        if (0 != (FLAG_IS_TERMINAL & flags)) {
+            ++addressPointer;
+            frequency = readUnsignedByte(source);
+        } else {
+            frequency = CharGroup.NOT_A_TERMINAL;
+        }
+        int childrenAddress = addressPointer;
+        switch (flags & MASK_GROUP_ADDRESS_TYPE) {
+        case FLAG_GROUP_ADDRESS_TYPE_ONEBYTE:
+            childrenAddress += readUnsignedByte(source);
+            addressPointer += 1;
+            break;
+        case FLAG_GROUP_ADDRESS_TYPE_TWOBYTES:
+            childrenAddress += readUnsignedShort(source);
+            addressPointer += 2;
+            break;
+        case FLAG_GROUP_ADDRESS_TYPE_THREEBYTES:
+            childrenAddress += (readUnsignedByte(source) << 16) + readUnsignedShort(source);
+            addressPointer += 3;
+            break;
+        case FLAG_GROUP_ADDRESS_TYPE_NOADDRESS:
+        default:
+            childrenAddress = NO_CHILDREN_ADDRESS;
+            break;
+        }
+        ArrayList<WeightedString> shortcutTargets = null;
+        if (0 != (flags & FLAG_HAS_SHORTCUT_TARGETS)) {
+            final int pointerBefore = source.position();
+            shortcutTargets = new ArrayList<WeightedString>();
+            readUnsignedShort(source); // Skip the size
+            while (true) {
+                final int targetFlags = readUnsignedByte(source);
+                final String word = CharEncoding.readString(source);
+                shortcutTargets.add(new WeightedString(word,
+                        targetFlags & FLAG_ATTRIBUTE_FREQUENCY));
+                if (0 == (targetFlags & FLAG_ATTRIBUTE_HAS_NEXT)) break;
+            }
+            addressPointer += (source.position() - pointerBefore);
+        }
+        ArrayList<PendingAttribute> bigrams = null;
+        if (0 != (flags & FLAG_HAS_BIGRAMS)) {
+            bigrams = new ArrayList<PendingAttribute>();
+            while (true) {
+                final int bigramFlags = readUnsignedByte(source);
+                ++addressPointer;
+                final int sign = 0 == (bigramFlags & FLAG_ATTRIBUTE_OFFSET_NEGATIVE) ? 1 : -1;
+                int bigramAddress = addressPointer;
+                switch (bigramFlags & MASK_ATTRIBUTE_ADDRESS_TYPE) {
+                case FLAG_ATTRIBUTE_ADDRESS_TYPE_ONEBYTE:
+                    bigramAddress += sign * readUnsignedByte(source);
+                    addressPointer += 1;
+                    break;
+                case FLAG_ATTRIBUTE_ADDRESS_TYPE_TWOBYTES:
+                    bigramAddress += sign * readUnsignedShort(source);
+                    addressPointer += 2;
+                    break;
+                case FLAG_ATTRIBUTE_ADDRESS_TYPE_THREEBYTES:
+                    final int offset = ((readUnsignedByte(source) << 16)
+                            + readUnsignedShort(source));
+                    bigramAddress += sign * offset;
+                    addressPointer += 3;
+                    break;
+                default:
+                    throw new RuntimeException("Has bigrams with no address");
+                }
+                bigrams.add(new PendingAttribute(bigramFlags & FLAG_ATTRIBUTE_FREQUENCY,
+                        bigramAddress));
+                if (0 == (bigramFlags & FLAG_ATTRIBUTE_HAS_NEXT)) break;
+            }
+        }
+        return new CharGroupInfo(originalGroupAddress, addressPointer, flags, characters, frequency,
+                childrenAddress, shortcutTargets, bigrams);
+    }
+
+    /**
+     * Reads and returns the char group count out of a ByteBuffer and forwards the position.
+     */
+    private static int readCharGroupCount(final ByteBuffer source) {
+        final int msb = readUnsignedByte(source);
+        if (MAX_CHARGROUPS_FOR_ONE_BYTE_CHARGROUP_COUNT >= msb) {
+            return msb;
+        } else {
+            return ((MAX_CHARGROUPS_FOR_ONE_BYTE_CHARGROUP_COUNT & msb) << 8)
+                    + readUnsignedByte(source);
+        }
+    }
+
+    /**
+     * Reads a single node from a ByteBuffer.
+     *
+     * This is the same as the RandomAccessFile version, except bigrams are not resolved. Each
+     * char group that has bigrams gets its list of pending bigrams stored in pendingBigrams,
+     * and the addresses of all char groups are cached in the groups for later resolution.
+     *
+     * @param source the buffer, positioned at the start of a node.
+     * @param headerSize the size, in bytes, of the file header.
+     * @param reverseNodeMap a mapping from addresses to already read nodes.
+     * @param pendingBigrams a mapping from char groups to their unresolved bigrams.
+     * @return the read node with all his children already read.
+     */
+    private static Node readNode(final ByteBuffer source, final int headerSize,
+            final Map<Integer, Node> reverseNodeMap,
+            final Map<CharGroup, ArrayList<PendingAttribute>> pendingBigrams) {
+        final int nodeOrigin = source.position() - headerSize;
+        final int count = readCharGroupCount(source);
+        final ArrayList<CharGroup> nodeContents = new ArrayList<CharGroup>(count);
+        int groupOffset = nodeOrigin + getGroupCountSize(count);
+        for (int i = count; i > 0; --i) {
+            final CharGroupInfo info = readCharGroup(source, groupOffset);
+            final CharGroup group;
+            if (hasChildrenAddress(info.mChildrenAddress)) {
+                Node children = reverseNodeMap.get(info.mChildrenAddress);
+                if (null == children) {
+                    final int currentPosition = source.position();
+                    source.position(info.mChildrenAddress + headerSize);
+                    children = readNode(source, headerSize, reverseNodeMap, pendingBigrams);
+                    source.position(currentPosition);
                 }
+                group = new CharGroup(info.mCharacters, info.mShortcutTargets,
+                        null /* bigrams */, info.mFrequency, children);
+            } else {
+                group = new CharGroup(info.mCharacters, info.mShortcutTargets,
+                        null /* bigrams */, info.mFrequency);
+            }
+            group.mCachedAddress = info.mOriginalAddress;
+            if (null != info.mBigrams) pendingBigrams.put(group, info.mBigrams);
+            nodeContents.add(group);
+            groupOffset = info.mEndAddress;
+        }
+        final Node node = new Node(nodeContents);
+        node.mCachedAddress = nodeOrigin;
+        reverseNodeMap.put(node.mCachedAddress, node);
+        return node;
+    }
+
+    /**
+     * Fills the word index for all the addresses it contains as keys.
+     *
+     * This walks the tree once, keeping the current prefix in a single builder, and stores
+     * the word for each char group whose cached address is a key of the index.
+     *
+     * @param node the node to start the walk at.
+     * @param prefix the characters leading to this node. It is restored before returning.
+     * @param wordIndex the index to fill, which already contains all wanted addresses as keys.
+     */
+    private static void fillWordIndex(final Node node, final StringBuilder prefix,
+            final Map<Integer, String> wordIndex) {
+        final int prefixLength = prefix.length();
+        for (final CharGroup group : node.mData) {
+            for (final int codePoint : group.mChars) prefix.appendCodePoint(codePoint);
+            if (wordIndex.containsKey(group.mCachedAddress)) {
+                wordIndex.put(group.mCachedAddress, prefix.toString());
+            }
+            if (null != group.mChildren) fillWordIndex(group.mChildren, prefix, wordIndex);
+            prefix.setLength(prefixLength);
+        }
+    }
+
+    /**
+     * Resolves the bigrams read by the ByteBuffer version of readNode.
+     *
+     * @param root the root of the read tree.
+     * @param pendingBigrams a mapping from char groups to their unresolved bigrams.
+     */
+    private static void resolveBigrams(final Node root,
+            final Map<CharGroup, ArrayList<PendingAttribute>> pendingBigrams) {
+        if (pendingBigrams.isEmpty()) return;
+        final HashMap<Integer, String> wordIndex = new HashMap<Integer, String>();
+        for (final ArrayList<PendingAttribute> bigrams : pendingBigrams.values()) {
+            for (final PendingAttribute bigram : bigrams) wordIndex.put(bigram.mAddress, null);
+        }
+        fillWordIndex(root, new StringBuilder(), wordIndex);
+        for (final Map.Entry<CharGroup, ArrayList<PendingAttribute>> entry
+                : pendingBigrams.entrySet()) {
+            final ArrayList<PendingAttribute> pending = entry.getValue();
+            final ArrayList<WeightedString> bigrams = new ArrayList<WeightedString>(pending.size());
+            for (final PendingAttribute bigram : pending) {
+                bigrams.add(new WeightedString(wordIndex.get(bigram.mAddress), bigram.mFrequency));
             }
+            entry.getKey().mBigrams = bigrams;
         }
+    }
+
+    /**
+     * Helper function to get the binary format version from the header of a ByteBuffer.
+     */
+    private static int getFormatVersion(final ByteBuffer source) {
+        final int magic_v1 = readUnsignedShort(source);
+        if (VERSION_1_MAGIC_NUMBER == magic_v1) return readUnsignedByte(source);
+        final int magic_v2 = (magic_v1 << 16) + readUnsignedShort(source);
+        if (VERSION_2_MAGIC_NUMBER == magic_v2) return readUnsignedShort(source);
+        return NOT_A_VERSION_NUMBER;
+    }
+
+    /**
+     * Reads a ByteBuffer and returns the memory representation of the dictionary.
+     *
+     * This does the same as the RandomAccessFile version, but is meant to be passed a
+     * MappedByteBuffer over the whole file. It is much faster on large dictionaries, and keeps
+     * no state between calls. The buffer is read from position 0 regardless of its current
+     * position, and its position is undefined after the call.
+     *
+     * @param buffer the buffer to read.
+     * @param dict an optional dictionary to add words to, or null.
+     * @return the created (or merged) dictionary.
+     */
+    public static FusionDictionary readDictionaryBinary(final ByteBuffer buffer,
+            final FusionDictionary dict) throws UnsupportedFormatException {
+        buffer.position(0);
+        // Check file version
+        final int version = getFormatVersion(buffer);
+        if (version < MINIMUM_SUPPORTED_VERSION || version > MAXIMUM_SUPPORTED_VERSION) {
+            throw new UnsupportedFormatException("This file has version " + version
+                    + ", but this implementation does not support versions above "
+                    + MAXIMUM_SUPPORTED_VERSION);
+        }
+
+        // Read options
+        final int optionsFlags = readUnsignedShort(buffer);
+
+        final int headerSize;
+        final HashMap<String, String> options = new HashMap<String, String>();
+        if (version < FIRST_VERSION_WITH_HEADER_SIZE) {
+            headerSize = buffer.position();
+        } else {
+            headerSize = buffer.getInt();
+            while (buffer.position() < headerSize) {
+                final String key = CharEncoding.readString(buffer);
+                final String value = CharEncoding.readString(buffer);
+                options.put(key, value);
+            }
+            buffer.position(headerSize);
+        }
+
+        final Map<Integer, Node> reverseNodeMapping = new HashMap<Integer, Node>();
+        final Map<CharGroup, ArrayList<PendingAttribute>> pendingBigrams =
+                new HashMap<CharGroup, ArrayList<PendingAttribute>>();
+        final Node root = readNode(buffer, headerSize, reverseNodeMapping, pendingBigrams);
+        resolveBigrams(root, pendingBigrams);
+
+        FusionDictionary newDict = new FusionDictionary(root,
+                new FusionDictionary.DictionaryOptions(options,
+                        0 != (optionsFlags & GERMAN_UMLAUT_PROCESSING_FLAG),
+                        0 != (optionsFlags & FRENCH_LIGATURE_PROCESSING_FLAG)));
+        if (null != dict) return mergeDictionaries(newDict, dict);
 
         return newDict;
     }
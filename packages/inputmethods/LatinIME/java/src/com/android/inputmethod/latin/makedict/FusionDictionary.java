@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -596,95 +597,153 @@ public class FusionDictionary implements Iterable<Word> {
         return hasBigramsInternal(mRoot);
     }
 
-    // Historically, the tails of the words were going to be merged to save space.
-    // However, that would prevent the code to search for a specific address in log(n)
-    // time so this was abandoned.
-    // The code is still of interest as it does add some compression to any dictionary
-    // that has no need for attributes. Implementations that does not read attributes should be
-    // able to read a dictionary with merged tails.
-    // Also, the following code does support frequencies, as in, it will only merges
-    // tails that share the same frequency. Though it would result in the above loss of
-    // performance while searching by address, it is still technically possible to merge
-    // tails that contain attributes, but this code does not take that into account - it does
-    // not compare attributes and will merge terminals with different attributes regardless.
+    /**
+     * Merges identical tails of the tree, turning it into a directed acyclic graph.
+     *
+     * Two nodes are merged only if they are truly identical: same characters, frequencies,
+     * shortcut targets and bigrams for each of their groups, and the very same children.
+     * This is checked bottom-up, so that children of merged nodes are already merged and can be
+     * compared by identity.
+     * The native code and the binary readers find the word at a bigram address by descending
+     * from the root, which depends on the children of all the nodes on the path to this word to
+     * be laid out in order. For this reason, the children of a node are only ever merged if no
+     * group in the branch under this node is the target of a bigram. This also ensures each
+     * bigram target keeps an address of its own.
+     * Once this has been called, no word should be added to this dictionary any more, because
+     * adding a word would modify all the branches that share the same tail.
+     */
     public void mergeTails() {
-        MakedictLog.i("Do not merge tails");
-        return;
-
-//        MakedictLog.i("Merging nodes. Number of nodes : " + countNodes(root));
-//        MakedictLog.i("Number of groups : " + countCharGroups(root));
-//
-//        final HashMap<String, ArrayList<Node>> repository =
-//                  new HashMap<String, ArrayList<Node>>();
-//        mergeTailsInner(repository, root);
-//
-//        MakedictLog.i("Number of different pseudohashes : " + repository.size());
-//        int size = 0;
-//        for (ArrayList<Node> a : repository.values()) {
-//            size += a.size();
-//        }
-//        MakedictLog.i("Number of nodes after merge : " + (1 + size));
-//        MakedictLog.i("Recursively seen nodes : " + countNodes(root));
+        MakedictLog.i("Merging nodes. Number of nodes : " + countNodes(mRoot));
+        MakedictLog.i("Number of groups : " + countCharGroups(mRoot));
+
+        final HashSet<CharGroup> bigramTargets = new HashSet<CharGroup>();
+        collectBigramTargets(mRoot, bigramTargets);
+        final HashSet<Node> nodesWithTargets = new HashSet<Node>();
+        collectNodesWithTargets(mRoot, bigramTargets, nodesWithTargets);
+
+        final HashMap<Integer, ArrayList<Node>> repository =
+                new HashMap<Integer, ArrayList<Node>>();
+        mergeTailsInner(repository, nodesWithTargets, new HashSet<Node>(), mRoot);
+
+        MakedictLog.i("Number of different pseudohashes : " + repository.size());
+        final HashSet<Node> distinctNodes = new HashSet<Node>();
+        collectDistinctNodes(mRoot, distinctNodes);
+        MakedictLog.i("Number of nodes after merge : " + distinctNodes.size());
+        MakedictLog.i("Recursively seen nodes : " + countNodes(mRoot));
+    }
+
+    /**
+     * Collects all the nodes in a branch, counting the nodes shared by several groups once.
+     */
+    private static void collectDistinctNodes(final Node node, final HashSet<Node> nodes) {
+        if (!nodes.add(node)) return;
+        for (CharGroup group : node.mData) {
+            if (null != group.mChildren) collectDistinctNodes(group.mChildren, nodes);
+        }
     }
 
-    // The following methods are used by the deactivated mergeTails()
-//   private static boolean isEqual(Node a, Node b) {
-//       if (null == a && null == b) return true;
-//       if (null == a || null == b) return false;
-//       if (a.data.size() != b.data.size()) return false;
-//       final int size = a.data.size();
-//       for (int i = size - 1; i >= 0; --i) {
-//           CharGroup aGroup = a.data.get(i);
-//           CharGroup bGroup = b.data.get(i);
-//           if (aGroup.frequency != bGroup.frequency) return false;
-//           if (aGroup.alternates == null && bGroup.alternates != null) return false;
-//           if (aGroup.alternates != null && !aGroup.equals(bGroup.alternates)) return false;
-//           if (!Arrays.equals(aGroup.chars, bGroup.chars)) return false;
-//           if (!isEqual(aGroup.children, bGroup.children)) return false;
-//       }
-//       return true;
-//   }
-
-//   static private HashMap<String, ArrayList<Node>> mergeTailsInner(
-//           final HashMap<String, ArrayList<Node>> map, final Node node) {
-//       final ArrayList<CharGroup> branches = node.data;
-//       final int nodeSize = branches.size();
-//       for (int i = 0; i < nodeSize; ++i) {
-//           CharGroup group = branches.get(i);
-//           if (null != group.children) {
-//               String pseudoHash = getPseudoHash(group.children);
-//               ArrayList<Node> similarList = map.get(pseudoHash);
-//               if (null == similarList) {
-//                   similarList = new ArrayList<Node>();
-//                   map.put(pseudoHash, similarList);
-//               }
-//               boolean merged = false;
-//               for (Node similar : similarList) {
-//                   if (isEqual(group.children, similar)) {
-//                       group.children = similar;
-//                       merged = true;
-//                       break;
-//                   }
-//               }
-//               if (!merged) {
-//                   similarList.add(group.children);
-//               }
-//               mergeTailsInner(map, group.children);
-//           }
-//       }
-//       return map;
-//   }
-
-//  private static String getPseudoHash(final Node node) {
-//      StringBuilder s = new StringBuilder();
-//      for (CharGroup g : node.data) {
-//          s.append(g.frequency);
-//          for (int ch : g.chars){
-//              s.append(Character.toChars(ch));
-//          }
-//      }
-//      return s.toString();
-//  }
+    /**
+     * Collects the char groups that are the target of a bigram in the branch under a node.
+     */
+    private void collectBigramTargets(final Node node, final HashSet<CharGroup> targets) {
+        for (CharGroup group : node.mData) {
+            if (null != group.mBigrams) {
+                for (WeightedString bigram : group.mBigrams) {
+                    final CharGroup target = findWordInTree(mRoot, bigram.mWord);
+                    if (null != target) targets.add(target);
+                }
+            }
+            if (null != group.mChildren) collectBigramTargets(group.mChildren, targets);
+        }
+    }
+
+    /**
+     * Collects the nodes that have a bigram target somewhere in the branch under them.
+     *
+     * @return whether the passed node has a bigram target in its branch.
+     */
+    private static boolean collectNodesWithTargets(final Node node,
+            final HashSet<CharGroup> targets, final HashSet<Node> nodesWithTargets) {
+        boolean hasTarget = false;
+        for (CharGroup group : node.mData) {
+            if (targets.contains(group)) hasTarget = true;
+            if (null != group.mChildren
+                    && collectNodesWithTargets(group.mChildren, targets, nodesWithTargets)) {
+                hasTarget = true;
+            }
+        }
+        if (hasTarget) nodesWithTargets.add(node);
+        return hasTarget;
+    }
+
+    private static boolean isEqual(final Node a, final Node b) {
+        if (a.mData.size() != b.mData.size()) return false;
+        final int size = a.mData.size();
+        for (int i = size - 1; i >= 0; --i) {
+            CharGroup aGroup = a.mData.get(i);
+            CharGroup bGroup = b.mData.get(i);
+            if (aGroup.mFrequency != bGroup.mFrequency) return false;
+            // Children have been merged already, so they can be compared by identity.
+            if (aGroup.mChildren != bGroup.mChildren) return false;
+            if (!Arrays.equals(aGroup.mChars, bGroup.mChars)) return false;
+            if (!isEqual(aGroup.mShortcutTargets, bGroup.mShortcutTargets)) return false;
+            if (!isEqual(aGroup.mBigrams, bGroup.mBigrams)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isEqual(final ArrayList<WeightedString> a,
+            final ArrayList<WeightedString> b) {
+        if (null == a) return null == b;
+        return a.equals(b);
+    }
+
+    private static HashMap<Integer, ArrayList<Node>> mergeTailsInner(
+            final HashMap<Integer, ArrayList<Node>> map, final HashSet<Node> nodesWithTargets,
+            final HashSet<Node> mergedNodes, final Node node) {
+        // A node that is already shared has been merged when it was first seen.
+        if (!mergedNodes.add(node)) return map;
+        final boolean canMergeChildren = !nodesWithTargets.contains(node);
+        final ArrayList<CharGroup> branches = node.mData;
+        final int nodeSize = branches.size();
+        for (int i = 0; i < nodeSize; ++i) {
+            CharGroup group = branches.get(i);
+            if (null != group.mChildren) {
+                mergeTailsInner(map, nodesWithTargets, mergedNodes, group.mChildren);
+                if (!canMergeChildren) continue;
+                final int pseudoHash = getPseudoHash(group.mChildren);
+                ArrayList<Node> similarList = map.get(pseudoHash);
+                if (null == similarList) {
+                    similarList = new ArrayList<Node>();
+                    map.put(pseudoHash, similarList);
+                }
+                boolean merged = false;
+                for (Node similar : similarList) {
+                    if (isEqual(group.mChildren, similar)) {
+                        group.mChildren = similar;
+                        merged = true;
+                        break;
+                    }
+                }
+                if (!merged) {
+                    similarList.add(group.mChildren);
+                }
+            }
+        }
+        return map;
+    }
+
+    private static int getPseudoHash(final Node node) {
+        int hash = node.mData.size();
+        for (CharGroup g : node.mData) {
+            hash = hash * 31 + Arrays.hashCode(g.mChars);
+            hash = hash * 31 + g.mFrequency;
+            hash = hash * 31 + (null == g.mShortcutTargets ? 0 : g.mShortcutTargets.hashCode());
+            hash = hash * 31 + (null == g.mBigrams ? 0 : g.mBigrams.hashCode());
+            hash = hash * 31 + System.identityHashCode(g.mChildren);
+        }
+        return hash;
+    }
 
     /**
      * Iterator to walk through a dictionary.
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import static com.android.inputmethod.latin.ExpandableBinaryDictionary.DELTA_ADD_BIGRAM;
+import static com.android.inputmethod.latin.ExpandableBinaryDictionary.DELTA_ADD_WORD;
+import static com.android.inputmethod.latin.ExpandableBinaryDictionary.DELTA_REMOVE_BIGRAM;
+import static com.android.inputmethod.latin.ExpandableBinaryDictionary.DELTA_REMOVE_WORD;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import com.android.inputmethod.keyboard.ProximityInfo;
+import com.android.inputmethod.latin.Dictionary.WordCallback;
+import com.android.inputmethod.latin.ExpandableBinaryDictionary.DictionaryDelta;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Tests for the delta that ExpandableBinaryDictionary keeps on top of its binary dictionary.
+ */
+public class ExpandableBinaryDictionaryTests extends AndroidTestCase {
+    private static final String FILENAME = "ExpandableBinaryDictionaryTests.dict";
+
+    private static final class ResultCollector implements WordCallback {
+        final ArrayList<String> mResults = new ArrayList<String>();
+
+        @Override
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
+                int dicTypeId, int dataType) {
+            mResults.add(new String(word, wordOffset, wordLength));
+            return true;
+        }
+
+        int count(final String word) {
+            int count = 0;
+            for (final String result : mResults) {
+                if (result.equals(word)) ++count;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * A dictionary that builds its binary dictionary from a fixed word list, and reports the
+     * changes it is given through the delta.
+     */
+    private static final class TestDictionary extends ExpandableBinaryDictionary {
+        private final ArrayList<String[]> mDeltaEntries = new ArrayList<String[]>();
+
+        TestDictionary(final Context context) {
+            super(context, FILENAME, Suggest.DIC_USER);
+        }
+
+        @Override
+        protected void loadDictionaryAsync() {
+            addWord("jane", null, 100);
+            addWord("doe", null, 100);
+            addWord("smith", null, 100);
+            setBigram("jane", "doe", 100);
+            setBigram("jane", "smith", 100);
+        }
+
+        @Override
+        protected boolean loadDeltaAsync() {
+            for (final String[] entry : mDeltaEntries) {
+                if (DELTA_ADD_WORD.equals(entry[0])) {
+                    addWordToDelta(entry[1], Integer.parseInt(entry[2]));
+                } else if (DELTA_REMOVE_WORD.equals(entry[0])) {
+                    removeWordFromDelta(entry[1]);
+                } else if (DELTA_ADD_BIGRAM.equals(entry[0])) {
+                    setBigramInDelta(entry[1], entry[2], Integer.parseInt(entry[3]));
+                } else {
+                    removeBigramFromDelta(entry[1], entry[2]);
+                }
+            }
+            mDeltaEntries.clear();
+            return true;
+        }
+
+        @Override
+        protected boolean hasContentChanged() {
+            return true;
+        }
+
+        void update(final String... entry) throws InterruptedException {
+            mDeltaEntries.add(entry);
+            // The reload request must be later than the last update to be noticed.
+            Thread.sleep(2);
+            setRequiresReload(true);
+            syncReloadDictionaryIfRequired();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteFiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFiles();
+        super.tearDown();
+    }
+
+    private void deleteFiles() {
+        new File(getContext().getFilesDir(), FILENAME).delete();
+        getDeltaFile().delete();
+    }
+
+    private File getDeltaFile() {
+        return new File(getContext().getFilesDir(), FILENAME + ".delta");
+    }
+
+    private static WordComposer makeComposer(final String word) {
+        final WordComposer composer = new WordComposer();
+        for (int i = 0; i < word.length(); ++i) {
+            composer.add(word.charAt(i), WordComposer.NOT_A_COORDINATE,
+                    WordComposer.NOT_A_COORDINATE, null);
+        }
+        return composer;
+    }
+
+    private DictionaryDelta makeDelta() {
+        return new DictionaryDelta(getContext(), Suggest.DIC_USER);
+    }
+
+    public void testApplyKeepsLastEntry() {
+        final DictionaryDelta delta = makeDelta();
+        assertTrue(delta.apply(new String[] { DELTA_ADD_WORD, "jane", "100" }));
+        assertTrue(delta.apply(new String[] { DELTA_REMOVE_WORD, "jane" }));
+        assertFalse(delta.mAddedWords.containsKey("jane"));
+        assertTrue(delta.mRemovedWords.contains("jane"));
+        assertTrue(delta.apply(new String[] { DELTA_ADD_WORD, "jane", "120" }));
+        assertEquals(Integer.valueOf(120), delta.mAddedWords.get("jane"));
+        assertFalse(delta.mRemovedWords.contains("jane"));
+
+        assertTrue(delta.apply(new String[] { DELTA_REMOVE_BIGRAM, "jane", "doe" }));
+        assertTrue(delta.isBigramRemoved("jane", "doe"));
+        assertTrue(delta.apply(new String[] { DELTA_ADD_BIGRAM, "jane", "doe", "80" }));
+        assertTrue(delta.isBigramAdded("jane", "doe"));
+        assertFalse(delta.isBigramRemoved("jane", "doe"));
+        assertTrue(delta.apply(new String[] { DELTA_REMOVE_BIGRAM, "jane", "doe" }));
+        assertFalse(delta.isBigramAdded("jane", "doe"));
+        assertEquals(6, delta.mEntryCount);
+    }
+
+    public void testApplyIgnoresRedundantAndMalformedEntries() {
+        final DictionaryDelta delta = makeDelta();
+        assertTrue(delta.apply(new String[] { DELTA_ADD_WORD, "jane", "100" }));
+        assertFalse(delta.apply(new String[] { DELTA_ADD_WORD, "jane", "100" }));
+        assertFalse(delta.apply(new String[] { DELTA_ADD_WORD, "doe", "many" }));
+        assertFalse(delta.apply(new String[] { DELTA_REMOVE_WORD }));
+        assertFalse(delta.apply(new String[] { "?", "jane" }));
+        assertEquals(1, delta.mEntryCount);
+    }
+
+    public void testDeltaFileRoundTrip() throws IOException {
+        final String[][] entries = {
+            { DELTA_ADD_WORD, "tab\there", "100" },
+            { DELTA_ADD_WORD, "back\\slash\\t", "90" },
+            { DELTA_ADD_WORD, "line\nbreak\r", "80" },
+            { DELTA_REMOVE_WORD, "gone" },
+            { DELTA_ADD_BIGRAM, "tab\there", "back\\slash\\t", "70" },
+            { DELTA_REMOVE_BIGRAM, "tab\there", "gone" },
+        };
+        final FileWriter writer = new FileWriter(getDeltaFile());
+        try {
+            for (final String[] entry : entries) {
+                writer.write(ExpandableBinaryDictionary.formatDeltaEntry(entry));
+                writer.write("\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        final DictionaryDelta delta = ExpandableBinaryDictionary.readDelta(getContext(),
+                Suggest.DIC_USER, getDeltaFile());
+        assertEquals(entries.length, delta.mEntryCount);
+        assertEquals(Integer.valueOf(100), delta.mAddedWords.get("tab\there"));
+        assertEquals(Integer.valueOf(90), delta.mAddedWords.get("back\\slash\\t"));
+        assertEquals(Integer.valueOf(80), delta.mAddedWords.get("line\nbreak\r"));
+        assertTrue(delta.mRemovedWords.contains("gone"));
+        assertTrue(delta.isBigramAdded("tab\there", "back\\slash\\t"));
+        assertTrue(delta.isBigramRemoved("tab\there", "gone"));
+    }
+
+    public void testFilterDropsWordsTheDeltaServes() {
+        final DictionaryDelta delta = makeDelta();
+        delta.apply(new String[] { DELTA_ADD_WORD, "jane", "100" });
+        delta.apply(new String[] { DELTA_REMOVE_WORD, "doe" });
+        delta.apply(new String[] { DELTA_ADD_BIGRAM, "jane", "smith", "100" });
+        delta.apply(new String[] { DELTA_REMOVE_BIGRAM, "jane", "roe" });
+
+        final ResultCollector unigrams = new ResultCollector();
+        final WordCallback unigramFilter = delta.filter(null, unigrams);
+        for (final String word : new String[] { "jane", "doe", "smith", "roe" }) {
+            unigramFilter.addWord(word.toCharArray(), 0, word.length(), 1, Suggest.DIC_USER,
+                    Dictionary.UNIGRAM);
+        }
+        assertEquals("[smith, roe]", unigrams.mResults.toString());
+
+        final ResultCollector bigrams = new ResultCollector();
+        final WordCallback bigramFilter = delta.filter("jane", bigrams);
+        for (final String word : new String[] { "jane", "doe", "smith", "roe" }) {
+            bigramFilter.addWord(word.toCharArray(), 0, word.length(), 1, Suggest.DIC_USER,
+                    Dictionary.BIGRAM);
+        }
+        assertEquals("[jane]", bigrams.mResults.toString());
+    }
+
+    public void testBigramsAreKeyedByLowerCaseFirstWord() {
+        final DictionaryDelta delta = makeDelta();
+        delta.apply(new String[] { DELTA_ADD_BIGRAM, "Jane", "Smith", "100" });
+        delta.apply(new String[] { DELTA_REMOVE_BIGRAM, "JANE", "Roe" });
+        assertTrue(delta.isBigramAdded("jane", "Smith"));
+        assertTrue(delta.isBigramRemoved("Jane", "Roe"));
+        assertFalse(delta.isBigramAdded("jane", "smith"));
+
+        final ResultCollector bigrams = new ResultCollector();
+        final WordCallback bigramFilter = delta.filter("jane", bigrams);
+        for (final String word : new String[] { "Smith", "Roe", "Doe" }) {
+            bigramFilter.addWord(word.toCharArray(), 0, word.length(), 1, Suggest.DIC_USER,
+                    Dictionary.BIGRAM);
+        }
+        assertEquals("[Doe]", bigrams.mResults.toString());
+    }
+
+    public void testWordInDeltaAndBinaryIsReturnedOnce() throws InterruptedException {
+        final TestDictionary dict = new TestDictionary(getContext());
+        try {
+            dict.syncReloadDictionaryIfRequired();
+            final ProximityInfo proximityInfo = ProximityInfo.createDummyProximityInfo();
+
+            final ResultCollector before = new ResultCollector();
+            dict.getWords(makeComposer("jane"), null, before, proximityInfo);
+            assertEquals(1, before.count("jane"));
+
+            dict.update(DELTA_ADD_WORD, "jane", "200");
+            dict.update(DELTA_ADD_BIGRAM, "jane", "doe", "200");
+            final ResultCollector words = new ResultCollector();
+            dict.getWords(makeComposer("jane"), null, words, proximityInfo);
+            assertEquals(1, words.count("jane"));
+            final ResultCollector bigrams = new ResultCollector();
+            dict.getBigrams(makeComposer(""), "jane", bigrams);
+            assertEquals(1, bigrams.count("doe"));
+            assertEquals(1, bigrams.count("smith"));
+
+            dict.update(DELTA_REMOVE_BIGRAM, "jane", "smith");
+            assertFalse(dict.isValidBigram("jane", "smith"));
+            assertTrue(dict.isValidBigram("jane", "doe"));
+        } finally {
+            dict.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.inputmethod.keyboard.ProximityInfo;
+import com.android.inputmethod.latin.Dictionary.WordCallback;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that the compact trie behaves like the node graph, and compares their memory use
+ * and lookup latency.
+ */
+public class ExpandableDictionaryTests extends AndroidTestCase {
+    private static final String TAG = ExpandableDictionaryTests.class.getSimpleName();
+    private static final int WORD_COUNT = 20000;
+    private static final int BIGRAM_COUNT = 20000;
+    private static final int LOOKUP_COUNT = 2000;
+
+    private static final class ResultCollector implements WordCallback {
+        final ArrayList<String> mResults = new ArrayList<String>();
+
+        @Override
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
+                int dicTypeId, int dataType) {
+            mResults.add(new String(word, wordOffset, wordLength) + ":" + score + ":" + dataType);
+            return true;
+        }
+    }
+
+    private static String generateWord(final Random random) {
+        final StringBuilder builder = new StringBuilder();
+        final int length = 2 + random.nextInt(10);
+        for (int i = 0; i < length; ++i) {
+            builder.append((char)('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+    private static ArrayList<String> generateWords(final long seed, final int count) {
+        final Random random = new Random(seed);
+        final ArrayList<String> words = new ArrayList<String>();
+        for (int i = 0; i < count; ++i) {
+            words.add(generateWord(random));
+        }
+        return words;
+    }
+
+    private ExpandableDictionary makeDictionary(final ArrayList<String> words,
+            final boolean useCompactTrie) {
+        final ExpandableDictionary dict = new ExpandableDictionary(getContext(),
+                Suggest.DIC_USER, useCompactTrie);
+        final Random random = new Random(0);
+        for (final String word : words) {
+            dict.addWord(word, null, random.nextInt(256));
+        }
+        dict.addWord("2nite", "tonight", 200);
+        for (int i = 0; i < BIGRAM_COUNT; ++i) {
+            dict.setBigramAndGetFrequency(words.get(random.nextInt(words.size())),
+                    words.get(random.nextInt(words.size())), random.nextInt(256));
+        }
+        return dict;
+    }
+
+    private static WordComposer makeComposer(final String word) {
+        final WordComposer composer = new WordComposer();
+        for (int i = 0; i < word.length(); ++i) {
+            composer.add(word.charAt(i), WordComposer.NOT_A_COORDINATE,
+                    WordComposer.NOT_A_COORDINATE, null);
+        }
+        return composer;
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            runtime.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A word added without a shortcut target used to be left non-terminal, so it was never
+     * valid nor suggested.
+     */
+    public void testAddWordWithoutShortcut() {
+        final ProximityInfo proximityInfo = ProximityInfo.createDummyProximityInfo();
+        for (final boolean useCompactTrie : new boolean[] { false, true }) {
+            final ExpandableDictionary dict = new ExpandableDictionary(getContext(),
+                    Suggest.DIC_USER, useCompactTrie);
+            dict.addWord("tonight", null, 120);
+            dict.addWord("ton", null, 80);
+            dict.addWord("2nite", "tonight", 200);
+
+            final String store = useCompactTrie ? "compact trie" : "node graph";
+            assertTrue(store, dict.isValidWord("tonight"));
+            assertTrue(store, dict.isValidWord("ton"));
+            assertFalse(store, dict.isValidWord("toni"));
+            assertFalse(store, dict.isValidWord("2nite"));
+            assertEquals(store, 120, dict.getWordFrequency("tonight"));
+            assertEquals(store, 80, dict.getWordFrequency("ton"));
+
+            final ResultCollector words = new ResultCollector();
+            dict.getWords(makeComposer("tonight"), null, words, proximityInfo);
+            boolean suggested = false;
+            for (final String result : words.mResults) {
+                if (result.startsWith("tonight:")) suggested = true;
+            }
+            assertTrue(store, suggested);
+        }
+    }
+
+    public void testCompactTrieGivesSameResults() {
+        final ArrayList<String> words = generateWords(1, WORD_COUNT);
+        final ExpandableDictionary graph = makeDictionary(words, false);
+        final ExpandableDictionary compact = makeDictionary(words, true);
+        final ProximityInfo proximityInfo = ProximityInfo.createDummyProximityInfo();
+
+        final ArrayList<String> probes = generateWords(2, LOOKUP_COUNT / 2);
+        probes.addAll(words.subList(0, LOOKUP_COUNT / 2));
+        probes.add("2nite");
+        for (final String probe : probes) {
+            assertEquals(probe, graph.isValidWord(probe), compact.isValidWord(probe));
+            assertEquals(probe, graph.getWordFrequency(probe), compact.getWordFrequency(probe));
+
+            final ResultCollector graphBigrams = new ResultCollector();
+            final ResultCollector compactBigrams = new ResultCollector();
+            graph.getBigrams(null, probe, graphBigrams);
+            compact.getBigrams(null, probe, compactBigrams);
+            assertEquals(probe, graphBigrams.mResults, compactBigrams.mResults);
+
+            final String prefix = probe.substring(0, Math.min(probe.length(), 4));
+            final ResultCollector graphWords = new ResultCollector();
+            final ResultCollector compactWords = new ResultCollector();
+            graph.getWords(makeComposer(prefix), null, graphWords, proximityInfo);
+            compact.getWords(makeComposer(prefix), null, compactWords, proximityInfo);
+            assertEquals(prefix, graphWords.mResults, compactWords.mResults);
+        }
+        assertTrue(compact.isValidWord(words.get(0)));
+        assertFalse(compact.isValidWord("2nite"));
+
+        final String word1 = words.get(0);
+        final String word2 = words.get(1);
+        assertEquals(graph.removeBigram(word1, word2), compact.removeBigram(word1, word2));
+        assertEquals(100, compact.setBigramAndGetFrequency(word1, word2, 100));
+        assertNotNull(compact.getBigramWord(word1, word2));
+        assertEquals(100, compact.getBigramWord(word1, word2).getFrequency());
+        assertTrue(compact.removeBigram(word1, word2));
+        assertNull(compact.getBigramWord(word1, word2));
+    }
+
+    public void testCompactTrieMemoryAndLatency() {
+        final ArrayList<String> words = generateWords(1, WORD_COUNT);
+        final ProximityInfo proximityInfo = ProximityInfo.createDummyProximityInfo();
+        final ArrayList<WordComposer> composers = new ArrayList<WordComposer>();
+        for (final String word : generateWords(3, LOOKUP_COUNT)) {
+            composers.add(makeComposer(word.substring(0, Math.min(word.length(), 3))));
+        }
+
+        for (final boolean useCompactTrie : new boolean[] { false, true }) {
+            final long before = usedMemory();
+            final ExpandableDictionary dict = makeDictionary(words, useCompactTrie);
+            final long memory = usedMemory() - before;
+
+            final long start = System.nanoTime();
+            for (final WordComposer composer : composers) {
+                dict.getWords(composer, null, new ResultCollector(), proximityInfo);
+            }
+            for (final String word : words.subList(0, LOOKUP_COUNT)) {
+                dict.isValidWord(word);
+                dict.getBigrams(null, word, new ResultCollector());
+            }
+            final long elapsed = System.nanoTime() - start;
+            Log.d(TAG, (useCompactTrie ? "compact trie" : "node graph") + ": " + memory / 1024
+                    + " KB for " + WORD_COUNT + " words and " + BIGRAM_COUNT + " bigrams, "
+                    + elapsed / 1000000 + " ms for " + LOOKUP_COUNT + " lookups");
+            // Keep the dictionary reachable until its memory has been measured.
+            assertTrue(dict.isValidWord(words.get(0)));
+        }
+    }
+}
@@ -22,9 +22,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -43,6 +45,8 @@ public class DictionaryMaker {
         private final static String OPTION_OUTPUT_BINARY = "-d";
         private final static String OPTION_OUTPUT_BINARY_FORMAT_VERSION_1 = "-d1";
         private final static String OPTION_OUTPUT_XML = "-x";
+        private final static String OPTION_PARALLEL = "-p";
+        private final static String OPTION_MERGE_TAILS = "-m";
         private final static String OPTION_HELP = "-h";
         public final String mInputBinary;
         public final String mInputUnigramXml;
@@ -51,6 +55,8 @@ public class DictionaryMaker {
         public final String mOutputBinary;
         public final String mOutputBinaryFormat1;
         public final String mOutputXml;
+        public final boolean mParallel;
+        public final boolean mMergeTails;
 
         private void checkIntegrity() throws IOException {
             checkHasExactlyOneInput();
@@ -105,7 +111,7 @@ public class DictionaryMaker {
             MakedictLog.i("Usage: makedict "
                     + "[-s <unigrams.xml> [-b <bigrams.xml>] [-c <shortcuts.xml>] "
                     + "| -s <binary input>] [-d <binary output format version 2>] "
-                    + "[-d1 <binary output format version 1>] [-x <xml output>] [-2]\n"
+                    + "[-d1 <binary output format version 1>] [-x <xml output>] [-2] [-p] [-m]\n"
                     + "\n"
                     + "  Converts a source dictionary file to one or several outputs.\n"
                     + "  Source can be an XML file, with an optional XML bigrams file, or a\n"
@@ -114,7 +120,12 @@ public class DictionaryMaker {
                     + "  are supported. All three can be output at the same time, but the same\n"
                     + "  output format cannot be specified several times. The behavior is\n"
                     + "  unspecified if the same file is specified for input and output, or for\n"
-                    + "  several outputs.");
+                    + "  several outputs.\n"
+                    + "  With -p, the dictionary is built in parallel. This is faster for large\n"
+                    + "  word lists, and the output is the same.\n"
+                    + "  With -m, identical tails of words are shared in the binary outputs.\n"
+                    + "  This makes the file smaller, but it is no longer byte-identical to\n"
+                    + "  the one built without -m.");
         }
 
         public Arguments(String[] argsArray) throws IOException {
@@ -129,6 +140,8 @@ public class DictionaryMaker {
             String outputBinary = null;
             String outputBinaryFormat1 = null;
             String outputXml = null;
+            boolean parallel = false;
+            boolean mergeTails = false;
 
             while (!args.isEmpty()) {
                 final String arg = args.get(0);
@@ -136,6 +149,10 @@ public class DictionaryMaker {
                 if (arg.charAt(0) == '-') {
                     if (OPTION_VERSION_2.equals(arg)) {
                         // Do nothing, this is the default
+                    } else if (OPTION_PARALLEL.equals(arg)) {
+                        parallel = true;
+                    } else if (OPTION_MERGE_TAILS.equals(arg)) {
+                        mergeTails = true;
                     } else if (OPTION_HELP.equals(arg)) {
                         displayHelp();
                     } else {
@@ -188,6 +205,8 @@ public class DictionaryMaker {
             mOutputBinary = outputBinary;
             mOutputBinaryFormat1 = outputBinaryFormat1;
             mOutputXml = outputXml;
+            mParallel = parallel;
+            mMergeTails = mergeTails;
             checkIntegrity();
         }
     }
@@ -196,23 +215,40 @@ public class DictionaryMaker {
             throws FileNotFoundException, ParserConfigurationException, SAXException, IOException,
             UnsupportedFormatException {
         final Arguments parsedArgs = new Arguments(args);
-        FusionDictionary dictionary = readInputFromParsedArgs(parsedArgs);
-        writeOutputToParsedArgs(parsedArgs, dictionary);
+        final ForkJoinPool pool = parsedArgs.mParallel ? new ForkJoinPool() : null;
+        try {
+            long startTime = System.currentTimeMillis();
+            FusionDictionary dictionary = readInputFromParsedArgs(parsedArgs, pool);
+            MakedictLog.i("Read input in " + (System.currentTimeMillis() - startTime) + " ms");
+            if (parsedArgs.mMergeTails) {
+                startTime = System.currentTimeMillis();
+                dictionary.mergeTails();
+                MakedictLog.i("Merged tails in " + (System.currentTimeMillis() - startTime)
+                        + " ms");
+            }
+            startTime = System.currentTimeMillis();
+            writeOutputToParsedArgs(parsedArgs, dictionary, pool);
+            MakedictLog.i("Wrote output in " + (System.currentTimeMillis() - startTime) + " ms");
+        } finally {
+            if (null != pool) pool.shutdown();
+        }
     }
 
     /**
      * Invoke the right input method according to args.
      *
      * @param args the parsed command line arguments.
+     * @param pool the pool to build the dictionary on, or null to build it on this thread.
      * @return the read dictionary.
      */
-    private static FusionDictionary readInputFromParsedArgs(final Arguments args)
-            throws IOException, UnsupportedFormatException, ParserConfigurationException,
-            SAXException, FileNotFoundException {
+    private static FusionDictionary readInputFromParsedArgs(final Arguments args,
+            final ForkJoinPool pool) throws IOException, UnsupportedFormatException,
+            ParserConfigurationException, SAXException, FileNotFoundException {
         if (null != args.mInputBinary) {
             return readBinaryFile(args.mInputBinary);
         } else if (null != args.mInputUnigramXml) {
-            return readXmlFile(args.mInputUnigramXml, args.mInputShortcutXml, args.mInputBigramXml);
+            return readXmlFile(args.mInputUnigramXml, args.mInputShortcutXml, args.mInputBigramXml,
+                    pool);
         } else {
             throw new RuntimeException("No input file specified");
         }
@@ -229,8 +265,15 @@ public class DictionaryMaker {
      */
     private static FusionDictionary readBinaryFile(final String binaryFilename)
             throws FileNotFoundException, IOException, UnsupportedFormatException {
-        final RandomAccessFile inputFile = new RandomAccessFile(binaryFilename, "r");
-        return BinaryDictInputOutput.readDictionaryBinary(inputFile, null);
+        final File file = new File(binaryFilename);
+        final FileInputStream inStream = new FileInputStream(file);
+        try {
+            final ByteBuffer buffer = inStream.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return BinaryDictInputOutput.readDictionaryBinary(buffer, null);
+        } finally {
+            inStream.close();
+        }
     }
 
     /**
@@ -239,6 +282,7 @@ public class DictionaryMaker {
      * @param unigramXmlFilename the name of the unigram XML file. May not be null.
      * @param shortcutXmlFilename the name of the shortcut XML file, or null if there is none.
      * @param bigramXmlFilename the name of the bigram XML file. Pass null if there are no bigrams.
+     * @param pool the pool to build the dictionary on, or null to build it on this thread.
      * @return the read dictionary.
      * @throws FileNotFoundException if one of the files can't be found
      * @throws SAXException if one or more of the XML files is not well-formed
@@ -246,13 +290,17 @@ public class DictionaryMaker {
      * @throws ParserConfigurationException if the system can't create a SAX parser
      */
     private static FusionDictionary readXmlFile(final String unigramXmlFilename,
-            final String shortcutXmlFilename, final String bigramXmlFilename)
+            final String shortcutXmlFilename, final String bigramXmlFilename,
+            final ForkJoinPool pool)
             throws FileNotFoundException, SAXException, IOException, ParserConfigurationException {
         final FileInputStream unigrams = new FileInputStream(new File(unigramXmlFilename));
         final FileInputStream shortcuts = null == shortcutXmlFilename ? null :
                 new FileInputStream(new File(shortcutXmlFilename));
         final FileInputStream bigrams = null == bigramXmlFilename ? null :
                 new FileInputStream(new File(bigramXmlFilename));
+        if (null != pool) {
+            return XmlDictInputOutput.readDictionaryXml(unigrams, shortcuts, bigrams, pool);
+        }
         return XmlDictInputOutput.readDictionaryXml(unigrams, shortcuts, bigrams);
     }
 
@@ -262,17 +310,18 @@ public class DictionaryMaker {
      * This will write the passed dictionary to the file(s) passed in the command line arguments.
      * @param args the parsed arguments.
      * @param dict the file to output.
+     * @param pool the pool to write binary files on, or null to write them on this thread.
      * @throws FileNotFoundException if one of the output files can't be created.
      * @throws IOException if one of the output files can't be written to.
      */
-    private static void writeOutputToParsedArgs(final Arguments args, final FusionDictionary dict)
-            throws FileNotFoundException, IOException, UnsupportedFormatException,
-            IllegalArgumentException {
+    private static void writeOutputToParsedArgs(final Arguments args, final FusionDictionary dict,
+            final ForkJoinPool pool) throws FileNotFoundException, IOException,
+            UnsupportedFormatException, IllegalArgumentException {
         if (null != args.mOutputBinary) {
-            writeBinaryDictionary(args.mOutputBinary, dict, 2);
+            writeBinaryDictionary(args.mOutputBinary, dict, 2, pool);
         }
         if (null != args.mOutputBinaryFormat1) {
-            writeBinaryDictionary(args.mOutputBinaryFormat1, dict, 1);
+            writeBinaryDictionary(args.mOutputBinaryFormat1, dict, 1, pool);
         }
         if (null != args.mOutputXml) {
             writeXmlDictionary(args.mOutputXml, dict);
@@ -285,15 +334,16 @@ public class DictionaryMaker {
      * @param outputFilename the name of the file to write to.
      * @param dict the dictionary to write.
      * @param version the binary format version to use.
+     * @param pool the pool to write the file on, or null to write it on this thread.
      * @throws FileNotFoundException if the output file can't be created.
      * @throws IOException if the output file can't be written to.
      */
     private static void writeBinaryDictionary(final String outputFilename,
-            final FusionDictionary dict, final int version)
+            final FusionDictionary dict, final int version, final ForkJoinPool pool)
             throws FileNotFoundException, IOException, UnsupportedFormatException {
         final File outputFile = new File(outputFilename);
         BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(outputFilename), dict,
-                version);
+                version, pool);
     }
 
     /**
@@ -16,6 +16,7 @@
 
 package com.android.inputmethod.latin.makedict;
 
+import com.android.inputmethod.latin.makedict.FusionDictionary.CharGroup;
 import com.android.inputmethod.latin.makedict.FusionDictionary.DictionaryOptions;
 import com.android.inputmethod.latin.makedict.FusionDictionary.Node;
 import com.android.inputmethod.latin.makedict.FusionDictionary.WeightedString;
@@ -23,9 +24,13 @@ import com.android.inputmethod.latin.makedict.FusionDictionary.WeightedString;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -138,10 +143,143 @@ public class XmlDictInputOutput {
         @Override
         public void endElement(String uri, String localName, String qName) {
             if (WORD == mState) {
-                mDictionary.add(mWord, mFreq, mShortcutsMap.get(mWord));
+                addWord(mWord, mFreq, mShortcutsMap.get(mWord));
                 mState = START;
             }
         }
+
+        /**
+         * Adds a word that has just been read.
+         *
+         * @param word the word.
+         * @param frequency the frequency of the word.
+         * @param shortcutTargets the shortcut targets for this word, or null.
+         */
+        protected void addWord(final String word, final int frequency,
+                final ArrayList<WeightedString> shortcutTargets) {
+            mDictionary.add(word, frequency, shortcutTargets);
+        }
+    }
+
+    /**
+     * SAX handler for a unigram XML file that does not build the dictionary itself.
+     *
+     * Instead, words are dispatched to shards according to their first code point, and each
+     * shard builds its part of the dictionary on the pool while the file is still being read.
+     */
+    static private class ShardingUnigramHandler extends UnigramHandler {
+        final TreeMap<Integer, Shard> mShards;
+        private final ForkJoinPool mPool;
+
+        public ShardingUnigramHandler(final HashMap<String, ArrayList<WeightedString>> shortcuts,
+                final ForkJoinPool pool) {
+            super(shortcuts);
+            mShards = new TreeMap<Integer, Shard>();
+            mPool = pool;
+        }
+
+        @Override
+        protected void addWord(final String word, final int frequency,
+                final ArrayList<WeightedString> shortcutTargets) {
+            final int firstCodePoint = word.codePointAt(0);
+            Shard shard = mShards.get(firstCodePoint);
+            if (null == shard) {
+                shard = new Shard(mDictionary.mOptions, mPool);
+                mShards.put(firstCodePoint, shard);
+            }
+            shard.add(new Word(word, frequency, shortcutTargets, null /* bigrams */));
+        }
+    }
+
+    /**
+     * The words of the dictionary that start with the same code point, and the dictionary they
+     * are built into.
+     *
+     * Words are handed to the pool in batches as they are read, so that only the last few
+     * batches of each shard are held in memory besides the tree itself. A shard runs at most one
+     * task at a time, which adds its batches in the order they were read.
+     */
+    static private class Shard implements Runnable {
+        private static final int BATCH_SIZE = 256;
+
+        private final FusionDictionary mDictionary;
+        private final ForkJoinPool mPool;
+        // Only accessed by the thread reading the file.
+        private ArrayList<Word> mPendingWords = new ArrayList<Word>(BATCH_SIZE);
+        // The following are guarded by this.
+        private final ArrayDeque<ArrayList<Word>> mBatches = new ArrayDeque<ArrayList<Word>>();
+        private boolean mRunning = false;
+        private RuntimeException mFailure = null;
+
+        public Shard(final DictionaryOptions options, final ForkJoinPool pool) {
+            mDictionary = new FusionDictionary(new Node(), options);
+            mPool = pool;
+        }
+
+        public void add(final Word word) {
+            mPendingWords.add(word);
+            if (mPendingWords.size() >= BATCH_SIZE) {
+                submitPendingWords();
+            }
+        }
+
+        private void submitPendingWords() {
+            if (mPendingWords.isEmpty()) return;
+            final ArrayList<Word> batch = mPendingWords;
+            mPendingWords = new ArrayList<Word>(BATCH_SIZE);
+            synchronized (this) {
+                mBatches.add(batch);
+                if (mRunning) return;
+                mRunning = true;
+            }
+            mPool.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final ArrayList<Word> batch;
+                synchronized (this) {
+                    batch = mBatches.poll();
+                    if (null == batch) {
+                        mRunning = false;
+                        notifyAll();
+                        return;
+                    }
+                }
+                try {
+                    for (final Word w : batch) {
+                        mDictionary.add(w.mWord, w.mFrequency, w.mShortcutTargets);
+                    }
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        mFailure = e;
+                        mBatches.clear();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits until all the words of this shard are in the dictionary.
+         *
+         * @return the only group of the root node of the shard dictionary.
+         */
+        public CharGroup finish() {
+            submitPendingWords();
+            synchronized (this) {
+                while (mRunning) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while building shard", e);
+                    }
+                }
+                if (null != mFailure) throw mFailure;
+            }
+            return mDictionary.mRoot.mData.get(0);
+        }
     }
 
     static private class AssociativeListHandler extends DefaultHandler {
@@ -273,6 +411,85 @@ public class XmlDictInputOutput {
         return dict;
     }
 
+    /**
+     * Reads a dictionary from an XML file, building it in parallel.
+     *
+     * The unigram file is streamed and each word is put in a shard according to its first code
+     * point. As shards have no first code point in common, each of them builds exactly one
+     * group of the root node, so shards are built independently on the pool while the file is
+     * read, and their groups are put together afterwards. Bigrams are then set in parallel, one
+     * task per shard of their first word. Since each shard gets its words in the same order as
+     * the file, the result is exactly the same as what the single-threaded version of this
+     * method returns.
+     *
+     * @param unigrams the file to read the data from.
+     * @param shortcuts the file to read the shortcuts from, or null.
+     * @param bigrams the file to read the bigrams from, or null.
+     * @param pool the pool to build the dictionary on.
+     * @return the in-memory representation of the dictionary.
+     */
+    public static FusionDictionary readDictionaryXml(final InputStream unigrams,
+            final InputStream shortcuts, final InputStream bigrams, final ForkJoinPool pool)
+            throws SAXException, IOException, ParserConfigurationException {
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final SAXParser parser = factory.newSAXParser();
+        long startTime = System.currentTimeMillis();
+        final BigramHandler bigramHandler = new BigramHandler();
+        if (null != bigrams) parser.parse(bigrams, bigramHandler);
+
+        final ShortcutHandler shortcutHandler = new ShortcutHandler();
+        if (null != shortcuts) parser.parse(shortcuts, shortcutHandler);
+
+        final ShardingUnigramHandler unigramHandler =
+                new ShardingUnigramHandler(shortcutHandler.getShortcutMap(), pool);
+        parser.parse(unigrams, unigramHandler);
+        final TreeMap<Integer, Shard> shards = unigramHandler.mShards;
+        final FusionDictionary dict = unigramHandler.getFinalDictionary();
+        // Shards are iterated in ascending order of their first code point, which is the order
+        // of the groups in a node.
+        for (final Shard shard : shards.values()) {
+            dict.mRoot.mData.add(shard.finish());
+        }
+        MakedictLog.i("Parsed XML and built " + shards.size() + " shards in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+
+        startTime = System.currentTimeMillis();
+        final HashMap<String, ArrayList<WeightedString>> bigramMap = bigramHandler.getBigramMap();
+        final TreeMap<Integer, ArrayList<String>> firstWordShards =
+                new TreeMap<Integer, ArrayList<String>>();
+        for (final String firstWord : bigramMap.keySet()) {
+            final int firstCodePoint = firstWord.codePointAt(0);
+            ArrayList<String> shard = firstWordShards.get(firstCodePoint);
+            if (null == shard) {
+                shard = new ArrayList<String>();
+                firstWordShards.put(firstCodePoint, shard);
+            }
+            shard.add(firstWord);
+        }
+        final ArrayList<Callable<Void>> bigramTasks = new ArrayList<Callable<Void>>();
+        for (final ArrayList<String> shard : firstWordShards.values()) {
+            bigramTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // Words of the bigrams are checked to be in the dictionary, so setBigram
+                    // only ever changes the group of the first word, which is in this shard.
+                    for (final String firstWord : shard) {
+                        if (!dict.hasWord(firstWord)) continue;
+                        for (final WeightedString bigram : bigramMap.get(firstWord)) {
+                            if (!dict.hasWord(bigram.mWord)) continue;
+                            dict.setBigram(firstWord, bigram.mWord, bigram.mFrequency);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        BinaryDictInputOutput.invokeAll(pool, bigramTasks);
+        MakedictLog.i("Set bigrams in " + (System.currentTimeMillis() - startTime) + " ms");
+        return dict;
+    }
+
     /**
      * Reads a dictionary in the first, legacy XML format
      *
@@ -19,8 +19,17 @@ package com.android.inputmethod.latin.makedict;
 import com.android.inputmethod.latin.makedict.FusionDictionary.DictionaryOptions;
 import com.android.inputmethod.latin.makedict.FusionDictionary.Node;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -56,4 +65,149 @@ public class BinaryDictInputOutputTest extends TestCase {
         }
     }
 
+    private static final int BENCHMARK_WORD_COUNT = 20000;
+    private static final int BENCHMARK_BIGRAMS_PER_WORD = 3;
+
+    private static FusionDictionary makeRandomDictionary(final int wordCount, final long seed) {
+        final FusionDictionary dict = new FusionDictionary(new Node(),
+                new DictionaryOptions(new HashMap<String, String>(),
+                        false /* germanUmlautProcessing */, false /* frenchLigatureProcessing */));
+        final Random random = new Random(seed);
+        final ArrayList<String> words = new ArrayList<String>();
+        for (int i = 0; i < wordCount; ++i) {
+            final int length = 2 + random.nextInt(10);
+            final StringBuilder builder = new StringBuilder();
+            for (int j = 0; j < length; ++j) {
+                builder.append((char)('a' + random.nextInt(26)));
+            }
+            final String word = builder.toString();
+            words.add(word);
+            dict.add(word, random.nextInt(200), null);
+        }
+        for (final String word : words) {
+            for (int i = 0; i < BENCHMARK_BIGRAMS_PER_WORD; ++i) {
+                dict.setBigram(word, words.get(random.nextInt(words.size())),
+                        200 + random.nextInt(55));
+            }
+        }
+        return dict;
+    }
+
+    private static void assertSameDictionaries(final FusionDictionary expected,
+            final FusionDictionary actual) {
+        final Iterator<Word> actualIterator = actual.iterator();
+        for (final Word expectedWord : expected) {
+            assertTrue(actualIterator.hasNext());
+            final Word actualWord = actualIterator.next();
+            assertEquals(expectedWord.mWord, actualWord.mWord);
+            assertEquals(expectedWord.mFrequency, actualWord.mFrequency);
+            assertEquals(expectedWord.mBigrams, actualWord.mBigrams);
+        }
+        assertFalse(actualIterator.hasNext());
+    }
+
+    private static final String[] SUFFIXES = { "", "s", "ed", "er", "ing", "ings" };
+
+    private static FusionDictionary makeSuffixedDictionary(final int stemCount, final long seed) {
+        final FusionDictionary dict = new FusionDictionary(new Node(),
+                new DictionaryOptions(new HashMap<String, String>(),
+                        false /* germanUmlautProcessing */, false /* frenchLigatureProcessing */));
+        final Random random = new Random(seed);
+        final ArrayList<String> words = new ArrayList<String>();
+        for (int i = 0; i < stemCount; ++i) {
+            final int length = 3 + random.nextInt(5);
+            final StringBuilder builder = new StringBuilder();
+            for (int j = 0; j < length; ++j) {
+                builder.append((char)('a' + random.nextInt(26)));
+            }
+            for (int j = 0; j < SUFFIXES.length; ++j) {
+                final String word = builder.toString() + SUFFIXES[j];
+                words.add(word);
+                dict.add(word, 10 * j, null);
+            }
+        }
+        // Only some words have bigrams, so that some tails can be merged.
+        for (int i = 0; i < words.size() / 10; ++i) {
+            dict.setBigram(words.get(random.nextInt(words.size())),
+                    words.get(random.nextInt(words.size())), 200 + random.nextInt(55));
+        }
+        return dict;
+    }
+
+    private static File writeToTempFile(final FusionDictionary dict) throws IOException,
+            UnsupportedFormatException {
+        final File file = File.createTempFile("makedict", ".dict");
+        file.deleteOnExit();
+        BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(file), dict, 2);
+        return file;
+    }
+
+    private static FusionDictionary readFromFile(final File file) throws IOException,
+            UnsupportedFormatException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return BinaryDictInputOutput.readDictionaryBinary(randomAccessFile, null);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static FusionDictionary readFromBuffer(final File file) throws IOException,
+            UnsupportedFormatException {
+        final FileInputStream inStream = new FileInputStream(file);
+        try {
+            final ByteBuffer buffer = inStream.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return BinaryDictInputOutput.readDictionaryBinary(buffer, null);
+        } finally {
+            inStream.close();
+        }
+    }
+
+    // Test that merging tails makes the file smaller, and that the words and bigrams read
+    // back from it are the same as without merging.
+    public void testMergeTails() throws IOException, UnsupportedFormatException {
+        final File unmergedFile = writeToTempFile(makeSuffixedDictionary(2000, 42));
+        final FusionDictionary mergedDict = makeSuffixedDictionary(2000, 42);
+        mergedDict.mergeTails();
+        final File mergedFile = writeToTempFile(mergedDict);
+
+        MakedictLog.i("Unmerged size : " + unmergedFile.length()
+                + ", merged size : " + mergedFile.length());
+        assertTrue(mergedFile.length() < unmergedFile.length());
+        final FusionDictionary expected = readFromFile(unmergedFile);
+        assertSameDictionaries(expected, readFromFile(mergedFile));
+        assertSameDictionaries(expected, readFromBuffer(mergedFile));
+    }
+
+    // Test that reading from a mapped buffer gives the same dictionary as reading from a
+    // random access file, and compare the time both methods take.
+    public void testReadDictionaryBinaryFromBuffer() throws IOException,
+            UnsupportedFormatException {
+        final FusionDictionary dict = makeRandomDictionary(BENCHMARK_WORD_COUNT, 42);
+        final File file = File.createTempFile("makedict", ".dict");
+        file.deleteOnExit();
+        BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(file), dict, 2);
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        long start = System.currentTimeMillis();
+        final FusionDictionary fileDict =
+                BinaryDictInputOutput.readDictionaryBinary(randomAccessFile, null);
+        final long fileTime = System.currentTimeMillis() - start;
+        randomAccessFile.close();
+
+        final FileInputStream inStream = new FileInputStream(file);
+        final ByteBuffer buffer = inStream.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, file.length());
+        start = System.currentTimeMillis();
+        final FusionDictionary bufferDict = BinaryDictInputOutput.readDictionaryBinary(buffer,
+                null);
+        final long bufferTime = System.currentTimeMillis() - start;
+        inStream.close();
+
+        MakedictLog.i("Read " + file.length() + " bytes. RandomAccessFile : " + fileTime
+                + " ms, ByteBuffer : " + bufferTime + " ms");
+        assertSameDictionaries(fileDict, bufferDict);
+    }
+
 }
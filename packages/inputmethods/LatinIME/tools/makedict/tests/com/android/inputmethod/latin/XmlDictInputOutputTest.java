@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin.makedict;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for XmlDictInputOutput.
+ */
+public class XmlDictInputOutputTest extends TestCase {
+
+    private static final int WORD_COUNT = 20000;
+    private static final int BIGRAM_COUNT = 20000;
+
+    private byte[] mUnigrams;
+    private byte[] mBigrams;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        final Random random = new Random(42);
+        final ArrayList<String> words = new ArrayList<String>();
+        final StringBuilder unigrams = new StringBuilder("<wordlist format=\"2\">\n");
+        for (int i = 0; i < WORD_COUNT; ++i) {
+            final int length = 1 + random.nextInt(10);
+            final StringBuilder builder = new StringBuilder();
+            for (int j = 0; j < length; ++j) {
+                // Include some characters outside of the one-byte range.
+                builder.append(random.nextInt(10) == 0 ? (char)(0x430 + random.nextInt(32))
+                        : (char)('a' + random.nextInt(26)));
+            }
+            final String word = builder.toString();
+            words.add(word);
+            unigrams.append("<w f=\"" + random.nextInt(256) + "\">" + word + "</w>\n");
+        }
+        unigrams.append("</wordlist>\n");
+        mUnigrams = unigrams.toString().getBytes("UTF-8");
+
+        final StringBuilder bigrams = new StringBuilder("<bigrams>\n");
+        for (int i = 0; i < BIGRAM_COUNT; ++i) {
+            bigrams.append("<bi w1=\"" + words.get(random.nextInt(words.size())) + "\">"
+                    + "<w w2=\"" + words.get(random.nextInt(words.size())) + "\" p=\""
+                    + random.nextInt(256) + "\"/></bi>\n");
+        }
+        bigrams.append("</bigrams>\n");
+        mBigrams = bigrams.toString().getBytes("UTF-8");
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private static byte[] writeToBytes(final FusionDictionary dict, final ForkJoinPool pool)
+            throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryDictInputOutput.writeDictionaryBinary(out, dict, 2, pool);
+        return out.toByteArray();
+    }
+
+    // Test that building and writing a dictionary in parallel gives exactly the same file as
+    // building and writing it on one thread.
+    public void testParallelBuildIsIdentical() throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            long startTime = System.currentTimeMillis();
+            final FusionDictionary dict = XmlDictInputOutput.readDictionaryXml(
+                    new ByteArrayInputStream(mUnigrams), null, new ByteArrayInputStream(mBigrams));
+            dict.mergeTails();
+            final byte[] expected = writeToBytes(dict, null);
+            final long sequentialTime = System.currentTimeMillis() - startTime;
+
+            startTime = System.currentTimeMillis();
+            final FusionDictionary parallelDict = XmlDictInputOutput.readDictionaryXml(
+                    new ByteArrayInputStream(mUnigrams), null, new ByteArrayInputStream(mBigrams),
+                    pool);
+            parallelDict.mergeTails();
+            final byte[] actual = writeToBytes(parallelDict, pool);
+            final long parallelTime = System.currentTimeMillis() - startTime;
+
+            MakedictLog.i("Sequential : " + sequentialTime + " ms, parallel : " + parallelTime
+                    + " ms");
+            assertTrue("Parallel build differs from sequential build",
+                    Arrays.equals(expected, actual));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Debug;
 import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Events;
@@ -39,7 +40,16 @@ import android.util.TimeFormatException;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CalendarInstancesHelper {
     public static final class EventInstancesMap extends
@@ -150,6 +160,114 @@ public class CalendarInstancesHelper {
                 new String[] { String.valueOf(rowId) });
     }
 
+    /**
+     * The columns of an entry of the Events table which are needed to expand it.
+     */
+    private static final class ExpansionEntry {
+        long id;
+        String syncId;
+        int status;
+        long dtstartMillis;
+        boolean hasDtend;
+        long dtendMillis;
+        String eventTimezone;
+        String rrule;
+        String rdate;
+        String exrule;
+        String exdate;
+        String duration;
+        boolean allDay;
+        String originalSyncId;
+        long originalInstanceTimeMillis;
+        long calendarId;
+        boolean deleted;
+    }
+
+    /**
+     * The dates of the most recent recurrence expansions, keyed by everything the dates depend
+     * on: the event's start, timezone and recurrence fields, and the window.  Updating an event
+     * or one of its exceptions re-expands its whole recurrence over the Instances window, which
+     * happens again and again when a sync adds the exceptions one by one; with this only the
+     * parts which have changed are expanded again.  Holds at most MAX_DATES dates.
+     */
+    private static final class ExpansionCache {
+        private static final int MAX_DATES = 20000;
+
+        private final LinkedHashMap<String, long[]> mDates =
+                new LinkedHashMap<String, long[]>(16, 0.75f, true /* accessOrder */);
+        private int mDateCount;
+
+        static String getKey(ExpansionEntry entry, long begin, long end) {
+            StringBuilder key = new StringBuilder();
+            key.append(entry.dtstartMillis).append('|').append(entry.eventTimezone)
+                    .append('|').append(entry.allDay).append('|').append(entry.rrule)
+                    .append('|').append(entry.rdate).append('|').append(entry.exrule)
+                    .append('|').append(entry.exdate).append('|').append(begin)
+                    .append('|').append(end);
+            return key.toString();
+        }
+
+        synchronized long[] get(String key) {
+            return mDates.get(key);
+        }
+
+        synchronized void put(String key, long[] dates) {
+            if (dates.length > MAX_DATES) {
+                return;
+            }
+            long[] old = mDates.put(key, dates);
+            if (old != null) {
+                mDateCount -= old.length;
+            }
+            mDateCount += dates.length;
+            Iterator<long[]> it = mDates.values().iterator();
+            while (mDateCount > MAX_DATES) {
+                mDateCount -= it.next().length;
+                it.remove();
+            }
+        }
+
+        synchronized void clear() {
+            mDates.clear();
+            mDateCount = 0;
+        }
+    }
+
+    // Entries are expanded by up to this many threads, if there are at least
+    // MIN_ENTRIES_PER_THREAD entries for each of them.
+    private static final int EXPANSION_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int MIN_ENTRIES_PER_THREAD = 50;
+
+    private static ThreadPoolExecutor sExpansionExecutor;
+
+    private final ExpansionCache mExpansionCache = new ExpansionCache();
+
+    private static synchronized ThreadPoolExecutor getExpansionExecutor() {
+        if (sExpansionExecutor == null) {
+            sExpansionExecutor = new ThreadPoolExecutor(EXPANSION_THREADS, EXPANSION_THREADS,
+                    10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "InstanceExpansion #" + mCount.incrementAndGet());
+                        }
+                    });
+            sExpansionExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExpansionExecutor;
+    }
+
+    /**
+     * Forget the recurrence expansions done so far, for instance because the timezone rules
+     * may have changed.
+     */
+    public void clearExpansionCache() {
+        mExpansionCache.clear();
+    }
+
     /**
      * Perform instance expansion on the given entries.
      *
@@ -157,40 +275,11 @@ public class CalendarInstancesHelper {
      * @param end Window end (ms).
      * @param localTimezone
      * @param entries The entries to process.
+     * @param cacheExpansions Whether to keep the recurrence expansions in mExpansionCache.
+     *        Expansions already there are used either way.
      */
     protected void performInstanceExpansion(long begin, long end, String localTimezone,
-            Cursor entries) {
-        // TODO: this only knows how to work with events that have been synced with the server
-        RecurrenceProcessor rp = new RecurrenceProcessor();
-
-        // Key into the instance values to hold the original event concatenated
-        // with calendar id.
-        final String ORIGINAL_EVENT_AND_CALENDAR = "ORIGINAL_EVENT_AND_CALENDAR";
-
-        int statusColumn = entries.getColumnIndex(Events.STATUS);
-        int dtstartColumn = entries.getColumnIndex(Events.DTSTART);
-        int dtendColumn = entries.getColumnIndex(Events.DTEND);
-        int eventTimezoneColumn = entries.getColumnIndex(Events.EVENT_TIMEZONE);
-        int durationColumn = entries.getColumnIndex(Events.DURATION);
-        int rruleColumn = entries.getColumnIndex(Events.RRULE);
-        int rdateColumn = entries.getColumnIndex(Events.RDATE);
-        int exruleColumn = entries.getColumnIndex(Events.EXRULE);
-        int exdateColumn = entries.getColumnIndex(Events.EXDATE);
-        int allDayColumn = entries.getColumnIndex(Events.ALL_DAY);
-        int idColumn = entries.getColumnIndex(Events._ID);
-        int syncIdColumn = entries.getColumnIndex(Events._SYNC_ID);
-        int originalEventColumn = entries.getColumnIndex(Events.ORIGINAL_SYNC_ID);
-        int originalInstanceTimeColumn = entries.getColumnIndex(Events.ORIGINAL_INSTANCE_TIME);
-        int calendarIdColumn = entries.getColumnIndex(Events.CALENDAR_ID);
-        int deletedColumn = entries.getColumnIndex(Events.DELETED);
-
-        ContentValues initialValues;
-        CalendarInstancesHelper.EventInstancesMap instancesMap =
-            new CalendarInstancesHelper.EventInstancesMap();
-
-        Duration duration = new Duration();
-        Time eventTime = new Time();
-
+            Cursor entries, boolean cacheExpansions) {
         // Invariant: entries contains all events that affect the current
         // window.  It consists of:
         // a) Individual events that fall in the window.  These will be
@@ -203,226 +292,59 @@ public class CalendarInstancesHelper {
         //    window (subject to 1 week assumption above), but are outside
         //    the window.  These will not be displayed.  Cases c and d are
         //    distinguished by the start / end time.
-
-        while (entries.moveToNext()) {
+        final ArrayList<ExpansionEntry> entryList = readEntries(entries);
+        final int entryCount = entryList.size();
+        final CalendarInstancesHelper.InstancesList[] expanded =
+                new CalendarInstancesHelper.InstancesList[entryCount];
+        final int threads = Math.min(EXPANSION_THREADS,
+                Math.max(1, entryCount / MIN_ENTRIES_PER_THREAD));
+        if (threads == 1) {
+            expandEntries(entryList, 0, 1, begin, end, localTimezone, cacheExpansions,
+                    expanded);
+        } else {
+            // The entries are dealt out in turn to the threads, this one included, so
+            // each gets its share of the long recurrences.  They all store into
+            // "expanded", which keeps the results in the order of the entries.
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>(threads - 1);
+            for (int i = 1; i < threads; i++) {
+                futures.add(getExpansionExecutor().submit(new ExpandTask(entryList, i, threads,
+                        begin, end, localTimezone, cacheExpansions, expanded)));
+            }
             try {
-                initialValues = null;
-
-                boolean allDay = entries.getInt(allDayColumn) != 0;
-
-                String eventTimezone = entries.getString(eventTimezoneColumn);
-                if (allDay || TextUtils.isEmpty(eventTimezone)) {
-                    // in the events table, allDay events start at midnight.
-                    // this forces them to stay at midnight for all day events
-                    // TODO: check that this actually does the right thing.
-                    eventTimezone = Time.TIMEZONE_UTC;
-                }
-
-                long dtstartMillis = entries.getLong(dtstartColumn);
-                Long eventId = Long.valueOf(entries.getLong(idColumn));
-
-                String durationStr = entries.getString(durationColumn);
-                if (durationStr != null) {
-                    try {
-                        duration.parse(durationStr);
-                    }
-                    catch (DateException e) {
-                        if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
-                            Log.w(CalendarProvider2.TAG, "error parsing duration for event "
-                                    + eventId + "'" + durationStr + "'", e);
-                        }
-                        duration.sign = 1;
-                        duration.weeks = 0;
-                        duration.days = 0;
-                        duration.hours = 0;
-                        duration.minutes = 0;
-                        duration.seconds = 0;
-                        durationStr = "+P0S";
-                    }
-                }
-
-                String syncId = entries.getString(syncIdColumn);
-                String originalEvent = entries.getString(originalEventColumn);
-
-                long originalInstanceTimeMillis = -1;
-                if (!entries.isNull(originalInstanceTimeColumn)) {
-                    originalInstanceTimeMillis= entries.getLong(originalInstanceTimeColumn);
-                }
-                int status = entries.getInt(statusColumn);
-                boolean deleted = (entries.getInt(deletedColumn) != 0);
-
-                String rruleStr = entries.getString(rruleColumn);
-                String rdateStr = entries.getString(rdateColumn);
-                String exruleStr = entries.getString(exruleColumn);
-                String exdateStr = entries.getString(exdateColumn);
-                long calendarId = entries.getLong(calendarIdColumn);
-                // key into instancesMap
-                String syncIdKey = CalendarInstancesHelper.getSyncIdKey(syncId, calendarId);
-
-                RecurrenceSet recur = null;
-                try {
-                    recur = new RecurrenceSet(rruleStr, rdateStr, exruleStr, exdateStr);
-                } catch (EventRecurrence.InvalidFormatException e) {
-                    if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
-                        Log.w(CalendarProvider2.TAG, "Could not parse RRULE recurrence string: "
-                                + rruleStr, e);
-                    }
-                    continue;
-                }
-
-                if (null != recur && recur.hasRecurrence()) {
-                    // the event is repeating
-
-                    if (status == Events.STATUS_CANCELED) {
-                        // should not happen!
-                        if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
-                            Log.e(CalendarProvider2.TAG, "Found canceled recurring event in "
-                                    + "Events table.  Ignoring.");
-                        }
-                        continue;
-                    }
-                    if (deleted) {
-                        if (Log.isLoggable(CalendarProvider2.TAG, Log.DEBUG)) {
-                            Log.d(CalendarProvider2.TAG, "Found deleted recurring event in "
-                                    + "Events table.  Ignoring.");
-                        }
-                        continue;
-                    }
-
-                    // need to parse the event into a local calendar.
-                    eventTime.timezone = eventTimezone;
-                    eventTime.set(dtstartMillis);
-                    eventTime.allDay = allDay;
-
-                    if (durationStr == null) {
-                        // should not happen.
-                        if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
-                            Log.e(CalendarProvider2.TAG, "Repeating event has no duration -- "
-                                    + "should not happen.");
-                        }
-                        if (allDay) {
-                            // set to one day.
-                            duration.sign = 1;
-                            duration.weeks = 0;
-                            duration.days = 1;
-                            duration.hours = 0;
-                            duration.minutes = 0;
-                            duration.seconds = 0;
-                            durationStr = "+P1D";
-                        } else {
-                            // compute the duration from dtend, if we can.
-                            // otherwise, use 0s.
-                            duration.sign = 1;
-                            duration.weeks = 0;
-                            duration.days = 0;
-                            duration.hours = 0;
-                            duration.minutes = 0;
-                            if (!entries.isNull(dtendColumn)) {
-                                long dtendMillis = entries.getLong(dtendColumn);
-                                duration.seconds = (int) ((dtendMillis - dtstartMillis) / 1000);
-                                durationStr = "+P" + duration.seconds + "S";
-                            } else {
-                                duration.seconds = 0;
-                                durationStr = "+P0S";
-                            }
-                        }
-                    }
-
-                    long[] dates;
-                    dates = rp.expand(eventTime, recur, begin, end);
-
-                    // Initialize the "eventTime" timezone outside the loop.
-                    // This is used in computeTimezoneDependentFields().
-                    if (allDay) {
-                        eventTime.timezone = Time.TIMEZONE_UTC;
-                    } else {
-                        eventTime.timezone = localTimezone;
-                    }
-
-                    long durationMillis = duration.getMillis();
-                    for (long date : dates) {
-                        initialValues = new ContentValues();
-                        initialValues.put(Instances.EVENT_ID, eventId);
-
-                        initialValues.put(Instances.BEGIN, date);
-                        long dtendMillis = date + durationMillis;
-                        initialValues.put(Instances.END, dtendMillis);
-
-                        CalendarInstancesHelper.computeTimezoneDependentFields(date, dtendMillis,
-                                eventTime, initialValues);
-                        instancesMap.add(syncIdKey, initialValues);
-                    }
-                } else {
-                    // the event is not repeating
-                    initialValues = new ContentValues();
-
-                    // if this event has an "original" field, then record
-                    // that we need to cancel the original event (we can't
-                    // do that here because the order of this loop isn't
-                    // defined)
-                    if (originalEvent != null && originalInstanceTimeMillis != -1) {
-                        // The ORIGINAL_EVENT_AND_CALENDAR holds the
-                        // calendar id concatenated with the ORIGINAL_EVENT to form
-                        // a unique key, matching the keys for instancesMap.
-                        initialValues.put(ORIGINAL_EVENT_AND_CALENDAR,
-                                CalendarInstancesHelper.getSyncIdKey(originalEvent, calendarId));
-                        initialValues.put(Events.ORIGINAL_INSTANCE_TIME,
-                                originalInstanceTimeMillis);
-                        initialValues.put(Events.STATUS, status);
-                    }
-
-                    long dtendMillis = dtstartMillis;
-                    if (durationStr == null) {
-                        if (!entries.isNull(dtendColumn)) {
-                            dtendMillis = entries.getLong(dtendColumn);
-                        }
-                    } else {
-                        dtendMillis = duration.addTo(dtstartMillis);
-                    }
-
-                    // this non-recurring event might be a recurrence exception that doesn't
-                    // actually fall within our expansion window, but instead was selected
-                    // so we can correctly cancel expanded recurrence instances below.  do not
-                    // add events to the instances map if they don't actually fall within our
-                    // expansion window.
-                    if ((dtendMillis < begin) || (dtstartMillis > end)) {
-                        if (originalEvent != null && originalInstanceTimeMillis != -1) {
-                            initialValues.put(Events.STATUS, Events.STATUS_CANCELED);
-                        } else {
-                            if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
-                                Log.w(CalendarProvider2.TAG, "Unexpected event outside window: "
-                                        + syncId);
-                            }
-                            continue;
-                        }
-                    }
-
-                    initialValues.put(Instances.EVENT_ID, eventId);
-
-                    initialValues.put(Instances.BEGIN, dtstartMillis);
-                    initialValues.put(Instances.END, dtendMillis);
-
-                    // we temporarily store the DELETED status (will be cleaned later)
-                    initialValues.put(Events.DELETED, deleted);
+                expandEntries(entryList, 0, threads, begin, end, localTimezone,
+                        cacheExpansions, expanded);
+            } finally {
+                waitFor(futures);
+            }
+        }
 
-                    if (allDay) {
-                        eventTime.timezone = Time.TIMEZONE_UTC;
-                    } else {
-                        eventTime.timezone = localTimezone;
-                    }
-                    CalendarInstancesHelper.computeTimezoneDependentFields(dtstartMillis,
-                            dtendMillis, eventTime, initialValues);
+        // Key into the instance values to hold the original event concatenated
+        // with calendar id.
+        final String ORIGINAL_EVENT_AND_CALENDAR = "ORIGINAL_EVENT_AND_CALENDAR";
 
-                    instancesMap.add(syncIdKey, initialValues);
-                }
-            } catch (DateException e) {
-                if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
-                    Log.w(CalendarProvider2.TAG, "RecurrenceProcessor error ", e);
-                }
-            } catch (TimeFormatException e) {
-                if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
-                    Log.w(CalendarProvider2.TAG, "RecurrenceProcessor error ", e);
+        CalendarInstancesHelper.EventInstancesMap instancesMap =
+            new CalendarInstancesHelper.EventInstancesMap();
+        for (int i = 0; i < entryCount; i++) {
+            if (expanded[i] == null) {
+                continue;
+            }
+            ExpansionEntry entry = entryList.get(i);
+            // key into instancesMap
+            String syncIdKey = CalendarInstancesHelper.getSyncIdKey(entry.syncId,
+                    entry.calendarId);
+            for (ContentValues values : expanded[i]) {
+                // if this event has an "original" field, then record
+                // that we need to cancel the original event (we can't
+                // do that here because the order of this loop isn't
+                // defined)
+                if (values.containsKey(Events.ORIGINAL_INSTANCE_TIME)) {
+                    // The ORIGINAL_EVENT_AND_CALENDAR holds the
+                    // calendar id concatenated with the ORIGINAL_EVENT to form
+                    // a unique key, matching the keys for instancesMap.
+                    values.put(ORIGINAL_EVENT_AND_CALENDAR, CalendarInstancesHelper
+                            .getSyncIdKey(entry.originalSyncId, entry.calendarId));
                 }
+                instancesMap.add(syncIdKey, values);
             }
         }
 
@@ -526,6 +448,359 @@ public class CalendarInstancesHelper {
         }
     }
 
+    /**
+     * Read the entries to expand.
+     */
+    private static ArrayList<ExpansionEntry> readEntries(Cursor entries) {
+        int statusColumn = entries.getColumnIndex(Events.STATUS);
+        int dtstartColumn = entries.getColumnIndex(Events.DTSTART);
+        int dtendColumn = entries.getColumnIndex(Events.DTEND);
+        int eventTimezoneColumn = entries.getColumnIndex(Events.EVENT_TIMEZONE);
+        int durationColumn = entries.getColumnIndex(Events.DURATION);
+        int rruleColumn = entries.getColumnIndex(Events.RRULE);
+        int rdateColumn = entries.getColumnIndex(Events.RDATE);
+        int exruleColumn = entries.getColumnIndex(Events.EXRULE);
+        int exdateColumn = entries.getColumnIndex(Events.EXDATE);
+        int allDayColumn = entries.getColumnIndex(Events.ALL_DAY);
+        int idColumn = entries.getColumnIndex(Events._ID);
+        int syncIdColumn = entries.getColumnIndex(Events._SYNC_ID);
+        int originalEventColumn = entries.getColumnIndex(Events.ORIGINAL_SYNC_ID);
+        int originalInstanceTimeColumn = entries.getColumnIndex(Events.ORIGINAL_INSTANCE_TIME);
+        int calendarIdColumn = entries.getColumnIndex(Events.CALENDAR_ID);
+        int deletedColumn = entries.getColumnIndex(Events.DELETED);
+
+        ArrayList<ExpansionEntry> list = new ArrayList<ExpansionEntry>(entries.getCount());
+        while (entries.moveToNext()) {
+            ExpansionEntry entry = new ExpansionEntry();
+            entry.id = entries.getLong(idColumn);
+            entry.syncId = entries.getString(syncIdColumn);
+            entry.status = entries.getInt(statusColumn);
+            entry.dtstartMillis = entries.getLong(dtstartColumn);
+            entry.hasDtend = !entries.isNull(dtendColumn);
+            if (entry.hasDtend) {
+                entry.dtendMillis = entries.getLong(dtendColumn);
+            }
+            entry.eventTimezone = entries.getString(eventTimezoneColumn);
+            entry.rrule = entries.getString(rruleColumn);
+            entry.rdate = entries.getString(rdateColumn);
+            entry.exrule = entries.getString(exruleColumn);
+            entry.exdate = entries.getString(exdateColumn);
+            entry.duration = entries.getString(durationColumn);
+            entry.allDay = entries.getInt(allDayColumn) != 0;
+            entry.originalSyncId = entries.getString(originalEventColumn);
+            entry.originalInstanceTimeMillis = -1;
+            if (!entries.isNull(originalInstanceTimeColumn)) {
+                entry.originalInstanceTimeMillis = entries.getLong(originalInstanceTimeColumn);
+            }
+            entry.calendarId = entries.getLong(calendarIdColumn);
+            entry.deleted = entries.getInt(deletedColumn) != 0;
+            list.add(entry);
+        }
+        return list;
+    }
+
+    private class ExpandTask implements Runnable {
+        private final ArrayList<ExpansionEntry> mEntries;
+        private final int mFirst;
+        private final int mStep;
+        private final long mBegin;
+        private final long mEnd;
+        private final String mLocalTimezone;
+        private final boolean mCacheExpansions;
+        private final CalendarInstancesHelper.InstancesList[] mExpanded;
+
+        ExpandTask(ArrayList<ExpansionEntry> entries, int first, int step, long begin, long end,
+                String localTimezone, boolean cacheExpansions,
+                CalendarInstancesHelper.InstancesList[] expanded) {
+            mEntries = entries;
+            mFirst = first;
+            mStep = step;
+            mBegin = begin;
+            mEnd = end;
+            mLocalTimezone = localTimezone;
+            mCacheExpansions = cacheExpansions;
+            mExpanded = expanded;
+        }
+
+        @Override
+        public void run() {
+            expandEntries(mEntries, mFirst, mStep, mBegin, mEnd, mLocalTimezone,
+                    mCacheExpansions, mExpanded);
+        }
+    }
+
+    /**
+     * Wait for the given tasks to be done, and rethrow what they threw.
+     */
+    private static void waitFor(ArrayList<Future<?>> futures) {
+        boolean interrupted = false;
+        try {
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // The expansion is part of a transaction, so we finish it.
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        } else if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Expand the entries first, first + step, first + 2 * step... into expanded[].  Entries
+     * which have no instances are left null.
+     */
+    private void expandEntries(ArrayList<ExpansionEntry> entries, int first, int step,
+            long begin, long end, String localTimezone, boolean cacheExpansions,
+            CalendarInstancesHelper.InstancesList[] expanded) {
+        // TODO: this only knows how to work with events that have been synced with the server
+        RecurrenceProcessor rp = new RecurrenceProcessor();
+        Duration duration = new Duration();
+        Time eventTime = new Time();
+        final int count = entries.size();
+        for (int i = first; i < count; i += step) {
+            try {
+                expanded[i] = expandEntry(entries.get(i), begin, end, localTimezone,
+                        cacheExpansions, rp, duration, eventTime);
+            } catch (DateException e) {
+                if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
+                    Log.w(CalendarProvider2.TAG, "RecurrenceProcessor error ", e);
+                }
+            } catch (TimeFormatException e) {
+                if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
+                    Log.w(CalendarProvider2.TAG, "RecurrenceProcessor error ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the instances of an entry which affect the window.
+     *
+     * @return the instances, or null if the entry is ignored
+     */
+    private CalendarInstancesHelper.InstancesList expandEntry(ExpansionEntry entry, long begin,
+            long end, String localTimezone, boolean cacheExpansions, RecurrenceProcessor rp,
+            Duration duration, Time eventTime) throws DateException {
+        ContentValues initialValues;
+        CalendarInstancesHelper.InstancesList instances =
+                new CalendarInstancesHelper.InstancesList();
+
+        boolean allDay = entry.allDay;
+
+        String eventTimezone = entry.eventTimezone;
+        if (allDay || TextUtils.isEmpty(eventTimezone)) {
+            // in the events table, allDay events start at midnight.
+            // this forces them to stay at midnight for all day events
+            // TODO: check that this actually does the right thing.
+            eventTimezone = Time.TIMEZONE_UTC;
+        }
+
+        long dtstartMillis = entry.dtstartMillis;
+        Long eventId = Long.valueOf(entry.id);
+
+        String durationStr = entry.duration;
+        if (durationStr != null) {
+            try {
+                duration.parse(durationStr);
+            }
+            catch (DateException e) {
+                if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
+                    Log.w(CalendarProvider2.TAG, "error parsing duration for event "
+                            + eventId + "'" + durationStr + "'", e);
+                }
+                duration.sign = 1;
+                duration.weeks = 0;
+                duration.days = 0;
+                duration.hours = 0;
+                duration.minutes = 0;
+                duration.seconds = 0;
+                durationStr = "+P0S";
+            }
+        }
+
+        String syncId = entry.syncId;
+        String originalEvent = entry.originalSyncId;
+
+        long originalInstanceTimeMillis = entry.originalInstanceTimeMillis;
+        int status = entry.status;
+        boolean deleted = entry.deleted;
+
+        String rruleStr = entry.rrule;
+
+        RecurrenceSet recur = null;
+        try {
+            recur = new RecurrenceSet(rruleStr, entry.rdate, entry.exrule, entry.exdate);
+        } catch (EventRecurrence.InvalidFormatException e) {
+            if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
+                Log.w(CalendarProvider2.TAG, "Could not parse RRULE recurrence string: "
+                        + rruleStr, e);
+            }
+            return null;
+        }
+
+        if (null != recur && recur.hasRecurrence()) {
+            // the event is repeating
+
+            if (status == Events.STATUS_CANCELED) {
+                // should not happen!
+                if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
+                    Log.e(CalendarProvider2.TAG, "Found canceled recurring event in "
+                            + "Events table.  Ignoring.");
+                }
+                return null;
+            }
+            if (deleted) {
+                if (Log.isLoggable(CalendarProvider2.TAG, Log.DEBUG)) {
+                    Log.d(CalendarProvider2.TAG, "Found deleted recurring event in "
+                            + "Events table.  Ignoring.");
+                }
+                return null;
+            }
+
+            // need to parse the event into a local calendar.
+            eventTime.timezone = eventTimezone;
+            eventTime.set(dtstartMillis);
+            eventTime.allDay = allDay;
+
+            if (durationStr == null) {
+                // should not happen.
+                if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
+                    Log.e(CalendarProvider2.TAG, "Repeating event has no duration -- "
+                            + "should not happen.");
+                }
+                if (allDay) {
+                    // set to one day.
+                    duration.sign = 1;
+                    duration.weeks = 0;
+                    duration.days = 1;
+                    duration.hours = 0;
+                    duration.minutes = 0;
+                    duration.seconds = 0;
+                    durationStr = "+P1D";
+                } else {
+                    // compute the duration from dtend, if we can.
+                    // otherwise, use 0s.
+                    duration.sign = 1;
+                    duration.weeks = 0;
+                    duration.days = 0;
+                    duration.hours = 0;
+                    duration.minutes = 0;
+                    if (entry.hasDtend) {
+                        long dtendMillis = entry.dtendMillis;
+                        duration.seconds = (int) ((dtendMillis - dtstartMillis) / 1000);
+                        durationStr = "+P" + duration.seconds + "S";
+                    } else {
+                        duration.seconds = 0;
+                        durationStr = "+P0S";
+                    }
+                }
+            }
+
+            String cacheKey = ExpansionCache.getKey(entry, begin, end);
+            long[] dates = mExpansionCache.get(cacheKey);
+            if (dates == null) {
+                dates = rp.expand(eventTime, recur, begin, end);
+                if (cacheExpansions) {
+                    mExpansionCache.put(cacheKey, dates);
+                }
+            }
+
+            // Initialize the "eventTime" timezone outside the loop.
+            // This is used in computeTimezoneDependentFields().
+            if (allDay) {
+                eventTime.timezone = Time.TIMEZONE_UTC;
+            } else {
+                eventTime.timezone = localTimezone;
+            }
+
+            long durationMillis = duration.getMillis();
+            for (long date : dates) {
+                initialValues = new ContentValues();
+                initialValues.put(Instances.EVENT_ID, eventId);
+
+                initialValues.put(Instances.BEGIN, date);
+                long dtendMillis = date + durationMillis;
+                initialValues.put(Instances.END, dtendMillis);
+
+                CalendarInstancesHelper.computeTimezoneDependentFields(date, dtendMillis,
+                        eventTime, initialValues);
+                instances.add(initialValues);
+            }
+        } else {
+            // the event is not repeating
+            initialValues = new ContentValues();
+
+            // if this event has an "original" field, performInstanceExpansion()
+            // records that we need to cancel the original event.
+            if (originalEvent != null && originalInstanceTimeMillis != -1) {
+                initialValues.put(Events.ORIGINAL_INSTANCE_TIME,
+                        originalInstanceTimeMillis);
+                initialValues.put(Events.STATUS, status);
+            }
+
+            long dtendMillis = dtstartMillis;
+            if (durationStr == null) {
+                if (entry.hasDtend) {
+                    dtendMillis = entry.dtendMillis;
+                }
+            } else {
+                dtendMillis = duration.addTo(dtstartMillis);
+            }
+
+            // this non-recurring event might be a recurrence exception that doesn't
+            // actually fall within our expansion window, but instead was selected
+            // so we can correctly cancel expanded recurrence instances below.  do not
+            // add events to the instances map if they don't actually fall within our
+            // expansion window.
+            if ((dtendMillis < begin) || (dtstartMillis > end)) {
+                if (originalEvent != null && originalInstanceTimeMillis != -1) {
+                    initialValues.put(Events.STATUS, Events.STATUS_CANCELED);
+                } else {
+                    if (Log.isLoggable(CalendarProvider2.TAG, Log.ERROR)) {
+                        Log.w(CalendarProvider2.TAG, "Unexpected event outside window: "
+                                + syncId);
+                    }
+                    return null;
+                }
+            }
+
+            initialValues.put(Instances.EVENT_ID, eventId);
+
+            initialValues.put(Instances.BEGIN, dtstartMillis);
+            initialValues.put(Instances.END, dtendMillis);
+
+            // we temporarily store the DELETED status (will be cleaned later)
+            initialValues.put(Events.DELETED, deleted);
+
+            if (allDay) {
+                eventTime.timezone = Time.TIMEZONE_UTC;
+            } else {
+                eventTime.timezone = localTimezone;
+            }
+            CalendarInstancesHelper.computeTimezoneDependentFields(dtstartMillis,
+                    dtendMillis, eventTime, initialValues);
+
+            instances.add(initialValues);
+        }
+        return instances;
+    }
+
     /**
      * Make instances for the given range.
      */
@@ -541,7 +816,8 @@ public class CalendarInstancesHelper {
 
         Cursor entries = getEntries(begin, end);
         try {
-            performInstanceExpansion(begin, end, localTimezone, entries);
+            performInstanceExpansion(begin, end, localTimezone, entries,
+                    false /* cacheExpansions */);
         } finally {
             if (entries != null) {
                 entries.close();
@@ -552,6 +828,43 @@ public class CalendarInstancesHelper {
         }
     }
 
+    /**
+     * Recompute the timezone-dependent fields of every instance for a new local timezone.
+     * The instances themselves don't depend on the local timezone, so when only it has
+     * changed this is all that has to be done, instead of expanding the events again.
+     *
+     * @param localTimezone The new timezone.
+     */
+    protected void updateTimezoneDependentFieldsLocked(String localTimezone) {
+        Cursor cursor = mDb.rawQuery("SELECT " + Tables.INSTANCES + "." + Instances._ID + ", "
+                + Instances.BEGIN + ", " + Instances.END + ", " + Events.ALL_DAY
+                + " FROM " + Tables.INSTANCES + " INNER JOIN " + Tables.EVENTS
+                + " ON (" + Tables.INSTANCES + "." + Instances.EVENT_ID + "="
+                + Tables.EVENTS + "." + Events._ID + ")", null /* selectionArgs */);
+        SQLiteStatement update = mDb.compileStatement("UPDATE " + Tables.INSTANCES + " SET "
+                + Instances.START_DAY + "=?, " + Instances.END_DAY + "=?, "
+                + Instances.START_MINUTE + "=?, " + Instances.END_MINUTE + "=?"
+                + " WHERE " + Instances._ID + "=?");
+        try {
+            Time local = new Time(localTimezone);
+            Time utc = new Time(Time.TIMEZONE_UTC);
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                computeTimezoneDependentFields(cursor.getLong(1), cursor.getLong(2),
+                        cursor.getInt(3) != 0 ? utc : local, values);
+                update.bindLong(1, values.getAsInteger(Instances.START_DAY));
+                update.bindLong(2, values.getAsInteger(Instances.END_DAY));
+                update.bindLong(3, values.getAsInteger(Instances.START_MINUTE));
+                update.bindLong(4, values.getAsInteger(Instances.END_MINUTE));
+                update.bindLong(5, cursor.getLong(0));
+                update.execute();
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
+    }
+
     /**
      * Get all entries affecting the given window.
      *
@@ -811,7 +1124,7 @@ public class CalendarInstancesHelper {
         Cursor entries = getRelevantRecurrenceEntries(recurrenceSyncId, rowId);
         try {
             performInstanceExpansion(fields.minInstance, fields.maxInstance,
-                    instancesTimezone, entries);
+                    instancesTimezone, entries, true /* cacheExpansions */);
         } finally {
             if (entries != null) {
                 entries.close();
@@ -1380,19 +1380,35 @@ public class CalendarProvider2 extends SQLiteContentProvider implements OnAccoun
         // if "home", then timezoneChanged only if current != previous
         // if "auto", then timezoneChanged, if !instancesTimezone.equals(localTimezone);
         if (maxInstance == 0 || timezoneChanged || forceExpansion) {
-            if (DEBUG_INSTANCES) {
-                Log.d(TAG + "-i", "Wiping instances and expanding from scratch");
-            }
+            // If only the timezone has changed, the instances stay the same, at
+            // the same times: just recompute their days and minutes, and then
+            // extend the range as usual below.
+            boolean expandFromScratch = maxInstance == 0 || forceExpansion;
+            if (expandFromScratch) {
+                if (DEBUG_INSTANCES) {
+                    Log.d(TAG + "-i", "Wiping instances and expanding from scratch");
+                }
 
-            // Empty the Instances table and expand from scratch.
-            mDb.execSQL("DELETE FROM " + Tables.INSTANCES + ";");
-            if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                Log.v(TAG, "acquireInstanceRangeLocked() deleted Instances,"
-                        + " timezone changed: " + timezoneChanged);
-            }
-            mInstancesHelper.expandInstanceRangeLocked(expandBegin, expandEnd, instancesTimezone);
+                // Empty the Instances table and expand from scratch.  The expansions
+                // done before may be out of date, if the timezone rules have changed.
+                mDb.execSQL("DELETE FROM " + Tables.INSTANCES + ";");
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "acquireInstanceRangeLocked() deleted Instances,"
+                            + " timezone changed: " + timezoneChanged);
+                }
+                mInstancesHelper.clearExpansionCache();
+                mInstancesHelper.expandInstanceRangeLocked(expandBegin, expandEnd,
+                        instancesTimezone);
 
-            mMetaData.writeLocked(instancesTimezone, expandBegin, expandEnd);
+                mMetaData.writeLocked(instancesTimezone, expandBegin, expandEnd);
+            } else {
+                if (DEBUG_INSTANCES) {
+                    Log.d(TAG + "-i", "Updating instances to timezone " + instancesTimezone);
+                }
+                mInstancesHelper.updateTimezoneDependentFieldsLocked(instancesTimezone);
+
+                mMetaData.writeLocked(instancesTimezone, minInstance, maxInstance);
+            }
 
             String timezoneType = mCalendarCache.readTimezoneType();
             // This may cause some double writes but guarantees the time zone in
@@ -1407,7 +1423,9 @@ public class CalendarProvider2 extends SQLiteContentProvider implements OnAccoun
                     mCalendarCache.writeTimezoneInstancesPrevious(instancesTimezone);
                 }
             }
-            return;
+            if (expandFromScratch) {
+                return;
+            }
         }
 
         // If the desired range [begin, end] has already been
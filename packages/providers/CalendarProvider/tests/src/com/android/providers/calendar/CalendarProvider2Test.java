@@ -39,6 +39,7 @@ import android.test.IsolatedContext;
 import android.test.RenamingDelegatingContext;
 import android.test.mock.MockContentResolver;
 import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Smoke;
 import android.test.suitebuilder.annotation.Suppress;
@@ -48,6 +49,7 @@ import android.text.format.Time;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -2684,6 +2686,133 @@ public class CalendarProvider2Test extends AndroidTestCase {
         checkEvent(1, events[0].mTitle, events[0].mDtstart, events[0].mDtend, events[0].mAllDay);
     }
 
+    private static final String[] INSTANCE_FIELDS_PROJECTION = new String[] {
+            Instances.EVENT_ID,
+            Instances.BEGIN,
+            Instances.END,
+            Instances.START_DAY,
+            Instances.END_DAY,
+            Instances.START_MINUTE,
+            Instances.END_MINUTE,
+    };
+
+    /**
+     * Returns the instances in the given range, as strings of their fields.
+     */
+    private ArrayList<String> queryInstanceFields(long begin, long end) {
+        Cursor cursor = queryInstances(mResolver, INSTANCE_FIELDS_PROJECTION, begin, end,
+                null /* selection */, null /* selectionArgs */,
+                Instances.BEGIN + "," + Instances.EVENT_ID);
+        ArrayList<String> instances = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < INSTANCE_FIELDS_PROJECTION.length; i++) {
+                    sb.append(cursor.getLong(i)).append(' ');
+                }
+                instances.add(sb.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return instances;
+    }
+
+    /**
+     * When the device timezone changes, the instances are updated rather than expanded again;
+     * they must be the same as if they had been.
+     */
+    public void testTimezoneChangeUpdatesInstances() throws Exception {
+        int calId = insertCal("Calendar0", DEFAULT_TIMEZONE);
+        String[] names = {"normal0", "normal1", "allday0", "daily0", "daily1",
+                "allday daily0", "weekly0"};
+        for (String name : names) {
+            insertEvent(calId, findEvent(name));
+        }
+
+        Time time = new Time(DEFAULT_TIMEZONE);
+        time.parse3339("2008-05-01T00:00:00");
+        long begin = time.toMillis(false /* use isDst */);
+        time.parse3339("2008-06-01T00:00:00");
+        long end = time.toMillis(false /* use isDst */);
+
+        TimeZone defaultTimezone = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone(DEFAULT_TIMEZONE));
+            ArrayList<String> before = queryInstanceFields(begin, end);
+            assertTrue(before.size() > 0);
+
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+            ArrayList<String> updated = queryInstanceFields(begin, end);
+            assertEquals(before.size(), updated.size());
+            assertFalse(before.equals(updated));
+
+            mMetaData.clearInstanceRange();
+            ArrayList<String> expanded = queryInstanceFields(begin, end);
+            assertEquals(expanded, updated);
+        } finally {
+            TimeZone.setDefault(defaultTimezone);
+        }
+    }
+
+    /**
+     * Times the expansion of a calendar with many recurring events: from scratch, after the
+     * timezone has changed, and after one of the events has changed.
+     */
+    @LargeTest
+    public void testInstanceExpansionBenchmark() throws Exception {
+        final int eventCount = 1000;
+        final String[] rules = {"FREQ=DAILY;WKST=SU", "FREQ=WEEKLY;BYDAY=MO,WE,FR;WKST=SU",
+                "FREQ=MONTHLY;BYMONTHDAY=15;WKST=SU", "FREQ=WEEKLY;INTERVAL=2;WKST=SU"};
+        int calId = insertCal("Calendar0", DEFAULT_TIMEZONE);
+        Time time = new Time(DEFAULT_TIMEZONE);
+        EventInfo first = null;
+        for (int i = 0; i < eventCount; i++) {
+            time.set(0, i % 60, 8 + i % 10, 1 + i % 28, 0, 2008);
+            String start = time.format3339(false /* allDay */);
+            time.hour += 1;
+            String end = time.format3339(false /* allDay */);
+            EventInfo event = new EventInfo("recurring" + i, "recurring event " + i, start, end,
+                    rules[i % rules.length], false /* allDay */);
+            insertEvent(calId, event);
+            if (first == null) {
+                first = event;
+            }
+        }
+
+        time.parse3339("2008-06-01T00:00:00");
+        long begin = time.toMillis(false /* use isDst */);
+        long end = begin + 365 * DateUtils.DAY_IN_MILLIS;
+
+        TimeZone defaultTimezone = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone(DEFAULT_TIMEZONE));
+            mMetaData.clearInstanceRange();
+            long start = System.nanoTime();
+            int instanceCount = queryInstanceFields(begin, end).size();
+            long scratchTime = System.nanoTime() - start;
+
+            TimeZone.setDefault(TimeZone.getTimeZone(TIME_ZONE_AMERICA_ANCHORAGE));
+            start = System.nanoTime();
+            assertEquals(instanceCount, queryInstanceFields(begin, end).size());
+            long timezoneTime = System.nanoTime() - start;
+
+            // Setting the start time again re-expands the event and its exceptions.
+            ContentValues values = new ContentValues();
+            values.put(Events.TITLE, "changed");
+            values.put(Events.DTSTART, first.mDtstart);
+            start = System.nanoTime();
+            assertEquals(1, updateMatchingEvents("recurring0", values));
+            long updateTime = System.nanoTime() - start;
+
+            Log.i(TAG, eventCount + " recurring events, " + instanceCount + " instances: "
+                    + "expansion " + scratchTime / 1000000 + "ms, timezone change "
+                    + timezoneTime / 1000000 + "ms, event update " + updateTime / 1000000 + "ms");
+        } finally {
+            TimeZone.setDefault(defaultTimezone);
+        }
+    }
+
     public static final Uri PROPERTIES_CONTENT_URI =
             Uri.parse("content://" + CalendarContract.AUTHORITY + "/properties");
 
@@ -62,25 +62,21 @@ public class ContactLocaleUtils {
     private class ChineseContactUtils extends ContactLocaleUtilsBase {
         @Override
         public String getSortKey(String displayName) {
-            ArrayList<Token> tokens = HanziToPinyin.getInstance().get(displayName);
-            if (tokens != null && tokens.size() > 0) {
+            final HanziToPinyin.TokenList tokens = new HanziToPinyin.TokenList();
+            HanziToPinyin.getInstance().getTokens(displayName, tokens);
+            if (tokens.count > 0) {
                 StringBuilder sb = new StringBuilder();
-                for (Token token : tokens) {
+                for (int i = 0; i < tokens.count; i++) {
+                    if (sb.length() > 0) {
+                        sb.append(' ');
+                    }
                     // Put Chinese character's pinyin, then proceed with the
                     // character itself.
-                    if (Token.PINYIN == token.type) {
-                        if (sb.length() > 0) {
-                            sb.append(' ');
-                        }
-                        sb.append(token.target);
+                    if (Token.PINYIN == tokens.types[i]) {
+                        tokens.appendTarget(displayName, i, sb);
                         sb.append(' ');
-                        sb.append(token.source);
-                    } else {
-                        if (sb.length() > 0) {
-                            sb.append(' ');
-                        }
-                        sb.append(token.source);
                     }
+                    tokens.appendSource(displayName, i, sb);
                 }
                 return sb.toString();
             }
@@ -694,6 +694,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         String DIRECTORY_SCAN_COMPLETE = "directoryScanComplete";
         String AGGREGATION_ALGORITHM = "aggregation_v2";
         String KNOWN_ACCOUNTS = "known_accounts";
+        String DATABASE_TIME_CREATED = "database_time_created";
     }
 
     /** In-memory cache of previously found MIME-type mappings */
@@ -1271,6 +1272,9 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 PropertiesColumns.PROPERTY_VALUE + " TEXT " +
         ");");
 
+        setProperty(db, DbProperties.DATABASE_TIME_CREATED,
+                String.valueOf(System.currentTimeMillis()));
+
         createDirectoriesTable(db);
         createSearchIndexTable(db);
 
@@ -3998,6 +4002,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DELETE FROM " + Tables.DIRECTORIES + ";");
         db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX + ";");
 
+        // Row ids may be reused from here on, so this counts as a new database for clients.
+        setProperty(db, DbProperties.DATABASE_TIME_CREATED,
+                String.valueOf(System.currentTimeMillis()));
+
         initializeCache(db);
 
         // Note: we are not removing reference data from Tables.NICKNAME_LOOKUP
@@ -4665,6 +4673,20 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         return value != null ? value : defaultValue;
     }
 
+    /**
+     * Returns when the database was created or last wiped, in milliseconds since the epoch.
+     * Clients that cache data by row id use this to tell a new database from the old one.
+     * Databases created before this was recorded get the time of the first call.
+     */
+    public long getDatabaseCreationTime() {
+        String value = getProperty(DbProperties.DATABASE_TIME_CREATED, null);
+        if (value == null) {
+            value = String.valueOf(System.currentTimeMillis());
+            setProperty(DbProperties.DATABASE_TIME_CREATED, value);
+        }
+        return Long.parseLong(value);
+    }
+
     /**
      * Stores a key-value pair in the {@link Tables#PROPERTIES} table.
      */
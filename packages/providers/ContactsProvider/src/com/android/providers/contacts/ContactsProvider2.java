@@ -213,6 +213,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
      */
     private static final String PREAUTHORIZED_URI_TOKEN = "perm_token";
 
+    /**
+     * Hidden column of {@link ProviderStatus#CONTENT_URI}: when the contacts database was
+     * created or last wiped. Row ids, and so photo ids and display photo URIs, may be reused
+     * by a new database, so clients that cache photos by id use this to drop their cache.
+     */
+    /* package */ static final String PROVIDER_STATUS_DATABASE_CREATION_TIMESTAMP =
+            "database_creation_timestamp";
+
     private static final String PREF_LOCALE = "locale";
 
     private static final int PROPERTY_AGGREGATION_ALGORITHM_VERSION = 3;
@@ -5894,8 +5902,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case PROVIDER_STATUS: {
                 return buildSingleRowResult(projection,
-                        new String[] {ProviderStatus.STATUS, ProviderStatus.DATA1},
-                        new Object[] {mProviderStatus, mEstimatedStorageRequirement});
+                        new String[] {ProviderStatus.STATUS, ProviderStatus.DATA1,
+                                PROVIDER_STATUS_DATABASE_CREATION_TIMESTAMP},
+                        new Object[] {mProviderStatus, mEstimatedStorageRequirement,
+                                ContactsDatabaseHelper.isInProjection(projection,
+                                        PROVIDER_STATUS_DATABASE_CREATION_TIMESTAMP)
+                                        ? mContactsHelper.getDatabaseCreationTime() : null});
             }
 
             case DIRECTORIES : {
@@ -21,6 +21,7 @@ import android.util.Log;
 
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -31,6 +32,9 @@ import java.util.Locale;
  * implementation highly depends on zh_CN ICU collation data and must be always synchronized with
  * ICU.
  *
+ * The collator is only used the first time a character is looked up; its pinyin is then kept in
+ * a table indexed by the character.
+ *
  * Currently this file is aligned to zh.txt in ICU 4.6
  */
 public class HanziToPinyin {
@@ -245,6 +249,27 @@ public class HanziToPinyin {
     private static final char FIRST_UNIHAN = '\u3400';
     private static final Collator COLLATOR = Collator.getInstance(Locale.CHINA);
 
+    /** The pinyin strings of PINYINS */
+    private static final String[] PINYIN_STRINGS = new String[PINYINS.length];
+    static {
+        for (int i = 0; i < PINYINS.length; i++) {
+            StringBuilder pinyin = new StringBuilder();
+            for (int j = 0; j < PINYINS[i].length && PINYINS[i][j] != 0; j++) {
+                pinyin.append((char) PINYINS[i][j]);
+            }
+            PINYIN_STRINGS[i] = pinyin.toString();
+        }
+    }
+
+    /**
+     * The pinyin of every character from FIRST_UNIHAN on, as an index into PINYINS plus one, or
+     * NO_PINYIN.  An entry is filled in by the collator search the first time its character is
+     * looked up, and reused from then on; 0 means the character hasn't been looked up yet.
+     * Concurrent lookups of the same character store the same value, so no lock is needed.
+     */
+    private static final short[] sPinyinIndex = new short[Character.MAX_VALUE + 1 - FIRST_UNIHAN];
+    private static final short NO_PINYIN = -1;
+
     private static HanziToPinyin sInstance;
     private final boolean mHasChinaCollator;
 
@@ -333,43 +358,28 @@ public class HanziToPinyin {
         return true;
     }
 
-    private Token getToken(char character) {
-        Token token = new Token();
+    /**
+     * Find the pinyin of a character from FIRST_UNIHAN on with the collator.
+     *
+     * @return the index of its pinyin in PINYINS, or -1 if it has none
+     */
+    private static int searchPinyin(char character) {
         final String letter = Character.toString(character);
-        token.source = letter;
         int offset = -1;
-        int cmp;
-        if (character < 256) {
-            token.type = Token.LATIN;
-            token.target = letter;
-            return token;
-        } else if (character < FIRST_UNIHAN) {
-            token.type = Token.UNKNOWN;
-            token.target = letter;
-            return token;
+        int cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
+        if (cmp < 0) {
+            return -1;
+        } else if (cmp == 0) {
+            offset = 0;
         } else {
-            cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
-            if (cmp < 0) {
-                token.type = Token.UNKNOWN;
-                token.target = letter;
-                return token;
+            cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
+            if (cmp > 0) {
+                return -1;
             } else if (cmp == 0) {
-                token.type = Token.PINYIN;
-                offset = 0;
-            } else {
-                cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
-                if (cmp > 0) {
-                    token.type = Token.UNKNOWN;
-                    token.target = letter;
-                    return token;
-                } else if (cmp == 0) {
-                    token.type = Token.PINYIN;
-                    offset = UNIHANS.length - 1;
-                }
+                offset = UNIHANS.length - 1;
             }
         }
 
-        token.type = Token.PINYIN;
         if (offset < 0) {
             int begin = 0;
             int end = UNIHANS.length - 1;
@@ -389,12 +399,71 @@ public class HanziToPinyin {
         if (cmp < 0) {
             offset--;
         }
-        StringBuilder pinyin = new StringBuilder();
-        for (int j = 0; j < PINYINS[offset].length && PINYINS[offset][j] != 0; j++) {
-            pinyin.append((char) PINYINS[offset][j]);
+        return offset;
+    }
+
+    /**
+     * @return the pinyin of a character from FIRST_UNIHAN on, or null if it has none
+     */
+    private static String getPinyin(char character) {
+        final int i = character - FIRST_UNIHAN;
+        int index = sPinyinIndex[i];
+        if (index == 0) {
+            final int offset = searchPinyin(character);
+            index = offset < 0 ? NO_PINYIN : offset + 1;
+            sPinyinIndex[i] = (short) index;
+        }
+        return index == NO_PINYIN ? null : PINYIN_STRINGS[index - 1];
+    }
+
+    /**
+     * Reusable storage for the tokens of a string, as found by
+     * {@link HanziToPinyin#getTokens(CharSequence, TokenList)}.  Token i is made of the characters
+     * of the input in [sourceStarts[i], sourceEnds[i]); its target is the pinyin in targets[i] for
+     * a PINYIN token, and its source otherwise.  The arrays only grow, so once they are big enough
+     * tokenizing allocates nothing.
+     */
+    public static class TokenList {
+        /** The number of tokens */
+        public int count;
+        public int[] types = new int[16];
+        public int[] sourceStarts = new int[16];
+        public int[] sourceEnds = new int[16];
+        /** The pinyin of PINYIN tokens, and null for the others */
+        public String[] targets = new String[16];
+
+        /**
+         * Append the target of token i to the builder
+         */
+        public void appendTarget(CharSequence input, int i, StringBuilder sb) {
+            if (types[i] == Token.PINYIN) {
+                sb.append(targets[i]);
+            } else {
+                sb.append(input, sourceStarts[i], sourceEnds[i]);
+            }
+        }
+
+        /**
+         * Append the source of token i to the builder
+         */
+        public void appendSource(CharSequence input, int i, StringBuilder sb) {
+            sb.append(input, sourceStarts[i], sourceEnds[i]);
+        }
+
+        private void add(int type, int start, int end, String target) {
+            if (count == types.length) {
+                final int length = count * 2;
+                types = Arrays.copyOf(types, length);
+                sourceStarts = Arrays.copyOf(sourceStarts, length);
+                sourceEnds = Arrays.copyOf(sourceEnds, length);
+                targets = Arrays.copyOf(targets, length);
+            }
+            types[count] = type;
+            sourceStarts[count] = start;
+            sourceEnds[count] = end;
+            targets[count] = target;
+            count++;
         }
-        token.target = pinyin.toString();
-        return token;
     }
 
     /**
@@ -408,8 +477,28 @@ public class HanziToPinyin {
             // return empty tokens.
             return tokens;
         }
+        final TokenList list = new TokenList();
+        getTokens(input, list);
+        for (int i = 0; i < list.count; i++) {
+            final String source = input.substring(list.sourceStarts[i], list.sourceEnds[i]);
+            final String target = list.types[i] == Token.PINYIN ? list.targets[i] : source;
+            tokens.add(new Token(list.types[i], source, target));
+        }
+        return tokens;
+    }
+
+    /**
+     * The same as {@link #get(String)}, but the tokens are stored in the given list (replacing
+     * its contents) instead of being allocated.
+     */
+    public void getTokens(final CharSequence input, final TokenList tokens) {
+        tokens.count = 0;
+        if (!mHasChinaCollator || TextUtils.isEmpty(input)) {
+            return;
+        }
         final int inputLength = input.length();
-        final StringBuilder sb = new StringBuilder();
+        // The start of the token being built, or -1
+        int start = -1;
         int tokenType = Token.LATIN;
         // Go through the input, create a new token when
         // a. Token type changed
@@ -418,48 +507,35 @@ public class HanziToPinyin {
         for (int i = 0; i < inputLength; i++) {
             final char character = input.charAt(i);
             if (character == ' ') {
-                if (sb.length() > 0) {
-                    addToken(sb, tokens, tokenType);
-                }
-            } else if (character < 256) {
-                if (tokenType != Token.LATIN && sb.length() > 0) {
-                    addToken(sb, tokens, tokenType);
+                if (start >= 0) {
+                    tokens.add(tokenType, start, i, null);
+                    start = -1;
                 }
-                tokenType = Token.LATIN;
-                sb.append(character);
+                continue;
+            }
+            int type;
+            String pinyin = null;
+            if (character < 256) {
+                type = Token.LATIN;
             } else if (character < FIRST_UNIHAN) {
-                if (tokenType != Token.UNKNOWN && sb.length() > 0) {
-                    addToken(sb, tokens, tokenType);
-                }
-                tokenType = Token.UNKNOWN;
-                sb.append(character);
+                type = Token.UNKNOWN;
             } else {
-                Token t = getToken(character);
-                if (t.type == Token.PINYIN) {
-                    if (sb.length() > 0) {
-                        addToken(sb, tokens, tokenType);
-                    }
-                    tokens.add(t);
-                    tokenType = Token.PINYIN;
-                } else {
-                    if (tokenType != t.type && sb.length() > 0) {
-                        addToken(sb, tokens, tokenType);
-                    }
-                    tokenType = t.type;
-                    sb.append(character);
-                }
+                pinyin = getPinyin(character);
+                type = pinyin != null ? Token.PINYIN : Token.UNKNOWN;
+            }
+            if (start >= 0 && (type == Token.PINYIN || type != tokenType)) {
+                tokens.add(tokenType, start, i, null);
+                start = -1;
+            }
+            tokenType = type;
+            if (type == Token.PINYIN) {
+                tokens.add(type, i, i + 1, pinyin);
+            } else if (start < 0) {
+                start = i;
             }
         }
-        if (sb.length() > 0) {
-            addToken(sb, tokens, tokenType);
+        if (start >= 0) {
+            tokens.add(tokenType, start, inputLength, null);
         }
-        return tokens;
-    }
-
-    private void addToken(
-            final StringBuilder sb, final ArrayList<Token> tokens, final int tokenType) {
-        String str = sb.toString();
-        tokens.add(new Token(tokenType, str, str));
-        sb.setLength(0);
     }
 }
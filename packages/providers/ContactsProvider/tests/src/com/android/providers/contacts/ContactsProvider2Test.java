@@ -6163,6 +6163,28 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertProviderStatus(ProviderStatus.STATUS_NO_ACCOUNTS_NO_CONTACTS);
     }
 
+    public void testProviderStatusDatabaseCreationTimestamp() throws Exception {
+        long created = getDatabaseCreationTimestamp();
+        assertTrue(created > 0);
+        assertEquals(created, getDatabaseCreationTimestamp());
+
+        Thread.sleep(10);
+        getContactsProvider().wipeData();
+        assertTrue(getDatabaseCreationTimestamp() > created);
+    }
+
+    private long getDatabaseCreationTimestamp() {
+        Cursor cursor = mResolver.query(ProviderStatus.CONTENT_URI,
+                new String[]{ContactsProvider2.PROVIDER_STATUS_DATABASE_CREATION_TIMESTAMP},
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void assertProviderStatus(int expectedProviderStatus) {
         Cursor cursor = mResolver.query(ProviderStatus.CONTENT_URI,
                 new String[]{ProviderStatus.DATA1, ProviderStatus.STATUS}, null, null, null);
@@ -17,18 +17,24 @@
 package com.android.providers.contacts;
 
 import com.android.providers.contacts.HanziToPinyin.Token;
+import com.android.providers.contacts.HanziToPinyin.TokenList;
 
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
 @SmallTest
 public class HanziToPinyinTest extends TestCase {
+    private static final String TAG = "HanziToPinyinTest";
+
     private final static String ONE_HANZI = "\u675C";
     private final static String TWO_HANZI = "\u675C\u9D51";
     private final static String ASSIC = "test";
@@ -70,4 +76,187 @@ public class HanziToPinyinTest extends TestCase {
         assertEquals(tokens.get(5).type, Token.UNKNOWN);
         assertEquals(tokens.get(6).type, Token.PINYIN);
     }
+
+    private static boolean hasChineseCollator() {
+        return Arrays.asList(Collator.getAvailableLocales()).contains(Locale.CHINA);
+    }
+
+    /**
+     * Finds the pinyin of a character by searching UNIHANS with the collator, which is how
+     * HanziToPinyin did it for every character before it kept a table.
+     */
+    private static String searchPinyin(Collator collator, char character) {
+        final String letter = Character.toString(character);
+        int cmp = collator.compare(letter, "\u963F");
+        if (cmp < 0) {
+            return null;
+        }
+        int offset = -1;
+        if (cmp == 0) {
+            offset = 0;
+        } else {
+            cmp = collator.compare(letter, "\u84D9");
+            if (cmp > 0) {
+                return null;
+            } else if (cmp == 0) {
+                offset = HanziToPinyin.UNIHANS.length - 1;
+            }
+        }
+        int begin = 0;
+        int end = offset < 0 ? HanziToPinyin.UNIHANS.length - 1 : -1;
+        while (begin <= end) {
+            offset = (begin + end) / 2;
+            cmp = collator.compare(letter, Character.toString(HanziToPinyin.UNIHANS[offset]));
+            if (cmp == 0) {
+                break;
+            } else if (cmp > 0) {
+                begin = offset + 1;
+            } else {
+                end = offset - 1;
+            }
+        }
+        if (cmp < 0) {
+            offset--;
+        }
+        if (offset < 0) {
+            return null;
+        }
+        StringBuilder pinyin = new StringBuilder();
+        byte[] bytes = HanziToPinyin.PINYINS[offset];
+        for (int j = 0; j < bytes.length && bytes[j] != 0; j++) {
+            pinyin.append((char) bytes[j]);
+        }
+        return pinyin.toString();
+    }
+
+    @LargeTest
+    public void testEveryCharacter() throws Exception {
+        if (!hasChineseCollator()) {
+            return;
+        }
+        Collator collator = Collator.getInstance(Locale.CHINA);
+        HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
+        // Twice: once to fill the table, then from the table
+        for (int pass = 0; pass < 2; pass++) {
+            for (char c = '\u3400'; c < Character.MAX_VALUE; c++) {
+                if (c == ' ') continue;
+                String pinyin = searchPinyin(collator, c);
+                ArrayList<Token> tokens = hanziToPinyin.get(Character.toString(c));
+                assertEquals(1, tokens.size());
+                Token token = tokens.get(0);
+                assertEquals(Character.toString(c), token.source);
+                if (pinyin == null) {
+                    assertEquals(Token.UNKNOWN, token.type);
+                    assertEquals(token.source, token.target);
+                } else {
+                    assertEquals(Token.PINYIN, token.type);
+                    assertEquals(pinyin, token.target);
+                }
+            }
+        }
+    }
+
+    private static final String[] LATIN_NAMES = {"John", "Mary", "Smith", "Lee", "O'Neil"};
+
+    /**
+     * Makes up a name: Chinese characters, with some Latin, other and unknown characters, and
+     * spaces
+     */
+    private static String makeName(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = 2 + random.nextInt(3);
+        for (int i = 0; i < length; i++) {
+            int r = random.nextInt(20);
+            if (r == 0) {
+                sb.append(' ');
+            } else if (r == 1) {
+                sb.append(LATIN_NAMES[random.nextInt(LATIN_NAMES.length)]);
+            } else if (r == 2) {
+                // Katakana, which has no pinyin
+                sb.append((char) (0x30A0 + random.nextInt(0x60)));
+            } else if (r == 3) {
+                // Compatibility ideographs and halfwidth forms
+                sb.append((char) (0xF900 + random.nextInt(0x700)));
+            } else {
+                sb.append((char) (0x4E00 + random.nextInt(0x51A6)));
+            }
+        }
+        return sb.toString();
+    }
+
+    @SmallTest
+    public void testGetTokens() throws Exception {
+        if (!hasChineseCollator()) {
+            return;
+        }
+        HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
+        TokenList list = new TokenList();
+        hanziToPinyin.getTokens(MISC, list);
+        assertEquals(7, list.count);
+
+        Random random = new Random(0);
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < 1000; n++) {
+            String name = makeName(random);
+            ArrayList<Token> tokens = hanziToPinyin.get(name);
+            hanziToPinyin.getTokens(name, list);
+            assertEquals(name, tokens.size(), list.count);
+            for (int i = 0; i < list.count; i++) {
+                Token token = tokens.get(i);
+                assertEquals(name, token.type, list.types[i]);
+                sb.setLength(0);
+                list.appendSource(name, i, sb);
+                assertEquals(name, token.source, sb.toString());
+                sb.setLength(0);
+                list.appendTarget(name, i, sb);
+                assertEquals(name, token.target, sb.toString());
+            }
+        }
+
+        hanziToPinyin.getTokens("", list);
+        assertEquals(0, list.count);
+        hanziToPinyin.getTokens(null, list);
+        assertEquals(0, list.count);
+    }
+
+    /**
+     * Tokenize 100k names with get() and with getTokens(), and build their sort keys
+     */
+    @LargeTest
+    public void testBenchmark() throws Exception {
+        if (!hasChineseCollator()) {
+            return;
+        }
+        final int count = 100000;
+        Random random = new Random(1);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = makeName(random);
+        }
+        HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
+
+        // The first pass also fills the table for the characters seen
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            int tokenCount = 0;
+            for (String name : names) {
+                tokenCount += hanziToPinyin.get(name).size();
+            }
+            long getTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            TokenList list = new TokenList();
+            StringBuilder sb = new StringBuilder();
+            for (String name : names) {
+                hanziToPinyin.getTokens(name, list);
+                sb.setLength(0);
+                for (int i = 0; i < list.count; i++) {
+                    list.appendTarget(name, i, sb);
+                }
+            }
+            long getTokensTime = System.nanoTime() - start;
+            Log.v(TAG, "pass " + pass + ": " + count + " names, " + tokenCount + " tokens; get() "
+                    + getTime / 1000000 + "ms, getTokens() " + getTokensTime / 1000000 + "ms");
+        }
+    }
 }